@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta;
+
+import java.util.Objects;
+
+import com.blockwithme.util.base.SystemUtils;
+
+/**
+ * A base class for "batched" PropertyVisitors.
+ *
+ * Instead of visiting one instance at a time, property by property, a batch
+ * of instances of the same Type is visited "column-wise": for every one of
+ * the inheritedProperties of the Type, the values of all the instances are
+ * read in a (reused) column array, which is then passed to visitColumn().
+ *
+ * All integral primitive properties (including booleans) are read as long,
+ * all floating-point properties as double, and all Object properties as
+ * Object. Nested Objects are *not* visited recursively; sub-classes decide
+ * what to do with Object columns.
+ *
+ * The column arrays are only valid during the visitColumn() call.
+ *
+ * Instances of this class are stateful, and *not* thread-safe. Use one
+ * instance per thread (see ParallelPropertyVisit).
+ *
+ * @author monster
+ */
+public abstract class AbstractBatchPropertyVisitor implements PropertyVisitor {
+
+    /** Empty long column */
+    private static final long[] NO_LONG = new long[0];
+
+    /** Empty double column */
+    private static final double[] NO_DOUBLE = new double[0];
+
+    /** Empty Object column */
+    private static final Object[] NO_OBJECT = new Object[0];
+
+    /** The currently visited instances */
+    private Object[] batch;
+
+    /** The index of the first currently visited instance (inclusive) */
+    private int from;
+
+    /** The index of the last currently visited instance (exclusive) */
+    private int to;
+
+    /** The reused integral column */
+    private long[] longColumn = NO_LONG;
+
+    /** The reused floating-point column */
+    private double[] doubleColumn = NO_DOUBLE;
+
+    /** The reused Object column */
+    private Object[] objectColumn = NO_OBJECT;
+
+    /**
+     * Visits a single Object instance, as a batch of one.
+     * @param type The type of the instance. Cannot be null.
+     * @param instance The instance. Cannot be null.
+     */
+    @Override
+    public final void visit(final Type<?> type, final Object instance) {
+        visitBatch(type, new Object[] { instance }, 0, 1);
+    }
+
+    /**
+     * Visits a batch of instances of the same Type, column-wise.
+     * Only the Properties of the given Type are visited, even if some
+     * instances are of a sub-type.
+     * @param type The type of the instances. Cannot be null.
+     * @param instances The instances. Cannot contain null, between from and to.
+     * @param from The index of the first instance (inclusive)
+     * @param to The index of the last instance (exclusive)
+     */
+    public final void visitBatch(final Type<?> type, final Object[] instances,
+            final int from, final int to) {
+        Objects.requireNonNull(type, "type");
+        Objects.requireNonNull(instances, "instances");
+        if ((from < 0) || (to > instances.length) || (from > to)) {
+            throw new IndexOutOfBoundsException("from=" + from + " to=" + to
+                    + " length=" + instances.length);
+        }
+        for (int i = from; i < to; i++) {
+            final Object instance = instances[i];
+            if ((instance == null)
+                    || !SystemUtils.isAssignableFrom(type.type,
+                            instance.getClass())) {
+                throw new IllegalArgumentException("instances[" + i + "] ("
+                        + instance + ") is not a " + type);
+            }
+        }
+        if (batch != null) {
+            throw new IllegalStateException(
+                    "Recursive batch visits are not supported");
+        }
+        batch = instances;
+        this.from = from;
+        this.to = to;
+        try {
+            final boolean visited = beforeVisitBatch(type, instances, from, to);
+            if (visited) {
+                for (final Property<?, ?> p : type.inheritedProperties) {
+                    p.accept(this);
+                }
+            }
+            afterVisitBatch(type, instances, from, to, visited);
+        } finally {
+            batch = null;
+            this.from = 0;
+            this.to = 0;
+        }
+    }
+
+    /** Fills the integral column, and visits it. */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void visitIntegral(final IIntegralPrimitiveProperty prop) {
+        final int count = to - from;
+        if (longColumn.length < count) {
+            longColumn = new long[count];
+        }
+        final long[] column = longColumn;
+        for (int i = 0; i < count; i++) {
+            column[i] = prop.toLong(batch[from + i]);
+        }
+        visitColumn(prop, column, count);
+    }
+
+    /** Fills the floating-point column, and visits it. */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void visitReal(final IRealPrimitiveProperty prop) {
+        final int count = to - from;
+        if (doubleColumn.length < count) {
+            doubleColumn = new double[count];
+        }
+        final double[] column = doubleColumn;
+        for (int i = 0; i < count; i++) {
+            column[i] = prop.toDouble(batch[from + i]);
+        }
+        visitColumn(prop, column, count);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.BooleanProperty)
+     */
+    @Override
+    public final void visit(final BooleanProperty<?, ?, ?> prop) {
+        visitIntegral(prop);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.ByteProperty)
+     */
+    @Override
+    public final void visit(final ByteProperty<?, ?, ?> prop) {
+        visitIntegral(prop);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.CharacterProperty)
+     */
+    @Override
+    public final void visit(final CharacterProperty<?, ?, ?> prop) {
+        visitIntegral(prop);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.ShortProperty)
+     */
+    @Override
+    public final void visit(final ShortProperty<?, ?, ?> prop) {
+        visitIntegral(prop);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.IntegerProperty)
+     */
+    @Override
+    public final void visit(final IntegerProperty<?, ?, ?> prop) {
+        visitIntegral(prop);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.LongProperty)
+     */
+    @Override
+    public final void visit(final LongProperty<?, ?, ?> prop) {
+        visitIntegral(prop);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.FloatProperty)
+     */
+    @Override
+    public final void visit(final FloatProperty<?, ?, ?> prop) {
+        visitReal(prop);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.DoubleProperty)
+     */
+    @Override
+    public final void visit(final DoubleProperty<?, ?, ?> prop) {
+        visitReal(prop);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.ObjectProperty)
+     */
+    @Override
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public final void visit(final ObjectProperty<?, ?, ?, ?> prop) {
+        final int count = to - from;
+        if (objectColumn.length < count) {
+            objectColumn = new Object[count];
+        }
+        final Object[] column = objectColumn;
+        final ObjectProperty p = prop;
+        for (int i = 0; i < count; i++) {
+            column[i] = p.getObject(batch[from + i]);
+        }
+        try {
+            visitColumn(prop, column, count);
+        } finally {
+            // Do not retain references to the values
+            for (int i = 0; i < count; i++) {
+                column[i] = null;
+            }
+        }
+    }
+
+    /** Returns the currently visited instances, or null. */
+    protected final Object[] currentBatch() {
+        return batch;
+    }
+
+    /** Returns the index of the first currently visited instance. */
+    protected final int currentFrom() {
+        return from;
+    }
+
+    /** Returns the index of the last currently visited instance (exclusive). */
+    protected final int currentTo() {
+        return to;
+    }
+
+    /**
+     * Called before visiting a batch of instances.
+     * Returns false, if the batch should not be visited.
+     */
+    protected boolean beforeVisitBatch(final Type<?> type,
+            final Object[] instances, final int from, final int to) {
+        return true;
+    }
+
+    /** Called after visiting a batch of instances. */
+    protected void afterVisitBatch(final Type<?> type,
+            final Object[] instances, final int from, final int to,
+            final boolean visited) {
+        // NOP
+    }
+
+    /**
+     * Visits the values of an integral primitive Property (including
+     * boolean), for all the instances of the batch, in order.
+     */
+    protected void visitColumn(final IIntegralPrimitiveProperty<?, ?, ?> prop,
+            final long[] values, final int count) {
+        // NOP
+    }
+
+    /**
+     * Visits the values of a floating-point primitive Property, for all the
+     * instances of the batch, in order.
+     */
+    protected void visitColumn(final IRealPrimitiveProperty<?, ?, ?> prop,
+            final double[] values, final int count) {
+        // NOP
+    }
+
+    /**
+     * Visits the values of an Object Property, for all the instances of the
+     * batch, in order.
+     */
+    protected void visitColumn(final ObjectProperty<?, ?, ?, ?> prop,
+            final Object[] values, final int count) {
+        // NOP
+    }
+}
@@ -22,6 +22,10 @@ import java.util.ArrayList
  *
  * Visiting a "Typed" object causes all it's inheritedProperties to be visited.
  *
+ * A visitor keeps the currently visited object in a field, and so cannot be
+ * shared between threads. See ParallelPropertyVisit, to visit in parallel, and
+ * AbstractBatchPropertyVisitor, to visit many instances column-wise.
+ *
  * TODO The visitor should support some basic data-transformations, like class-to-string,
  * enum-to-string, enum-to-int, ...
  *
@@ -52,11 +56,13 @@ abstract class AbstractPropertyVisitor implements PropertyVisitor {
     	val visited = beforeVisitInstance(type, instance)
     	if (visited) {
 			for (p : type.inheritedProperties) {
-				obj = instance
-				try {
-					p.accept(this)
-				} finally {
-					obj = null
+				if (acceptProperty(instance, p)) {
+					obj = instance
+					try {
+						p.accept(this)
+					} finally {
+						obj = null
+					}
 				}
 			}
 		}
@@ -136,6 +142,11 @@ abstract class AbstractPropertyVisitor implements PropertyVisitor {
     	// NOP
     }
 
+	/** Returns false, if this Property of the instance should be skipped. */
+	protected def boolean acceptProperty(Object instance, Property<?,?> prop) {
+		true
+	}
+
 	/** Called before visiting the value of a Property. */
 	protected def void visitProperty(Property prop) {
 		visitProperty(prop.simpleName)
@@ -0,0 +1,627 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+
+import com.blockwithme.util.base.SystemUtils;
+
+/**
+ * A columnar ("struct-of-arrays") storage for many instances of one Type.
+ *
+ * Every (non-virtual) Property in the inheritedProperties of the Type gets
+ * it's own column, of the smallest matching Java type: booleans are stored
+ * as bits, bytes as byte[], ... and Objects as Object[]. A row, identified
+ * by an int, represents one instance; the pair (store, row) is the
+ * "flyweight handle" of that instance. Per row, the primitive data costs
+ * about primitivePropertyBitsTotal bits (see bitsPerRow()), instead of a
+ * full object, with it's header and bean fields (see inheritedFootprint).
+ *
+ * Values are accessed either by Property, or, in loops, by column index
+ * (see column()). The "layout-independent" view of the data is given by the
+ * Property itself: the integral properties are stored and read as
+ * Property.toLong()/fromLong() would, the floating-point properties as
+ * toDouble()/fromDouble(), and the Object properties as getObject()/
+ * setObject(). copyFrom() and copyTo() convert between a normal instance, and
+ * a row, using exactly those accessors.
+ *
+ * When the Type is an interface, as for Beans, handle() returns a row handle:
+ * an instance of the Type, that reads and writes the row, and so works with
+ * the normal Property API (see RowHandler). It only supports the getters and
+ * setters of the Properties, and bypasses the validators and listeners.
+ *
+ * Freed rows are reused. Rows of newly allocated instances contain zero,
+ * false, or null, and *not* the default values of the Type.
+ *
+ * This class is not thread-safe.
+ *
+ * @author monster
+ */
+public final class ColumnStore<E> {
+
+    /** Column kind: bits in a long[] */
+    private static final byte BOOLEAN = 0;
+    /** Column kind: byte[] */
+    private static final byte BYTE = 1;
+    /** Column kind: char[] */
+    private static final byte CHARACTER = 2;
+    /** Column kind: short[] */
+    private static final byte SHORT = 3;
+    /** Column kind: int[] */
+    private static final byte INTEGER = 4;
+    /** Column kind: long[] */
+    private static final byte LONG = 5;
+    /** Column kind: float[] */
+    private static final byte FLOAT = 6;
+    /** Column kind: double[] */
+    private static final byte DOUBLE = 7;
+    /** Column kind: Object[] */
+    private static final byte OBJECT = 8;
+
+    /** The minimum capacity. */
+    private static final int MIN_CAPACITY = 64;
+
+    /** The Type of the instances */
+    public final Type<E> type;
+
+    /** The Properties, one per column. */
+    private final Property<?, ?>[] properties;
+
+    /** The kind of each column */
+    private final byte[] kinds;
+
+    /** The columns */
+    private final Object[] columns;
+
+    /** The live rows, as a bit-set */
+    private long[] live;
+
+    /** The free rows stack */
+    private int[] free = new int[0];
+
+    /** The number of free rows, in free */
+    private int freeCount;
+
+    /** The number of used rows (live or freed) */
+    private int used;
+
+    /** The number of live rows */
+    private int size;
+
+    /** The capacity */
+    private int capacity;
+
+    /** The Properties, by getter and setter name, for the row handles */
+    private Map<String, Property<?, ?>> handleMethods;
+
+    /** Creates a ColumnStore, for the given Type. */
+    public ColumnStore(final Type<E> type, final int initialCapacity) {
+        this.type = Objects.requireNonNull(type, "type");
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("initialCapacity: "
+                    + initialCapacity);
+        }
+        properties = type.inheritedProperties;
+        final int count = properties.length;
+        kinds = new byte[count];
+        columns = new Object[count];
+        for (int i = 0; i < count; i++) {
+            kinds[i] = kindOf(properties[i]);
+        }
+        capacity = Math.max(MIN_CAPACITY, initialCapacity);
+        live = new long[bitWords(capacity)];
+        for (int i = 0; i < count; i++) {
+            columns[i] = newColumn(kinds[i], capacity);
+        }
+    }
+
+    /** Returns the column kind for a Property. */
+    private static byte kindOf(final Property<?, ?> prop) {
+        switch (prop.getType()) {
+        case BOOLEAN:
+            return BOOLEAN;
+        case BYTE:
+            return BYTE;
+        case CHARACTER:
+            return CHARACTER;
+        case SHORT:
+            return SHORT;
+        case INTEGER:
+            return INTEGER;
+        case LONG:
+            return LONG;
+        case FLOAT:
+            return FLOAT;
+        case DOUBLE:
+            return DOUBLE;
+        default:
+            return OBJECT;
+        }
+    }
+
+    /** Returns the number of long required for a bit-set. */
+    private static int bitWords(final int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    /** Creates a new column. */
+    private static Object newColumn(final byte kind, final int capacity) {
+        switch (kind) {
+        case BOOLEAN:
+            return new long[bitWords(capacity)];
+        case BYTE:
+            return new byte[capacity];
+        case CHARACTER:
+            return new char[capacity];
+        case SHORT:
+            return new short[capacity];
+        case INTEGER:
+            return new int[capacity];
+        case LONG:
+            return new long[capacity];
+        case FLOAT:
+            return new float[capacity];
+        case DOUBLE:
+            return new double[capacity];
+        default:
+            return new Object[capacity];
+        }
+    }
+
+    /** Grows a column. */
+    private static Object growColumn(final byte kind, final Object column,
+            final int capacity) {
+        switch (kind) {
+        case BOOLEAN:
+            return Arrays.copyOf((long[]) column, bitWords(capacity));
+        case BYTE:
+            return Arrays.copyOf((byte[]) column, capacity);
+        case CHARACTER:
+            return Arrays.copyOf((char[]) column, capacity);
+        case SHORT:
+            return Arrays.copyOf((short[]) column, capacity);
+        case INTEGER:
+            return Arrays.copyOf((int[]) column, capacity);
+        case LONG:
+            return Arrays.copyOf((long[]) column, capacity);
+        case FLOAT:
+            return Arrays.copyOf((float[]) column, capacity);
+        case DOUBLE:
+            return Arrays.copyOf((double[]) column, capacity);
+        default:
+            return Arrays.copyOf((Object[]) column, capacity);
+        }
+    }
+
+    /** Number of bits used by one row of a column kind. */
+    private static int bitsOf(final byte kind) {
+        switch (kind) {
+        case BOOLEAN:
+            return 1;
+        case BYTE:
+            return 8;
+        case CHARACTER:
+        case SHORT:
+            return 16;
+        case INTEGER:
+        case FLOAT:
+            return 32;
+        case LONG:
+        case DOUBLE:
+            return 64;
+        default:
+            return 0;
+        }
+    }
+
+    /** Returns the number of live rows. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the current capacity, in rows. */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of bits used by the primitive columns, per row.
+     * Object columns use one reference per row.
+     */
+    public int bitsPerRow() {
+        int result = 0;
+        for (final byte kind : kinds) {
+            result += bitsOf(kind);
+        }
+        return result;
+    }
+
+    /** Returns the number of Object columns. */
+    public int objectColumns() {
+        int result = 0;
+        for (final byte kind : kinds) {
+            if (kind == OBJECT) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /** Returns true, if the row is live (allocated, and not freed). */
+    public boolean isLive(final int row) {
+        return (row >= 0) && (row < used)
+                && ((live[row >>> 6] & (1L << row)) != 0);
+    }
+
+    /** Checks that a row is live. */
+    private void checkRow(final int row) {
+        if (!isLive(row)) {
+            throw new IllegalArgumentException("Row " + row + " is not live");
+        }
+    }
+
+    /**
+     * Returns the column index of a Property.
+     * Fails if the Property does not belong to the Type.
+     */
+    public int column(final Property<?, ?> prop) {
+        final int result = prop.inheritedPropertyId(type);
+        if ((result < 0) || (result >= properties.length)
+                || (properties[result] != prop)) {
+            throw new IllegalArgumentException("Property " + prop
+                    + " not stored in " + type);
+        }
+        return result;
+    }
+
+    /** Returns the Property of a column. */
+    public Property<?, ?> property(final int column) {
+        return properties[column];
+    }
+
+    /** Allocates a new row, with all-zero/null values. */
+    public int allocate() {
+        final int row;
+        if (freeCount > 0) {
+            row = free[--freeCount];
+        } else {
+            if (used == capacity) {
+                grow();
+            }
+            row = used++;
+        }
+        live[row >>> 6] |= (1L << row);
+        size++;
+        return row;
+    }
+
+    /** Grows all columns. */
+    private void grow() {
+        final int newCapacity = capacity + (capacity >>> 1);
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = growColumn(kinds[i], columns[i], newCapacity);
+        }
+        live = Arrays.copyOf(live, bitWords(newCapacity));
+        capacity = newCapacity;
+    }
+
+    /** Frees a row. All values of the row are cleared. */
+    public void free(final int row) {
+        checkRow(row);
+        clearRow(row);
+        live[row >>> 6] &= ~(1L << row);
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, Math.max(16, freeCount * 2));
+        }
+        free[freeCount++] = row;
+        size--;
+    }
+
+    /** Clears all the values of a row. */
+    private void clearRow(final int row) {
+        for (int i = 0; i < columns.length; i++) {
+            final byte kind = kinds[i];
+            if (kind == OBJECT) {
+                ((Object[]) columns[i])[row] = null;
+            } else if (kind == FLOAT) {
+                ((float[]) columns[i])[row] = 0;
+            } else if (kind == DOUBLE) {
+                ((double[]) columns[i])[row] = 0;
+            } else {
+                setRawLong(i, row, 0);
+            }
+        }
+    }
+
+    /**
+     * Returns a row handle, for a live row: an instance of the Type, that
+     * reads and writes the row through it's getters and setters, and so
+     * through the Property API. Fails if the Type is not an interface.
+     */
+    public E handle(final int row) {
+        checkRow(row);
+        if (handleMethods == null) {
+            handleMethods = RowHandler.methodsOf(type, properties);
+        }
+        return RowHandler.newHandle(type, new RowHandler(this, type,
+                handleMethods) {
+            @Override
+            int row() {
+                return row;
+            }
+
+            @Override
+            long getLong(final Property<?, ?> prop, final int row) {
+                return ColumnStore.this.getLong(column(prop), row);
+            }
+
+            @Override
+            void setLong(final Property<?, ?> prop, final int row,
+                    final long value) {
+                ColumnStore.this.setLong(column(prop), row, value);
+            }
+
+            @Override
+            double getDouble(final Property<?, ?> prop, final int row) {
+                return ColumnStore.this.getDouble(column(prop), row);
+            }
+
+            @Override
+            void setDouble(final Property<?, ?> prop, final int row,
+                    final double value) {
+                ColumnStore.this.setDouble(column(prop), row, value);
+            }
+
+            @Override
+            Object getObject(final Property<?, ?> prop, final int row) {
+                return ColumnStore.this.getObject(column(prop), row);
+            }
+
+            @Override
+            void setObject(final Property<?, ?> prop, final int row,
+                    final Object value) {
+                ColumnStore.this.setObject(column(prop), row, value);
+            }
+        });
+    }
+
+    /** Allocates a row, and copies all the values of the instance in it. */
+    public int add(final E instance) {
+        final int row = allocate();
+        copyFrom(instance, row);
+        return row;
+    }
+
+    /** Copies all the values of the instance in the (live) row. */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void copyFrom(final E instance, final int row) {
+        Objects.requireNonNull(instance, "instance");
+        checkRow(row);
+        for (int i = 0; i < columns.length; i++) {
+            final Property p = properties[i];
+            final byte kind = kinds[i];
+            if (kind == OBJECT) {
+                ((Object[]) columns[i])[row] = p.getObject(instance);
+            } else if (kind == FLOAT) {
+                ((float[]) columns[i])[row] = (float) ((IRealPrimitiveProperty) p)
+                        .toDouble(instance);
+            } else if (kind == DOUBLE) {
+                ((double[]) columns[i])[row] = ((IRealPrimitiveProperty) p)
+                        .toDouble(instance);
+            } else {
+                setRawLong(i, row,
+                        ((IIntegralPrimitiveProperty) p).toLong(instance));
+            }
+        }
+    }
+
+    /**
+     * Copies all the values of the (live) row in the instance.
+     * Returns the instance, as returned by the Property setters.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public E copyTo(final int row, final E instance) {
+        Objects.requireNonNull(instance, "instance");
+        checkRow(row);
+        Object result = instance;
+        for (int i = 0; i < columns.length; i++) {
+            final Property p = properties[i];
+            final byte kind = kinds[i];
+            if (kind == OBJECT) {
+                result = p.setObject(result, ((Object[]) columns[i])[row]);
+            } else if (kind == FLOAT) {
+                result = ((IRealPrimitiveProperty) p).fromDouble(result,
+                        ((float[]) columns[i])[row]);
+            } else if (kind == DOUBLE) {
+                result = ((IRealPrimitiveProperty) p).fromDouble(result,
+                        ((double[]) columns[i])[row]);
+            } else {
+                result = ((IIntegralPrimitiveProperty) p).fromLong(result,
+                        getRawLong(i, row));
+            }
+        }
+        return (E) result;
+    }
+
+    /** Reads an integral column, as long; no check. */
+    private long getRawLong(final int column, final int row) {
+        final Object c = columns[column];
+        switch (kinds[column]) {
+        case BOOLEAN:
+            return ((((long[]) c)[row >>> 6] & (1L << row)) != 0) ? 1 : 0;
+        case BYTE:
+            return ((byte[]) c)[row];
+        case CHARACTER:
+            return ((char[]) c)[row];
+        case SHORT:
+            return ((short[]) c)[row];
+        case INTEGER:
+            return ((int[]) c)[row];
+        case LONG:
+            return ((long[]) c)[row];
+        default:
+            throw new IllegalArgumentException("Column " + column + " ("
+                    + properties[column] + ") is not integral");
+        }
+    }
+
+    /** Writes an integral column, as long; no check. */
+    private void setRawLong(final int column, final int row, final long value) {
+        final Object c = columns[column];
+        switch (kinds[column]) {
+        case BOOLEAN:
+            if (value != 0) {
+                ((long[]) c)[row >>> 6] |= (1L << row);
+            } else {
+                ((long[]) c)[row >>> 6] &= ~(1L << row);
+            }
+            break;
+        case BYTE:
+            ((byte[]) c)[row] = (byte) value;
+            break;
+        case CHARACTER:
+            ((char[]) c)[row] = (char) value;
+            break;
+        case SHORT:
+            ((short[]) c)[row] = (short) value;
+            break;
+        case INTEGER:
+            ((int[]) c)[row] = (int) value;
+            break;
+        case LONG:
+            ((long[]) c)[row] = value;
+            break;
+        default:
+            throw new IllegalArgumentException("Column " + column + " ("
+                    + properties[column] + ") is not integral");
+        }
+    }
+
+    /** Returns the value of an integral column, as Property.toLong() would. */
+    public long getLong(final int column, final int row) {
+        checkRow(row);
+        return getRawLong(column, row);
+    }
+
+    /** Sets the value of an integral column, as Property.fromLong() would. */
+    public void setLong(final int column, final int row, final long value) {
+        checkRow(row);
+        setRawLong(column, row, value);
+    }
+
+    /** Returns the value of a floating-point column, as Property.toDouble() would. */
+    public double getDouble(final int column, final int row) {
+        checkRow(row);
+        switch (kinds[column]) {
+        case FLOAT:
+            return ((float[]) columns[column])[row];
+        case DOUBLE:
+            return ((double[]) columns[column])[row];
+        default:
+            throw new IllegalArgumentException("Column " + column + " ("
+                    + properties[column] + ") is not floating-point");
+        }
+    }
+
+    /** Sets the value of a floating-point column, as Property.fromDouble() would. */
+    public void setDouble(final int column, final int row, final double value) {
+        checkRow(row);
+        switch (kinds[column]) {
+        case FLOAT:
+            ((float[]) columns[column])[row] = (float) value;
+            break;
+        case DOUBLE:
+            ((double[]) columns[column])[row] = value;
+            break;
+        default:
+            throw new IllegalArgumentException("Column " + column + " ("
+                    + properties[column] + ") is not floating-point");
+        }
+    }
+
+    /** Returns the value of an Object column. */
+    public Object getObject(final int column, final int row) {
+        checkRow(row);
+        if (kinds[column] != OBJECT) {
+            throw new IllegalArgumentException("Column " + column + " ("
+                    + properties[column] + ") is not an Object column");
+        }
+        return ((Object[]) columns[column])[row];
+    }
+
+    /** Sets the value of an Object column. */
+    public void setObject(final int column, final int row, final Object value) {
+        checkRow(row);
+        if (kinds[column] != OBJECT) {
+            throw new IllegalArgumentException("Column " + column + " ("
+                    + properties[column] + ") is not an Object column");
+        }
+        if ((value != null)
+                && !SystemUtils.isAssignableFrom(
+                        properties[column].getContentTypeClass(),
+                        value.getClass())) {
+            throw new IllegalArgumentException("Value " + value
+                    + " is not a " + properties[column].getContentTypeClass());
+        }
+        ((Object[]) columns[column])[row] = value;
+    }
+
+    /** Returns the value of an integral Property, as Property.toLong() would. */
+    public long getLong(final IIntegralPrimitiveProperty<?, ?, ?> prop,
+            final int row) {
+        return getLong(column((Property<?, ?>) prop), row);
+    }
+
+    /** Sets the value of an integral Property, as Property.fromLong() would. */
+    public void setLong(final IIntegralPrimitiveProperty<?, ?, ?> prop,
+            final int row, final long value) {
+        setLong(column((Property<?, ?>) prop), row, value);
+    }
+
+    /** Returns the value of a floating-point Property, as Property.toDouble() would. */
+    public double getDouble(final IRealPrimitiveProperty<?, ?, ?> prop,
+            final int row) {
+        return getDouble(column((Property<?, ?>) prop), row);
+    }
+
+    /** Sets the value of a floating-point Property, as Property.fromDouble() would. */
+    public void setDouble(final IRealPrimitiveProperty<?, ?, ?> prop,
+            final int row, final double value) {
+        setDouble(column((Property<?, ?>) prop), row, value);
+    }
+
+    /** Returns the value of an Object Property. */
+    public Object getObject(final ObjectProperty<?, ?, ?, ?> prop, final int row) {
+        return getObject(column(prop), row);
+    }
+
+    /** Sets the value of an Object Property. */
+    public void setObject(final ObjectProperty<?, ?, ?, ?> prop, final int row,
+            final Object value) {
+        setObject(column(prop), row, value);
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ColumnStore(type=" + type + ", size=" + size + ", capacity="
+                + capacity + ")";
+    }
+}
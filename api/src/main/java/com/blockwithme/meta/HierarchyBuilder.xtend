@@ -495,6 +495,13 @@ class HierarchyBuilder {
 		newByteProperty(theOwner, theSimpleName, theAccessor, theAccessor, theVirtual)
 	}
 
+	/** Creates a Byte Property, stored in theBits bits (see Bean.packed) */
+	final def <OWNER_TYPE> TrueByteProperty<OWNER_TYPE> newByteProperty(
+		Class<OWNER_TYPE> theOwner, String theSimpleName,
+		BytePropertyAccessor<OWNER_TYPE> theAccessor, int theBits, boolean theVirtual) {
+		new TrueByteProperty<OWNER_TYPE>(this, theOwner, theSimpleName, theBits, theAccessor, theAccessor, theVirtual)
+	}
+
 	/** Creates a Byte Property */
 	final def <OWNER_TYPE, PROPERTY_TYPE, CONVERTER extends ByteConverter<OWNER_TYPE, PROPERTY_TYPE>>
 		ByteProperty<OWNER_TYPE, PROPERTY_TYPE, CONVERTER> newByteProperty(
@@ -532,6 +539,13 @@ class HierarchyBuilder {
 		newCharacterProperty(theOwner, theSimpleName, theAccessor, theAccessor, theVirtual)
 	}
 
+	/** Creates a Character Property, stored in theBits bits (see Bean.packed) */
+	final def <OWNER_TYPE> TrueCharacterProperty<OWNER_TYPE> newCharacterProperty(
+		Class<OWNER_TYPE> theOwner, String theSimpleName,
+		CharPropertyAccessor<OWNER_TYPE> theAccessor, int theBits, boolean theVirtual) {
+		new TrueCharacterProperty<OWNER_TYPE>(this, theOwner, theSimpleName, theBits, theAccessor, theAccessor, theVirtual)
+	}
+
 	/** Creates a Character Property */
 	final def <OWNER_TYPE, PROPERTY_TYPE, CONVERTER extends CharConverter<OWNER_TYPE, PROPERTY_TYPE>>
 		CharacterProperty<OWNER_TYPE, PROPERTY_TYPE, CONVERTER> newCharacterProperty(
@@ -569,6 +583,13 @@ class HierarchyBuilder {
 		newShortProperty(theOwner, theSimpleName, theAccessor, theAccessor, theVirtual)
 	}
 
+	/** Creates a Short Property, stored in theBits bits (see Bean.packed) */
+	final def <OWNER_TYPE> TrueShortProperty<OWNER_TYPE> newShortProperty(
+		Class<OWNER_TYPE> theOwner, String theSimpleName,
+		ShortPropertyAccessor<OWNER_TYPE> theAccessor, int theBits, boolean theVirtual) {
+		new TrueShortProperty<OWNER_TYPE>(this, theOwner, theSimpleName, theBits, theAccessor, theAccessor, theVirtual)
+	}
+
 	/** Creates a Short Property */
 	final def <OWNER_TYPE, PROPERTY_TYPE, CONVERTER extends ShortConverter<OWNER_TYPE, PROPERTY_TYPE>>
 		ShortProperty<OWNER_TYPE, PROPERTY_TYPE, CONVERTER> newShortProperty(
@@ -643,6 +664,13 @@ class HierarchyBuilder {
 		newIntegerProperty(theOwner, theSimpleName, theAccessor, theAccessor, theVirtual)
 	}
 
+	/** Creates a Integer Property, stored in theBits bits (see Bean.packed) */
+	final def <OWNER_TYPE> TrueIntegerProperty<OWNER_TYPE> newIntegerProperty(
+		Class<OWNER_TYPE> theOwner, String theSimpleName,
+		IntPropertyAccessor<OWNER_TYPE> theAccessor, int theBits, boolean theVirtual) {
+		new TrueIntegerProperty<OWNER_TYPE>(this, theOwner, theSimpleName, theBits, theAccessor, theAccessor, theVirtual)
+	}
+
 	/** Creates a Integer Property */
 	final def <OWNER_TYPE, PROPERTY_TYPE, CONVERTER extends IntConverter<OWNER_TYPE, PROPERTY_TYPE>>
 		IntegerProperty<OWNER_TYPE, PROPERTY_TYPE, CONVERTER> newIntegerProperty(
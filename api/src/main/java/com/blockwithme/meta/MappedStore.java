@@ -0,0 +1,856 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * An off-heap storage for the primitive properties of many instances of one
+ * Type, backed by a memory-mapped file.
+ *
+ * Like in ColumnStore, a row, identified by an int, represents one
+ * instance. But here the rows are fixed-size records ("array-of-structs"),
+ * in a file, so the data lives outside of the GC heap, and is available
+ * again, without copying or parsing, when the file is re-opened.
+ *
+ * The record layout is derived from the inheritedPrimitiveProperties of the
+ * Type: first the 64-bit properties, in per-type 64-bit property ID order,
+ * then the other primitive properties, largest first, in per-type
+ * non-64-bit property ID order, so that all values are naturally aligned.
+ * Every value uses the full width of it's primitive type, even if the
+ * property was declared with fewer bits; booleans use one byte. The last
+ * byte of the record marks it as live.
+ * Object properties are *not* stored; they stay on the heap.
+ *
+ * The file starts with a header, containing a hash of the layout, which is
+ * checked when re-opening, so that a file is never read with another layout
+ * (for example, after a property was added to the Type). The file grows by
+ * segments of rowsPerSegment records, each mapped separately, so that the
+ * store is not limited to 2GB.
+ *
+ * Values are accessed by Property, as Property.toLong()/fromLong() and
+ * toDouble()/fromDouble() would, either directly, or through a Cursor, which
+ * is a movable, reusable (store, row) handle.
+ *
+ * When the Type is an interface, as for Beans, the instances can also be
+ * accessed through the normal Property API, with a row handle (see
+ * RowHandler): an instance of the Type, whose getters and setters read and
+ * write a row. handle() returns one for a fixed row, and Cursor.handle()
+ * one that follows the Cursor, so that one handle can visit many rows.
+ * Only the stored (primitive) properties are available through a handle.
+ *
+ * This class uses java.io/java.nio, and so is *not* GWT-compatible. It is not
+ * thread-safe.
+ *
+ * @author monster
+ */
+public final class MappedStore<E> implements Closeable {
+
+    /** Identifies the file format. */
+    private static final long MAGIC = 0x4d4554414d415053L;
+
+    /** The file format version. */
+    private static final int VERSION = 1;
+
+    /** The header size, in bytes. */
+    private static final int HEADER_SIZE = 64;
+
+    /** Header offset of the magic number. */
+    private static final int MAGIC_OFFSET = 0;
+
+    /** Header offset of the version. */
+    private static final int VERSION_OFFSET = 8;
+
+    /** Header offset of the record size. */
+    private static final int ROW_SIZE_OFFSET = 12;
+
+    /** Header offset of the layout hash. */
+    private static final int LAYOUT_OFFSET = 16;
+
+    /** Header offset of the number of used rows. */
+    private static final int USED_OFFSET = 24;
+
+    /** Header offset of the number of rows per segment. */
+    private static final int ROWS_PER_SEGMENT_OFFSET = 28;
+
+    /** The default segment size, in bytes. */
+    private static final int DEFAULT_SEGMENT_BYTES = 1 << 24;
+
+    /** Value kind: boolean, as one byte */
+    private static final byte BOOLEAN = 0;
+    /** Value kind: byte */
+    private static final byte BYTE = 1;
+    /** Value kind: char */
+    private static final byte CHARACTER = 2;
+    /** Value kind: short */
+    private static final byte SHORT = 3;
+    /** Value kind: int */
+    private static final byte INTEGER = 4;
+    /** Value kind: long */
+    private static final byte LONG = 5;
+    /** Value kind: float */
+    private static final byte FLOAT = 6;
+    /** Value kind: double */
+    private static final byte DOUBLE = 7;
+    /** Value kind: Object (not stored) */
+    private static final byte OBJECT = 8;
+
+    /** The Type of the instances */
+    public final Type<E> type;
+
+    /** The file */
+    public final File file;
+
+    /** The properties, by inherited property ID. */
+    private final Property<?, ?>[] properties;
+
+    /** The value kind, by inherited property ID. */
+    private final byte[] kinds;
+
+    /** The offset in the record, by inherited property ID; -1 if not stored. */
+    private final int[] offsets;
+
+    /** The record size. */
+    private final int rowSize;
+
+    /** The offset of the live marker, in the record. */
+    private final int liveOffset;
+
+    /** The number of rows per segment. */
+    private final int rowsPerSegment;
+
+    /** The open file. */
+    private final RandomAccessFile raf;
+
+    /** The file channel. */
+    private final FileChannel channel;
+
+    /** The mapped header. */
+    private final MappedByteBuffer header;
+
+    /** The mapped segments. */
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+    /** The free rows stack */
+    private int[] free = new int[0];
+
+    /** The number of free rows, in free */
+    private int freeCount;
+
+    /** The number of used rows (live or freed) */
+    private int used;
+
+    /** The number of live rows */
+    private int size;
+
+    /** Has the store been closed? */
+    private boolean closed;
+
+    /** The stored Properties, by getter and setter name, for the row handles */
+    private Map<String, Property<?, ?>> handleMethods;
+
+    /** The RowHandler of the row handles. */
+    private abstract class Handler extends RowHandler {
+        /** Creates a Handler */
+        Handler() {
+            super(MappedStore.this, type, handleMethods());
+        }
+
+        @Override
+        long getLong(final Property<?, ?> prop, final int row) {
+            return MappedStore.this.getLong(
+                    (IIntegralPrimitiveProperty<?, ?, ?>) prop, row);
+        }
+
+        @Override
+        void setLong(final Property<?, ?> prop, final int row,
+                final long value) {
+            MappedStore.this.setLong(
+                    (IIntegralPrimitiveProperty<?, ?, ?>) prop, row, value);
+        }
+
+        @Override
+        double getDouble(final Property<?, ?> prop, final int row) {
+            return MappedStore.this.getDouble(
+                    (IRealPrimitiveProperty<?, ?, ?>) prop, row);
+        }
+
+        @Override
+        void setDouble(final Property<?, ?> prop, final int row,
+                final double value) {
+            MappedStore.this.setDouble((IRealPrimitiveProperty<?, ?, ?>) prop,
+                    row, value);
+        }
+
+        @Override
+        Object getObject(final Property<?, ?> prop, final int row) {
+            throw new IllegalArgumentException("Property " + prop
+                    + " not stored in " + MappedStore.this);
+        }
+
+        @Override
+        void setObject(final Property<?, ?> prop, final int row,
+                final Object value) {
+            throw new IllegalArgumentException("Property " + prop
+                    + " not stored in " + MappedStore.this);
+        }
+    }
+
+    /**
+     * A movable handle to one row of a MappedStore.
+     *
+     * Cursors are the "thin" view of an off-heap instance: they have no state
+     * except the row, and can be reused to iterate over many rows.
+     */
+    public final class Cursor {
+        /** The current row */
+        private int row;
+
+        /** Creates a Cursor */
+        private Cursor(final int row) {
+            this.row = row;
+        }
+
+        /** Returns the MappedStore. */
+        public MappedStore<E> store() {
+            return MappedStore.this;
+        }
+
+        /** Returns the current row. */
+        public int row() {
+            return row;
+        }
+
+        /** Moves to another row, and returns this. */
+        public Cursor moveTo(final int newRow) {
+            checkRow(newRow);
+            row = newRow;
+            return this;
+        }
+
+        /** Returns the value of an integral Property, as Property.toLong() would. */
+        public long getLong(final IIntegralPrimitiveProperty<?, ?, ?> prop) {
+            return MappedStore.this.getLong(prop, row);
+        }
+
+        /** Sets the value of an integral Property, as Property.fromLong() would. */
+        public Cursor setLong(final IIntegralPrimitiveProperty<?, ?, ?> prop,
+                final long value) {
+            MappedStore.this.setLong(prop, row, value);
+            return this;
+        }
+
+        /** Returns the value of a floating-point Property, as Property.toDouble() would. */
+        public double getDouble(final IRealPrimitiveProperty<?, ?, ?> prop) {
+            return MappedStore.this.getDouble(prop, row);
+        }
+
+        /** Sets the value of a floating-point Property, as Property.fromDouble() would. */
+        public Cursor setDouble(final IRealPrimitiveProperty<?, ?, ?> prop,
+                final double value) {
+            MappedStore.this.setDouble(prop, row, value);
+            return this;
+        }
+
+        /**
+         * Returns a row handle, that reads and writes the current row of this
+         * Cursor, through the Property API. It follows the Cursor when it
+         * moves. Fails if the Type is not an interface.
+         */
+        public E handle() {
+            return RowHandler.newHandle(type, new Handler() {
+                @Override
+                int row() {
+                    return Cursor.this.row;
+                }
+            });
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "Cursor(type=" + type + ", row=" + row + ")";
+        }
+    }
+
+    /** Creates a MappedStore. */
+    private MappedStore(final Type<E> type, final File file,
+            final int requestedRowsPerSegment) throws IOException {
+        this.type = Objects.requireNonNull(type, "type");
+        this.file = Objects.requireNonNull(file, "file");
+        properties = type.inheritedProperties;
+        final int count = properties.length;
+        kinds = new byte[count];
+        offsets = new int[count];
+        Arrays.fill(offsets, -1);
+        int offset = 0;
+        // 64-bit values first, then 32, 16 and 8 bits; all naturally aligned.
+        for (final int bytes : new int[] { 8, 4, 2, 1 }) {
+            for (final PrimitiveProperty<?, ?, ?> p : sortedPrimitives(type,
+                    bytes)) {
+                offsets[p.inheritedPropertyId(type)] = offset;
+                offset += bytes;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            kinds[i] = kindOf(properties[i]);
+        }
+        liveOffset = offset;
+        rowSize = rowSizeOf(type);
+
+        raf = new RandomAccessFile(file, "rw");
+        boolean ok = false;
+        try {
+            channel = raf.getChannel();
+            final boolean created = (channel.size() < HEADER_SIZE);
+            header = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            final long layout = layoutHash();
+            if (created) {
+                if (requestedRowsPerSegment < 1) {
+                    throw new IllegalArgumentException("rowsPerSegment: "
+                            + requestedRowsPerSegment);
+                }
+                rowsPerSegment = requestedRowsPerSegment;
+                header.putLong(MAGIC_OFFSET, MAGIC);
+                header.putInt(VERSION_OFFSET, VERSION);
+                header.putInt(ROW_SIZE_OFFSET, rowSize);
+                header.putLong(LAYOUT_OFFSET, layout);
+                header.putInt(USED_OFFSET, 0);
+                header.putInt(ROWS_PER_SEGMENT_OFFSET, rowsPerSegment);
+            } else {
+                if (header.getLong(MAGIC_OFFSET) != MAGIC) {
+                    throw new IOException(file + " is not a MappedStore file");
+                }
+                if (header.getInt(VERSION_OFFSET) != VERSION) {
+                    throw new IOException(file + " has version "
+                            + header.getInt(VERSION_OFFSET) + ", expected "
+                            + VERSION);
+                }
+                if ((header.getInt(ROW_SIZE_OFFSET) != rowSize)
+                        || (header.getLong(LAYOUT_OFFSET) != layout)) {
+                    throw new IOException(file
+                            + " was written with another layout of " + type);
+                }
+                rowsPerSegment = header.getInt(ROWS_PER_SEGMENT_OFFSET);
+                if (rowsPerSegment < 1) {
+                    throw new IOException(file + " is corrupted");
+                }
+                used = header.getInt(USED_OFFSET);
+                if (used < 0) {
+                    throw new IOException(file + " is corrupted");
+                }
+                while (segments.size() * (long) rowsPerSegment < used) {
+                    mapSegment();
+                }
+                // Rebuild the free list, from the live markers
+                for (int row = 0; row < used; row++) {
+                    if (isLive(row)) {
+                        size++;
+                    } else {
+                        pushFree(row);
+                    }
+                }
+            }
+            ok = true;
+        } finally {
+            if (!ok) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Opens a MappedStore, creating the file if it does not exist (or is
+     * empty). An existing file must have been created for the same Type,
+     * with the same properties.
+     */
+    public static <E> MappedStore<E> open(final Type<E> type, final File file)
+            throws IOException {
+        return new MappedStore<E>(type, file, Math.max(1,
+                DEFAULT_SEGMENT_BYTES / rowSizeOf(type)));
+    }
+
+    /**
+     * Opens a MappedStore, creating the file if it does not exist (or is
+     * empty), using the given segment size, in rows. The segment size of an
+     * existing file is not changed.
+     */
+    public static <E> MappedStore<E> open(final Type<E> type, final File file,
+            final int rowsPerSegment) throws IOException {
+        return new MappedStore<E>(type, file, rowsPerSegment);
+    }
+
+    /** Computes the record size of a Type: all primitive values, and the live marker. */
+    private static int rowSizeOf(final Type<?> type) {
+        int bytes = 0;
+        for (final PrimitiveProperty<?, ?, ?> p : type.inheritedPrimitiveProperties) {
+            bytes += storedBytes(p);
+        }
+        return (bytes + 1 + 7) & ~7;
+    }
+
+    /**
+     * Returns the number of bytes used to store a value of a Property: the
+     * width of it's primitive type, ignoring the declared number of bits.
+     */
+    private static int storedBytes(final PrimitiveProperty<?, ?, ?> prop) {
+        switch (kindOf(prop)) {
+        case BOOLEAN:
+        case BYTE:
+            return 1;
+        case CHARACTER:
+        case SHORT:
+            return 2;
+        case INTEGER:
+        case FLOAT:
+            return 4;
+        default:
+            return 8;
+        }
+    }
+
+    /**
+     * Returns the stored primitive properties of the given stored size, in per-type
+     * 64-bit, or non-64-bit, property ID order.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static List<PrimitiveProperty<?, ?, ?>> sortedPrimitives(
+            final Type type, final int bytes) {
+        final List<PrimitiveProperty<?, ?, ?>> result = new ArrayList<>();
+        for (final PrimitiveProperty<?, ?, ?> p : type.inheritedPrimitiveProperties) {
+            if (storedBytes(p) == bytes) {
+                result.add(p);
+            }
+        }
+        final PrimitiveProperty[] array = result
+                .toArray(new PrimitiveProperty[result.size()]);
+        // Insertion sort; there are few properties
+        for (int i = 1; i < array.length; i++) {
+            final PrimitiveProperty p = array[i];
+            final int id = perTypeId(p, type);
+            int j = i - 1;
+            while ((j >= 0) && (perTypeId(array[j], type) > id)) {
+                array[j + 1] = array[j];
+                j--;
+            }
+            array[j + 1] = p;
+        }
+        return (List) Arrays.asList(array);
+    }
+
+    /** Returns the per-type 64-bit, or non-64-bit, property ID. */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static int perTypeId(final PrimitiveProperty p, final Type type) {
+        return p.getSixtyFourBit() ? p.getPerTypeSixtyFourBitPropertyId(type)
+                : p.getPerTypeNonSixtyFourBitPropertyId(type);
+    }
+
+    /** Returns the value kind for a Property. */
+    private static byte kindOf(final Property<?, ?> prop) {
+        switch (prop.getType()) {
+        case BOOLEAN:
+            return BOOLEAN;
+        case BYTE:
+            return BYTE;
+        case CHARACTER:
+            return CHARACTER;
+        case SHORT:
+            return SHORT;
+        case INTEGER:
+            return INTEGER;
+        case LONG:
+            return LONG;
+        case FLOAT:
+            return FLOAT;
+        case DOUBLE:
+            return DOUBLE;
+        default:
+            return OBJECT;
+        }
+    }
+
+    /** Computes a (FNV-1a) hash of the record layout. */
+    private long layoutHash() {
+        long hash = 0xcbf29ce484222325L;
+        final StringBuilder buf = new StringBuilder(type.fullName);
+        for (int i = 0; i < properties.length; i++) {
+            if (offsets[i] >= 0) {
+                buf.append(';').append(properties[i].fullName).append(':')
+                        .append(kinds[i]).append('@').append(offsets[i]);
+            }
+        }
+        for (int i = 0; i < buf.length(); i++) {
+            hash ^= buf.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** Maps the next segment, growing the file as needed. */
+    private void mapSegment() throws IOException {
+        final long segmentBytes = (long) rowsPerSegment * rowSize;
+        final MappedByteBuffer segment = channel.map(MapMode.READ_WRITE,
+                HEADER_SIZE + segments.size() * segmentBytes, segmentBytes);
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        segments.add(segment);
+    }
+
+    /** Returns the segment of a row. */
+    private MappedByteBuffer segment(final int row) {
+        return segments.get(row / rowsPerSegment);
+    }
+
+    /** Returns the index of a row, within it's segment. */
+    private int base(final int row) {
+        return (row % rowsPerSegment) * rowSize;
+    }
+
+    /** Pushes a row on the free stack. */
+    private void pushFree(final int row) {
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, Math.max(16, freeCount * 2));
+        }
+        free[freeCount++] = row;
+    }
+
+    /** Checks that the store is open. */
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException(this + " is closed");
+        }
+    }
+
+    /** Returns the number of live rows. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the size of a record, in bytes. */
+    public int rowSize() {
+        return rowSize;
+    }
+
+    /** Returns true, if the row is live (allocated, and not freed). */
+    public boolean isLive(final int row) {
+        checkOpen();
+        return (row >= 0) && (row < used)
+                && (segment(row).get(base(row) + liveOffset) != 0);
+    }
+
+    /** Checks that a row is live. */
+    private void checkRow(final int row) {
+        if (!isLive(row)) {
+            throw new IllegalArgumentException("Row " + row + " is not live");
+        }
+    }
+
+    /** Returns the inherited property ID of a stored Property. */
+    private int column(final Property<?, ?> prop) {
+        final int result = prop.inheritedPropertyId(type);
+        if ((result < 0) || (result >= properties.length)
+                || (properties[result] != prop) || (offsets[result] < 0)) {
+            throw new IllegalArgumentException("Property " + prop
+                    + " not stored in " + this);
+        }
+        return result;
+    }
+
+    /** Allocates a new row, with all-zero values. */
+    public int allocate() throws IOException {
+        checkOpen();
+        final int row;
+        if (freeCount > 0) {
+            row = free[--freeCount];
+        } else {
+            if (used == Integer.MAX_VALUE) {
+                throw new IllegalStateException(this + " is full");
+            }
+            if (used == segments.size() * (long) rowsPerSegment) {
+                mapSegment();
+            }
+            row = used++;
+            header.putInt(USED_OFFSET, used);
+        }
+        segment(row).put(base(row) + liveOffset, (byte) 1);
+        size++;
+        return row;
+    }
+
+    /** Frees a row. All values of the row are cleared. */
+    public void free(final int row) {
+        checkRow(row);
+        final MappedByteBuffer segment = segment(row);
+        final int base = base(row);
+        for (int i = 0; i < rowSize; i++) {
+            segment.put(base + i, (byte) 0);
+        }
+        pushFree(row);
+        size--;
+    }
+
+    /** Allocates a row, and copies all the primitive values of the instance in it. */
+    public int add(final E instance) throws IOException {
+        Objects.requireNonNull(instance, "instance");
+        final int row = allocate();
+        copyFrom(instance, row);
+        return row;
+    }
+
+    /** Copies all the primitive values of the instance in the (live) row. */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void copyFrom(final E instance, final int row) {
+        Objects.requireNonNull(instance, "instance");
+        checkRow(row);
+        for (int i = 0; i < properties.length; i++) {
+            final byte kind = kinds[i];
+            if (offsets[i] >= 0) {
+                final Property p = properties[i];
+                if ((kind == FLOAT) || (kind == DOUBLE)) {
+                    setRawDouble(i, row,
+                            ((IRealPrimitiveProperty) p).toDouble(instance));
+                } else {
+                    setRawLong(i, row,
+                            ((IIntegralPrimitiveProperty) p).toLong(instance));
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies all the primitive values of the (live) row in the instance.
+     * Returns the instance, as returned by the Property setters.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public E copyTo(final int row, final E instance) {
+        Objects.requireNonNull(instance, "instance");
+        checkRow(row);
+        Object result = instance;
+        for (int i = 0; i < properties.length; i++) {
+            final byte kind = kinds[i];
+            if (offsets[i] >= 0) {
+                final Property p = properties[i];
+                if ((kind == FLOAT) || (kind == DOUBLE)) {
+                    result = ((IRealPrimitiveProperty) p).fromDouble(result,
+                            getRawDouble(i, row));
+                } else {
+                    result = ((IIntegralPrimitiveProperty) p).fromLong(result,
+                            getRawLong(i, row));
+                }
+            }
+        }
+        return (E) result;
+    }
+
+    /** Returns a new Cursor, on the given (live) row. */
+    public Cursor cursor(final int row) {
+        checkRow(row);
+        return new Cursor(row);
+    }
+
+    /** Returns the stored Properties, by getter and setter name. */
+    private Map<String, Property<?, ?>> handleMethods() {
+        if (handleMethods == null) {
+            final List<Property<?, ?>> stored = new ArrayList<>();
+            for (int i = 0; i < properties.length; i++) {
+                if (offsets[i] >= 0) {
+                    stored.add(properties[i]);
+                }
+            }
+            handleMethods = RowHandler.methodsOf(type,
+                    stored.toArray(new Property<?, ?>[stored.size()]));
+        }
+        return handleMethods;
+    }
+
+    /**
+     * Returns a row handle, for a live row: an instance of the Type, that
+     * reads and writes the row through it's getters and setters, and so
+     * through the Property API. Fails if the Type is not an interface.
+     */
+    public E handle(final int row) {
+        checkRow(row);
+        return RowHandler.newHandle(type, new Handler() {
+            @Override
+            int row() {
+                return row;
+            }
+        });
+    }
+
+    /** Reads an integral value, as long; no check. */
+    private long getRawLong(final int column, final int row) {
+        final MappedByteBuffer segment = segment(row);
+        final int index = base(row) + offsets[column];
+        switch (kinds[column]) {
+        case BOOLEAN:
+            return (segment.get(index) != 0) ? 1 : 0;
+        case BYTE:
+            return segment.get(index);
+        case CHARACTER:
+            return segment.getChar(index);
+        case SHORT:
+            return segment.getShort(index);
+        case INTEGER:
+            return segment.getInt(index);
+        case LONG:
+            return segment.getLong(index);
+        default:
+            throw new IllegalArgumentException("Property "
+                    + properties[column] + " is not integral");
+        }
+    }
+
+    /** Writes an integral value, as long; no check. */
+    private void setRawLong(final int column, final int row, final long value) {
+        final MappedByteBuffer segment = segment(row);
+        final int index = base(row) + offsets[column];
+        switch (kinds[column]) {
+        case BOOLEAN:
+            segment.put(index, (byte) ((value != 0) ? 1 : 0));
+            break;
+        case BYTE:
+            segment.put(index, (byte) value);
+            break;
+        case CHARACTER:
+            segment.putChar(index, (char) value);
+            break;
+        case SHORT:
+            segment.putShort(index, (short) value);
+            break;
+        case INTEGER:
+            segment.putInt(index, (int) value);
+            break;
+        case LONG:
+            segment.putLong(index, value);
+            break;
+        default:
+            throw new IllegalArgumentException("Property "
+                    + properties[column] + " is not integral");
+        }
+    }
+
+    /** Reads a floating-point value, as double; no check. */
+    private double getRawDouble(final int column, final int row) {
+        final MappedByteBuffer segment = segment(row);
+        final int index = base(row) + offsets[column];
+        switch (kinds[column]) {
+        case FLOAT:
+            return segment.getFloat(index);
+        case DOUBLE:
+            return segment.getDouble(index);
+        default:
+            throw new IllegalArgumentException("Property "
+                    + properties[column] + " is not floating-point");
+        }
+    }
+
+    /** Writes a floating-point value, as double; no check. */
+    private void setRawDouble(final int column, final int row,
+            final double value) {
+        final MappedByteBuffer segment = segment(row);
+        final int index = base(row) + offsets[column];
+        switch (kinds[column]) {
+        case FLOAT:
+            segment.putFloat(index, (float) value);
+            break;
+        case DOUBLE:
+            segment.putDouble(index, value);
+            break;
+        default:
+            throw new IllegalArgumentException("Property "
+                    + properties[column] + " is not floating-point");
+        }
+    }
+
+    /** Returns the value of an integral Property, as Property.toLong() would. */
+    public long getLong(final IIntegralPrimitiveProperty<?, ?, ?> prop,
+            final int row) {
+        final int column = column((Property<?, ?>) prop);
+        checkRow(row);
+        return getRawLong(column, row);
+    }
+
+    /** Sets the value of an integral Property, as Property.fromLong() would. */
+    public void setLong(final IIntegralPrimitiveProperty<?, ?, ?> prop,
+            final int row, final long value) {
+        final int column = column((Property<?, ?>) prop);
+        checkRow(row);
+        setRawLong(column, row, value);
+    }
+
+    /** Returns the value of a floating-point Property, as Property.toDouble() would. */
+    public double getDouble(final IRealPrimitiveProperty<?, ?, ?> prop,
+            final int row) {
+        final int column = column((Property<?, ?>) prop);
+        checkRow(row);
+        return getRawDouble(column, row);
+    }
+
+    /** Sets the value of a floating-point Property, as Property.fromDouble() would. */
+    public void setDouble(final IRealPrimitiveProperty<?, ?, ?> prop,
+            final int row, final double value) {
+        final int column = column((Property<?, ?>) prop);
+        checkRow(row);
+        setRawDouble(column, row, value);
+    }
+
+    /** Writes all the modified data to the file. */
+    public void flush() {
+        checkOpen();
+        for (final MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        header.force();
+    }
+
+    /**
+     * Flushes, and closes the file. The mapped memory itself is only
+     * released once the buffers are garbage-collected.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            flush();
+            closed = true;
+            segments.clear();
+            raf.close();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "MappedStore(type=" + type + ", file=" + file + ", size="
+                + size + ")";
+    }
+}
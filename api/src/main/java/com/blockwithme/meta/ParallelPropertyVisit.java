@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta;
+
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Visits a "forest" of independent instances (for example, root entities)
+ * in parallel, using fork/join.
+ *
+ * The instances are split recursively in halves, by index, until a range is
+ * at most "threshold" instances long. Each range is then visited
+ * sequentially, by a *new* visitor, created by the PropertyVisitorWorker,
+ * so that no visitor state is ever shared between threads. The partial results are merged in
+ * index order (left before right), so the final result does not depend on
+ * the scheduling of the tasks.
+ *
+ * If the visitors are AbstractBatchPropertyVisitors, consecutive instances of
+ * the same Type are visited as one batch.
+ *
+ * The instances themselves must not be modified during the visit.
+ *
+ * @author monster
+ */
+public final class ParallelPropertyVisit<V extends PropertyVisitor, R> extends
+        RecursiveTask<R> {
+
+    /** Serial version UID */
+    private static final long serialVersionUID = 1L;
+
+    /** The Type of the instances, unless they are TypeOwners */
+    private final Type<?> type;
+
+    /** The instances */
+    private final Object[] instances;
+
+    /** The index of the first instance (inclusive) */
+    private final int from;
+
+    /** The index of the last instance (exclusive) */
+    private final int to;
+
+    /** The maximum number of instances visited sequentially */
+    private final int threshold;
+
+    /** The PropertyVisitorWorker */
+    private final PropertyVisitorWorker<V, R> worker;
+
+    /** Constructor */
+    private ParallelPropertyVisit(final Type<?> type, final Object[] instances,
+            final int from, final int to, final int threshold,
+            final PropertyVisitorWorker<V, R> worker) {
+        this.type = type;
+        this.instances = instances;
+        this.from = from;
+        this.to = to;
+        this.threshold = threshold;
+        this.worker = worker;
+    }
+
+    /**
+     * Visits all the instances in the given pool, and returns the merged
+     * result.
+     *
+     * @param pool The ForkJoinPool. Cannot be null.
+     * @param type The Type of the instances. TypeOwners are visited using
+     *             their own meta-type instead. Cannot be null.
+     * @param instances The instances. Null instances are skipped.
+     * @param threshold The maximum number of instances visited sequentially (>= 1)
+     * @param worker The PropertyVisitorWorker. Cannot be null.
+     */
+    public static <V extends PropertyVisitor, R> R visit(
+            final ForkJoinPool pool, final Type<?> type,
+            final Object[] instances, final int threshold,
+            final PropertyVisitorWorker<V, R> worker) {
+        Objects.requireNonNull(pool, "pool");
+        Objects.requireNonNull(type, "type");
+        Objects.requireNonNull(instances, "instances");
+        Objects.requireNonNull(worker, "worker");
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold must be >= 1: "
+                    + threshold);
+        }
+        return pool.invoke(new ParallelPropertyVisit<V, R>(type, instances,
+                0, instances.length, threshold, worker));
+    }
+
+    /** Returns the Type of an instance. */
+    private Type<?> typeOf(final Object instance) {
+        return (instance instanceof TypeOwner) ? ((TypeOwner) instance)
+                .getMetaType() : type;
+    }
+
+    /** Visits the range sequentially. */
+    private R visitRange() {
+        final V visitor = worker.newVisitor();
+        if (visitor instanceof AbstractBatchPropertyVisitor) {
+            final AbstractBatchPropertyVisitor batch = (AbstractBatchPropertyVisitor) visitor;
+            int start = from;
+            while (start < to) {
+                if (instances[start] == null) {
+                    start++;
+                } else {
+                    final Type<?> runType = typeOf(instances[start]);
+                    int end = start + 1;
+                    while ((end < to) && (instances[end] != null)
+                            && (typeOf(instances[end]) == runType)) {
+                        end++;
+                    }
+                    batch.visitBatch(runType, instances, start, end);
+                    start = end;
+                }
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                final Object instance = instances[i];
+                if (instance != null) {
+                    visitor.visit(typeOf(instance), instance);
+                }
+            }
+        }
+        return worker.result(visitor);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.RecursiveTask#compute()
+     */
+    @Override
+    protected R compute() {
+        if (to - from <= threshold) {
+            return visitRange();
+        }
+        final int middle = (from + to) >>> 1;
+        final ParallelPropertyVisit<V, R> left = new ParallelPropertyVisit<V, R>(
+                type, instances, from, middle, threshold, worker);
+        final ParallelPropertyVisit<V, R> right = new ParallelPropertyVisit<V, R>(
+                type, instances, middle, to, threshold, worker);
+        left.fork();
+        final R rightResult = right.compute();
+        return worker.merge(left.join(), rightResult);
+    }
+}
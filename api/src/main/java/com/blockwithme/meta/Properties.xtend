@@ -64,7 +64,6 @@ import java.util.List
 import java.util.Map
 import java.util.Set
 import java.util.TreeSet
-import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicReference
 import java.util.logging.Logger
 import javax.inject.Provider
@@ -139,6 +138,9 @@ public class Hierarchy implements Comparable<Hierarchy> {
   /** The depth of the Hierarchy. */
   public val int depth
 
+  /** The inverted Property query index; built on first use. */
+  volatile var PropertyQueryIndex propertyQueryIndex
+
 	/** Returns the "full name" of a type */
 	private static def String fullNameOf(Class<?> theType) {
 		requireNonNull(theType, "theType")
@@ -410,6 +412,24 @@ public class Hierarchy implements Comparable<Hierarchy> {
     }
   }
 
+  /**
+   * Returns the inverted Property query index of this Hierarchy.
+   * It is built once, on first use, after the Hierarchy is fully initialized.
+   */
+  final def PropertyQueryIndex getPropertyQueryIndex() {
+    var result = propertyQueryIndex
+    if (result === null) {
+      synchronized (this) {
+        result = propertyQueryIndex
+        if (result === null) {
+          result = new PropertyQueryIndex(this)
+          propertyQueryIndex = result
+        }
+      }
+    }
+    result
+  }
+
   /** Accepts the visitor */
   def final void accept(MetaVisitor visitor) {
     visitor.visit(this)
@@ -840,10 +860,6 @@ class Type<JAVA_TYPE> extends MetaBase<TypePackage> implements PropertyMatcher,
    */
   public val ObjectProperty<JAVA_TYPE,Type<?>,?,?>[] componentTypes
 
-  /** Query cache, for Properties by type. */
-  private final ConcurrentHashMap<Class<?>,Property<?,?>[]> propertyTypeQueryCache
-  	= new ConcurrentHashMap<Class<?>,Property<?,?>[]>(8,0.75f,4);
-
   /** The zero-based type ID */
   public val int typeId
 
@@ -1173,9 +1189,27 @@ class Type<JAVA_TYPE> extends MetaBase<TypePackage> implements PropertyMatcher,
       simpleNameToProperty = Collections::unmodifiableMap(_simpleNameToProperty)
       propertyToPerTypeData = Collections::unmodifiableMap(_propertyToPerTypeData)
 
-    footprint = Footprint.round(_primitivePropertyByteTotal + Footprint.REFERENCE * objectPropertyCount)
+    // Fields of the implementation that are not (non-virtual) properties
+    val fixed = theType.getAnnotation(FixedFootprint)
+    val fixedBytes = if (fixed === null) 0 else fixed.bytes
+    val fixedReferences = if (fixed === null) 0 else fixed.references
+    // Packed properties are counted as the long fields that contain them
+    val packed = theType.getAnnotation(PackedFootprint)
+    var primitiveBytes = _primitivePropertyByteTotal
+    if (packed !== null) {
+      val packedNames = Arrays.asList(packed.properties)
+      for (prop : primitiveProperties) {
+        if (packedNames.contains(prop.simpleName)) {
+          primitiveBytes = primitiveBytes - prop.bytes
+        }
+      }
+      primitiveBytes = primitiveBytes + 8 * packed.words
+    }
+    footprint = Footprint.round(primitiveBytes + fixedBytes
+    	+ Footprint.REFERENCE * (objectPropertyCount + fixedReferences))
       var total = footprint
-    for (p : parents) {
+    // Every ancestor counts once, including the indirect ones
+    for (p : inheritedParents) {
       total = total + p.footprint
     }
     inheritedFootprint = total + Footprint.OBJECT_SIZE
@@ -1256,20 +1290,46 @@ class Type<JAVA_TYPE> extends MetaBase<TypePackage> implements PropertyMatcher,
     }
   }
 
-  /** Returns all (including the virtual) the properties of the given (or sub) type. */
+  /**
+   * Returns all (including the virtual) the properties of the given (or sub) type.
+   *
+   * Uses the PropertyQueryIndex of the Hierarchy, when the query type is a known
+   * Type. Otherwise, the properties are scanned, without caching the result.
+   */
   def final Property<?,?>[] propertiesWithType(Class<?> queryType) {
-  	var result = propertyTypeQueryCache.get(queryType)
-  	if (result === null) {
-	  	val list = new ArrayList<Property<?,?>>
-	  	list.addAll(inheritedProperties.filter[SystemUtils.isAssignableFrom(contentTypeClass,queryType)])
-	  	list.addAll(inheritedVirtualProperties.filter[SystemUtils.isAssignableFrom(contentTypeClass,queryType)])
-	  	result = list.toArray(newArrayOfSize(list.size))
-	  	Arrays.sort(result)
-	  	propertyTypeQueryCache.put(queryType, result)
-  	}
+    requireNonNull(queryType, "queryType")
+    val h = hierarchy()
+    val query = h.findType(queryType)
+    if ((query !== null) && (query.type === queryType)) {
+      val result = h.propertyQueryIndex.propertiesAccepting(this, query)
+      if (result !== null) {
+        return result
+      }
+    }
+  	val list = new ArrayList<Property<?,?>>
+  	list.addAll(inheritedProperties.filter[SystemUtils.isAssignableFrom(contentTypeClass,queryType)])
+  	list.addAll(inheritedVirtualProperties.filter[SystemUtils.isAssignableFrom(contentTypeClass,queryType)])
+  	val result = list.toArray(newArrayOfSize(list.size))
+  	Arrays.sort(result)
   	result
   }
 
+  /**
+   * Returns the non-virtual Object properties whose content is the given Type
+   * (or a sub-type of it), in inheritedObjectProperties order.
+   * For example, all the Bean, or all the Entity, properties of this Type.
+   */
+  def final ObjectProperty<?,?,?,?>[] propertiesWithContent(Type<?> queryType) {
+    requireNonNull(queryType, "queryType")
+    val result = hierarchy().propertyQueryIndex.propertiesContaining(this, queryType)
+    if (result !== null) {
+      return result
+    }
+  	val list = new ArrayList<ObjectProperty<?,?,?,?>>
+  	list.addAll(inheritedObjectProperties.filter[SystemUtils.isAssignableFrom(queryType.type,contentTypeClass)])
+  	list.toArray(<ObjectProperty>newArrayOfSize(list.size))
+  }
+
   /** Updates the default builder instance */
   def final void setConstructor(Provider<JAVA_TYPE> theConstructor) {
     constructor = if (theConstructor == null) asProvider(type) else theConstructor
@@ -1309,6 +1369,37 @@ annotation TypeImplemented {
 }
 
 
+/**
+ * Declares the fields of the implementation of a Type, that are not
+ * represented as (non-virtual) Properties, for example the "header" of the
+ * Beans, so that Type.footprint and Type.inheritedFootprint include them.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+annotation FixedFootprint {
+    /** The number of reference fields */
+    int references
+    /** The total size, in bytes, of the primitive fields */
+    int bytes
+}
+
+
+/**
+ * Declares that the implementation of a Type stores some of it's primitive
+ * properties in shared long fields (see Bean.packed), so that Type.footprint
+ * counts those long fields, instead of the bytes of the properties.
+ * Generated by the BeanProcessor.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+annotation PackedFootprint {
+    /** The number of long fields */
+    int words
+    /** The simple names of the packed properties */
+    String[] properties
+}
+
+
 /**
  * The Property visitor
  */
@@ -2932,8 +3023,15 @@ extends ByteProperty<OWNER_TYPE, Byte, ByteConverter<OWNER_TYPE, Byte>> {
   protected new(HierarchyBuilder builder, Class<OWNER_TYPE> theOwner, String theSimpleName,
     ByteFuncObject<OWNER_TYPE> theGetter,
     ObjectFuncObjectByte<OWNER_TYPE,OWNER_TYPE> theSetter, boolean theVirtual) {
+    this(builder, theOwner, theSimpleName, 8, theGetter, theSetter, theVirtual)
+  }
+
+  /** Constructor, for a property stored in fewer bits (see Bean.packed) */
+  protected new(HierarchyBuilder builder, Class<OWNER_TYPE> theOwner, String theSimpleName,
+    int theBits, ByteFuncObject<OWNER_TYPE> theGetter,
+    ObjectFuncObjectByte<OWNER_TYPE,OWNER_TYPE> theSetter, boolean theVirtual) {
     super(builder, theOwner, theSimpleName,
-      ByteConverter.DEFAULT as ByteConverter<OWNER_TYPE, Byte>, 8,
+      ByteConverter.DEFAULT as ByteConverter<OWNER_TYPE, Byte>, theBits,
       Byte, theGetter, theSetter, theVirtual
     )
   }
@@ -3236,9 +3334,16 @@ extends CharacterProperty<OWNER_TYPE, Character, CharConverter<OWNER_TYPE, Chara
   protected new(HierarchyBuilder builder, Class<OWNER_TYPE> theOwner,
     String theSimpleName, CharFuncObject<OWNER_TYPE> theGetter,
     ObjectFuncObjectChar<OWNER_TYPE,OWNER_TYPE> theSetter, boolean theVirtual) {
+    this(builder, theOwner, theSimpleName, 16, theGetter, theSetter, theVirtual)
+  }
+
+  /** Constructor, for a property stored in fewer bits (see Bean.packed) */
+  protected new(HierarchyBuilder builder, Class<OWNER_TYPE> theOwner,
+    String theSimpleName, int theBits, CharFuncObject<OWNER_TYPE> theGetter,
+    ObjectFuncObjectChar<OWNER_TYPE,OWNER_TYPE> theSetter, boolean theVirtual) {
     super(builder, theOwner, theSimpleName,
       CharConverter.DEFAULT as CharConverter<OWNER_TYPE, Character>,
-      16, Character, theGetter, theSetter, theVirtual
+      theBits, Character, theGetter, theSetter, theVirtual
     )
   }
 }
@@ -3501,9 +3606,16 @@ extends ShortProperty<OWNER_TYPE, Short, ShortConverter<OWNER_TYPE, Short>> {
   protected new(HierarchyBuilder builder, Class<OWNER_TYPE> theOwner, String theSimpleName,
     ShortFuncObject<OWNER_TYPE> theGetter,
     ObjectFuncObjectShort<OWNER_TYPE,OWNER_TYPE> theSetter, boolean theVirtual) {
+    this(builder, theOwner, theSimpleName, 16, theGetter, theSetter, theVirtual)
+  }
+
+  /** Constructor, for a property stored in fewer bits (see Bean.packed) */
+  protected new(HierarchyBuilder builder, Class<OWNER_TYPE> theOwner, String theSimpleName,
+    int theBits, ShortFuncObject<OWNER_TYPE> theGetter,
+    ObjectFuncObjectShort<OWNER_TYPE,OWNER_TYPE> theSetter, boolean theVirtual) {
     super(builder, theOwner, theSimpleName,
       ShortConverter.DEFAULT as ShortConverter<OWNER_TYPE, Short>,
-      16, Short, theGetter, theSetter, theVirtual
+      theBits, Short, theGetter, theSetter, theVirtual
     )
   }
 }
@@ -3764,8 +3876,15 @@ extends IntegerProperty<OWNER_TYPE, Integer, IntConverter<OWNER_TYPE, Integer>>
   protected new(HierarchyBuilder builder, Class<OWNER_TYPE> theOwner,
     String theSimpleName, IntFuncObject<OWNER_TYPE> theGetter,
     ObjectFuncObjectInt<OWNER_TYPE,OWNER_TYPE> theSetter, boolean theVirtual) {
+    this(builder, theOwner, theSimpleName, 32, theGetter, theSetter, theVirtual)
+  }
+
+  /** Constructor, for a property stored in fewer bits (see Bean.packed) */
+  protected new(HierarchyBuilder builder, Class<OWNER_TYPE> theOwner,
+    String theSimpleName, int theBits, IntFuncObject<OWNER_TYPE> theGetter,
+    ObjectFuncObjectInt<OWNER_TYPE,OWNER_TYPE> theSetter, boolean theVirtual) {
     super(builder, theOwner, theSimpleName,
-      IntConverter.DEFAULT as IntConverter<OWNER_TYPE, Integer>, 32,
+      IntConverter.DEFAULT as IntConverter<OWNER_TYPE, Integer>, theBits,
       Integer, theGetter, theSetter, theVirtual
     )
   }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta
+
+import com.blockwithme.util.base.SystemUtils
+import java.util.ArrayList
+import java.util.Arrays
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.LinkedHashSet
+import java.util.Map
+import java.util.Set
+
+import static java.util.Objects.*
+
+/**
+ * A per-Hierarchy inverted index, from "content Type" to the Properties
+ * of every "owner Type" of the Hierarchy.
+ *
+ * It is built once, when first requested, over all the Types of the
+ * Hierarchy and of all it's (direct and indirect) dependencies. Queries are
+ * then simple lookups; they neither scan the properties, nor grow any cache.
+ *
+ * Two kinds of queries are supported:
+ *
+ * "accepting" returns all the Properties (including the virtual ones) that
+ * could *hold* a value of the query Type (the content type is the query type,
+ * or one of it's super-types). This is what Type.propertiesWithType() returns.
+ *
+ * "containing" returns the non-virtual Object Properties whose content *is*
+ * the query Type (or one of it's sub-types), in inheritedObjectProperties
+ * order. This is what graph walkers want, for example, to find all Bean,
+ * or all Entity, children of a Type.
+ *
+ * @author monster
+ */
+final class PropertyQueryIndex {
+	/** No Object Property */
+	public static val ObjectProperty<?,?,?,?>[] NO_OBJECT_PROPERTIES = <ObjectProperty>newArrayOfSize(0)
+
+	/** No Type */
+	static val Type<?>[] NO_TYPES = <Type>newArrayOfSize(0)
+
+	/** The indexed Hierarchy */
+	public val Hierarchy hierarchy
+
+	/** The Types that can be used as query, in this Hierarchy and all it's dependencies. */
+	public val Type<?>[] queryTypes
+
+	/** The query Types, as a Set */
+	val Set<Type<?>> querySet = Collections.newSetFromMap(new IdentityHashMap<Type<?>,Boolean>)
+
+	/** Owner Type -> (query Type -> accepting Properties) */
+	val Map<Type<?>,Map<Type<?>,Property<?,?>[]>> accepting
+		= new IdentityHashMap<Type<?>,Map<Type<?>,Property<?,?>[]>>
+
+	/** Owner Type -> (query Type -> containing Object Properties) */
+	val Map<Type<?>,Map<Type<?>,ObjectProperty<?,?,?,?>[]>> containing
+		= new IdentityHashMap<Type<?>,Map<Type<?>,ObjectProperty<?,?,?,?>[]>>
+
+	/** Query Type -> owner Types, that have at least one containing Object Property */
+	val Map<Type<?>,Type<?>[]> owners = new IdentityHashMap<Type<?>,Type<?>[]>
+
+	/** Collects all the Types of a Hierarchy, and it's dependencies */
+	private static def void collectTypes(Hierarchy hierarchy, Set<Type<?>> types, Set<Hierarchy> done) {
+		if (done.add(hierarchy)) {
+			types.addAll(hierarchy.allTypes)
+			for (dep : hierarchy.dependencies) {
+				collectTypes(dep, types, done)
+			}
+		}
+	}
+
+	/** Creates the index. Only the Hierarchy should call it. */
+	package new(Hierarchy hierarchy) {
+		this.hierarchy = requireNonNull(hierarchy, "hierarchy")
+		val types = new LinkedHashSet<Type<?>>
+		collectTypes(hierarchy, types, new LinkedHashSet<Hierarchy>)
+		queryTypes = types.toArray(<Type>newArrayOfSize(types.size))
+		querySet.addAll(types)
+		val ownersLists = new IdentityHashMap<Type<?>,ArrayList<Type<?>>>
+		for (owner : hierarchy.allTypes) {
+			val acc = new IdentityHashMap<Type<?>,Property<?,?>[]>
+			val con = new IdentityHashMap<Type<?>,ObjectProperty<?,?,?,?>[]>
+			for (query : queryTypes) {
+				val a = new ArrayList<Property<?,?>>
+				for (p : owner.inheritedProperties) {
+					if (SystemUtils.isAssignableFrom(p.contentTypeClass, query.type)) {
+						a.add(p)
+					}
+				}
+				for (p : owner.inheritedVirtualProperties) {
+					if (SystemUtils.isAssignableFrom(p.contentTypeClass, query.type)) {
+						a.add(p)
+					}
+				}
+				if (!a.empty) {
+					val array = a.toArray(<Property>newArrayOfSize(a.size))
+					Arrays.sort(array)
+					acc.put(query, array)
+				}
+				val c = new ArrayList<ObjectProperty<?,?,?,?>>
+				for (p : owner.inheritedObjectProperties) {
+					if (SystemUtils.isAssignableFrom(query.type, p.contentTypeClass)) {
+						c.add(p)
+					}
+				}
+				if (!c.empty) {
+					con.put(query, c.toArray(<ObjectProperty>newArrayOfSize(c.size)))
+					var list = ownersLists.get(query)
+					if (list === null) {
+						list = new ArrayList<Type<?>>
+						ownersLists.put(query, list)
+					}
+					list.add(owner)
+				}
+			}
+			accepting.put(owner, acc)
+			containing.put(owner, con)
+		}
+		for (e : ownersLists.entrySet) {
+			owners.put(e.key, e.value.toArray(<Type>newArrayOfSize(e.value.size)))
+		}
+	}
+
+	/** Returns true, if the owner Type is indexed (belongs to the Hierarchy) */
+	final def boolean isIndexed(Type<?> owner) {
+		accepting.containsKey(owner)
+	}
+
+	/**
+	 * Returns all the Properties (including the virtual ones) of the owner Type,
+	 * that could hold a value of the query Type, sorted.
+	 *
+	 * Returns null if either the owner Type, or the query Type, are unknown.
+	 */
+	final def Property<?,?>[] propertiesAccepting(Type<?> owner, Type<?> query) {
+		val map = accepting.get(requireNonNull(owner, "owner"))
+		if (map === null) {
+			return null
+		}
+		val result = map.get(requireNonNull(query, "query"))
+		if (result === null) {
+			if (hasQueryType(query)) Property.NO_PROPERTIES else null
+		} else {
+			result
+		}
+	}
+
+	/**
+	 * Returns the non-virtual Object Properties of the owner Type, whose
+	 * content Type is the query Type, or a sub-type of it.
+	 *
+	 * Returns null if either the owner Type, or the query Type, are unknown.
+	 */
+	final def ObjectProperty<?,?,?,?>[] propertiesContaining(Type<?> owner, Type<?> query) {
+		val map = containing.get(requireNonNull(owner, "owner"))
+		if (map === null) {
+			return null
+		}
+		val result = map.get(requireNonNull(query, "query"))
+		if (result === null) {
+			if (hasQueryType(query)) NO_OBJECT_PROPERTIES else null
+		} else {
+			result
+		}
+	}
+
+	/**
+	 * Returns all the Types of the Hierarchy that have at least one non-virtual
+	 * Object Property, whose content Type is the query Type, or a sub-type of it.
+	 */
+	final def Type<?>[] typesContaining(Type<?> query) {
+		val result = owners.get(requireNonNull(query, "query"))
+		if (result === null) NO_TYPES else result
+	}
+
+	/** Returns true if the query Type is one of the indexed query Types. */
+	final def boolean hasQueryType(Type<?> query) {
+		querySet.contains(query)
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta;
+
+/**
+ * Creates the per-task visitors of a ParallelPropertyVisit, and merges their
+ * results. Must be thread-safe.
+ *
+ * @author monster
+ */
+public interface PropertyVisitorWorker<V extends PropertyVisitor, R> {
+    /** Creates a new visitor. */
+    V newVisitor();
+
+    /** Returns the result of a visitor, after it visited a range. */
+    R result(V visitor);
+
+    /** Merges two partial results; left comes before right. */
+    R merge(R left, R right);
+}
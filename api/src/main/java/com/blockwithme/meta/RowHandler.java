@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The InvocationHandler of a "row handle": a flyweight instance of the
+ * (interface) Type of a store, that reads and writes one row of the store,
+ * given by row(); it can be fixed, or follow a cursor.
+ * The Property accessors call the getters and setters of the Type
+ * interface, so a row handle can be used with the normal Property API, like
+ * a Bean, whatever the layout of the store.
+ *
+ * Only the getters and setters of the stored Properties are supported, and
+ * getMetaType(), toString(), hashCode() and equals(); the handles of the
+ * same (current) row of the same store are equal. All other methods (the
+ * Bean state: selection, parent, interceptor, ...) throw an
+ * UnsupportedOperationException. The setters write the row directly, so no
+ * validator or listener is called. Primitive properties with a converter
+ * are read and written as their primitive value.
+ *
+ * @author monster
+ */
+abstract class RowHandler implements InvocationHandler {
+
+    /** The store */
+    private final Object store;
+
+    /** The Type */
+    private final Type<?> type;
+
+    /** The Properties, by getter and setter name. */
+    private final Map<String, Property<?, ?>> methods;
+
+    /**
+     * Returns the Properties, by the name of their getter and setter in the
+     * Type interface. Fails if the Type is not an interface.
+     */
+    static Map<String, Property<?, ?>> methodsOf(final Type<?> type,
+            final Property<?, ?>[] properties) {
+        if (!type.type.isInterface()) {
+            throw new UnsupportedOperationException(
+                    "Row handles require an interface Type: " + type);
+        }
+        final Map<String, Property<?, ?>> result = new HashMap<>();
+        for (final Property<?, ?> p : properties) {
+            final String name = p.simpleName;
+            // Like the Bean getters/setters: no capitalization after a _
+            final String suffix = name.startsWith("_") ? name : Character
+                    .toUpperCase(name.charAt(0)) + name.substring(1);
+            result.put("get" + suffix, p);
+            result.put("set" + suffix, p);
+        }
+        return result;
+    }
+
+    /** Creates a row handle. */
+    @SuppressWarnings("unchecked")
+    static <E> E newHandle(final Type<E> type, final RowHandler handler) {
+        return (E) Proxy.newProxyInstance(type.type.getClassLoader(),
+                new Class<?>[] { type.type }, handler);
+    }
+
+    /** Creates a RowHandler. */
+    RowHandler(final Object store, final Type<?> type,
+            final Map<String, Property<?, ?>> methods) {
+        this.store = store;
+        this.type = type;
+        this.methods = methods;
+    }
+
+    /** Returns the (current) row. */
+    abstract int row();
+
+    /** Reads an integral Property, as Property.toLong() would. */
+    abstract long getLong(Property<?, ?> prop, int row);
+
+    /** Writes an integral Property, as Property.fromLong() would. */
+    abstract void setLong(Property<?, ?> prop, int row, long value);
+
+    /** Reads a floating-point Property, as Property.toDouble() would. */
+    abstract double getDouble(Property<?, ?> prop, int row);
+
+    /** Writes a floating-point Property, as Property.fromDouble() would. */
+    abstract void setDouble(Property<?, ?> prop, int row, double value);
+
+    /** Reads an Object Property. */
+    abstract Object getObject(Property<?, ?> prop, int row);
+
+    /** Writes an Object Property. */
+    abstract void setObject(Property<?, ?> prop, int row, Object value);
+
+    /** Returns the value of a Property, boxed. */
+    private Object get(final Property<?, ?> prop) {
+        final int row = row();
+        switch (prop.getType()) {
+        case BOOLEAN:
+            return getLong(prop, row) != 0;
+        case BYTE:
+            return (byte) getLong(prop, row);
+        case CHARACTER:
+            return (char) getLong(prop, row);
+        case SHORT:
+            return (short) getLong(prop, row);
+        case INTEGER:
+            return (int) getLong(prop, row);
+        case LONG:
+            return getLong(prop, row);
+        case FLOAT:
+            return (float) getDouble(prop, row);
+        case DOUBLE:
+            return getDouble(prop, row);
+        default:
+            return getObject(prop, row);
+        }
+    }
+
+    /** Sets the value of a Property, from a boxed value. */
+    private void set(final Property<?, ?> prop, final Object value) {
+        final int row = row();
+        switch (prop.getType()) {
+        case BOOLEAN:
+            setLong(prop, row, ((Boolean) value) ? 1 : 0);
+            break;
+        case CHARACTER:
+            setLong(prop, row, (Character) value);
+            break;
+        case BYTE:
+        case SHORT:
+        case INTEGER:
+        case LONG:
+            setLong(prop, row, ((Number) value).longValue());
+            break;
+        case FLOAT:
+        case DOUBLE:
+            setDouble(prop, row, ((Number) value).doubleValue());
+            break;
+        default:
+            setObject(prop, row, value);
+            break;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    public Object invoke(final Object proxy, final Method method,
+            final Object[] args) {
+        final String name = method.getName();
+        final int count = (args == null) ? 0 : args.length;
+        final Property<?, ?> prop = methods.get(name);
+        if (prop != null) {
+            if (count == 0) {
+                return get(prop);
+            }
+            if (count == 1) {
+                set(prop, args[0]);
+                return (method.getReturnType() == void.class) ? null : proxy;
+            }
+        }
+        if ((count == 0) && "getMetaType".equals(name)) {
+            return type;
+        }
+        if ((count == 0) && "toString".equals(name)) {
+            return toString();
+        }
+        if ((count == 0) && "hashCode".equals(name)) {
+            return hashCode();
+        }
+        if ((count == 1) && "equals".equals(name)) {
+            final Object other = args[0];
+            return (other != null) && Proxy.isProxyClass(other.getClass())
+                    && equals(Proxy.getInvocationHandler(other));
+        }
+        throw new UnsupportedOperationException(name
+                + "() is not supported by the row handles of " + type);
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(store) * 31 + row();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj instanceof RowHandler) {
+            final RowHandler other = (RowHandler) obj;
+            return (other.store == store) && (other.row() == row());
+        }
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return type.fullName + "[row=" + row() + "]";
+    }
+}
@@ -21,6 +21,7 @@ import com.blockwithme.meta.ByteProperty
 import com.blockwithme.meta.CharacterProperty
 import com.blockwithme.meta.ContentOwner
 import com.blockwithme.meta.DoubleProperty
+import com.blockwithme.meta.FixedFootprint
 import com.blockwithme.meta.FloatProperty
 import com.blockwithme.meta.HierarchyBuilderFactory
 import com.blockwithme.meta.IProperty
@@ -34,6 +35,7 @@ import com.blockwithme.meta.PropertyMatcher
 import com.blockwithme.meta.ShortProperty
 import com.blockwithme.meta.Type
 import com.blockwithme.meta.TypeOwner
+import com.blockwithme.meta.beans.impl.BeanPathPlan
 import com.blockwithme.meta.beans.impl._WitherImpl
 import com.blockwithme.util.shared.AnyAccessor
 import java.util.Collection
@@ -41,6 +43,7 @@ import java.util.List
 import java.util.Map
 import java.util.Objects
 import java.util.Set
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater
 import java.util.logging.Logger
 
 import static com.blockwithme.util.shared.Preconditions.*
@@ -65,7 +68,10 @@ interface Bean extends TypeOwner, Loggable {
  * "Internal" base for all data/bean objects.
  *
  * The "selected" state is usually used to keep track of the "dirty" state.
+ *
+ * The FixedFootprint matches the "header" fields of _BeanImpl.
  */
+@FixedFootprint(references=6, bytes=17)
 interface _Bean extends Bean {
 	/** Returns the current value of the change counter */
 	def int getChangeCounter()
@@ -159,6 +165,23 @@ interface _Bean extends Bean {
     /** Reads the value(s) of this Property, and add them to values, if they match. */
     def void readProperty(IProperty<?, ?> p, Object[] keyMatcher, List<Object> values)
 
+    /**
+     * Reads the value(s) of this Property, and passes them to the sink, if they match.
+     * Returns false, if the sink asked to stop.
+     */
+    def boolean readProperty(IProperty<?, ?> p, Object[] keyMatcher, BeanPathSink sink)
+
+    /**
+     * Resolves a compiled BeanPath, passing every matched value to the sink,
+     * (see resolvePath(BeanPath,boolean)).
+     * Returns false, if the sink asked to stop.
+     * Exceptions thrown by the sink are never swallowed.
+     *
+     * Plans are created with new BeanPathPlan(path, rootType); callers that
+     * resolve the same path repeatedly should create the plan once, and keep it.
+     */
+    def boolean resolvePath(BeanPathPlan plan, boolean failOnIncompatbileProperty, BeanPathSink sink)
+
     /**
      * Resolves a "simple" path to a value (including null, if the value,
      * or any link, is null).
@@ -238,6 +261,13 @@ final class BeanPath extends _WitherImpl {
 }
 
 
+/** Receives the values matched by a BeanPath. */
+interface BeanPathSink {
+	/** Receives one matched value (can be null). Returns false to stop the resolution. */
+	def boolean onMatch(Object value)
+}
+
+
 /**
  * The "context" within which an Entity exists.
  * It could be a JPA table, or anything that contains entities.
@@ -303,6 +333,8 @@ interface EntityContext {
  * in a thread-safe way.
  */
 class Handle {
+	/** Atomically claims the reloader, so that only one thread calls it */
+	static val RELOADER = AtomicReferenceFieldUpdater.newUpdater(Handle, ProcObject, "reloader")
 	/** The ID-as-String of the Entity */
 	public val String id
 	/** The entity context */
@@ -313,6 +345,8 @@ class Handle {
 	val int hashCode
 	/** The current reference to the Entity */
 	var volatile Entity entity
+	/** Called (once) by getEntity(), if the Entity is missing; can be null */
+	var volatile ProcObject<Handle> reloader
 	/** Constructor */
 	new(String id, EntityContext context) {
 		this.id = requireNonEmpty(id, "id")
@@ -320,10 +354,39 @@ class Handle {
 		toString = context.namespace+":"+id
 		hashCode = toString.hashCode
 	}
-	/** Returns the reference to the Entity. It might be currently null. */
+	/**
+	 * Returns the reference to the Entity. It might be currently null.
+	 * If it is null, and a reloader is set, the reloader is called (and
+	 * removed), so that a later call can return the reloaded Entity.
+	 * The reloader is claimed atomically, so it is called at most once, even
+	 * if many threads call getEntity() concurrently. Since the reloader
+	 * normally requests a load, getEntity() must not be called while holding
+	 * the lock of a loader; use peekEntity() there.
+	 */
 	final def Entity getEntity() {
+		val result = entity
+		if (result === null && reloader !== null) {
+			val r = RELOADER.getAndSet(this, null) as ProcObject<Handle>
+			if (r !== null) {
+				r.apply(this)
+			}
+		}
+		result
+	}
+	/**
+	 * Returns the reference to the Entity, without side effects. It might be
+	 * currently null, and the reloader, if any, is not called.
+	 */
+	final def Entity peekEntity() {
 		entity
 	}
+	/**
+	 * Sets the reloader, called by the next getEntity() that finds no Entity.
+	 * Used by caches, that evict Entities. It can be null.
+	 */
+	final def void setReloader(ProcObject<Handle> reloader) {
+		this.reloader = reloader
+	}
 	/** Sets the reference to the Entity. It can be null. */
 	final def void setEntity(Entity entity) {
 		this.entity = entity
@@ -522,10 +585,46 @@ interface ListBean<E> extends List<E>, CollectionBean<E> {
 interface SetBean<E> extends Set<E>, CollectionBean<E> {
 }
 
+/**
+ * A secondary index, over the content of a collection or map bean, keyed by
+ * the value of a Property of the content beans (see addIndex()).
+ */
+interface ContentIndex<E> {
+	/** Returns the Property whose value is used as key. */
+	def Property<?,?> getKeyProperty()
+
+	/** Returns true, if at least one element has the given key. */
+	def boolean containsKey(Object key)
+
+	/** Returns the first element with the given key, if any. */
+	def E get(Object key)
+
+	/** Returns all the elements with the given key. */
+	def List<E> getAll(Object key)
+}
+
 /** A Bean that represents a Collection (either List or Set) */
 interface _CollectionBean<E> extends CollectionBean<E>, _Bean {
 	/** Returns the delegate, if any */
     override _CollectionBean<E> getDelegate()
+
+	/**
+	 * Adds a secondary index over the elements, keyed by the given Property
+	 * of the elements, or returns the existing one.
+	 */
+    def ContentIndex<E> addIndex(Property<?,?> keyProperty)
+
+	/** Returns the secondary index keyed by the given Property, if any. */
+    def ContentIndex<E> getIndex(Property<?,?> keyProperty)
+
+	/** Rebuilds all the secondary indexes, for example after a key Property change. */
+    def void reindex()
+
+	/** Updates the secondary indexes, if any. Called by the interceptor. */
+    def void updateIndexes(E oldValue, E newValue)
+
+	/** Clears the secondary indexes, if any. Called by the interceptor. */
+    def void clearIndexes()
 }
 
 /** A Bean that represents a List */
@@ -554,6 +653,24 @@ interface MapBean<K,V> extends Map<K,V>, ContentOwner<Map.Entry<K,V>>, Bean {
 interface _MapBean<K,V> extends MapBean<K,V>, _Bean {
 	/** Returns the delegate, if any */
     override _MapBean<K,V> getDelegate()
+
+	/**
+	 * Adds a secondary index over the values, keyed by the given Property
+	 * of the values, or returns the existing one.
+	 */
+    def ContentIndex<V> addIndex(Property<?,?> keyProperty)
+
+	/** Returns the secondary index keyed by the given Property, if any. */
+    def ContentIndex<V> getIndex(Property<?,?> keyProperty)
+
+	/** Rebuilds all the secondary indexes, for example after a key Property change. */
+    def void reindex()
+
+	/** Updates the secondary indexes, if any. Called by the interceptor. */
+    def void updateIndexes(V oldValue, V newValue)
+
+	/** Clears the secondary indexes, if any. Called by the interceptor. */
+    def void clearIndexes()
 }
 
 /** An immutable Reference to an immutable Bean. */
@@ -43,6 +43,7 @@ import java.lang.annotation.RetentionPolicy
 import java.lang.annotation.Target
 import java.util.ArrayList
 import java.util.Collection
+import java.util.Collections
 import java.util.HashMap
 import java.util.HashSet
 import java.util.List
@@ -80,6 +81,7 @@ import com.blockwithme.meta.LongPropertyRangeValidator
 import com.blockwithme.meta.DoublePropertyRangeValidator
 import com.blockwithme.meta.ObjectPropertyValidator
 import com.blockwithme.meta.TypeImplemented
+import com.blockwithme.meta.PackedFootprint
 import com.blockwithme.meta.StringRangePropertyValidator
 import com.blockwithme.meta.beans.Wither
 import java.util.TreeMap
@@ -262,6 +264,16 @@ annotation Bean {
 	/** If data is true, this "Bean" will be generated as an immutable "Data" type. */
 	boolean data = false
 	String[] sortKeyes = #[]
+	/**
+	 * If packed is true, the boolean, byte, char, short and int properties
+	 * declared in this type are stored in long fields of the Impl, using as
+	 * few bits as possible: booleans use 1 bit, and properties with both a
+	 * numeric Range min and max only use the bits required by that range.
+	 * The Properties then report the bits they use, and the footprint of the
+	 * Type counts the long fields (see PackedFootprint).
+	 * Has no effect on "Data" types.
+	 */
+	boolean packed = false
 }
 
 /**
@@ -380,6 +392,23 @@ package class InnerImpl {
   List<String> hasInit
 }
 
+/** The location of a packed primitive property, in the long fields of the Impl. */
+@Data
+package class PackedSlot {
+  /** The index of the long field */
+  int word
+  /** The shift, within the long field */
+  int shift
+  /** The number of bits */
+  int bits
+  /** Should the value be sign-extended when read? */
+  boolean signed
+  /** The (inclusive) minimum value, if the value must be range-checked, or null */
+  String min
+  /** The (inclusive) maximum value, if the value must be range-checked, or null */
+  String max
+}
+
 @Data
 package class BeanInfo {
   String qualifiedName
@@ -1621,7 +1650,8 @@ class BeanProcessor extends Processor<TypeDeclaration,MutableTypeDeclaration> {
 
   /** Creates a Property constant in meta */
   private def String createPropertyConstant(MutableInterfaceDeclaration intf,
-    MutableInterfaceDeclaration meta, BeanInfo beanInfo, String accessorName, PropertyInfo propInfo) {
+    MutableInterfaceDeclaration meta, BeanInfo beanInfo, String accessorName, PropertyInfo propInfo,
+    PackedSlot slot) {
     val metaPkg = BooleanProperty.package.name
     val propName = propertyMethodName(propInfo)
     val name = getPropertyFieldNameInMeta(beanInfo.simpleName, propInfo)
@@ -1650,6 +1680,9 @@ class BeanProcessor extends Processor<TypeDeclaration,MutableTypeDeclaration> {
     	// TODO ** Remove the Setter part of the Accessor for Withers
         '''BUILDER.new«propName»(«simpleName».class, "«propInfo.name»", «propTypeName».class,
         true, true, «exactType», «nullAllowed», new «accessorName»(), «isVirtual»)'''
+      } else if ((slot !== null) && ("BooleanProperty" != propName)) {
+        // Packed properties report the bits they actually use
+        '''BUILDER.new«propName»(«simpleName».class, "«propInfo.name»", new «accessorName»(), «slot.bits», «isVirtual»)'''
       } else {
     	// TODO ** Remove the Setter part of the Accessor for Withers
         '''BUILDER.new«propName»(«simpleName».class, "«propInfo.name»", new «accessorName»(), «isVirtual»)'''
@@ -2215,12 +2248,156 @@ return SINGLETON;'''
   	myInits
   }
 
-  /** Generates the field for the given property */
+  /** Returns true, if the Impl of intf should pack the primitive properties of beanInfo */
+  private def boolean isPacked(TypeDeclaration intf, BeanInfo beanInfo) {
+    if (beanInfo.isData || (intf.qualifiedName != beanInfo.qualifiedName)) {
+      return false
+    }
+    val bean = intf.findAnnotation(findTypeGlobally(Bean))
+    (bean !== null) && bean.getBooleanValue("packed")
+  }
+
+  /** Returns the name of a packed long field */
+  private static def String packedFieldName(int word) {
+    "_packed"+word
+  }
+
+  /** Returns the number of bits required by a value in [0,max] */
+  private static def int unsignedBits(long max) {
+    Math.max(1, 64 - Long.numberOfLeadingZeros(max))
+  }
+
+  /**
+   * Computes the packed layout of the (own, non-virtual) packable primitive
+   * properties of a type. The properties are sorted by decreasing size
+   * (stable), and placed in the first long field that still has room.
+   */
+  private static def Map<String,PackedSlot> packedLayout(BeanInfo beanInfo) {
+    val candidates = new ArrayList<PackedSlot>
+    val names = new ArrayList<String>
+    for (p : beanInfo.properties) {
+      if (!p.virtualProp) {
+        val fullBits = switch (p.type) {
+          case "boolean": 1
+          case "byte": 8
+          case "char": 16
+          case "short": 16
+          case "int": 32
+          default: -1
+        }
+        if (fullBits > 0) {
+          var bits = fullBits
+          var signed = (fullBits > 1) && (p.type != "char")
+          var String min = null
+          var String max = null
+          if ((fullBits > 1) && !p.min.nullOrEmpty && !p.max.nullOrEmpty) {
+            try {
+              val lo = Long.parseLong(p.min.trim)
+              val hi = Long.parseLong(p.max.trim)
+              if (lo <= hi) {
+                val rangeBits = if (lo >= 0)
+                  unsignedBits(hi)
+                else
+                  1 + Math.max(unsignedBits(-(lo + 1)), unsignedBits(Math.max(hi, 0)))
+                if (rangeBits < fullBits) {
+                  bits = rangeBits
+                  signed = (lo < 0)
+                  min = String.valueOf(lo)
+                  max = String.valueOf(hi)
+                }
+              }
+            } catch (NumberFormatException e) {
+              // Not a numeric range; use all bits
+            }
+          }
+          candidates.add(new PackedSlot(-1, -1, bits, signed, min, max))
+          names.add(p.name)
+        }
+      }
+    }
+    // sortWith() is stable
+    val order = (0 ..< candidates.size).toList.sortWith[a,b|candidates.get(b).bits - candidates.get(a).bits]
+    val free = new ArrayList<Integer>
+    val result = new HashMap<String,PackedSlot>
+    for (i : order) {
+      val c = candidates.get(i)
+      var word = 0
+      while ((word < free.size) && (free.get(word) < c.bits)) {
+        word = word + 1
+      }
+      if (word == free.size) {
+        free.add(64)
+      }
+      val shift = 64 - free.get(word)
+      free.set(word, free.get(word) - c.bits)
+      result.put(names.get(i), new PackedSlot(word, shift, c.bits, c.signed, c.min, c.max))
+    }
+    result
+  }
+
+  /** Records the packed layout on the type, so that Type.footprint is right */
+  private def void recordPackedFootprint(MutableInterfaceDeclaration intf, Map<String,PackedSlot> packed) {
+    if (!packed.empty && (intf.findAnnotation(findTypeGlobally(PackedFootprint)) === null)) {
+      var words = 0
+      for (slot : packed.values) {
+        words = Math.max(words, slot.word + 1)
+      }
+      val count = words
+      val names = packed.keySet.sort.toArray(<String>newArrayOfSize(packed.size))
+      intf.addAnnotation(newAnnotationReference(PackedFootprint, [
+        setIntValue("words", count)
+        setStringValue("properties", names)
+      ]))
+    }
+  }
+
+  /** Returns the Java expression that reads a packed property */
+  private static def String packedGetExpr(PropertyInfo propInfo, PackedSlot slot) {
+    val field = packedFieldName(slot.word)
+    if (propInfo.type == "boolean") {
+      '''((«field» & (1L << «slot.shift»)) != 0)'''
+    } else if (slot.signed) {
+      '''((«propInfo.type») ((«field» << «64 - slot.shift - slot.bits») >> «64 - slot.bits»))'''
+    } else {
+      '''((«propInfo.type») ((«field» >>> «slot.shift») & 0x«Long.toHexString((1L << slot.bits) - 1)»L))'''
+    }
+  }
+
+  /** Returns the Java statements that write "value" in a packed property */
+  private static def String packedSetCode(PropertyInfo propInfo, PackedSlot slot) {
+    val field = packedFieldName(slot.word)
+    if (propInfo.type == "boolean") {
+      '''«field» = value ? («field» | (1L << «slot.shift»)) : («field» & ~(1L << «slot.shift»));'''
+    } else {
+      val mask = "0x"+Long.toHexString((1L << slot.bits) - 1)+"L"
+      val check = if (slot.min === null) "" else
+        '''if ((value < «slot.min») || (value > «slot.max»)) {
+throw new IllegalArgumentException("«propInfo.name»: "+value+" not in [«slot.min»,«slot.max»]");
+}
+'''
+      check+'''«field» = («field» & ~(«mask» << «slot.shift»)) | ((((long) value) & «mask») << «slot.shift»);'''
+    }
+  }
+
+  /** Generates the field for the given property (packed contains the packed layout, if any) */
   private def void generatePropertyField(Map<String, Object> processingContext,
     MutableInterfaceDeclaration intf, MutableClassDeclaration impl,
-    BeanInfo beanInfo, PropertyInfo propInfo) {
+    BeanInfo beanInfo, PropertyInfo propInfo, Map<String,PackedSlot> packed) {
 	val isVirtual = propInfo.virtualProp
-    if (!isVirtual && impl.findDeclaredField(propInfo.name) === null) {
+	val slot = packed.get(propInfo.name)
+    if (slot !== null) {
+      val fieldName = packedFieldName(slot.word)
+      if (impl.findDeclaredField(fieldName) === null) {
+        impl.addField(fieldName) [
+          visibility = Visibility.PRIVATE
+          final = false
+          static = false
+          type = newTypeReferenceWithGenerics("long")
+          docComment = "Packed primitive properties, word "+slot.word
+        ]
+        warn(BeanProcessor, "transform", intf, fieldName+" added to "+impl.qualifiedName)
+      }
+    } else if (!isVirtual && impl.findDeclaredField(propInfo.name) === null) {
       val propInfoType = if (propInfo.isMap) {
   	  	val start = propInfo.type.indexOf('<')
   	  	MapBeanImpl.name+propInfo.type.substring(start)
@@ -2278,9 +2455,10 @@ return SINGLETON;'''
 		}
 	}
 
-	/** Generates the getter, setter for the given property */
+	/** Generates the getter, setter for the given property (packed contains the packed layout, if any) */
 	private def void generatePropertyMethods(Map<String, Object> processingContext,
-		MutableInterfaceDeclaration intf, MutableClassDeclaration impl, BeanInfo beanInfo, PropertyInfo propInfo) {
+		MutableInterfaceDeclaration intf, MutableClassDeclaration impl, BeanInfo beanInfo, PropertyInfo propInfo,
+		Map<String,PackedSlot> packed) {
 		val propertyMethodName = propertyMethodName(propInfo);
 		val propertyFieldName = beanInfo.pkgName+".Meta."+getPropertyFieldNameInMeta(beanInfo.simpleName, propInfo)
 		val isVirtual = propInfo.virtualProp
@@ -2290,9 +2468,12 @@ return SINGLETON;'''
 		val colOrMap = ((colType !== null) || propInfo.isMap)
 		val tfu = propertyToXetterSuffix(propInfo.name)
 		val getter = if (colOrMap && !beanInfo.isData) "getRaw"+tfu else "get"+tfu
+		val slot = packed.get(propInfo.name)
 		if (!isVirtual && (impl.findDeclaredMethod(getter) === null)) {
 			val bodyText = if (beanInfo.isData)
 				'''return «propInfo.name»;'''
+			else if (slot !== null)
+				'''return interceptor.get«propertyMethodName»(this, «propertyFieldName», «packedGetExpr(propInfo, slot)»);'''
 			else
 				'''return interceptor.get«propertyMethodName»(this, «propertyFieldName», «propInfo.name»);'''
 			onMethodAdded(impl.addMethod(getter) [
@@ -2324,6 +2505,10 @@ return SINGLETON;'''
 return this;'''
 				val bodyText = if (isVirtual)
 					"throw new UnsupportedOperationException();"
+				else if (slot !== null)
+					'''final «propTypeRef» value = interceptor.set«propertyMethodName»(this, «propertyFieldName», «packedGetExpr(propInfo, slot)», newValue);
+«packedSetCode(propInfo, slot)»
+return this;'''
 				else if (!colOrMap) {
 					if (propInfo.fixedType) {
 						val dot = propInfo.type.lastIndexOf('.')
@@ -3055,6 +3240,13 @@ return result;'''
 				val meta = getInterface(metaName(pkgName))
 				addBuilderField(beanInfo, meta, mtd, processingContext)
 
+				// The packed layout, if any, is computed only once per type
+				val packed = if (isPacked(mtd, beanInfo))
+					packedLayout(beanInfo)
+				else
+					Collections.<String,PackedSlot>emptyMap
+				recordPackedFootprint(mtd, packed)
+
 				// STEP 14
 				// For each type property, a property accessor class is generated
 				var allProps = ""
@@ -3062,7 +3254,8 @@ return result;'''
 					val accessorName = implementPropertyAccessor(beanInfo, propInfo)
 					// STEP 15
 					// For each type property, a property object in the "Meta" interface is generated.
-					val name = createPropertyConstant(mtd, meta, beanInfo, accessorName, propInfo)
+					val name = createPropertyConstant(mtd, meta, beanInfo, accessorName, propInfo,
+						packed.get(propInfo.name))
 					allProps = if (allProps.empty) name else allProps+", "+name
 				}
 
@@ -3083,7 +3276,7 @@ return result;'''
 				// STEP 21
 				// For all getters and setters in type, implementations are generated in Impl
 				for (propInfo : beanInfo.properties) {
-					generatePropertyField(processingContext, mtd, impl, beanInfo, propInfo)
+					generatePropertyField(processingContext, mtd, impl, beanInfo, propInfo, packed)
 				}
 
 				// STEP 24
@@ -3100,7 +3293,8 @@ return result;'''
 						val bi = processingContext.get(cacheKey(key)) as BeanInfo
 						for (p : e.value) {
 							map.put(bi, e.value)
-							generatePropertyField(processingContext, mtd, impl, bi, p)
+							generatePropertyField(processingContext, mtd, impl, bi, p,
+								Collections.<String,PackedSlot>emptyMap)
 						}
 					}
 				}
@@ -3112,7 +3306,7 @@ return result;'''
 				// STEP 21
 				// For all getters and setters in type, implementations are generated in Impl
 				for (propInfo : beanInfo.properties) {
-					generatePropertyMethods(processingContext, mtd, impl, beanInfo, propInfo)
+					generatePropertyMethods(processingContext, mtd, impl, beanInfo, propInfo, packed)
 				}
 
 				// STEP 23
@@ -3123,7 +3317,8 @@ return result;'''
 				// Add impl to all missing properties in Impl
 				for (e : map.entrySet) {
 					for (p : e.value) {
-						generatePropertyMethods(processingContext, mtd, impl, e.key, p)
+						generatePropertyMethods(processingContext, mtd, impl, e.key, p,
+							Collections.<String,PackedSlot>emptyMap)
 					}
 				}
 
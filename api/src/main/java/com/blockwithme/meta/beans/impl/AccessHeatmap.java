@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.blockwithme.meta.BooleanProperty;
+import com.blockwithme.meta.ByteProperty;
+import com.blockwithme.meta.CharacterProperty;
+import com.blockwithme.meta.DoubleProperty;
+import com.blockwithme.meta.FloatProperty;
+import com.blockwithme.meta.Hierarchy;
+import com.blockwithme.meta.IntegerProperty;
+import com.blockwithme.meta.LongProperty;
+import com.blockwithme.meta.MetaVisitor;
+import com.blockwithme.meta.ObjectProperty;
+import com.blockwithme.meta.Property;
+import com.blockwithme.meta.ShortProperty;
+import com.blockwithme.meta.Type;
+import com.blockwithme.meta.TypePackage;
+import com.blockwithme.meta.beans._Bean;
+
+/**
+ * Sampled property access frequencies, per Type, for one Hierarchy.
+ *
+ * Once enabled for a Hierarchy, the reads and writes going through the
+ * DefaultInterceptor (and it's sub-classes) of all beans of that Hierarchy
+ * are sampled: only one access in 2^sampleShift is counted, per thread
+ * stripe. The counters are indexed by Type.typeId, and then by the
+ * inheritedPropertyId() of the Property within that Type.
+ *
+ * Since LongAdder is not available in Java 7, the counters are striped
+ * "by hand": every stripe (selected by thread ID) has it's own, padded,
+ * region of an AtomicLongArray, so that threads do not share cache lines.
+ *
+ * The result is exported as a Report, by a MetaVisitor traversal of the
+ * Hierarchy. It classifies every property as hot, warm, cold or unused, and
+ * lists those that were never written; this is meant as input for the
+ * decisions about bit-packing, lazy materialization and column storage.
+ *
+ * When no Hierarchy is enabled, the cost per access is one volatile read.
+ *
+ * @author monster
+ */
+public final class AccessHeatmap {
+
+    /** The number of longs in a cache line (padding) */
+    private static final int PAD = 16;
+
+    /** Counter offset of reads */
+    private static final int READ = 0;
+
+    /** Counter offset of writes */
+    private static final int WRITE = 1;
+
+    /** The enabled heatmaps; copy-on-write */
+    private static volatile AccessHeatmap[] enabled = new AccessHeatmap[0];
+
+    /** The counters of one Type */
+    private static final class TypeCounters {
+        /** The Type */
+        final Type<?> type;
+
+        /** The number of counters per stripe (padded) */
+        final int stride;
+
+        /** The counters */
+        final AtomicLongArray counts;
+
+        /** Creates the TypeCounters */
+        TypeCounters(final Type<?> type, final int stripes) {
+            this.type = type;
+            final int needed = 2 * type.inheritedPropertyCount;
+            stride = ((needed + PAD - 1) / PAD) * PAD;
+            counts = new AtomicLongArray(Math.max(PAD, stride * stripes));
+        }
+
+        /** Returns the sum, over all stripes, of one counter. */
+        long sum(final int index) {
+            long result = 0;
+            for (int i = index; i < counts.length(); i += stride) {
+                result += counts.get(i);
+            }
+            return result;
+        }
+    }
+
+    /** The classification of a property */
+    public static enum Heat {
+        /** At least 10% of the accesses of it's Type */
+        HOT,
+        /** Between 1% and 10% of the accesses of it's Type */
+        WARM,
+        /** Less than 1% of the accesses of it's Type */
+        COLD,
+        /** Never accessed */
+        UNUSED
+    }
+
+    /** One line of a Report */
+    public static final class Entry {
+        /** The Type */
+        public final Type<?> type;
+
+        /** The Property */
+        public final Property<?, ?> property;
+
+        /** The estimated read count */
+        public final long reads;
+
+        /** The estimated write count */
+        public final long writes;
+
+        /** The classification */
+        public final Heat heat;
+
+        /** Creates an Entry */
+        Entry(final Type<?> type, final Property<?, ?> property,
+                final long reads, final long writes, final Heat heat) {
+            this.type = type;
+            this.property = property;
+            this.reads = reads;
+            this.writes = writes;
+            this.heat = heat;
+        }
+
+        /** Returns true, if the property was never written. */
+        public boolean isNeverWritten() {
+            return writes == 0;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return type.fullName + "," + property.simpleName + "," + reads
+                    + "," + writes + "," + heat
+                    + (isNeverWritten() ? ",NEVER_WRITTEN" : "");
+        }
+    }
+
+    /**
+     * The report of a heatmap, built by visiting it's Hierarchy.
+     *
+     * Every Type lists all it's inherited properties, so the Property visit
+     * methods do nothing.
+     */
+    public static final class Report implements MetaVisitor {
+        /** The heatmap */
+        private final AccessHeatmap heatmap;
+
+        /** The entries */
+        private final List<Entry> entries = new ArrayList<>();
+
+        /** Creates a Report */
+        Report(final AccessHeatmap heatmap) {
+            this.heatmap = heatmap;
+        }
+
+        /** Returns the entries, in visit order. */
+        public List<Entry> getEntries() {
+            return Collections.unmodifiableList(entries);
+        }
+
+        /** Returns the entries with the given classification. */
+        public List<Entry> getEntries(final Heat heat) {
+            final List<Entry> result = new ArrayList<>();
+            for (final Entry e : entries) {
+                if (e.heat == heat) {
+                    result.add(e);
+                }
+            }
+            return result;
+        }
+
+        /** Returns the entries of the properties that were never written. */
+        public List<Entry> getNeverWritten() {
+            final List<Entry> result = new ArrayList<>();
+            for (final Entry e : entries) {
+                if (e.isNeverWritten()) {
+                    result.add(e);
+                }
+            }
+            return result;
+        }
+
+        /** Writes the report as CSV. */
+        public void write(final Appendable out) throws IOException {
+            out.append("type,property,reads,writes,heat,flags\n");
+            for (final Entry e : entries) {
+                out.append(e.toString()).append('\n');
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.MetaVisitor#visit(com.blockwithme.meta.Hierarchy)
+         */
+        @Override
+        public void visit(final Hierarchy hierarchy) {
+            // NOP
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.MetaVisitor#visit(com.blockwithme.meta.TypePackage)
+         */
+        @Override
+        public void visit(final TypePackage typePackage) {
+            // NOP
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.MetaVisitor#visit(com.blockwithme.meta.Type)
+         */
+        @Override
+        public void visit(final Type<?> type) {
+            final TypeCounters tc = heatmap.counters(type, false);
+            final Property<?, ?>[] props = type.inheritedProperties;
+            final long[] reads = new long[props.length];
+            final long[] writes = new long[props.length];
+            long total = 0;
+            for (int i = 0; i < props.length; i++) {
+                if (tc != null) {
+                    reads[i] = tc.sum(2 * i + READ) << heatmap.sampleShift;
+                    writes[i] = tc.sum(2 * i + WRITE) << heatmap.sampleShift;
+                }
+                total += reads[i] + writes[i];
+            }
+            for (int i = 0; i < props.length; i++) {
+                final long accesses = reads[i] + writes[i];
+                final Heat heat;
+                if (accesses == 0) {
+                    heat = Heat.UNUSED;
+                } else if (accesses * 10 >= total) {
+                    heat = Heat.HOT;
+                } else if (accesses * 100 >= total) {
+                    heat = Heat.WARM;
+                } else {
+                    heat = Heat.COLD;
+                }
+                entries.add(new Entry(type, props[i], reads[i], writes[i],
+                        heat));
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.Type, java.lang.Object)
+         */
+        @Override
+        public void visit(final Type<?> type, final Object instance) {
+            // NOP
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.BooleanProperty)
+         */
+        @Override
+        public void visit(final BooleanProperty<?, ?, ?> prop) {
+            // NOP
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.ByteProperty)
+         */
+        @Override
+        public void visit(final ByteProperty<?, ?, ?> prop) {
+            // NOP
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.CharacterProperty)
+         */
+        @Override
+        public void visit(final CharacterProperty<?, ?, ?> prop) {
+            // NOP
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.ShortProperty)
+         */
+        @Override
+        public void visit(final ShortProperty<?, ?, ?> prop) {
+            // NOP
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.IntegerProperty)
+         */
+        @Override
+        public void visit(final IntegerProperty<?, ?, ?> prop) {
+            // NOP
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.LongProperty)
+         */
+        @Override
+        public void visit(final LongProperty<?, ?, ?> prop) {
+            // NOP
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.FloatProperty)
+         */
+        @Override
+        public void visit(final FloatProperty<?, ?, ?> prop) {
+            // NOP
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.DoubleProperty)
+         */
+        @Override
+        public void visit(final DoubleProperty<?, ?, ?> prop) {
+            // NOP
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.PropertyVisitor#visit(com.blockwithme.meta.ObjectProperty)
+         */
+        @Override
+        public void visit(final ObjectProperty<?, ?, ?, ?> prop) {
+            // NOP
+        }
+    }
+
+    /** The Hierarchy */
+    public final Hierarchy hierarchy;
+
+    /** One access in 2^sampleShift is counted */
+    public final int sampleShift;
+
+    /** The sample mask */
+    private final long sampleMask;
+
+    /** The number of stripes (power of 2) */
+    private final int stripes;
+
+    /** The counters, per typeId */
+    private final AtomicReferenceArray<TypeCounters> types;
+
+    /** The sampling ticks, per stripe (padded); racy, on purpose. */
+    private final long[] ticks;
+
+    /** Creates an AccessHeatmap */
+    private AccessHeatmap(final Hierarchy hierarchy, final int sampleShift) {
+        this.hierarchy = hierarchy;
+        this.sampleShift = sampleShift;
+        sampleMask = (1L << sampleShift) - 1;
+        int s = 1;
+        while (s < Runtime.getRuntime().availableProcessors()) {
+            s <<= 1;
+        }
+        stripes = s;
+        int maxTypeId = -1;
+        for (final Type<?> t : hierarchy.allTypes) {
+            maxTypeId = Math.max(maxTypeId, t.typeId);
+        }
+        types = new AtomicReferenceArray<>(maxTypeId + 1);
+        ticks = new long[stripes * PAD];
+    }
+
+    /**
+     * Enables the sampling for the given Hierarchy. One access in
+     * 2^sampleShift is counted (0 counts all accesses). Returns the new
+     * heatmap; an already enabled heatmap for that Hierarchy is replaced.
+     */
+    public static synchronized AccessHeatmap enable(final Hierarchy hierarchy,
+            final int sampleShift) {
+        Objects.requireNonNull(hierarchy, "hierarchy");
+        if ((sampleShift < 0) || (sampleShift > 30)) {
+            throw new IllegalArgumentException("sampleShift: " + sampleShift);
+        }
+        disable(hierarchy);
+        final AccessHeatmap result = new AccessHeatmap(hierarchy, sampleShift);
+        final AccessHeatmap[] array = Arrays.copyOf(enabled,
+                enabled.length + 1);
+        array[array.length - 1] = result;
+        enabled = array;
+        return result;
+    }
+
+    /** Disables the sampling for the given Hierarchy. */
+    public static synchronized void disable(final Hierarchy hierarchy) {
+        final AccessHeatmap[] array = enabled;
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].hierarchy == hierarchy) {
+                final AccessHeatmap[] result = new AccessHeatmap[array.length - 1];
+                System.arraycopy(array, 0, result, 0, i);
+                System.arraycopy(array, i + 1, result, i, result.length - i);
+                enabled = result;
+                return;
+            }
+        }
+    }
+
+    /** Returns the enabled heatmap of the given Hierarchy, if any. */
+    public static AccessHeatmap get(final Hierarchy hierarchy) {
+        for (final AccessHeatmap h : enabled) {
+            if (h.hierarchy == hierarchy) {
+                return h;
+            }
+        }
+        return null;
+    }
+
+    /** Records the read of a property, if sampling is enabled. */
+    public static void read(final _Bean instance, final Property<?, ?> prop) {
+        final AccessHeatmap[] array = enabled;
+        if (array.length != 0) {
+            record(array, instance, prop, READ);
+        }
+    }
+
+    /** Records the write of a property, if sampling is enabled. */
+    public static void write(final _Bean instance, final Property<?, ?> prop) {
+        final AccessHeatmap[] array = enabled;
+        if (array.length != 0) {
+            record(array, instance, prop, WRITE);
+        }
+    }
+
+    /** Records an access, in the heatmap of the Hierarchy of the instance. */
+    private static void record(final AccessHeatmap[] array,
+            final _Bean instance, final Property<?, ?> prop, final int kind) {
+        final Type<?> type = instance.getMetaType();
+        final Hierarchy hierarchy = type.hierarchy();
+        for (final AccessHeatmap h : array) {
+            if (h.hierarchy == hierarchy) {
+                h.record(type, prop, kind);
+                return;
+            }
+        }
+    }
+
+    /** Returns the counters of a Type, optionally creating them. */
+    private TypeCounters counters(final Type<?> type, final boolean create) {
+        final int typeId = type.typeId;
+        if ((typeId < 0) || (typeId >= types.length())) {
+            return null;
+        }
+        TypeCounters result = types.get(typeId);
+        if ((result == null) && create) {
+            types.compareAndSet(typeId, null, new TypeCounters(type, stripes));
+            result = types.get(typeId);
+        }
+        return ((result != null) && (result.type == type)) ? result : null;
+    }
+
+    /** Records a (sampled) access. */
+    private void record(final Type<?> type, final Property<?, ?> prop,
+            final int kind) {
+        final int stripe = (int) Thread.currentThread().getId()
+                & (stripes - 1);
+        if ((sampleMask != 0) && ((++ticks[stripe * PAD] & sampleMask) != 0)) {
+            return;
+        }
+        final int index = prop.inheritedPropertyId(type);
+        if (index >= 0) {
+            final TypeCounters tc = counters(type, true);
+            if (tc != null) {
+                tc.counts.incrementAndGet(stripe * tc.stride + 2 * index
+                        + kind);
+            }
+        }
+    }
+
+    /** Clears all counters. */
+    public void reset() {
+        for (int i = 0; i < types.length(); i++) {
+            types.set(i, null);
+        }
+    }
+
+    /** Builds the report, by visiting the Hierarchy. */
+    public Report report() {
+        final Report result = new Report(this);
+        hierarchy.accept(result);
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "AccessHeatmap(hierarchy=" + hierarchy.name + ", sampleShift="
+                + sampleShift + ", stripes=" + stripes + ")";
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import com.blockwithme.fn1.ProcObject;
+import com.blockwithme.meta.beans.Entity;
+import com.blockwithme.meta.beans.EntityContext;
+import com.blockwithme.meta.beans.Handle;
+
+/**
+ * A batching implementation of EntityContext.requestLoad(), for
+ * EntityContext implementations to delegate to.
+ *
+ * All the load requests made between two calls to tick() are coalesced into
+ * one bulk fetch per EntityContext, done by the EntityBackend, in the fetch
+ * Executor. Requests for the same Handle are deduplicated, including
+ * requests for a Handle whose fetch is already "in flight". When the fetch
+ * completes, the Entity is set in the Handle, and the onLoad callbacks are
+ * called with the Entity, or with an Exception, if the load failed. If the
+ * fetch cannot even be scheduled (the fetch Executor rejects it), the
+ * requests fail with the Exception of the Executor. Every Handle is always
+ * removed from the "in flight" requests, even if completing another one, or
+ * calling one of it's callbacks, failed.
+ *
+ * The callbacks are called in the Executor returned by callbackExecutor()
+ * for the requester. By default, they are queued, and called by the thread
+ * calling tick(), whatever the requester; this matches the usual case of
+ * Entities tied to the thread running the "game loop". When the Entities
+ * are sharded over an EntityExecutor, use EntityExecutor.newLoader()
+ * instead, which calls them in the loop owning the requester.
+ *
+ * requestLoad() can be called from any thread.
+ *
+ * @author monster
+ */
+public class BatchingEntityLoader {
+
+    /** A request waiting for a load. */
+    private static final class Waiter {
+        /** The requester; can be null */
+        final Handle requester;
+
+        /** The callback */
+        final ProcObject<Object> onLoad;
+
+        /** Creates a Waiter */
+        Waiter(final Handle requester, final ProcObject<Object> onLoad) {
+            this.requester = requester;
+            this.onLoad = onLoad;
+        }
+    }
+
+    /** The backend */
+    private final EntityBackend backend;
+
+    /** The Executor doing the bulk fetches */
+    private final Executor fetchExecutor;
+
+    /** Protects pending and inFlight */
+    private final Object lock = new Object();
+
+    /** The requests of the current tick, in request order */
+    private Map<Handle, List<Waiter>> pending = new LinkedHashMap<>();
+
+    /** The requests currently being fetched */
+    private final Map<Handle, List<Waiter>> inFlight = new HashMap<>();
+
+    /** The callbacks to run in the thread calling tick() */
+    private final ConcurrentLinkedQueue<Runnable> callbacks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a BatchingEntityLoader.
+     *
+     * @param backend The EntityBackend. Cannot be null.
+     * @param fetchExecutor The Executor doing the bulk fetches. Cannot be null.
+     */
+    public BatchingEntityLoader(final EntityBackend backend,
+            final Executor fetchExecutor) {
+        this.backend = Objects.requireNonNull(backend, "backend");
+        this.fetchExecutor = Objects.requireNonNull(fetchExecutor,
+                "fetchExecutor");
+    }
+
+    /**
+     * Returns the Executor in which to call the onLoad callbacks of the
+     * requester, or null, to call them in the thread calling tick().
+     */
+    protected Executor callbackExecutor(final Handle requester) {
+        return null;
+    }
+
+    /** Calls (or schedules) a callback. */
+    private void dispatch(final Handle requester,
+            final ProcObject<Object> onLoad, final Object outcome) {
+        final Runnable call = new Runnable() {
+            @Override
+            public void run() {
+                onLoad.apply(outcome);
+            }
+        };
+        final Executor executor = callbackExecutor(requester);
+        if (executor == null) {
+            callbacks.add(call);
+        } else {
+            executor.execute(call);
+        }
+    }
+
+    /**
+     * Requests that the requested Entity be loaded, with the same contract as
+     * EntityContext.requestLoad(). The load only starts at the next tick().
+     * onLoad is called in callbackExecutor(requester); by default, in the
+     * thread calling tick(), even if the Entity is already loaded.
+     */
+    public void requestLoad(final Handle requested, final Handle requester,
+            final ProcObject<Object> onLoad) {
+        Objects.requireNonNull(requested, "requested");
+        Entity loaded = null;
+        synchronized (lock) {
+            List<Waiter> waiters = inFlight.get(requested);
+            if (waiters == null) {
+                // Handles are set *before* being removed from inFlight.
+                // Not getEntity(): it's reloader would re-enter requestLoad()
+                // under our lock.
+                loaded = requested.peekEntity();
+                if (loaded == null) {
+                    waiters = pending.get(requested);
+                    if (waiters == null) {
+                        waiters = new ArrayList<>(1);
+                        pending.put(requested, waiters);
+                    }
+                }
+            }
+            if ((loaded == null) && (onLoad != null)) {
+                waiters.add(new Waiter(requester, onLoad));
+            }
+        }
+        if ((loaded != null) && (onLoad != null)) {
+            dispatch(requester, onLoad, loaded);
+        }
+    }
+
+    /** Returns the number of Handles waiting for the next tick(). */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /** Returns the number of Handles currently being fetched. */
+    public int getInFlightCount() {
+        synchronized (lock) {
+            return inFlight.size();
+        }
+    }
+
+    /**
+     * Starts the bulk fetches for all the requests made since the last tick,
+     * and then calls all the completed callbacks that are run in the thread
+     * calling tick().
+     *
+     * Returns the number of Handles for which a fetch was requested. If the
+     * fetch Executor rejects a fetch, it's requests are failed right away.
+     */
+    public int tick() {
+        final Map<Handle, List<Waiter>> batch;
+        synchronized (lock) {
+            batch = pending;
+            if (!batch.isEmpty()) {
+                pending = new LinkedHashMap<>();
+                inFlight.putAll(batch);
+            }
+        }
+        RuntimeException error = null;
+        if (!batch.isEmpty()) {
+            final Map<EntityContext, Map<String, List<Handle>>> byContext = new LinkedHashMap<>();
+            for (final Handle handle : batch.keySet()) {
+                Map<String, List<Handle>> ids = byContext.get(handle.context);
+                if (ids == null) {
+                    ids = new LinkedHashMap<>();
+                    byContext.put(handle.context, ids);
+                }
+                List<Handle> handles = ids.get(handle.id);
+                if (handles == null) {
+                    handles = new ArrayList<>(1);
+                    ids.put(handle.id, handles);
+                }
+                handles.add(handle);
+            }
+            for (final Map.Entry<EntityContext, Map<String, List<Handle>>> e : byContext
+                    .entrySet()) {
+                final EntityContext context = e.getKey();
+                final Map<String, List<Handle>> ids = e.getValue();
+                try {
+                    fetchExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            fetch(context, ids);
+                        }
+                    });
+                } catch (final RuntimeException ex) {
+                    // Typically a RejectedExecutionException
+                    try {
+                        fail(ids, ex);
+                    } catch (final RuntimeException ex2) {
+                        error = addFailure(error, ex2);
+                    }
+                }
+            }
+        }
+        Runnable call;
+        while ((call = callbacks.poll()) != null) {
+            call.run();
+        }
+        if (error != null) {
+            throw error;
+        }
+        return batch.size();
+    }
+
+    /** Fetches the Entities of one context, and completes the requests. */
+    private void fetch(final EntityContext context,
+            final Map<String, List<Handle>> ids) {
+        Map<String, Entity> result = null;
+        Exception failure = null;
+        try {
+            result = backend.loadAll(context,
+                    Collections.unmodifiableSet(ids.keySet()));
+            if (result == null) {
+                failure = new IllegalStateException(backend
+                        + " returned null");
+            }
+        } catch (final Exception e) {
+            failure = e;
+        }
+        RuntimeException error = null;
+        for (final Map.Entry<String, List<Handle>> e : ids.entrySet()) {
+            final Object outcome;
+            if (failure != null) {
+                outcome = failure;
+            } else {
+                final Entity entity = result.get(e.getKey());
+                outcome = (entity == null) ? new IllegalArgumentException(
+                        "Entity not found: " + context.getNamespace() + ":"
+                                + e.getKey()) : entity;
+            }
+            for (final Handle handle : e.getValue()) {
+                try {
+                    complete(handle, outcome);
+                } catch (final RuntimeException ex) {
+                    error = addFailure(error, ex);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /** Fails all the requests of a batch that could not be fetched. */
+    private void fail(final Map<String, List<Handle>> ids,
+            final Exception failure) {
+        RuntimeException error = null;
+        for (final List<Handle> handles : ids.values()) {
+            for (final Handle handle : handles) {
+                try {
+                    complete(handle, failure);
+                } catch (final RuntimeException ex) {
+                    error = addFailure(error, ex);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Completes the requests of one Handle. It is always removed from
+     * inFlight, and all it's callbacks are dispatched, even if some fail.
+     */
+    private void complete(final Handle handle, final Object outcome) {
+        List<Waiter> waiters = null;
+        try {
+            if (outcome instanceof Entity) {
+                handle.setEntity((Entity) outcome);
+            }
+        } finally {
+            synchronized (lock) {
+                waiters = inFlight.remove(handle);
+            }
+        }
+        if (waiters != null) {
+            RuntimeException error = null;
+            for (final Waiter w : waiters) {
+                try {
+                    dispatch(w.requester, w.onLoad, outcome);
+                } catch (final RuntimeException ex) {
+                    error = addFailure(error, ex);
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /** Returns the first failure, with the other ones as suppressed. */
+    private static RuntimeException addFailure(final RuntimeException first,
+            final RuntimeException next) {
+        if (first == null) {
+            return next;
+        }
+        first.addSuppressed(next);
+        return first;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "BatchingEntityLoader(backend=" + backend + ")";
+    }
+}
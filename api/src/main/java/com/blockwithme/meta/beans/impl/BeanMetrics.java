@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.blockwithme.meta.MetaBase;
+import com.blockwithme.meta.Property;
+import com.blockwithme.meta.Type;
+
+/**
+ * A registry of runtime counters, per Type and per Property.
+ *
+ * Reads, writes, validation failures and the time spent in validators and
+ * listeners are recorded by a MetricsInterceptor. Collection resizes and
+ * rehashes are recorded by CollectionBeanImpl and MapBeanImpl, for the
+ * BeanMetrics set with setCollectionMetrics(), if any; they are counted per
+ * value Type of the collection or map.
+ *
+ * The counters can be pulled with getCounters(), or through JMX, once
+ * register() was called.
+ *
+ * This class is thread-safe.
+ *
+ * @author monster
+ */
+public class BeanMetrics implements BeanMetricsMXBean {
+
+    /** The read count index */
+    private static final int READS = 0;
+
+    /** The write count index */
+    private static final int WRITES = 1;
+
+    /** The validation failure count index */
+    private static final int VALIDATION_FAILURES = 2;
+
+    /** The listener time index */
+    private static final int LISTENER_NANOS = 3;
+
+    /** The resize count index */
+    private static final int RESIZES = 4;
+
+    /** The rehash count index */
+    private static final int REHASHES = 5;
+
+    /** The number of counters */
+    private static final int COUNTERS = 6;
+
+    /** The counters of one Type, or one Property. */
+    public static final class Counters {
+        /** The values */
+        private final AtomicLongArray values = new AtomicLongArray(COUNTERS);
+
+        /** Returns the read count */
+        public long getReads() {
+            return values.get(READS);
+        }
+
+        /** Returns the write count */
+        public long getWrites() {
+            return values.get(WRITES);
+        }
+
+        /** Returns the validation failure count */
+        public long getValidationFailures() {
+            return values.get(VALIDATION_FAILURES);
+        }
+
+        /** Returns the time spent in validators and listeners, in nanoseconds */
+        public long getListenerNanos() {
+            return values.get(LISTENER_NANOS);
+        }
+
+        /** Returns the collection resize count */
+        public long getResizes() {
+            return values.get(RESIZES);
+        }
+
+        /** Returns the collection/map rehash count */
+        public long getRehashes() {
+            return values.get(REHASHES);
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "Counters(reads=" + getReads() + ", writes=" + getWrites()
+                    + ", validationFailures=" + getValidationFailures()
+                    + ", listenerNanos=" + getListenerNanos() + ", resizes="
+                    + getResizes() + ", rehashes=" + getRehashes() + ")";
+        }
+    }
+
+    /** The BeanMetrics receiving the collection events, if any. */
+    static volatile BeanMetrics collections;
+
+    /** The name, used in the JMX ObjectName */
+    public final String name;
+
+    /** The counters, per Type */
+    private final ConcurrentMap<Type<?>, Counters> types = new ConcurrentHashMap<>();
+
+    /** The counters, per Property */
+    private final ConcurrentMap<Property<?, ?>, Counters> properties = new ConcurrentHashMap<>();
+
+    /** The registered ObjectName, if any */
+    private ObjectName objectName;
+
+    /** Creates a BeanMetrics with the given name. */
+    public BeanMetrics(final String name) {
+        this.name = Objects.requireNonNull(name, "name");
+    }
+
+    /** Sets the BeanMetrics receiving the collection events (can be null). */
+    public static void setCollectionMetrics(final BeanMetrics metrics) {
+        collections = metrics;
+    }
+
+    /** Returns the BeanMetrics receiving the collection events, if any. */
+    public static BeanMetrics getCollectionMetrics() {
+        return collections;
+    }
+
+    /** Returns the counters of a key, creating them if needed. */
+    private static <K> Counters counters(final ConcurrentMap<K, Counters> map,
+            final K key) {
+        Counters result = map.get(key);
+        if (result == null) {
+            final Counters c = new Counters();
+            result = map.putIfAbsent(key, c);
+            if (result == null) {
+                result = c;
+            }
+        }
+        return result;
+    }
+
+    /** Adds to a counter, of a Type and a Property. */
+    private void add(final Type<?> type, final Property<?, ?> prop,
+            final int counter, final long delta) {
+        counters(types, type).values.addAndGet(counter, delta);
+        counters(properties, prop).values.addAndGet(counter, delta);
+    }
+
+    /** Records a read of a property. */
+    public void read(final Type<?> type, final Property<?, ?> prop) {
+        add(type, prop, READS, 1);
+    }
+
+    /**
+     * Records a successful write of a property. If the value changed, the
+     * time since startNanos is recorded as validator and listener time.
+     * Otherwise, startNanos is ignored.
+     */
+    public void written(final Type<?> type, final Property<?, ?> prop,
+            final boolean changed, final long startNanos) {
+        add(type, prop, WRITES, 1);
+        if (changed) {
+            add(type, prop, LISTENER_NANOS, System.nanoTime() - startNanos);
+        }
+    }
+
+    /** Records a write of a property, rejected by the validators. */
+    public void validationFailed(final Type<?> type, final Property<?, ?> prop) {
+        add(type, prop, WRITES, 1);
+        add(type, prop, VALIDATION_FAILURES, 1);
+    }
+
+    /** Records the resize of a collection of the given value Type. */
+    public void resized(final Type<?> valueType) {
+        counters(types, valueType).values.incrementAndGet(RESIZES);
+    }
+
+    /** Records the rehash of a collection/map of the given value Type. */
+    public void rehashed(final Type<?> valueType) {
+        counters(types, valueType).values.incrementAndGet(REHASHES);
+    }
+
+    /** Returns the counters of a Type, or null if nothing was recorded. */
+    public Counters getCounters(final Type<?> type) {
+        return types.get(type);
+    }
+
+    /** Returns the counters of a Property, or null if nothing was recorded. */
+    public Counters getCounters(final Property<?, ?> prop) {
+        return properties.get(prop);
+    }
+
+    /** Returns the counters of all Types. */
+    public Map<Type<?>, Counters> getTypeCounters() {
+        return Collections.unmodifiableMap(types);
+    }
+
+    /** Returns the counters of all Properties. */
+    public Map<Property<?, ?>, Counters> getPropertyCounters() {
+        return Collections.unmodifiableMap(properties);
+    }
+
+    /** Returns one counter, per full name, skipping zeros. */
+    private static Map<String, Long> byName(
+            final Map<? extends MetaBase<?>, Counters> map, final int counter) {
+        final Map<String, Long> result = new TreeMap<>();
+        for (final Map.Entry<? extends MetaBase<?>, Counters> e : map
+                .entrySet()) {
+            final long value = e.getValue().values.get(counter);
+            if (value != 0) {
+                result.put(e.getKey().fullName, value);
+            }
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.BeanMetricsMXBean#getTypeReads()
+     */
+    @Override
+    public Map<String, Long> getTypeReads() {
+        return byName(types, READS);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.BeanMetricsMXBean#getTypeWrites()
+     */
+    @Override
+    public Map<String, Long> getTypeWrites() {
+        return byName(types, WRITES);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.BeanMetricsMXBean#getTypeValidationFailures()
+     */
+    @Override
+    public Map<String, Long> getTypeValidationFailures() {
+        return byName(types, VALIDATION_FAILURES);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.BeanMetricsMXBean#getTypeListenerNanos()
+     */
+    @Override
+    public Map<String, Long> getTypeListenerNanos() {
+        return byName(types, LISTENER_NANOS);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.BeanMetricsMXBean#getPropertyReads()
+     */
+    @Override
+    public Map<String, Long> getPropertyReads() {
+        return byName(properties, READS);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.BeanMetricsMXBean#getPropertyWrites()
+     */
+    @Override
+    public Map<String, Long> getPropertyWrites() {
+        return byName(properties, WRITES);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.BeanMetricsMXBean#getPropertyValidationFailures()
+     */
+    @Override
+    public Map<String, Long> getPropertyValidationFailures() {
+        return byName(properties, VALIDATION_FAILURES);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.BeanMetricsMXBean#getPropertyListenerNanos()
+     */
+    @Override
+    public Map<String, Long> getPropertyListenerNanos() {
+        return byName(properties, LISTENER_NANOS);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.BeanMetricsMXBean#getCollectionResizes()
+     */
+    @Override
+    public Map<String, Long> getCollectionResizes() {
+        return byName(types, RESIZES);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.BeanMetricsMXBean#getCollectionRehashes()
+     */
+    @Override
+    public Map<String, Long> getCollectionRehashes() {
+        return byName(types, REHASHES);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.BeanMetricsMXBean#reset()
+     */
+    @Override
+    public void reset() {
+        types.clear();
+        properties.clear();
+    }
+
+    /**
+     * Registers this BeanMetrics in the platform MBeanServer, as
+     * "com.blockwithme.meta:type=BeanMetrics,name=<name>".
+     */
+    public synchronized ObjectName register() throws JMException {
+        if (objectName == null) {
+            final ObjectName on = new ObjectName(
+                    "com.blockwithme.meta:type=BeanMetrics,name="
+                            + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            objectName = on;
+        }
+        return objectName;
+    }
+
+    /** Unregisters this BeanMetrics from the platform MBeanServer. */
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    objectName);
+            objectName = null;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "BeanMetrics(name=" + name + ", types=" + types.size()
+                + ", properties=" + properties.size() + ")";
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.util.Map;
+
+/**
+ * JMX view of a BeanMetrics registry. The maps are keyed by the full name
+ * of the Type, or of the Property.
+ *
+ * @author monster
+ */
+public interface BeanMetricsMXBean {
+    /** Returns the read count, per Type. */
+    Map<String, Long> getTypeReads();
+
+    /** Returns the write count, per Type. */
+    Map<String, Long> getTypeWrites();
+
+    /** Returns the validation failure count, per Type. */
+    Map<String, Long> getTypeValidationFailures();
+
+    /** Returns the time spent in validators and listeners, per Type. */
+    Map<String, Long> getTypeListenerNanos();
+
+    /** Returns the read count, per Property. */
+    Map<String, Long> getPropertyReads();
+
+    /** Returns the write count, per Property. */
+    Map<String, Long> getPropertyWrites();
+
+    /** Returns the validation failure count, per Property. */
+    Map<String, Long> getPropertyValidationFailures();
+
+    /** Returns the time spent in validators and listeners, per Property. */
+    Map<String, Long> getPropertyListenerNanos();
+
+    /** Returns the collection resize count, per value Type. */
+    Map<String, Long> getCollectionResizes();
+
+    /** Returns the collection/map rehash count, per value Type. */
+    Map<String, Long> getCollectionRehashes();
+
+    /** Resets all counters. */
+    void reset();
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.blockwithme.meta.IProperty;
+import com.blockwithme.meta.PropertyMatcher;
+import com.blockwithme.meta.Type;
+import com.blockwithme.meta.beans.BeanPath;
+import com.blockwithme.meta.beans.BeanPathSink;
+import com.blockwithme.meta.beans._Bean;
+import com.blockwithme.util.base.SystemUtils;
+
+/**
+ * A BeanPath, "compiled" for a specific root Type.
+ *
+ * For every step, when the PropertyMatcher is a Property or a Type, the
+ * Properties to read are computed only once per bean Type, and Properties
+ * that cannot apply to the bean Type are pruned up-front, instead of relying
+ * on exceptions. Properties of intermediate steps that can never contain a
+ * Bean are also pruned, since they could never lead to a match.
+ *
+ * Matches are streamed, depth-first, to a BeanPathSink, without intermediate
+ * arrays or lists. Exceptions thrown by the sink always propagate, even when
+ * not failing on incompatible properties.
+ *
+ * A BeanPath does not hold it's plans. They are cached by of(), keyed by
+ * the identity of the path and of the root Type, so that reusing the same
+ * BeanPath (normally a constant) reuses the plan. The cache is bounded; it
+ * is cleared when full, for example when paths are created per call.
+ * Whoever resolves a path repeatedly can still create the plan once, and
+ * keep it, which also avoids the cache lookup.
+ *
+ * Apart from the per-step Type caches, which are race-benign, a plan is
+ * immutable, and can be shared between threads.
+ *
+ * @author monster
+ */
+public final class BeanPathPlan {
+
+    /** No property. */
+    private static final IProperty<?, ?>[] NO_PROPERTY = new IProperty<?, ?>[0];
+
+    /** No TypeEntry. */
+    private static final TypeEntry[] NO_ENTRY = new TypeEntry[0];
+
+    /** The maximum number of cached plans. */
+    private static final int MAX_CACHED_PLANS = 1024;
+
+    /** The key of a cached plan: the identity of the path and root Type. */
+    private static final class Key {
+        /** The path */
+        final BeanPath path;
+        /** The root Type */
+        final Type<?> rootType;
+        /** The hashCode */
+        final int hashCode;
+
+        /** Constructor */
+        Key(final BeanPath path, final Type<?> rootType) {
+            this.path = path;
+            this.rootType = rootType;
+            hashCode = 31 * System.identityHashCode(path)
+                    + System.identityHashCode(rootType);
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof Key) {
+                final Key other = (Key) obj;
+                return (other.path == path) && (other.rootType == rootType);
+            }
+            return false;
+        }
+    }
+
+    /** The cached plans. */
+    private static final ConcurrentHashMap<Key, BeanPathPlan> CACHE = new ConcurrentHashMap<>();
+
+    /** The Properties to read, for a specific bean Type, at a specific step. */
+    private static final class TypeEntry {
+        /** The bean Type */
+        final Type<?> type;
+        /** The Properties to read */
+        final IProperty<?, ?>[] properties;
+        /** The first Property that is incompatible with the type, if any. */
+        final IProperty<?, ?> incompatible;
+
+        /** Constructor */
+        TypeEntry(final Type<?> type, final IProperty<?, ?>[] properties,
+                final IProperty<?, ?> incompatible) {
+            this.type = type;
+            this.properties = properties;
+            this.incompatible = incompatible;
+        }
+    }
+
+    /** One step of the plan. */
+    private static final class Step {
+        /** The PropertyMatcher */
+        final PropertyMatcher matcher;
+        /** The optional key matcher */
+        final Object[] keyMatcher;
+        /** Is this the last step? */
+        final boolean last;
+        /**
+         * The instance-independent matched Properties, if the matcher is a
+         * Property or a Type. Otherwise null.
+         */
+        final IProperty<?, ?>[] candidates;
+        /** Cache of TypeEntry. Copy-on-write; bounded by the number of Types. */
+        volatile TypeEntry[] entries = NO_ENTRY;
+
+        /** Constructor */
+        Step(final BeanPath path) {
+            matcher = path.propertyMatcher;
+            keyMatcher = path.keyMatcher;
+            last = (path.next == null);
+            if ((matcher instanceof IProperty) || (matcher instanceof Type)) {
+                candidates = matcher.listProperty(null);
+            } else {
+                candidates = null;
+            }
+        }
+
+        /** Returns the TypeEntry for the given bean Type. */
+        TypeEntry entry(final Type<?> type) {
+            final TypeEntry[] array = entries;
+            for (final TypeEntry e : array) {
+                if (e.type == type) {
+                    return e;
+                }
+            }
+            final TypeEntry result = newEntry(type);
+            final TypeEntry[] newArray = new TypeEntry[array.length + 1];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = result;
+            entries = newArray;
+            return result;
+        }
+
+        /** Computes a TypeEntry for the given bean Type. */
+        private TypeEntry newEntry(final Type<?> type) {
+            final List<IProperty<?, ?>> list = new ArrayList<>(
+                    candidates.length);
+            IProperty<?, ?> incompatible = null;
+            for (final IProperty<?, ?> p : candidates) {
+                if (!SystemUtils.isAssignableFrom(p.owner().type, type.type)) {
+                    if (incompatible == null) {
+                        incompatible = p;
+                    }
+                } else if (last || mightContainBean(p)) {
+                    list.add(p);
+                }
+            }
+            final IProperty<?, ?>[] props = list.isEmpty() ? NO_PROPERTY
+                    : list.toArray(new IProperty<?, ?>[list.size()]);
+            return new TypeEntry(type, props, incompatible);
+        }
+    }
+
+    /** Resolution state, for one call to resolve(). */
+    private final class Resolver implements BeanPathSink {
+        /** The final sink */
+        private final BeanPathSink sink;
+        /** Fail on incompatible properties? */
+        private final boolean fail;
+        /** The current step */
+        private int depth;
+        /** The exception thrown by the final sink, if any. */
+        private RuntimeException failure;
+
+        /** Constructor */
+        Resolver(final BeanPathSink sink, final boolean fail) {
+            this.sink = sink;
+            this.fail = fail;
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.meta.beans.BeanPathSink#onMatch(java.lang.Object)
+         */
+        @Override
+        public boolean onMatch(final Object value) {
+            if (failure != null) {
+                return false;
+            }
+            if (steps[depth].last) {
+                try {
+                    return sink.onMatch(value);
+                } catch (final RuntimeException e) {
+                    // Stops the resolution, and is re-thrown by resolve()
+                    failure = e;
+                    return false;
+                }
+            }
+            if (value instanceof _Bean) {
+                depth++;
+                try {
+                    return resolveStep((_Bean) value, this);
+                } finally {
+                    depth--;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** The path */
+    public final BeanPath path;
+
+    /** The root Type */
+    public final Type<?> rootType;
+
+    /** The steps */
+    private final Step[] steps;
+
+    /**
+     * Returns true, if the Property could contain a Bean.
+     * Primitive properties, and final classes that are not Beans, cannot.
+     * Arrays are assumed to be the "content" of collections and maps, which
+     * are read element by element, and so are never pruned.
+     */
+    private static boolean mightContainBean(final IProperty<?, ?> p) {
+        if (p.getPrimitive()) {
+            return false;
+        }
+        final Class<?> c = p.getContentTypeClass();
+        return c.isArray() || c.isInterface() || !Modifier.isFinal(c.getModifiers())
+                || SystemUtils.isAssignableFrom(_Bean.class, c);
+    }
+
+    /** Creates a plan for the given path and root Type. */
+    public BeanPathPlan(final BeanPath path, final Type<?> rootType) {
+        this.path = Objects.requireNonNull(path, "path");
+        this.rootType = Objects.requireNonNull(rootType, "rootType");
+        int count = 0;
+        BeanPath p = path;
+        while (p != null) {
+            count++;
+            p = p.next;
+        }
+        steps = new Step[count];
+        p = path;
+        for (int i = 0; i < count; i++) {
+            steps[i] = new Step(p);
+            p = p.next;
+        }
+        // Pre-compute the first step for the root Type
+        if (steps[0].candidates != null) {
+            steps[0].entry(rootType);
+        }
+    }
+
+    /**
+     * Returns the cached plan for the given path and root Type, creating it
+     * if needed.
+     */
+    public static BeanPathPlan of(final BeanPath path, final Type<?> rootType) {
+        final Key key = new Key(Objects.requireNonNull(path, "path"),
+                Objects.requireNonNull(rootType, "rootType"));
+        BeanPathPlan result = CACHE.get(key);
+        if (result == null) {
+            if (CACHE.size() >= MAX_CACHED_PLANS) {
+                // Most likely paths that are not reused; start again
+                CACHE.clear();
+            }
+            result = new BeanPathPlan(path, rootType);
+            final BeanPathPlan old = CACHE.putIfAbsent(key, result);
+            if (old != null) {
+                result = old;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resolves the plan, starting at root, passing all matches to sink.
+     * Returns false, if the sink asked to stop.
+     */
+    public boolean resolve(final _Bean root,
+            final boolean failOnIncompatbileProperty, final BeanPathSink sink) {
+        Objects.requireNonNull(root, "root");
+        Objects.requireNonNull(sink, "sink");
+        final Resolver resolver = new Resolver(sink,
+                failOnIncompatbileProperty);
+        final boolean result = resolveStep(root, resolver);
+        if (resolver.failure != null) {
+            throw resolver.failure;
+        }
+        return result;
+    }
+
+    /** Resolves the current step of the resolver, on the given bean. */
+    private boolean resolveStep(final _Bean bean, final Resolver resolver) {
+        final Step step = steps[resolver.depth];
+        final IProperty<?, ?>[] properties;
+        if (step.candidates != null) {
+            final TypeEntry entry = step.entry(bean.getMetaType());
+            if (resolver.fail && (entry.incompatible != null)) {
+                throw new IllegalArgumentException("Property "
+                        + entry.incompatible + " incompatible with "
+                        + bean.getMetaType());
+            }
+            properties = entry.properties;
+        } else {
+            properties = step.matcher.listProperty(bean);
+        }
+        final Object[] keyMatcher = step.keyMatcher;
+        for (final IProperty<?, ?> p : properties) {
+            if (resolver.fail) {
+                if (!bean.readProperty(p, keyMatcher, resolver)) {
+                    return false;
+                }
+            } else {
+                try {
+                    if (!bean.readProperty(p, keyMatcher, resolver)) {
+                        return false;
+                    }
+                } catch (final RuntimeException e) {
+                    // NOP
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,668 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.blockwithme.meta.Hierarchy;
+import com.blockwithme.meta.Property;
+import com.blockwithme.meta.beans.Entity;
+
+/**
+ * An append-only log of the property changes of Entities, stored as compact
+ * binary records, in a directory of memory-mapped, fixed-size, segment
+ * files.
+ *
+ * Every record contains the Entity ID ("namespace:id", as in
+ * Handle.toString()), the Property, as the index of it's Hierarchy (the
+ * Hierarchy of the log, or one of it's dependencies), and it's
+ * globalPropertyId, the key or index of the change, if any, and the new
+ * value. Keys and values can be null, boxed primitives, Strings or Enums.
+ *
+ * A record is only "committed" once it's length has been written, after
+ * it's content, so a crash while appending loses at most the last record.
+ * When a segment is reopened, the bytes after the last committed record
+ * (the left-overs of a record that was not committed) are cleared, so that
+ * they cannot be mistaken for a record after the next append.
+ * flush() forces the current segment to disk.
+ *
+ * replay() passes all the records, in order, to a ChangeLogListener, to
+ * rebuild the state of the Entities on startup. compact() rewrites the log
+ * as a "snapshot", containing only the last value of every (Entity,
+ * Property, key); since replay is last-write-wins, a crash during compaction
+ * only leaves redundant records.
+ *
+ * This class uses java.io/java.nio, and so is *not* GWT-compatible. It is
+ * thread-safe.
+ *
+ * @author monster
+ */
+public final class ChangeLog implements Closeable {
+
+    /** Identifies the segment files. */
+    private static final long MAGIC = 0x4d455441434c4f47L;
+
+    /** The file format version. */
+    private static final int VERSION = 1;
+
+    /** The segment header size. */
+    private static final int HEADER_SIZE = 24;
+
+    /** The maximum number of Hierarchies; their index is stored in a byte. */
+    private static final int MAX_HIERARCHIES = 256;
+
+    /** The segment file extension. */
+    private static final String EXT = ".log";
+
+    /** The extension of segments being written by compact(). */
+    private static final String COMPACT_EXT = ".compact";
+
+    /** UTF-8 */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Value tag: null */
+    private static final byte NULL = 0;
+    /** Value tag: false */
+    private static final byte FALSE = 1;
+    /** Value tag: true */
+    private static final byte TRUE = 2;
+    /** Value tag: Byte */
+    private static final byte BYTE = 3;
+    /** Value tag: Character */
+    private static final byte CHARACTER = 4;
+    /** Value tag: Short */
+    private static final byte SHORT = 5;
+    /** Value tag: Integer */
+    private static final byte INTEGER = 6;
+    /** Value tag: Long */
+    private static final byte LONG = 7;
+    /** Value tag: Float */
+    private static final byte FLOAT = 8;
+    /** Value tag: Double */
+    private static final byte DOUBLE = 9;
+    /** Value tag: String */
+    private static final byte STRING = 10;
+    /** Value tag: Enum, by name */
+    private static final byte ENUM = 11;
+
+    /** The directory of the segments */
+    public final File dir;
+
+    /** The Hierarchies of the Properties; the first is the Hierarchy of the log. */
+    private final Hierarchy[] hierarchies;
+
+    /** The hash of the Hierarchy names, stored in every segment. */
+    private final long hierarchiesHash;
+
+    /** The segment size, in bytes */
+    private final int segmentSize;
+
+    /** The Hierarchy index of the Properties seen so far. */
+    private final Map<Property<?, ?>, Integer> hierarchyIndex = new IdentityHashMap<>();
+
+    /** The reused record buffer */
+    private ByteBuffer record = ByteBuffer.allocate(256).order(
+            ByteOrder.LITTLE_ENDIAN);
+
+    /** The sequence number of the current segment */
+    private long currentSeq;
+
+    /** The extension of the current segment file */
+    private String currentExt = EXT;
+
+    /** The current segment file */
+    private RandomAccessFile currentFile;
+
+    /** The current mapped segment */
+    private MappedByteBuffer current;
+
+    /** The number of appended records */
+    private long appended;
+
+    /** Is the log closed? */
+    private boolean closed;
+
+    /** Creates a ChangeLog */
+    private ChangeLog(final File dir, final Hierarchy hierarchy,
+            final int segmentSize) throws IOException {
+        this.dir = Objects.requireNonNull(dir, "dir");
+        Objects.requireNonNull(hierarchy, "hierarchy");
+        if (segmentSize < HEADER_SIZE + 64) {
+            throw new IllegalArgumentException("segmentSize: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        final List<Hierarchy> list = new ArrayList<>();
+        addHierarchy(list, hierarchy);
+        if (list.size() > MAX_HIERARCHIES) {
+            throw new IllegalArgumentException("Too many Hierarchies: "
+                    + list.size() + " > " + MAX_HIERARCHIES);
+        }
+        hierarchies = list.toArray(new Hierarchy[list.size()]);
+        long hash = 0xcbf29ce484222325L;
+        for (final Hierarchy h : hierarchies) {
+            for (final char c : (h.name + ';').toCharArray()) {
+                hash ^= c;
+                hash *= 0x100000001b3L;
+            }
+        }
+        hierarchiesHash = hash;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        // Left-overs of an interrupted compaction are incomplete
+        for (final File f : dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File f) {
+                return f.getName().endsWith(COMPACT_EXT);
+            }
+        })) {
+            if (!f.delete()) {
+                throw new IOException("Cannot delete " + f);
+            }
+        }
+        final long[] seqs = segments();
+        if (seqs.length == 0) {
+            openSegment(1, true, EXT);
+        } else {
+            openSegment(seqs[seqs.length - 1], false, EXT);
+        }
+    }
+
+    /**
+     * Opens (or creates) the ChangeLog in the given directory.
+     *
+     * @param dir The directory of the segment files. Created if needed.
+     * @param hierarchy The Hierarchy of the logged Properties (dependencies
+     *                  included). Cannot be null.
+     * @param segmentSize The size of the segment files, in bytes.
+     */
+    public static ChangeLog open(final File dir, final Hierarchy hierarchy,
+            final int segmentSize) throws IOException {
+        return new ChangeLog(dir, hierarchy, segmentSize);
+    }
+
+    /** Adds a Hierarchy, and it's dependencies, depth-first. */
+    private static void addHierarchy(final List<Hierarchy> list,
+            final Hierarchy hierarchy) {
+        if (!list.contains(hierarchy)) {
+            list.add(hierarchy);
+            for (final Hierarchy dep : hierarchy.dependencies) {
+                addHierarchy(list, dep);
+            }
+        }
+    }
+
+    /** Returns the sequence numbers of the segment files, in order. */
+    private long[] segments() {
+        final File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File f) {
+                return f.getName().matches("\\d{16}\\" + EXT);
+            }
+        });
+        final long[] result = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            final String name = files[i].getName();
+            result[i] = Long.parseLong(name.substring(0, name.length()
+                    - EXT.length()));
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /** Returns the segment file of a sequence number. */
+    private File segmentFile(final long seq, final String ext) {
+        return new File(dir, String.format("%016d", seq) + ext);
+    }
+
+    /** Maps a segment file. */
+    private MappedByteBuffer map(final RandomAccessFile file,
+            final boolean create, final File name) throws IOException {
+        final MappedByteBuffer result = file.getChannel().map(
+                MapMode.READ_WRITE, 0, create ? segmentSize : file.length());
+        result.order(ByteOrder.LITTLE_ENDIAN);
+        if (create) {
+            result.putLong(0, MAGIC);
+            result.putInt(8, VERSION);
+            result.putLong(12, hierarchiesHash);
+        } else {
+            if ((result.capacity() < HEADER_SIZE)
+                    || (result.getLong(0) != MAGIC)) {
+                throw new IOException(name + " is not a ChangeLog segment");
+            }
+            if (result.getInt(8) != VERSION) {
+                throw new IOException(name + " has version "
+                        + result.getInt(8) + ", expected " + VERSION);
+            }
+            if (result.getLong(12) != hierarchiesHash) {
+                throw new IOException(name
+                        + " was written for other Hierarchies");
+            }
+        }
+        return result;
+    }
+
+    /** Returns the position after the last committed record of a segment. */
+    private static int end(final ByteBuffer segment) {
+        int pos = HEADER_SIZE;
+        while (pos + 4 <= segment.capacity()) {
+            final int length = segment.getInt(pos);
+            if ((length <= 0) || (pos + 4 + length > segment.capacity())) {
+                break;
+            }
+            pos += 4 + length;
+        }
+        return pos;
+    }
+
+    /**
+     * Clears the bytes of a segment after the given position, so that the
+     * left-overs of uncommitted records cannot follow the next record.
+     * Returns true, if anything was cleared.
+     */
+    private static boolean clearAfter(final MappedByteBuffer segment,
+            final int pos) {
+        boolean cleared = false;
+        for (int i = pos; i < segment.capacity(); i++) {
+            // Only dirties the pages that need it
+            if (segment.get(i) != 0) {
+                segment.put(i, (byte) 0);
+                cleared = true;
+            }
+        }
+        return cleared;
+    }
+
+    /** Opens a segment for appending. */
+    private void openSegment(final long seq, final boolean create,
+            final String ext) throws IOException {
+        final File file = segmentFile(seq, ext);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        boolean ok = false;
+        try {
+            current = map(raf, create, file);
+            final int end = end(current);
+            if (clearAfter(current, end)) {
+                current.force();
+            }
+            current.position(end);
+            ok = true;
+        } finally {
+            if (!ok) {
+                raf.close();
+            }
+        }
+        currentFile = raf;
+        currentSeq = seq;
+        currentExt = ext;
+    }
+
+    /** Checks that the log is open. */
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException(this + " is closed");
+        }
+    }
+
+    /** Ensures the record buffer has room for more bytes. */
+    private void ensure(final int more) {
+        if (record.remaining() < more) {
+            final ByteBuffer bigger = ByteBuffer.allocate(
+                    Math.max(record.capacity() * 2, record.position() + more))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            record.flip();
+            bigger.put(record);
+            record = bigger;
+        }
+    }
+
+    /** Writes a String in the record buffer. */
+    private void putString(final String str) {
+        final byte[] bytes = str.getBytes(UTF8);
+        ensure(4 + bytes.length);
+        record.putInt(bytes.length);
+        record.put(bytes);
+    }
+
+    /** Writes a tagged value in the record buffer. */
+    private void putValue(final Object value) {
+        ensure(9);
+        if (value == null) {
+            record.put(NULL);
+        } else if (value instanceof Boolean) {
+            record.put(((Boolean) value).booleanValue() ? TRUE : FALSE);
+        } else if (value instanceof Byte) {
+            record.put(BYTE).put((Byte) value);
+        } else if (value instanceof Character) {
+            record.put(CHARACTER).putChar((Character) value);
+        } else if (value instanceof Short) {
+            record.put(SHORT).putShort((Short) value);
+        } else if (value instanceof Integer) {
+            record.put(INTEGER).putInt((Integer) value);
+        } else if (value instanceof Long) {
+            record.put(LONG).putLong((Long) value);
+        } else if (value instanceof Float) {
+            record.put(FLOAT).putFloat((Float) value);
+        } else if (value instanceof Double) {
+            record.put(DOUBLE).putDouble((Double) value);
+        } else if (value instanceof String) {
+            record.put(STRING);
+            putString((String) value);
+        } else if (value instanceof Enum) {
+            record.put(ENUM);
+            putString(((Enum<?>) value).name());
+        } else {
+            throw new IllegalArgumentException("Cannot log values of type "
+                    + value.getClass().getName());
+        }
+    }
+
+    /** Returns the Hierarchy index of a Property. */
+    private int hierarchyIndexOf(final Property<?, ?> prop) {
+        Integer result = hierarchyIndex.get(prop);
+        if (result == null) {
+            final int id = prop.globalPropertyId;
+            for (int i = 0; i < hierarchies.length; i++) {
+                final Property<?, ?>[] all = hierarchies[i].allProperties;
+                if ((id < all.length) && (all[id] == prop)) {
+                    result = i;
+                    break;
+                }
+            }
+            if (result == null) {
+                throw new IllegalArgumentException("Property " + prop
+                        + " is not part of Hierarchy " + hierarchies[0].name
+                        + " or it's dependencies");
+            }
+            hierarchyIndex.put(prop, result);
+        }
+        return result;
+    }
+
+    /** Appends the record buffer to the current segment. */
+    private void appendRecord() throws IOException {
+        record.flip();
+        final int length = record.remaining();
+        if (HEADER_SIZE + 4 + length > segmentSize) {
+            throw new IllegalArgumentException("Record too big: " + length
+                    + " bytes");
+        }
+        if (current.remaining() < 4 + length) {
+            current.force();
+            currentFile.close();
+            openSegment(currentSeq + 1, true, currentExt);
+        }
+        final int pos = current.position();
+        current.position(pos + 4);
+        current.put(record);
+        // The length commits the record
+        current.putInt(pos, length);
+        appended++;
+    }
+
+    /**
+     * Appends a change.
+     *
+     * @param entity The Entity ID ("namespace:id"). Cannot be null.
+     * @param prop The changed Property. Cannot be null.
+     * @param key The index/key of the change, or null.
+     * @param value The new value.
+     */
+    public synchronized void append(final String entity,
+            final Property<?, ?> prop, final Object key, final Object value)
+            throws IOException {
+        Objects.requireNonNull(entity, "entity");
+        Objects.requireNonNull(prop, "prop");
+        checkOpen();
+        record.clear();
+        putString(entity);
+        ensure(5);
+        record.put((byte) hierarchyIndexOf(prop));
+        record.putInt(prop.globalPropertyId);
+        putValue(key);
+        putValue(value);
+        appendRecord();
+    }
+
+    /** Appends a change of an Entity. */
+    public void append(final Entity entity, final Property<?, ?> prop,
+            final Object key, final Object value) throws IOException {
+        append(entity.getHandle().toString(), prop, key, value);
+    }
+
+    /** Reads a String. */
+    private static String getString(final ByteBuffer buf) {
+        final byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /** Reads a tagged value. */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static Object getValue(final ByteBuffer buf,
+            final Class<?> enumType) throws IOException {
+        final byte tag = buf.get();
+        switch (tag) {
+        case NULL:
+            return null;
+        case FALSE:
+            return Boolean.FALSE;
+        case TRUE:
+            return Boolean.TRUE;
+        case BYTE:
+            return buf.get();
+        case CHARACTER:
+            return buf.getChar();
+        case SHORT:
+            return buf.getShort();
+        case INTEGER:
+            return buf.getInt();
+        case LONG:
+            return buf.getLong();
+        case FLOAT:
+            return buf.getFloat();
+        case DOUBLE:
+            return buf.getDouble();
+        case STRING:
+            return getString(buf);
+        case ENUM:
+            final String name = getString(buf);
+            return ((enumType != null) && enumType.isEnum()) ? Enum.valueOf(
+                    (Class) enumType, name) : name;
+        default:
+            throw new IOException("Unknown value tag: " + tag);
+        }
+    }
+
+    /** Replays the committed records of one segment. */
+    private long replay(final ByteBuffer segment,
+            final ChangeLogListener listener) throws IOException {
+        long result = 0;
+        final int end = end(segment);
+        int pos = HEADER_SIZE;
+        while (pos < end) {
+            final int length = segment.getInt(pos);
+            final ByteBuffer buf = segment.duplicate().order(
+                    ByteOrder.LITTLE_ENDIAN);
+            buf.limit(pos + 4 + length);
+            buf.position(pos + 4);
+            final String entity = getString(buf);
+            final int h = buf.get() & 0xFF;
+            final int id = buf.getInt();
+            if ((h >= hierarchies.length)
+                    || (id >= hierarchies[h].allProperties.length)) {
+                throw new IOException("Unknown property " + h + "/" + id);
+            }
+            final Property<?, ?> prop = hierarchies[h].allProperties[id];
+            final Object key = getValue(buf, null);
+            final Object value = getValue(buf, prop.getContentTypeClass());
+            listener.onChange(entity, prop, key, value);
+            result++;
+            pos += 4 + length;
+        }
+        return result;
+    }
+
+    /**
+     * Replays all the records, in order. Returns the number of records.
+     */
+    public synchronized long replay(final ChangeLogListener listener)
+            throws IOException {
+        Objects.requireNonNull(listener, "listener");
+        checkOpen();
+        long result = 0;
+        for (final long seq : segments()) {
+            if (seq == currentSeq) {
+                result += replay(current, listener);
+            } else {
+                final File file = segmentFile(seq, EXT);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    result += replay(map(raf, false, file), listener);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Identifies the target of a change, during compaction. */
+    private static final class Target {
+        /** The Entity ID */
+        final String entity;
+        /** The Property */
+        final Property<?, ?> prop;
+        /** The key */
+        final Object key;
+
+        /** Creates a Target */
+        Target(final String entity, final Property<?, ?> prop, final Object key) {
+            this.entity = entity;
+            this.prop = prop;
+            this.key = key;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return (entity.hashCode() * 31 + prop.globalPropertyId) * 31
+                    + Objects.hashCode(key);
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Target)) {
+                return false;
+            }
+            final Target other = (Target) obj;
+            return (prop == other.prop) && entity.equals(other.entity)
+                    && Objects.equals(key, other.key);
+        }
+    }
+
+    /**
+     * Compacts the log: all the segments are replaced by new segments,
+     * containing only the last value of every (Entity, Property, key).
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+        final Map<Target, Object> state = new LinkedHashMap<>();
+        replay(new ChangeLogListener() {
+            @Override
+            public void onChange(final String entity,
+                    final Property<?, ?> prop, final Object key,
+                    final Object value) {
+                final Target target = new Target(entity, prop, key);
+                // Re-insert, so the order stays the order of the last change
+                state.remove(target);
+                state.put(target, value);
+            }
+        });
+        final long[] old = segments();
+        current.force();
+        currentFile.close();
+        // Write the snapshot in new ".compact" segments
+        final long first = currentSeq + 1;
+        openSegment(first, true, COMPACT_EXT);
+        for (final Map.Entry<Target, Object> e : state.entrySet()) {
+            final Target t = e.getKey();
+            append(t.entity, t.prop, t.key, e.getValue());
+        }
+        current.force();
+        currentFile.close();
+        // Only then replace the old segments
+        for (long seq = first; seq <= currentSeq; seq++) {
+            if (!segmentFile(seq, COMPACT_EXT).renameTo(segmentFile(seq, EXT))) {
+                throw new IOException("Cannot rename "
+                        + segmentFile(seq, COMPACT_EXT));
+            }
+        }
+        for (final long seq : old) {
+            if (!segmentFile(seq, EXT).delete()) {
+                throw new IOException("Cannot delete " + segmentFile(seq, EXT));
+            }
+        }
+        openSegment(currentSeq, false, EXT);
+    }
+
+    /** Returns the number of records appended since opening. */
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    /** Forces the current segment to disk. */
+    public synchronized void flush() {
+        checkOpen();
+        current.force();
+    }
+
+    /** Flushes, and closes the log. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            flush();
+            closed = true;
+            currentFile.close();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ChangeLog(dir=" + dir + ")";
+    }
+}
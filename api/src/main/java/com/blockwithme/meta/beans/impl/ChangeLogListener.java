@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import com.blockwithme.meta.Property;
+
+/**
+ * Receives the records of a ChangeLog, when it is replayed.
+ *
+ * @author monster
+ */
+public interface ChangeLogListener {
+    /**
+     * Called for every change, in log order.
+     *
+     * @param entity The Entity (Handle) ID, as "namespace:id"
+     * @param prop The changed Property
+     * @param key The index or key of the change, within the property value,
+     *            or null for a "normal" property
+     * @param value The new value
+     */
+    void onChange(String entity, Property<?, ?> prop, Object key, Object value);
+}
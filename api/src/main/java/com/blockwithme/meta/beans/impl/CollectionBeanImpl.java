@@ -32,7 +32,9 @@ import com.blockwithme.meta.JavaMeta;
 import com.blockwithme.meta.Property;
 import com.blockwithme.meta.Type;
 import com.blockwithme.meta.beans.Bean;
+import com.blockwithme.meta.beans.BeanPathSink;
 import com.blockwithme.meta.beans.CollectionBeanConfig;
+import com.blockwithme.meta.beans.ContentIndex;
 import com.blockwithme.meta.beans.ObjectCollectionInterceptor;
 import com.blockwithme.meta.beans._Bean;
 import com.blockwithme.meta.beans._ListBean;
@@ -292,6 +294,9 @@ public class CollectionBeanImpl<E> extends _BeanImpl implements _ListBean<E>,
     /** The Collection */
     private E[] data;
 
+    /** The optional secondary indexes */
+    private PropertyIndex<?>[] indexes;
+
     /** Returns a new E array of given size. */
     private E[] newArray(final int length) {
         return valueType.newArray(length);
@@ -332,6 +337,10 @@ public class CollectionBeanImpl<E> extends _BeanImpl implements _ListBean<E>,
             final E[] newArray = newArray(newCapacity);
             System.arraycopy(array, 0, newArray, 0, oldCapacity);
             data = newArray;
+            final BeanMetrics metrics = BeanMetrics.collections;
+            if (metrics != null) {
+                metrics.resized(valueType);
+            }
         }
     }
 
@@ -845,6 +854,10 @@ public class CollectionBeanImpl<E> extends _BeanImpl implements _ListBean<E>,
     /** add(E) implementation of HashSet. */
     private void hashSetAdd(final int pos, final E element) {
         if ((size == 0) || !hashSetAdd2(pos, element)) {
+            final BeanMetrics metrics = BeanMetrics.collections;
+            if ((size != 0) && (metrics != null)) {
+                metrics.rehashed(valueType);
+            }
             E[] oldContent = getContent();
             final List<E> content = new ArrayList<E>(oldContent.length + 1);
             content.add(element);
@@ -1050,6 +1063,32 @@ public class CollectionBeanImpl<E> extends _BeanImpl implements _ListBean<E>,
         }
     }
 
+    /** Reads the value(s) of this Property, and passes them to the sink, if they match. */
+    @Override
+    public boolean readProperty(final IProperty<?, ?> prop,
+            final Object[] keyMatcher, final BeanPathSink sink) {
+        if (prop == JavaMeta.COLLECTION_CONTENT_PROP) {
+            if (keyMatcher == null) {
+                final boolean hashSet = config.isHashSet();
+                for (int i = 0; i < size; i++) {
+                    final E value = getInternal(i);
+                    if (((value != null) || !hashSet) && !sink.onMatch(value)) {
+                        return false;
+                    }
+                }
+            } else {
+                for (final Object obj : keyMatcher) {
+                    final int index = (Integer) obj;
+                    if (!sink.onMatch(get(index))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return super.readProperty(prop, keyMatcher, sink);
+    }
+
     /** Allows collections to perform special copy implementations. */
     @Override
     @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -1123,4 +1162,79 @@ public class CollectionBeanImpl<E> extends _BeanImpl implements _ListBean<E>,
         }
         return true;
     }
+
+    /**
+     * Adds a secondary index over the elements, keyed by the given Property
+     * of the elements, or returns the existing one.
+     */
+    @Override
+    public final ContentIndex<E> addIndex(final Property<?, ?> keyProperty) {
+        ContentIndex<E> result = getIndex(keyProperty);
+        if (result == null) {
+            final PropertyIndex<E> index = new PropertyIndex<E>(keyProperty);
+            index.reindex(this);
+            final PropertyIndex<?>[] array = indexes;
+            if (array == null) {
+                indexes = new PropertyIndex<?>[] { index };
+            } else {
+                final PropertyIndex<?>[] newArray = Arrays.copyOf(array,
+                        array.length + 1);
+                newArray[array.length] = index;
+                indexes = newArray;
+            }
+            result = index;
+        }
+        return result;
+    }
+
+    /** Returns the secondary index keyed by the given Property, if any. */
+    @Override
+    @SuppressWarnings("unchecked")
+    public final ContentIndex<E> getIndex(final Property<?, ?> keyProperty) {
+        final PropertyIndex<?>[] array = indexes;
+        if (array != null) {
+            for (final PropertyIndex<?> index : array) {
+                if (index.keyProperty == keyProperty) {
+                    return (ContentIndex<E>) index;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Rebuilds all the secondary indexes, for example after a key Property change. */
+    @Override
+    @SuppressWarnings("unchecked")
+    public final void reindex() {
+        final PropertyIndex<?>[] array = indexes;
+        if (array != null) {
+            for (final PropertyIndex<?> index : array) {
+                ((PropertyIndex<E>) index).reindex(this);
+            }
+        }
+    }
+
+    /** Updates the secondary indexes, if any. Called by the interceptor. */
+    @Override
+    @SuppressWarnings("unchecked")
+    public final void updateIndexes(final E oldValue, final E newValue) {
+        final PropertyIndex<?>[] array = indexes;
+        if (array != null) {
+            for (final PropertyIndex<?> index : array) {
+                ((PropertyIndex<E>) index).remove(oldValue);
+                ((PropertyIndex<E>) index).add(newValue);
+            }
+        }
+    }
+
+    /** Clears the secondary indexes, if any. Called by the interceptor. */
+    @Override
+    public final void clearIndexes() {
+        final PropertyIndex<?>[] array = indexes;
+        if (array != null) {
+            for (final PropertyIndex<?> index : array) {
+                index.clear();
+            }
+        }
+    }
 }
@@ -0,0 +1,590 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import com.blockwithme.meta.IProperty;
+import com.blockwithme.meta.JavaMeta;
+import com.blockwithme.meta.Property;
+import com.blockwithme.meta.Type;
+import com.blockwithme.meta.beans.BeanPathSink;
+import com.blockwithme.meta.beans.ContentIndex;
+import com.blockwithme.meta.beans.Meta;
+import com.blockwithme.meta.beans._MapBean;
+
+/**
+ * A Map Bean supporting many concurrent readers and writers.
+ *
+ * The entries are striped by key over MapBeanImpl stripes (see
+ * StripedBeanImpl). Single-key operations only lock the stripe of the key;
+ * the ConcurrentMap operations are atomic. Bulk operations, and the
+ * keySet(), values() and entrySet() "views", are weakly consistent: the
+ * views are copies, taken one stripe at a time.
+ *
+ * Secondary indexes are not supported.
+ *
+ * @author monster
+ */
+public class ConcurrentMapBean<K, V> extends StripedBeanImpl<MapBeanImpl<K, V>>
+        implements _MapBean<K, V>, ConcurrentMap<K, V> {
+
+    /** Comparable Entry Comparator. */
+    @SuppressWarnings("rawtypes")
+    private static final Comparator<Map.Entry> COMPARABLE_ENTRY_CMP = new Comparator<Map.Entry>() {
+        @SuppressWarnings("unchecked")
+        @Override
+        public int compare(final Map.Entry o1, final Map.Entry o2) {
+            return ((Comparable) o1.getKey()).compareTo(o2.getKey());
+        }
+    };
+
+    /** Non-comparable Entry Comparator. */
+    @SuppressWarnings("rawtypes")
+    private static final Comparator<Map.Entry> NON_COMPARABLE_ENTRY_CMP = new Comparator<Map.Entry>() {
+        @Override
+        public int compare(final Map.Entry o1, final Map.Entry o2) {
+            return NON_COMPARABLE_CMP.compare(o1.getKey(), o2.getKey());
+        }
+    };
+
+    /** The Type of the keys. */
+    private final Type<K> keyType;
+
+    /** Is the Type of the keys fixed? */
+    private final boolean keyTypeIsFixed;
+
+    /** The Type of the values. */
+    private final Type<V> valueType;
+
+    /** Is the Type of the values fixed? */
+    private final boolean valueTypeIsFixed;
+
+    /** Can values be null? */
+    private final boolean nullValueAllowed;
+
+    /** Creates the (empty) stripes. */
+    @SuppressWarnings("unchecked")
+    private static <K, V> MapBeanImpl<K, V>[] newStripes(
+            final Type<K> theKeyType, final boolean theKeyTypeIsFixed,
+            final Type<V> theValueType, final boolean theValueTypeIsFixed,
+            final boolean theNullValueAllowed, final int stripeCount,
+            final int theMax) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("stripeCount: " + stripeCount);
+        }
+        final MapBeanImpl<K, V>[] result = new MapBeanImpl[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            // The maximum size is checked globally
+            result[i] = new MapBeanImpl<K, V>(Meta.MAP_BEAN, theKeyType,
+                    theKeyTypeIsFixed, theValueType, theValueTypeIsFixed,
+                    theNullValueAllowed, theMax, theMax);
+        }
+        return result;
+    }
+
+    /** Creates a ConcurrentMapBean, with the given stripes. */
+    private ConcurrentMapBean(final Type<?> metaType,
+            final MapBeanImpl<K, V>[] stripes, final Type<K> theKeyType,
+            final boolean theKeyTypeIsFixed, final Type<V> theValueType,
+            final boolean theValueTypeIsFixed,
+            final boolean theNullValueAllowed, final int theSoftMax,
+            final int theMax) {
+        super(metaType, stripes, theSoftMax, theMax);
+        interceptor = DefaultObjectObjectMapInterceptor.INSTANCE;
+        keyType = Objects.requireNonNull(theKeyType, "theKeyType");
+        valueType = Objects.requireNonNull(theValueType, "theValueType");
+        keyTypeIsFixed = theKeyTypeIsFixed;
+        valueTypeIsFixed = theValueTypeIsFixed;
+        nullValueAllowed = theNullValueAllowed;
+    }
+
+    /**
+     * Creates a ConcurrentMapBean. The parameters are the same as for
+     * MapBeanImpl, plus the number of stripes.
+     */
+    public ConcurrentMapBean(final Type<?> metaType, final Type<K> theKeyType,
+            final boolean theKeyTypeIsFixed, final Type<V> theValueType,
+            final boolean theValueTypeIsFixed,
+            final boolean theNullValueAllowed, final int theSoftMax,
+            final int theMax, final int stripeCount) {
+        this(metaType, ConcurrentMapBean.<K, V> newStripes(theKeyType,
+                theKeyTypeIsFixed, theValueType, theValueTypeIsFixed,
+                theNullValueAllowed, stripeCount, theMax), theKeyType,
+                theKeyTypeIsFixed, theValueType, theValueTypeIsFixed,
+                theNullValueAllowed, theSoftMax, theMax);
+    }
+
+    /**
+     * Creates a ConcurrentMapBean of the MAP_BEAN type, without maximum
+     * size, with one stripe per core.
+     */
+    public ConcurrentMapBean(final Type<K> theKeyType,
+            final Type<V> theValueType) {
+        this(Meta.MAP_BEAN, theKeyType, false, theValueType, false, false,
+                Integer.MAX_VALUE, Integer.MAX_VALUE, Runtime.getRuntime()
+                        .availableProcessors());
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.StripedBeanImpl#stripeSize(com.blockwithme.meta.beans.impl._BeanImpl)
+     */
+    @Override
+    protected final int stripeSize(final MapBeanImpl<K, V> stripe) {
+        return stripe.size();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.StripedBeanImpl#clearStripe(com.blockwithme.meta.beans.impl._BeanImpl)
+     */
+    @Override
+    protected final void clearStripe(final MapBeanImpl<K, V> stripe) {
+        stripe.clear();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.MapBean#getKeyType()
+     */
+    @Override
+    public Type<K> getKeyType() {
+        return keyType;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.MapBean#getValueType()
+     */
+    @Override
+    public Type<V> getValueType() {
+        return valueType;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Map#containsKey(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(final Object key) {
+        if (key == null) {
+            return false;
+        }
+        final int s = stripeOf(key);
+        readLock(s);
+        try {
+            return stripes[s].containsKey(key);
+        } finally {
+            readUnlock(s);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Map#containsValue(java.lang.Object)
+     */
+    @Override
+    public boolean containsValue(final Object value) {
+        for (int s = 0; s < stripes.length; s++) {
+            readLock(s);
+            try {
+                if (stripes[s].containsValue(value)) {
+                    return true;
+                }
+            } finally {
+                readUnlock(s);
+            }
+        }
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Map#get(java.lang.Object)
+     */
+    @Override
+    public V get(final Object key) {
+        if (key == null) {
+            return null;
+        }
+        final int s = stripeOf(key);
+        readLock(s);
+        try {
+            return stripes[s].get(key);
+        } finally {
+            readUnlock(s);
+        }
+    }
+
+    /** Puts, while holding the write lock of the stripe. */
+    private V putLocked(final MapBeanImpl<K, V> stripe, final K key,
+            final V value) {
+        if (stripe.containsKey(key)) {
+            return stripe.put(key, value);
+        }
+        reserve();
+        boolean added = false;
+        try {
+            final V result = stripe.put(key, value);
+            added = true;
+            return result;
+        } finally {
+            if (!added) {
+                sizeChanged(-1);
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Map#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public V put(final K key, final V value) {
+        final int s = stripeOf(Objects.requireNonNull(key, "key"));
+        writeLock(s);
+        try {
+            return putLocked(stripes[s], key, value);
+        } finally {
+            writeUnlock(s);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.ConcurrentMap#putIfAbsent(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public V putIfAbsent(final K key, final V value) {
+        final int s = stripeOf(Objects.requireNonNull(key, "key"));
+        writeLock(s);
+        try {
+            final MapBeanImpl<K, V> stripe = stripes[s];
+            if (stripe.containsKey(key)) {
+                return stripe.get(key);
+            }
+            return putLocked(stripe, key, value);
+        } finally {
+            writeUnlock(s);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Map#remove(java.lang.Object)
+     */
+    @Override
+    public V remove(final Object key) {
+        if (key == null) {
+            return null;
+        }
+        final int s = stripeOf(key);
+        writeLock(s);
+        try {
+            final MapBeanImpl<K, V> stripe = stripes[s];
+            if (!stripe.containsKey(key)) {
+                return null;
+            }
+            final V result = stripe.remove(key);
+            sizeChanged(-1);
+            return result;
+        } finally {
+            writeUnlock(s);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.ConcurrentMap#remove(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public boolean remove(final Object key, final Object value) {
+        if (key == null) {
+            return false;
+        }
+        final int s = stripeOf(key);
+        writeLock(s);
+        try {
+            final MapBeanImpl<K, V> stripe = stripes[s];
+            if (stripe.containsKey(key)
+                    && Objects.equals(stripe.get(key), value)) {
+                stripe.remove(key);
+                sizeChanged(-1);
+                return true;
+            }
+            return false;
+        } finally {
+            writeUnlock(s);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.ConcurrentMap#replace(java.lang.Object, java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public boolean replace(final K key, final V oldValue, final V newValue) {
+        final int s = stripeOf(Objects.requireNonNull(key, "key"));
+        writeLock(s);
+        try {
+            final MapBeanImpl<K, V> stripe = stripes[s];
+            if (stripe.containsKey(key)
+                    && Objects.equals(stripe.get(key), oldValue)) {
+                stripe.put(key, newValue);
+                return true;
+            }
+            return false;
+        } finally {
+            writeUnlock(s);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.ConcurrentMap#replace(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public V replace(final K key, final V value) {
+        final int s = stripeOf(Objects.requireNonNull(key, "key"));
+        writeLock(s);
+        try {
+            final MapBeanImpl<K, V> stripe = stripes[s];
+            if (stripe.containsKey(key)) {
+                return stripe.put(key, value);
+            }
+            return null;
+        } finally {
+            writeUnlock(s);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Map#putAll(java.util.Map)
+     */
+    @Override
+    public void putAll(final Map<? extends K, ? extends V> m) {
+        for (final Map.Entry<? extends K, ? extends V> e : m.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    /** Returns a copy of the entries, taken one stripe at a time. */
+    private Map<K, V> copyEntries() {
+        final Map<K, V> result = new LinkedHashMap<>();
+        for (int s = 0; s < stripes.length; s++) {
+            readLock(s);
+            try {
+                result.putAll(stripes[s]);
+            } finally {
+                readUnlock(s);
+            }
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Map#keySet()
+     */
+    @Override
+    public Set<K> keySet() {
+        return Collections.unmodifiableSet(copyEntries().keySet());
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Map#values()
+     */
+    @Override
+    public Collection<V> values() {
+        return Collections.unmodifiableCollection(copyEntries().values());
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Map#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return Collections.unmodifiableMap(copyEntries()).entrySet();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.ContentOwner#getContent()
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Map.Entry<K, V>[] getContent() {
+        final List<Map.Entry<K, V>> list = new ArrayList<>(size());
+        for (int s = 0; s < stripes.length; s++) {
+            readLock(s);
+            try {
+                list.addAll(Arrays.asList(stripes[s].getContent()));
+            } finally {
+                readUnlock(s);
+            }
+        }
+        final Map.Entry<K, V>[] result = list.toArray(new Map.Entry[list
+                .size()]);
+        if (Comparable.class.isAssignableFrom(getKeyType().type)) {
+            Arrays.sort(result, COMPARABLE_ENTRY_CMP);
+        } else {
+            Arrays.sort(result, NON_COMPARABLE_ENTRY_CMP);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.Bean#getDelegate()
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public final _MapBean<K, V> getDelegate() {
+        return (_MapBean<K, V>) super.getDelegate();
+    }
+
+    /** Creates a ConcurrentMapBean with the given stripes, and our settings. */
+    private ConcurrentMapBean<K, V> withStripes(
+            final MapBeanImpl<K, V>[] newStripes) {
+        return new ConcurrentMapBean<K, V>(metaType, newStripes, keyType,
+                keyTypeIsFixed, valueType, valueTypeIsFixed, nullValueAllowed,
+                softMax, max);
+    }
+
+    /** Make a new instance of the same type as self. */
+    @Override
+    protected _BeanImpl newInstance() {
+        return new ConcurrentMapBean<K, V>(metaType, keyType, keyTypeIsFixed,
+                valueType, valueTypeIsFixed, nullValueAllowed, softMax, max,
+                stripes.length);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.Bean#copy()
+     */
+    @Override
+    public final ConcurrentMapBean<K, V> copy() {
+        @SuppressWarnings("unchecked")
+        final MapBeanImpl<K, V>[] copies = new MapBeanImpl[stripes.length];
+        for (int s = 0; s < stripes.length; s++) {
+            readLock(s);
+            try {
+                copies[s] = stripes[s].copy();
+            } finally {
+                readUnlock(s);
+            }
+        }
+        return withStripes(copies);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.Bean#snapshot()
+     */
+    @Override
+    public final ConcurrentMapBean<K, V> snapshot() {
+        if (isImmutable()) {
+            return this;
+        }
+        @SuppressWarnings("unchecked")
+        final MapBeanImpl<K, V>[] copies = new MapBeanImpl[stripes.length];
+        for (int s = 0; s < stripes.length; s++) {
+            readLock(s);
+            try {
+                copies[s] = stripes[s].snapshot();
+            } finally {
+                readUnlock(s);
+            }
+        }
+        final ConcurrentMapBean<K, V> result = withStripes(copies);
+        result.makeImmutable();
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.Bean#wrapper()
+     */
+    @Override
+    public final ConcurrentMapBean<K, V> wrapper() {
+        throw new UnsupportedOperationException(
+                "Wrapping doesn't work for collections because insert/remove changes the structure");
+    }
+
+    /** Reads the value(s) of this Property, and add them to values, if they match. */
+    @Override
+    public void readProperty(final IProperty<?, ?> prop,
+            final Object[] keyMatcher, final List<Object> values) {
+        if (prop == JavaMeta.MAP_CONTENT_PROP) {
+            if (keyMatcher == null) {
+                values.addAll(values());
+            } else {
+                for (final Object key : keyMatcher) {
+                    values.add(get(key));
+                }
+            }
+        } else {
+            super.readProperty(prop, keyMatcher, values);
+        }
+    }
+
+    /** Reads the value(s) of this Property, and passes them to the sink, if they match. */
+    @Override
+    public boolean readProperty(final IProperty<?, ?> prop,
+            final Object[] keyMatcher, final BeanPathSink sink) {
+        if (prop == JavaMeta.MAP_CONTENT_PROP) {
+            if (keyMatcher == null) {
+                for (final V value : values()) {
+                    if (!sink.onMatch(value)) {
+                        return false;
+                    }
+                }
+            } else {
+                for (final Object key : keyMatcher) {
+                    if (!sink.onMatch(get(key))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return super.readProperty(prop, keyMatcher, sink);
+    }
+
+    /** Secondary indexes are not supported. */
+    @Override
+    public final ContentIndex<V> addIndex(final Property<?, ?> keyProperty) {
+        throw new UnsupportedOperationException(getClass().getSimpleName()
+                + " does not support secondary indexes");
+    }
+
+    /** Secondary indexes are not supported. */
+    @Override
+    public final ContentIndex<V> getIndex(final Property<?, ?> keyProperty) {
+        return null;
+    }
+
+    /** Secondary indexes are not supported. */
+    @Override
+    public final void reindex() {
+        // NOP
+    }
+
+    /** Secondary indexes are not supported. */
+    @Override
+    public final void updateIndexes(final V oldValue, final V newValue) {
+        // NOP
+    }
+
+    /** Secondary indexes are not supported. */
+    @Override
+    public final void clearIndexes() {
+        // NOP
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+import com.blockwithme.meta.IProperty;
+import com.blockwithme.meta.JavaMeta;
+import com.blockwithme.meta.Property;
+import com.blockwithme.meta.Type;
+import com.blockwithme.meta.beans.BeanPathSink;
+import com.blockwithme.meta.beans.CollectionBeanConfig;
+import com.blockwithme.meta.beans.ContentIndex;
+import com.blockwithme.meta.beans.Meta;
+import com.blockwithme.meta.beans._SetBean;
+
+/**
+ * A hash-Set Bean supporting many concurrent readers and writers.
+ *
+ * The elements are striped over hash-set CollectionBeanImpl stripes (see
+ * StripedBeanImpl). Single-element operations only lock the stripe of the
+ * element. Bulk operations, and iterators, are weakly consistent: iterators
+ * work on a copy, taken one stripe at a time.
+ *
+ * Secondary indexes are not supported.
+ *
+ * @author monster
+ */
+public class ConcurrentSetBean<E> extends
+        StripedBeanImpl<CollectionBeanImpl<E>> implements _SetBean<E> {
+
+    /** The Type of the elements. */
+    private final Type<E> valueType;
+
+    /** The configuration (an hash-set) */
+    private final CollectionBeanConfig config;
+
+    /** Creates the (empty) stripes. */
+    @SuppressWarnings("unchecked")
+    private static <E> CollectionBeanImpl<E>[] newStripes(
+            final Type<E> valueType, final CollectionBeanConfig config,
+            final int stripeCount, final int max) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("stripeCount: " + stripeCount);
+        }
+        if (!Objects.requireNonNull(config, "config").isHashSet()) {
+            throw new IllegalArgumentException("config must be an hash-set: "
+                    + config);
+        }
+        final CollectionBeanImpl<E>[] result = new CollectionBeanImpl[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            // The maximum size is checked globally
+            result[i] = new CollectionBeanImpl<E>(Meta.COLLECTION_BEAN,
+                    valueType, config, max, max);
+        }
+        return result;
+    }
+
+    /** Creates a ConcurrentSetBean, with the given stripes. */
+    private ConcurrentSetBean(final Type<?> metaType,
+            final CollectionBeanImpl<E>[] stripes, final Type<E> valueType,
+            final CollectionBeanConfig config, final int softMax,
+            final int max) {
+        super(metaType, stripes, softMax, max);
+        interceptor = DefaultCollectionInterceptor.INSTANCE;
+        this.valueType = Objects.requireNonNull(valueType, "valueType");
+        this.config = config;
+    }
+
+    /**
+     * Creates a ConcurrentSetBean. The parameters are the same as for
+     * CollectionBeanImpl, plus the number of stripes. config must be
+     * HASH_SET or EXACT_HASH_SET.
+     */
+    public ConcurrentSetBean(final Type<?> metaType, final Type<E> valueType,
+            final CollectionBeanConfig config, final int softMax,
+            final int max, final int stripeCount) {
+        this(metaType, ConcurrentSetBean.<E> newStripes(valueType, config,
+                stripeCount, max), valueType, config, softMax, max);
+    }
+
+    /**
+     * Creates a ConcurrentSetBean of the COLLECTION_BEAN type, without
+     * maximum size, with one stripe per core.
+     */
+    public ConcurrentSetBean(final Type<E> valueType) {
+        this(Meta.COLLECTION_BEAN, valueType, CollectionBeanConfig.HASH_SET,
+                Integer.MAX_VALUE, Integer.MAX_VALUE, Runtime.getRuntime()
+                        .availableProcessors());
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.StripedBeanImpl#stripeSize(com.blockwithme.meta.beans.impl._BeanImpl)
+     */
+    @Override
+    protected final int stripeSize(final CollectionBeanImpl<E> stripe) {
+        // Hash-set stripes count their free slots in size()
+        int result = 0;
+        for (final E e : stripe) {
+            if (e != null) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.StripedBeanImpl#clearStripe(com.blockwithme.meta.beans.impl._BeanImpl)
+     */
+    @Override
+    protected final void clearStripe(final CollectionBeanImpl<E> stripe) {
+        stripe.clear();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.CollectionBean#getValueType()
+     */
+    @Override
+    public final Type<E> getValueType() {
+        return valueType;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.CollectionBean#getConfig()
+     */
+    @Override
+    public final CollectionBeanConfig getConfig() {
+        return config;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#contains(java.lang.Object)
+     */
+    @Override
+    public boolean contains(final Object o) {
+        if (o == null) {
+            return false;
+        }
+        final int s = stripeOf(o);
+        readLock(s);
+        try {
+            return stripes[s].contains(o);
+        } finally {
+            readUnlock(s);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#add(java.lang.Object)
+     */
+    @Override
+    public boolean add(final E e) {
+        final int s = stripeOf(Objects.requireNonNull(e, "e"));
+        writeLock(s);
+        try {
+            final CollectionBeanImpl<E> stripe = stripes[s];
+            if (stripe.contains(e)) {
+                return false;
+            }
+            reserve();
+            boolean added = false;
+            try {
+                added = stripe.add(e);
+                return added;
+            } finally {
+                if (!added) {
+                    sizeChanged(-1);
+                }
+            }
+        } finally {
+            writeUnlock(s);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#remove(java.lang.Object)
+     */
+    @Override
+    public boolean remove(final Object o) {
+        if (o == null) {
+            return false;
+        }
+        final int s = stripeOf(o);
+        writeLock(s);
+        try {
+            if (stripes[s].remove(o)) {
+                sizeChanged(-1);
+                return true;
+            }
+            return false;
+        } finally {
+            writeUnlock(s);
+        }
+    }
+
+    /** Returns a copy of the elements, taken one stripe at a time. */
+    private List<E> copyElements() {
+        final List<E> result = new ArrayList<>(size());
+        for (int s = 0; s < stripes.length; s++) {
+            readLock(s);
+            try {
+                for (final E e : stripes[s]) {
+                    if (e != null) {
+                        result.add(e);
+                    }
+                }
+            } finally {
+                readUnlock(s);
+            }
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#iterator()
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final Iterator<E> copy = copyElements().iterator();
+        return new Iterator<E>() {
+            private E last;
+
+            @Override
+            public boolean hasNext() {
+                return copy.hasNext();
+            }
+
+            @Override
+            public E next() {
+                last = copy.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                ConcurrentSetBean.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#toArray()
+     */
+    @Override
+    public Object[] toArray() {
+        return copyElements().toArray();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#toArray(java.lang.Object[])
+     */
+    @Override
+    public <T> T[] toArray(final T[] a) {
+        return copyElements().toArray(a);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#containsAll(java.util.Collection)
+     */
+    @Override
+    public boolean containsAll(final Collection<?> c) {
+        for (final Object o : c) {
+            if (!contains(o)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#addAll(java.util.Collection)
+     */
+    @Override
+    public boolean addAll(final Collection<? extends E> c) {
+        boolean result = false;
+        for (final E e : c) {
+            result |= add(e);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#removeAll(java.util.Collection)
+     */
+    @Override
+    public boolean removeAll(final Collection<?> c) {
+        boolean result = false;
+        for (final Object o : c) {
+            result |= remove(o);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#retainAll(java.util.Collection)
+     */
+    @Override
+    public boolean retainAll(final Collection<?> c) {
+        boolean result = false;
+        for (final E e : copyElements()) {
+            if (!c.contains(e)) {
+                result |= remove(e);
+            }
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans._SetBean#clearIfEffectivelyEmpty()
+     */
+    @Override
+    public boolean clearIfEffectivelyEmpty() {
+        // Hash-set stripes never contain null
+        return isEmpty();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.ContentOwner#getContent()
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public final E[] getContent() {
+        final List<E> list = copyElements();
+        final E[] result = list.toArray(valueType.newArray(list.size()));
+        if (Comparable.class.isAssignableFrom(valueType.type)) {
+            Arrays.sort(result, (Comparator<E>) NULL_FRIENDLY_CMP);
+        } else {
+            Arrays.sort(result, NON_COMPARABLE_CMP);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.Bean#getDelegate()
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public final _SetBean<E> getDelegate() {
+        return (_SetBean<E>) super.getDelegate();
+    }
+
+    /** Creates a ConcurrentSetBean with the given stripes, and our settings. */
+    private ConcurrentSetBean<E> withStripes(
+            final CollectionBeanImpl<E>[] newStripes) {
+        return new ConcurrentSetBean<E>(metaType, newStripes, valueType,
+                config, softMax, max);
+    }
+
+    /** Make a new instance of the same type as self. */
+    @Override
+    protected _BeanImpl newInstance() {
+        return new ConcurrentSetBean<E>(metaType, valueType, config, softMax,
+                max, stripes.length);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.Bean#copy()
+     */
+    @Override
+    public final ConcurrentSetBean<E> copy() {
+        @SuppressWarnings("unchecked")
+        final CollectionBeanImpl<E>[] copies = new CollectionBeanImpl[stripes.length];
+        for (int s = 0; s < stripes.length; s++) {
+            readLock(s);
+            try {
+                copies[s] = stripes[s].copy();
+            } finally {
+                readUnlock(s);
+            }
+        }
+        return withStripes(copies);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.Bean#snapshot()
+     */
+    @Override
+    public final ConcurrentSetBean<E> snapshot() {
+        if (isImmutable()) {
+            return this;
+        }
+        @SuppressWarnings("unchecked")
+        final CollectionBeanImpl<E>[] copies = new CollectionBeanImpl[stripes.length];
+        for (int s = 0; s < stripes.length; s++) {
+            readLock(s);
+            try {
+                copies[s] = stripes[s].snapshot();
+            } finally {
+                readUnlock(s);
+            }
+        }
+        final ConcurrentSetBean<E> result = withStripes(copies);
+        result.makeImmutable();
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.Bean#wrapper()
+     */
+    @Override
+    public final ConcurrentSetBean<E> wrapper() {
+        throw new UnsupportedOperationException(
+                "Wrapping doesn't work for collections because insert/remove changes the structure");
+    }
+
+    /** Reads the value(s) of this Property, and add them to values, if they match. */
+    @Override
+    public void readProperty(final IProperty<?, ?> prop,
+            final Object[] keyMatcher, final List<Object> values) {
+        if (prop == JavaMeta.COLLECTION_CONTENT_PROP) {
+            // Sets have no index
+            if (keyMatcher == null) {
+                values.addAll(copyElements());
+            }
+        } else {
+            super.readProperty(prop, keyMatcher, values);
+        }
+    }
+
+    /** Reads the value(s) of this Property, and passes them to the sink, if they match. */
+    @Override
+    public boolean readProperty(final IProperty<?, ?> prop,
+            final Object[] keyMatcher, final BeanPathSink sink) {
+        if (prop == JavaMeta.COLLECTION_CONTENT_PROP) {
+            // Sets have no index
+            if (keyMatcher == null) {
+                for (final E e : copyElements()) {
+                    if (!sink.onMatch(e)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return super.readProperty(prop, keyMatcher, sink);
+    }
+
+    /** Secondary indexes are not supported. */
+    @Override
+    public final ContentIndex<E> addIndex(final Property<?, ?> keyProperty) {
+        throw new UnsupportedOperationException(getClass().getSimpleName()
+                + " does not support secondary indexes");
+    }
+
+    /** Secondary indexes are not supported. */
+    @Override
+    public final ContentIndex<E> getIndex(final Property<?, ?> keyProperty) {
+        return null;
+    }
+
+    /** Secondary indexes are not supported. */
+    @Override
+    public final void reindex() {
+        // NOP
+    }
+
+    /** Secondary indexes are not supported. */
+    @Override
+    public final void updateIndexes(final E oldValue, final E newValue) {
+        // NOP
+    }
+
+    /** Secondary indexes are not supported. */
+    @Override
+    public final void clearIndexes() {
+        // NOP
+    }
+}
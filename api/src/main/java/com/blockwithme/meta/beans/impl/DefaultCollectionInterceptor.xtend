@@ -39,6 +39,7 @@ implements ObjectCollectionInterceptor<E> {
 			// TODO Somehow support the Property Validators and Listeners
         	// We generate an Integer Object here; no easy way around it.
 			objectPropertyChanged(instance, index, index, oldValue, newValue)
+			updateIndexes(instance, oldValue, newValue)
         }
         newValue
 	}
@@ -47,6 +48,7 @@ implements ObjectCollectionInterceptor<E> {
 		// TODO Somehow support the Property Validators and Listeners
     	// We generate an Integer Object here; no easy way around it.
 		objectPropertyChanged(instance, index, index, null, newValue)
+		updateIndexes(instance, null, newValue)
 		if (followingElementsChanged) {
 			instance.setSelectedFrom(index)
 		}
@@ -57,6 +59,7 @@ implements ObjectCollectionInterceptor<E> {
 		// TODO Somehow support the Property Validators and Listeners
     	// We generate an Integer Object here; no easy way around it.
 		objectPropertyChanged(instance, index, index, oldValue, null)
+		updateIndexes(instance, oldValue, null)
 		if (followingElementsChanged) {
 			instance.setSelectedFrom(index)
 		}
@@ -64,5 +67,11 @@ implements ObjectCollectionInterceptor<E> {
 
 	override clear(_CollectionBean<E> instance) {
 		instance.setSelectedFrom(0)
+		instance.clearIndexes()
+	}
+
+	/** Updates the secondary indexes of the collection, if any. */
+	protected final def void updateIndexes(_CollectionBean<E> instance, E oldValue, E newValue) {
+		instance.updateIndexes(oldValue, newValue)
 	}
 }
\ No newline at end of file
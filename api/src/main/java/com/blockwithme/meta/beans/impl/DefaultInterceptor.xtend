@@ -49,10 +49,12 @@ class DefaultInterceptor implements Interceptor {
     public static val INSTANCE = new DefaultInterceptor()
 
 	override boolean getBooleanProperty(_Bean instance, BooleanProperty<?, ?, ?> prop, boolean value) {
+        AccessHeatmap.read(instance, prop)
         value
 	}
 
 	override boolean setBooleanProperty(_Bean instance, BooleanProperty<?, ?, ?> prop, boolean oldValue, boolean newValue) {
+        AccessHeatmap.write(instance, prop)
         if (oldValue !== newValue) {
             val metaType = instance.metaType as Type
             var String error = null
@@ -78,10 +80,12 @@ class DefaultInterceptor implements Interceptor {
 	}
 
 	override byte getByteProperty(_Bean instance, ByteProperty<?, ?, ?> prop, byte value) {
+        AccessHeatmap.read(instance, prop)
         value
 	}
 
 	override byte setByteProperty(_Bean instance, ByteProperty<?, ?, ?> prop, byte oldValue, byte newValue) {
+        AccessHeatmap.write(instance, prop)
         if (oldValue !== newValue) {
             val metaType = instance.metaType as Type
             var String error = null
@@ -107,10 +111,12 @@ class DefaultInterceptor implements Interceptor {
 	}
 
 	override char getCharacterProperty(_Bean instance, CharacterProperty<?, ?, ?> prop, char value) {
+        AccessHeatmap.read(instance, prop)
         value
 	}
 
 	override char setCharacterProperty(_Bean instance, CharacterProperty<?, ?, ?> prop, char oldValue, char newValue) {
+        AccessHeatmap.write(instance, prop)
         if (oldValue !== newValue) {
             val metaType = instance.metaType as Type
             var String error = null
@@ -136,10 +142,12 @@ class DefaultInterceptor implements Interceptor {
 	}
 
 	override short getShortProperty(_Bean instance, ShortProperty<?, ?, ?> prop, short value) {
+        AccessHeatmap.read(instance, prop)
         value
 	}
 
 	override short setShortProperty(_Bean instance, ShortProperty<?, ?, ?> prop, short oldValue, short newValue) {
+        AccessHeatmap.write(instance, prop)
         if (oldValue !== newValue) {
             val metaType = instance.metaType as Type
             var String error = null
@@ -165,10 +173,12 @@ class DefaultInterceptor implements Interceptor {
 	}
 
 	override int getIntegerProperty(_Bean instance, IntegerProperty<?, ?, ?> prop, int value) {
+        AccessHeatmap.read(instance, prop)
         value
 	}
 
 	override int setIntegerProperty(_Bean instance, IntegerProperty<?, ?, ?> prop, int oldValue, int newValue) {
+        AccessHeatmap.write(instance, prop)
         if (oldValue !== newValue) {
             val metaType = instance.metaType as Type
             var String error = null
@@ -194,10 +204,12 @@ class DefaultInterceptor implements Interceptor {
 	}
 
 	override float getFloatProperty(_Bean instance, FloatProperty<?, ?, ?> prop, float value) {
+        AccessHeatmap.read(instance, prop)
         value
 	}
 
 	override float setFloatProperty(_Bean instance, FloatProperty<?, ?, ?> prop, float oldValue, float newValue) {
+        AccessHeatmap.write(instance, prop)
         if (oldValue !== newValue) {
             val metaType = instance.metaType as Type
             var String error = null
@@ -223,10 +235,12 @@ class DefaultInterceptor implements Interceptor {
 	}
 
 	override double getDoubleProperty(_Bean instance, DoubleProperty<?, ?, ?> prop, double value) {
+        AccessHeatmap.read(instance, prop)
         value
 	}
 
 	override double setDoubleProperty(_Bean instance, DoubleProperty<?, ?, ?> prop, double oldValue, double newValue) {
+        AccessHeatmap.write(instance, prop)
         if (oldValue !== newValue) {
             val metaType = instance.metaType as Type
             var String error = null
@@ -252,10 +266,12 @@ class DefaultInterceptor implements Interceptor {
 	}
 
 	override long getLongProperty(_Bean instance, LongProperty<?, ?, ?> prop, long value) {
+        AccessHeatmap.read(instance, prop)
         value
 	}
 
 	override long setLongProperty(_Bean instance, LongProperty<?, ?, ?> prop, long oldValue, long newValue) {
+        AccessHeatmap.write(instance, prop)
         if (oldValue !== newValue) {
             val metaType = instance.metaType as Type
             var String error = null
@@ -281,10 +297,12 @@ class DefaultInterceptor implements Interceptor {
 	}
 
 	override <E> getObjectProperty(_Bean instance, ObjectProperty<?, E,?,?> prop, E value) {
+        AccessHeatmap.read(instance, prop)
         value
 	}
 
 	override <E> setObjectProperty(_Bean instance, ObjectProperty<?, E,?,?> prop, E oldValue, E newValue) {
+        AccessHeatmap.write(instance, prop)
         if (oldValue !== newValue) {
             val metaType = instance.metaType as Type
             var String error = null
@@ -53,11 +53,13 @@ implements ObjectObjectMapInterceptor<K,V> {
         if (oldValue != newValue) {
 			// TODO Somehow support the Property Validators and Listeners
 			objectPropertyChanged(instance, key, index*2+1, oldValue, newValue)
+			instance.updateIndexes(oldValue, newValue)
         }
 		newValue
 	}
 
 	override clear(_MapBean<K, V> instance) {
 		instance.setSelectedFrom(0)
+		instance.clearIndexes()
 	}
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl
+
+import com.blockwithme.meta.ContentOwner
+import com.blockwithme.meta.Property
+import com.blockwithme.meta.beans._Bean
+import com.fasterxml.jackson.core.JsonGenerator
+import java.io.Writer
+
+/**
+ * A JacksonSerializer that only writes the "delta" of beans: the selected
+ * (changed) properties, and the properties containing a bean with selected
+ * properties, recursively.
+ *
+ * Collection and map beans that are visited are written completely.
+ *
+ * @author monster
+ */
+class DeltaSerializer extends JacksonSerializer {
+
+	/** Creates the DeltaSerializer */
+	new (JsonGenerator generator, Object output) {
+		super(generator, output)
+	}
+
+	/** Only accepts the changed Properties of beans */
+	protected override boolean acceptProperty(Object instance, Property<?,?> prop) {
+		if ((instance instanceof _BeanImpl) && (instance as _BeanImpl).hasLazyValue(prop)) {
+			// Not materialized, and therefore unchanged
+			false
+		} else if ((instance instanceof _Bean) && !(instance instanceof ContentOwner<?>)) {
+			val bean = instance as _Bean
+			if (bean.isSelected(prop)) {
+				true
+			} else {
+				val value = (prop as Property).getObject(instance)
+				if (value instanceof _BeanImpl) {
+					// The subtree flags skip clean values in O(1)
+					(value as _BeanImpl).subtreeDirty && (value as _BeanImpl).selectedRecursive
+				} else {
+					(value instanceof _Bean) && (value as _Bean).selectedRecursive
+				}
+			}
+		} else {
+			true
+		}
+	}
+
+	/** Creates a new DeltaSerializer from a Writer */
+	def static DeltaSerializer newDeltaSerializer(Writer out) {
+		new DeltaSerializer(FACTORY.createGenerator(out), out)
+	}
+}
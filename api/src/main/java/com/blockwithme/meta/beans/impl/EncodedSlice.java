@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.util.Objects;
+
+/**
+ * A slice of a byte array, containing the encoded (JSON, binary, ...) value
+ * of a Property, that has not been materialized yet. See LazyInterceptor.
+ *
+ * The slice does not copy the bytes; typically, all the slices of a
+ * document share the buffer the document was read into. The bytes must not
+ * be modified.
+ *
+ * @author monster
+ */
+public final class EncodedSlice {
+
+    /** The bytes */
+    public final byte[] bytes;
+
+    /** The offset of the slice */
+    public final int offset;
+
+    /** The length of the slice */
+    public final int length;
+
+    /** Creates an EncodedSlice */
+    public EncodedSlice(final byte[] bytes, final int offset, final int length) {
+        this.bytes = Objects.requireNonNull(bytes, "bytes");
+        if ((offset < 0) || (length < 0) || (offset + length > bytes.length)) {
+            throw new IndexOutOfBoundsException("offset=" + offset
+                    + " length=" + length + " bytes.length=" + bytes.length);
+        }
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "EncodedSlice(offset=" + offset + ", length=" + length + ")";
+    }
+}
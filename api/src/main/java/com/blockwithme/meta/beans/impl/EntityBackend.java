@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.util.Map;
+import java.util.Set;
+
+import com.blockwithme.meta.beans.Entity;
+import com.blockwithme.meta.beans.EntityContext;
+
+/**
+ * The storage "backend" of a BatchingEntityLoader.
+ *
+ * A backend loads many Entities, of one EntityContext, in a single bulk
+ * fetch. It can be called from any thread, but never concurrently for the
+ * same ID.
+ *
+ * @author monster
+ */
+public interface EntityBackend {
+    /**
+     * Loads the Entities with the given IDs (as returned by
+     * EntityContext.getIDAsString()).
+     *
+     * IDs that are unknown to the backend are simply absent from the result.
+     * An Exception fails the whole batch.
+     */
+    Map<String, Entity> loadAll(EntityContext context, Set<String> ids)
+            throws Exception;
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.blockwithme.fn1.ProcObject;
+import com.blockwithme.meta.beans.Entity;
+import com.blockwithme.meta.beans.Handle;
+
+/**
+ * A bounded cache tier, limiting the number of Entities kept strongly
+ * reachable through their Handle.
+ *
+ * The eviction policy is a simplified W-TinyLFU: new Entities enter a small
+ * LRU "window"; Entities leaving the window must compete with the least
+ * recently used Entity of the "main" LRU, and the one that was accessed less
+ * often (according to a frequency sketch) is evicted. This keeps frequently
+ * used Entities, even when many Entities are only used once.
+ *
+ * Pinned Entities are never evicted, so the cache can temporarily hold more
+ * than maxSize Entities. Dirty Entities must be pinned; the cache never
+ * looks at the state of the Entities, since they belong to other threads.
+ * The owner of an Entity either calls pin() and unpin() explicitly (for
+ * example, unpin() once the changes were written), or calls
+ * updatePinned(), which uses the (O(1)) subtree dirty flags of the Entity.
+ *
+ * Evicting an Entity clears it's Handle, and sets a reloader in it. The
+ * next Handle.getEntity(), or get(), of that Handle returns null, and
+ * reloads it through the BatchingEntityLoader; the Entity is then set in
+ * the Handle again, and put back in the cache.
+ *
+ * Hits, misses, evictions, loads and the load latency are counted.
+ *
+ * This class is thread-safe, except updatePinned(), which must be called
+ * by the thread that owns the Entity.
+ *
+ * @author monster
+ */
+public class EntityCache {
+
+    /** The maximum counter value in the frequency sketch */
+    private static final int MAX_FREQUENCY = 15;
+
+    /** The loader */
+    private final BatchingEntityLoader loader;
+
+    /** The maximum number of (unpinned) Entities */
+    private final int maxSize;
+
+    /** The maximum number of Entities in the window */
+    private final int windowSize;
+
+    /** The window LRU */
+    private final LinkedHashMap<Handle, Entity> window = new LinkedHashMap<>(
+            16, 0.75f, true);
+
+    /** The main LRU */
+    private final LinkedHashMap<Handle, Entity> main = new LinkedHashMap<>(16,
+            0.75f, true);
+
+    /** The pinned Handles */
+    private final Set<Handle> pinned = new HashSet<>();
+
+    /** Reloads an evicted Entity, when it's Handle is accessed */
+    private final ProcObject<Handle> reloader = new ProcObject<Handle>() {
+        @Override
+        public void apply(final Handle handle) {
+            load(handle, null, null);
+        }
+    };
+
+    /** The frequency sketch counters (count-min, 4 hashes) */
+    private final byte[] sketch;
+
+    /** The number of recorded accesses, since the last aging */
+    private int sketchAdditions;
+
+    /** The hit count */
+    private long hits;
+
+    /** The miss count */
+    private long misses;
+
+    /** The eviction count */
+    private long evictions;
+
+    /** The successful load count */
+    private long loads;
+
+    /** The failed load count */
+    private long loadFailures;
+
+    /** The total load latency, in nanoseconds */
+    private long totalLoadNanos;
+
+    /**
+     * Creates an EntityCache.
+     *
+     * @param loader The loader used to reload evicted Entities. Cannot be null.
+     * @param maxSize The maximum number of (unpinned) Entities (>= 1)
+     */
+    public EntityCache(final BatchingEntityLoader loader, final int maxSize) {
+        this.loader = Objects.requireNonNull(loader, "loader");
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        windowSize = Math.max(1, maxSize / 100);
+        int length = 64;
+        while (length < maxSize * 4) {
+            length <<= 1;
+        }
+        sketch = new byte[length];
+    }
+
+    /** Returns the sketch index of a Handle, for the given hash function. */
+    private int index(final Handle handle, final int i) {
+        int h = handle.hashCode() * (0x9E3779B9 + 2 * i);
+        h ^= h >>> 16;
+        return h & (sketch.length - 1);
+    }
+
+    /** Records an access, in the frequency sketch. */
+    private void recordAccess(final Handle handle) {
+        for (int i = 0; i < 4; i++) {
+            final int index = index(handle, i);
+            if (sketch[index] < MAX_FREQUENCY) {
+                sketch[index]++;
+            }
+        }
+        if (++sketchAdditions >= 10 * maxSize) {
+            // Aging: old accesses count less and less
+            for (int i = 0; i < sketch.length; i++) {
+                sketch[i] >>= 1;
+            }
+            sketchAdditions = 0;
+        }
+    }
+
+    /** Returns the estimated access frequency of a Handle. */
+    private int frequency(final Handle handle) {
+        int result = MAX_FREQUENCY;
+        for (int i = 0; i < 4; i++) {
+            result = Math.min(result, sketch[index(handle, i)]);
+        }
+        return result;
+    }
+
+    /** Returns the least recently used unpinned Handle of a LRU, or null. */
+    private Handle victim(final LinkedHashMap<Handle, Entity> lru) {
+        for (final Handle handle : lru.keySet()) {
+            if (!pinned.contains(handle)) {
+                return handle;
+            }
+        }
+        return null;
+    }
+
+    /** Evicts an Entity; it's Handle is cleared, and will reload it on access. */
+    private void evict(final Handle handle, final Entity entity) {
+        // Only clear the Handle, if it was not changed in the meantime
+        if (handle.peekEntity() == entity) {
+            handle.setEntity(null);
+            handle.setReloader(reloader);
+        }
+        evictions++;
+    }
+
+    /** Pins the Entity of a Handle; it will not be evicted until unpinned. */
+    public synchronized void pin(final Handle handle) {
+        pinned.add(Objects.requireNonNull(handle, "handle"));
+    }
+
+    /** Unpins the Entity of a Handle; it can be evicted again. */
+    public synchronized void unpin(final Handle handle) {
+        if (pinned.remove(Objects.requireNonNull(handle, "handle"))) {
+            evictIfNeeded();
+        }
+    }
+
+    /** Returns true, if the Entity of a Handle is pinned. */
+    public synchronized boolean isPinned(final Handle handle) {
+        return pinned.contains(handle);
+    }
+
+    /**
+     * Pins the Entity of the Handle if it is dirty (some property of it's
+     * tree might be selected), and unpins it otherwise. This reads the
+     * subtree dirty flags of the Entity, and so must be called by the thread
+     * that owns the Entity, for example after changing it, and after
+     * clearing it's selection.
+     */
+    public void updatePinned(final Handle handle) {
+        final Entity entity = Objects.requireNonNull(handle, "handle")
+                .peekEntity();
+        if ((entity instanceof _BeanImpl)
+                && ((_BeanImpl) entity).isSubtreeDirty()) {
+            pin(handle);
+        } else {
+            unpin(handle);
+        }
+    }
+
+    /** Moves Entities out of the window, and evicts, as required. */
+    private void evictIfNeeded() {
+        while (window.size() > windowSize) {
+            final Handle candidate = victim(window);
+            if (candidate == null) {
+                break;
+            }
+            final Entity entity = window.remove(candidate);
+            if (main.size() < maxSize - windowSize) {
+                main.put(candidate, entity);
+            } else {
+                final Handle victim = victim(main);
+                if ((victim == null)
+                        || (frequency(candidate) > frequency(victim))) {
+                    if (victim != null) {
+                        evict(victim, main.remove(victim));
+                    }
+                    main.put(candidate, entity);
+                } else {
+                    evict(candidate, entity);
+                }
+            }
+        }
+        // Pinned Entities that became clean could make main too big
+        while (main.size() > maxSize - windowSize) {
+            final Handle victim = victim(main);
+            if (victim == null) {
+                break;
+            }
+            evict(victim, main.remove(victim));
+        }
+    }
+
+    /** Adds (or replaces) an Entity, and sets it in it's Handle. */
+    public synchronized void put(final Handle handle, final Entity entity) {
+        Objects.requireNonNull(handle, "handle");
+        Objects.requireNonNull(entity, "entity");
+        handle.setEntity(entity);
+        handle.setReloader(null);
+        recordAccess(handle);
+        if (main.containsKey(handle)) {
+            main.put(handle, entity);
+        } else {
+            window.put(handle, entity);
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * Removes an Entity from the cache, without clearing it's Handle. It is
+     * also unpinned.
+     */
+    public synchronized Entity remove(final Handle handle) {
+        pinned.remove(handle);
+        final Entity result = window.remove(handle);
+        return (result != null) ? result : main.remove(handle);
+    }
+
+    /**
+     * Returns the Entity of the Handle, if it is cached. Otherwise, null is
+     * returned, and the Entity is (re)loaded.
+     */
+    public Entity get(final Handle handle) {
+        return get(handle, null, null);
+    }
+
+    /**
+     * Returns the Entity of the Handle, if it is cached. Otherwise, null is
+     * returned, and the Entity is (re)loaded; onLoad is called, like for
+     * EntityContext.requestLoad(), once it is loaded.
+     */
+    public Entity get(final Handle handle, final Handle requester,
+            final ProcObject<Object> onLoad) {
+        Objects.requireNonNull(handle, "handle");
+        synchronized (this) {
+            recordAccess(handle);
+            Entity result = window.get(handle);
+            if (result == null) {
+                result = main.get(handle);
+            }
+            if ((result != null) && (handle.peekEntity() == result)) {
+                hits++;
+                return result;
+            }
+            misses++;
+        }
+        load(handle, requester, onLoad);
+        return null;
+    }
+
+    /** Loads the Entity of the Handle, and adds it to the cache. */
+    public void load(final Handle handle, final Handle requester,
+            final ProcObject<Object> onLoad) {
+        final long start = System.nanoTime();
+        loader.requestLoad(handle, requester, new ProcObject<Object>() {
+            @Override
+            public void apply(final Object outcome) {
+                final long nanos = System.nanoTime() - start;
+                synchronized (EntityCache.this) {
+                    totalLoadNanos += nanos;
+                    if (outcome instanceof Entity) {
+                        loads++;
+                    } else {
+                        loadFailures++;
+                    }
+                }
+                if (outcome instanceof Entity) {
+                    put(handle, (Entity) outcome);
+                } else if (handle.peekEntity() == null) {
+                    // Retry on the next access
+                    handle.setReloader(reloader);
+                }
+                if (onLoad != null) {
+                    onLoad.apply(outcome);
+                }
+            }
+        });
+    }
+
+    /** Returns the number of cached Entities, including the pinned ones. */
+    public synchronized int size() {
+        return window.size() + main.size();
+    }
+
+    /** Returns the number of pinned Entities, in the cache. */
+    public synchronized int getPinnedCount() {
+        int result = 0;
+        for (final Handle handle : pinned) {
+            if (window.containsKey(handle) || main.containsKey(handle)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the hit count */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Returns the miss count */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Returns the hit rate, between 0 and 1. */
+    public synchronized double getHitRate() {
+        final long total = hits + misses;
+        return (total == 0) ? 0 : ((double) hits) / total;
+    }
+
+    /** Returns the eviction count */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Returns the successful load count */
+    public synchronized long getLoads() {
+        return loads;
+    }
+
+    /** Returns the failed load count */
+    public synchronized long getLoadFailures() {
+        return loadFailures;
+    }
+
+    /** Returns the average load latency, in nanoseconds. */
+    public synchronized long getAverageLoadNanos() {
+        final long total = loads + loadFailures;
+        return (total == 0) ? 0 : totalLoadNanos / total;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "EntityCache(size=" + size() + ", maxSize=" + maxSize
+                + ", hits=" + hits + ", misses=" + misses + ", evictions="
+                + evictions + ")";
+    }
+}
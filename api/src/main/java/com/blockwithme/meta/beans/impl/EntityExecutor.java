@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.blockwithme.meta.beans.Handle;
+
+/**
+ * An "entity-affinity" executor.
+ *
+ * Entities are not thread-safe, and are tied to a specific thread (see
+ * EntityContext.requestLoad()). The EntityExecutor makes this explicit: the
+ * Entities are sharded, by Handle, over a fixed number of single-threaded
+ * "loops". All the tasks for an Entity are executed in the loop owning it's
+ * Handle, so Entities can be modified without locks, while the loops use
+ * all the cores.
+ *
+ * Tasks submitted from within a loop (cross-entity "messages") are not
+ * handed to the destination loop one at a time; they are buffered per
+ * destination, and handed over as one batch, once the current batch of
+ * tasks of the sending loop is done. Tasks submitted from a loop to the
+ * same Handle are therefore executed in submission order.
+ *
+ * Entity loads can also be routed: the loader returned by newLoader() calls
+ * the onLoad callbacks in the loop owning the requester.
+ *
+ * After shutdown(), tasks submitted from outside the loops are rejected.
+ * Each loop stops as soon as it reaches the end of the tasks queued before
+ * shutdown(); the tasks that it's last batch sent to other loops, and the
+ * tasks that reach a loop after it stopped, are dropped.
+ *
+ * @author monster
+ */
+public class EntityExecutor {
+
+    /** The Logger */
+    private static final Logger LOG = Logger.getLogger(EntityExecutor.class
+            .getName());
+
+    /** Tells a loop to stop */
+    private static final Runnable STOP = new Runnable() {
+        @Override
+        public void run() {
+            // NOP
+        }
+    };
+
+    /** The loop of the current thread, if any */
+    private static final ThreadLocal<Loop> CURRENT = new ThreadLocal<>();
+
+    /** A single-threaded loop. */
+    private final class Loop implements Executor, Runnable {
+        /** The index of the loop */
+        final int index;
+
+        /** The incoming tasks; either Runnable, or Runnable[] batches */
+        final LinkedBlockingQueue<Object> inbox = new LinkedBlockingQueue<>();
+
+        /** The outgoing tasks, per destination loop */
+        final List<List<Runnable>> outbox;
+
+        /** The thread */
+        final Thread thread;
+
+        /** The number of executed tasks */
+        volatile long executed;
+
+        /** Creates a Loop */
+        Loop(final int index, final String name) {
+            this.index = index;
+            outbox = new ArrayList<>(loops.length);
+            for (int i = 0; i < loops.length; i++) {
+                outbox.add(new ArrayList<Runnable>());
+            }
+            thread = new Thread(this, name + "-" + index);
+            thread.setDaemon(true);
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+         */
+        @Override
+        public void execute(final Runnable task) {
+            Objects.requireNonNull(task, "task");
+            final Loop sender = CURRENT.get();
+            if ((sender != null) && (sender.owner() == EntityExecutor.this)) {
+                sender.outbox.get(index).add(task);
+            } else if (shutdown) {
+                throw new RejectedExecutionException(EntityExecutor.this
+                        + " is shut down");
+            } else {
+                inbox.add(task);
+            }
+        }
+
+        /** Returns the EntityExecutor */
+        EntityExecutor owner() {
+            return EntityExecutor.this;
+        }
+
+        /** Runs one task */
+        private boolean run(final Runnable task) {
+            if (task == STOP) {
+                return false;
+            }
+            try {
+                task.run();
+            } catch (final Throwable t) {
+                LOG.log(Level.SEVERE, "Task failed in " + thread.getName(), t);
+            }
+            executed++;
+            return true;
+        }
+
+        /** Runs a batch of tasks; returns false, as soon as STOP is reached. */
+        private boolean runBatch(final List<Object> batch) {
+            for (final Object item : batch) {
+                if (item instanceof Runnable[]) {
+                    for (final Runnable task : (Runnable[]) item) {
+                        if (!run(task)) {
+                            return false;
+                        }
+                    }
+                } else if (!run((Runnable) item)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Hands the buffered outgoing tasks to their destinations. */
+        private void flushOutbox() {
+            for (int i = 0; i < loops.length; i++) {
+                final List<Runnable> tasks = outbox.get(i);
+                if (!tasks.isEmpty()) {
+                    loops[i].inbox.add(tasks.toArray(new Runnable[tasks
+                            .size()]));
+                    tasks.clear();
+                }
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            CURRENT.set(this);
+            final List<Object> batch = new ArrayList<>();
+            boolean running = true;
+            try {
+                while (running) {
+                    batch.add(inbox.take());
+                    inbox.drainTo(batch);
+                    running = runBatch(batch);
+                    batch.clear();
+                    if (running) {
+                        flushOutbox();
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    /** The loops */
+    private final Loop[] loops;
+
+    /** Was shutdown() called? */
+    private volatile boolean shutdown;
+
+    /**
+     * Creates and starts an EntityExecutor.
+     *
+     * @param loopCount The number of loops (threads) (>= 1)
+     * @param name The name prefix of the threads
+     */
+    public EntityExecutor(final int loopCount, final String name) {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("loopCount: " + loopCount);
+        }
+        Objects.requireNonNull(name, "name");
+        loops = new Loop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new Loop(i, name);
+        }
+        for (final Loop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /** Creates and starts an EntityExecutor, with one loop per core. */
+    public EntityExecutor(final String name) {
+        this(Runtime.getRuntime().availableProcessors(), name);
+    }
+
+    /** Returns the number of loops. */
+    public int getLoopCount() {
+        return loops.length;
+    }
+
+    /** Returns the index of the loop owning the Handle. */
+    public int loopOf(final Handle handle) {
+        int h = handle.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return (h & Integer.MAX_VALUE) % loops.length;
+    }
+
+    /** Returns the Executor of the loop owning the Handle. */
+    public Executor executor(final Handle handle) {
+        return loops[loopOf(Objects.requireNonNull(handle, "handle"))];
+    }
+
+    /**
+     * Executes the task in the loop owning the Handle. Throws a
+     * RejectedExecutionException after shutdown(), unless called from a loop.
+     */
+    public void execute(final Handle handle, final Runnable task) {
+        executor(handle).execute(task);
+    }
+
+    /** Returns true, if the current thread is the loop owning the Handle. */
+    public boolean isOwner(final Handle handle) {
+        return CURRENT.get() == executor(handle);
+    }
+
+    /**
+     * Fails, if the current thread is not the loop owning the Handle.
+     * Can be used to enforce the threading rules of Entities.
+     */
+    public void checkOwner(final Handle handle) {
+        if (!isOwner(handle)) {
+            throw new IllegalStateException("Thread "
+                    + Thread.currentThread().getName() + " does not own "
+                    + handle);
+        }
+    }
+
+    /** Returns the number of tasks executed so far, in all loops. */
+    public long getExecuted() {
+        long result = 0;
+        for (final Loop loop : loops) {
+            result += loop.executed;
+        }
+        return result;
+    }
+
+    /**
+     * Creates a BatchingEntityLoader, which calls the onLoad callbacks in the
+     * loop owning the requester. Callbacks without requester are still
+     * called in the thread calling tick().
+     */
+    public BatchingEntityLoader newLoader(final EntityBackend backend,
+            final Executor fetchExecutor) {
+        return new BatchingEntityLoader(backend, fetchExecutor) {
+            @Override
+            protected Executor callbackExecutor(final Handle requester) {
+                return (requester == null) ? null : executor(requester);
+            }
+        };
+    }
+
+    /**
+     * Stops all loops, once the tasks already queued are executed, and
+     * rejects new tasks. Returns true, if all loops stopped within the
+     * timeout.
+     */
+    public boolean shutdown(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        shutdown = true;
+        for (final Loop loop : loops) {
+            loop.inbox.add(STOP);
+        }
+        final long end = System.nanoTime() + unit.toNanos(timeout);
+        for (final Loop loop : loops) {
+            final long left = TimeUnit.NANOSECONDS.toMillis(end
+                    - System.nanoTime());
+            if (left > 0) {
+                loop.thread.join(left);
+            }
+            if (loop.thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "EntityExecutor(loops=" + loops.length + ")";
+    }
+}
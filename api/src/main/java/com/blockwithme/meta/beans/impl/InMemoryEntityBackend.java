@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.blockwithme.meta.beans.Entity;
+import com.blockwithme.meta.beans.EntityContext;
+
+/**
+ * An in-memory EntityBackend, mostly for tests, and as a stand-in until a
+ * real storage is available.
+ *
+ * The Entities are stored by namespace and ID. The number of bulk fetches
+ * is counted, so that tests can check the batching.
+ *
+ * @author monster
+ */
+public class InMemoryEntityBackend implements EntityBackend {
+
+    /** The stored Entities, by namespace+":"+ID */
+    private final ConcurrentHashMap<String, Entity> entities = new ConcurrentHashMap<>();
+
+    /** The number of bulk fetches */
+    private final AtomicInteger fetches = new AtomicInteger();
+
+    /** Returns the storage key of an Entity */
+    private static String key(final EntityContext context, final String id) {
+        return context.getNamespace() + ":" + id;
+    }
+
+    /** Stores an Entity, replacing any previous Entity with the same ID. */
+    public void store(final EntityContext context, final String id,
+            final Entity entity) {
+        Objects.requireNonNull(entity, "entity");
+        entities.put(key(context, Objects.requireNonNull(id, "id")), entity);
+    }
+
+    /** Removes an Entity. */
+    public void remove(final EntityContext context, final String id) {
+        entities.remove(key(context, id));
+    }
+
+    /** Returns the number of bulk fetches so far */
+    public int getFetches() {
+        return fetches.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.impl.EntityBackend#loadAll(com.blockwithme.meta.beans.EntityContext, java.util.Set)
+     */
+    @Override
+    public Map<String, Entity> loadAll(final EntityContext context,
+            final Set<String> ids) throws Exception {
+        fetches.incrementAndGet();
+        final Map<String, Entity> result = new HashMap<>();
+        for (final String id : ids) {
+            final Entity entity = entities.get(key(context, id));
+            if (entity != null) {
+                result.put(id, entity);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.blockwithme.meta.beans.Bean;
+import com.blockwithme.meta.beans.Entity;
+import com.blockwithme.meta.beans._Bean;
+
+/**
+ * A "hash-consing" interner, for immutable beans and withers (data objects,
+ * like Ref).
+ *
+ * Beans and withers are compared structurally, using their (cached) JSON
+ * representation. The interner keeps one canonical instance per class and
+ * JSON representation, so that equal immutable values can share a single
+ * instance, and be compared by identity.
+ *
+ * The canonical instances are only weakly referenced, and are dropped from
+ * the table once they are not used anymore.
+ *
+ * Only *root* immutable beans can be interned: immutable beans that are
+ * part of another bean have a parent, and so cannot be shared. Entities have
+ * an identity of their own, and are never interned.
+ *
+ * This class is thread-safe.
+ *
+ * @author monster
+ */
+public final class Interner {
+
+    /** The default, shared, Interner. */
+    public static final Interner DEFAULT = new Interner();
+
+    /** The key of a canonical instance. */
+    private static final class Key {
+        /** The class of the instance */
+        private final Class<?> type;
+
+        /** The JSON representation of the instance */
+        private final String json;
+
+        /** The hashcode */
+        private final int hash;
+
+        /** Creates a Key */
+        Key(final Object value) {
+            type = value.getClass();
+            json = value.toString();
+            hash = type.hashCode() * 31 + json.hashCode();
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return (hash == other.hash) && (type == other.type)
+                    && json.equals(other.json);
+        }
+    }
+
+    /** A weak reference to a canonical instance, remembering it's key. */
+    private static final class Canonical extends WeakReference<Object> {
+        /** The key */
+        final Key key;
+
+        /** Creates a Canonical */
+        Canonical(final Key key, final Object value,
+                final ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+
+    /** The canonical instances. */
+    private final ConcurrentHashMap<Key, Canonical> table = new ConcurrentHashMap<>();
+
+    /** The queue of cleared canonical instances. */
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    /** Returns true, if the value can be interned. */
+    public static boolean isInternable(final Object value) {
+        if (value instanceof _WitherImpl) {
+            return true;
+        }
+        if ((value instanceof _BeanImpl) && !(value instanceof Entity)) {
+            final _Bean bean = (_Bean) value;
+            return bean.isImmutable() && (bean.getParentBean() == null);
+        }
+        return false;
+    }
+
+    /** Removes the cleared canonical instances from the table. */
+    private void expunge() {
+        Canonical ref;
+        while ((ref = (Canonical) queue.poll()) != null) {
+            table.remove(ref.key, ref);
+        }
+    }
+
+    /**
+     * Returns the canonical instance equal to value. If there is none yet,
+     * value becomes the canonical instance.
+     *
+     * @param value An immutable root bean, or a wither. null returns null.
+     * @throws IllegalArgumentException if the value cannot be interned.
+     */
+    @SuppressWarnings("unchecked")
+    public <E> E intern(final E value) {
+        if (value == null) {
+            return null;
+        }
+        if (!isInternable(value)) {
+            throw new IllegalArgumentException(value.getClass().getName()
+                    + " cannot be interned: only immutable root beans,"
+                    + " and withers, can be interned");
+        }
+        expunge();
+        final Key key = new Key(value);
+        Canonical fresh = null;
+        for (;;) {
+            final Canonical current = table.get(key);
+            if (current != null) {
+                final Object result = current.get();
+                if (result != null) {
+                    return (E) result;
+                }
+            }
+            if (fresh == null) {
+                fresh = new Canonical(key, value, queue);
+            }
+            if (current == null) {
+                if (table.putIfAbsent(key, fresh) == null) {
+                    return value;
+                }
+            } else if (table.replace(key, current, fresh)) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Returns the canonical immutable snapshot of a root bean. Snapshots of
+     * equal beans return the same instance.
+     */
+    @SuppressWarnings("unchecked")
+    public <E extends Bean> E snapshot(final E bean) {
+        return (E) intern(Objects.requireNonNull(bean, "bean").snapshot());
+    }
+
+    /** Returns the (approximate) number of canonical instances. */
+    public int size() {
+        expunge();
+        return table.size();
+    }
+
+    /** Forgets all canonical instances. */
+    public void clear() {
+        table.clear();
+        expunge();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "Interner(size=" + table.size() + ")";
+    }
+}
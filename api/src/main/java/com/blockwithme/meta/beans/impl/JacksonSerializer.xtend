@@ -19,6 +19,8 @@ import com.blockwithme.meta.AbstractPropertyVisitor
 import com.blockwithme.meta.BooleanProperty
 import com.blockwithme.meta.IIntegralPrimitiveProperty
 import com.blockwithme.meta.IRealPrimitiveProperty
+import com.blockwithme.meta.ObjectProperty
+import com.blockwithme.meta.Property
 import com.blockwithme.meta.Type
 import com.fasterxml.jackson.core.JsonEncoding
 import com.fasterxml.jackson.core.JsonFactory
@@ -98,6 +100,41 @@ class JacksonSerializer extends AbstractPropertyVisitor {
 		}
     }
 
+	/**
+	 * Returns true, if the not yet materialized values of lazy properties
+	 * are written as binary. This is the "export" form, used by toJSON().
+	 * Otherwise, they are decoded, but not materialized, and written like
+	 * materialized values, so that the output does not depend on whether
+	 * they were materialized already.
+	 */
+	protected def boolean isLazyAsBinary() {
+		true
+	}
+
+	/**
+	 * Writes the not yet materialized values of lazy properties (see
+	 * LazyInterceptor) without materializing them.
+	 */
+	protected override boolean acceptProperty(Object instance, Property<?,?> prop) {
+		if ((instance instanceof _BeanImpl) && (instance as _BeanImpl).hasLazyValue(prop)) {
+			val bean = instance as _BeanImpl
+			if (isLazyAsBinary) {
+				val encoded = bean.getLazyValue(prop) as EncodedSlice
+				generator.writeFieldName(prop.simpleName)
+				generator.writeBinary(encoded.bytes, encoded.offset, encoded.length)
+			} else {
+				val lazy = bean.interceptor as LazyInterceptor
+				val decoded = lazy.decodeWithoutMaterializing(bean, prop as ObjectProperty)
+				visitProperty(prop)
+				visitValue(prop as ObjectProperty, decoded)
+				afterVisitProperty(prop)
+			}
+			false
+		} else {
+			true
+		}
+	}
+
 	/** Append Object start. Returns true if this is a new Object */
 	protected def boolean appendObjectStart(Object obj) {
 		generator.writeStartObject()
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import com.blockwithme.meta.ObjectProperty;
+import com.blockwithme.meta.beans._Bean;
+
+/**
+ * Decodes the encoded value of a Property, when it is first read.
+ * See LazyInterceptor.
+ *
+ * @author monster
+ */
+public interface LazyDecoder {
+    /**
+     * Decodes the value of the Property of the parent bean.
+     *
+     * The result is set in the parent bean, without marking it as changed.
+     * It can itself contain lazy values.
+     */
+    Object decode(_Bean parent, ObjectProperty<?, ?, ?, ?> prop,
+            EncodedSlice encoded);
+}
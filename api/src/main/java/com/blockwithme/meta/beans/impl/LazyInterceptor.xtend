@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl
+
+import com.blockwithme.meta.ObjectProperty
+import com.blockwithme.meta.beans.Entity
+import com.blockwithme.meta.beans._Bean
+import java.util.Objects
+
+/**
+ * Interceptor for beans with "lazy" Object properties.
+ *
+ * The value of a lazy property is kept as an EncodedSlice, until the getter
+ * of the property is first called. Only then is it decoded, by the
+ * LazyDecoder, and set in the bean. Materializing a value does not mark the
+ * bean as changed. Setting a lazy property simply replaces the encoded value.
+ *
+ * A decoded bean is linked to it's parent like a normally set value: Entities
+ * and immutable values are not linked, and a bean that already has a parent
+ * is copied first.
+ *
+ * Walking the bean tree (getBeanIterator(), isSelectedRecursive(),
+ * clearSelection(), copy(), toJSON()) does not materialize lazy values.
+ * toJSON() writes them encoded, as binary, while toString() decodes them
+ * without materializing them, so that equals() and hashCode() are the same
+ * before and after materialization.
+ * Since an immutable bean cannot materialize it's values later, snapshot()
+ * decodes them into the snapshot, still without materializing them in the
+ * original bean.
+ *
+ * This allows loading large documents, where most sub-trees are never
+ * accessed, without decoding them completely.
+ *
+ * @author monster
+ */
+class LazyInterceptor extends DefaultInterceptor {
+	/** Marks a value that is currently being materialized */
+	static val MATERIALIZING = new Object
+
+	/** The decoder */
+	public val LazyDecoder decoder
+
+	/** Creates a LazyInterceptor */
+	new(LazyDecoder decoder) {
+		this.decoder = Objects.requireNonNull(decoder, "decoder")
+	}
+
+	/**
+	 * Sets the encoded value of a property; it will be decoded on first read.
+	 * The bean must use this interceptor, and the current value must be null.
+	 */
+	def void setEncoded(_Bean instance, ObjectProperty<?,?,?,?> prop, EncodedSlice encoded) {
+		Objects.requireNonNull(encoded, "encoded")
+		if (instance.interceptor !== this) {
+			throw new IllegalArgumentException(instance.class.name+" does not use "+this)
+		}
+		if (instance.immutable) {
+			throw new UnsupportedOperationException(instance+" is immutable!")
+		}
+		val bean = instance as _BeanImpl
+		bean.setLazyValue(prop, encoded)
+	}
+
+	/** Returns true, if the value of the property is not materialized yet. */
+	def boolean isLazy(_Bean instance, ObjectProperty<?,?,?,?> prop) {
+		(instance instanceof _BeanImpl) && ((instance as _BeanImpl).getLazyValue(prop) instanceof EncodedSlice)
+	}
+
+	override <E> getObjectProperty(_Bean instance, ObjectProperty<?, E,?,?> prop, E value) {
+		AccessHeatmap.read(instance, prop)
+		if ((value === null) && (instance instanceof _BeanImpl)) {
+			val bean = instance as _BeanImpl
+			val encoded = bean.getLazyValue(prop)
+			if (encoded instanceof EncodedSlice) {
+				bean.setLazyValue(prop, MATERIALIZING)
+				var ok = false
+				try {
+					val decoded = adopt(bean, prop, decoder.decode(bean, prop, encoded)) as E
+					// Calls setObjectProperty(), in "materializing" mode
+					(prop as ObjectProperty).setObject(bean, decoded)
+					ok = true
+					return decoded
+				} finally {
+					bean.setLazyValue(prop, if (ok) null else encoded)
+				}
+			}
+		}
+		value
+	}
+
+	override <E> setObjectProperty(_Bean instance, ObjectProperty<?, E,?,?> prop, E oldValue, E newValue) {
+		if (instance instanceof _BeanImpl) {
+			val pending = instance.getLazyValue(prop)
+			if (pending === MATERIALIZING) {
+				// Already linked by adopt()
+				return newValue
+			}
+			if (pending !== null) {
+				// The new value replaces the encoded value
+				instance.setLazyValue(prop, null)
+			}
+		}
+		super.setObjectProperty(instance, prop, oldValue, newValue)
+	}
+
+	/**
+	 * Links a decoded value to it's parent, like objectPropertyChanged()
+	 * would, but without changing the selection.
+	 */
+	private def Object adopt(_BeanImpl instance, ObjectProperty<?,?,?,?> prop, Object decoded) {
+		if ((decoded instanceof _Bean) && !(decoded instanceof Entity) && !(decoded as _Bean).immutable) {
+			var child = decoded as _Bean
+			if (child.parentBean !== null) {
+				// The decoder returned a bean owned by someone else
+				child = child.copy as _Bean
+			}
+			if (instance.hasSameRoot(child)) {
+				throw new IllegalStateException("Cycles not permitted on "
+					+prop.fullName+" of "+instance.class.name)
+			}
+			child.setParentBeanAndKey(instance, prop.fullName)
+			child
+		} else {
+			decoded
+		}
+	}
+
+	/**
+	 * Decodes a lazy value, without materializing it in the bean.
+	 * Returns null if the value of the property is not lazy.
+	 */
+	def Object decodeWithoutMaterializing(_Bean instance, ObjectProperty<?,?,?,?> prop) {
+		if (instance instanceof _BeanImpl) {
+			val encoded = instance.getLazyValue(prop)
+			if (encoded instanceof EncodedSlice) {
+				return decoder.decode(instance, prop, encoded)
+			}
+		}
+		null
+	}
+}
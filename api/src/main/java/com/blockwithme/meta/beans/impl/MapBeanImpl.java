@@ -37,6 +37,8 @@ import com.blockwithme.meta.Property;
 import com.blockwithme.meta.Type;
 import com.blockwithme.meta.TypeOwner;
 import com.blockwithme.meta.beans.Bean;
+import com.blockwithme.meta.beans.BeanPathSink;
+import com.blockwithme.meta.beans.ContentIndex;
 import com.blockwithme.meta.beans.ObjectObjectMapInterceptor;
 import com.blockwithme.meta.beans._Bean;
 import com.blockwithme.meta.beans._MapBean;
@@ -253,6 +255,9 @@ public class MapBeanImpl<K, V> extends _BeanImpl implements _MapBean<K, V> {
     /** Helper field for immutable maps. */
     private transient int lastPutIndex;
 
+    /** The optional secondary indexes, over the values */
+    private PropertyIndex<?>[] indexes;
+
     /** Returns the Map interceptor. */
     @SuppressWarnings("unchecked")
     private ObjectObjectMapInterceptor<K, V> interceptor() {
@@ -272,6 +277,10 @@ public class MapBeanImpl<K, V> extends _BeanImpl implements _MapBean<K, V> {
     /** Increases the array size. */
     private void ensureCapacityInternalAndClear(final int minCapacity) {
         final int oldCapacity = keys.length;
+        final BeanMetrics metrics = BeanMetrics.collections;
+        if ((oldCapacity != 0) && (metrics != null)) {
+            metrics.rehashed(valueType);
+        }
         // This detaches the current content, so it can be re-added later.
         clear();
         // ensureSelectionCapacity() makes sure that the value of minCapacity is "reasonable"
@@ -863,6 +872,34 @@ public class MapBeanImpl<K, V> extends _BeanImpl implements _MapBean<K, V> {
         }
     }
 
+    /** Reads the value(s) of this Property, and passes them to the sink, if they match. */
+    @Override
+    public boolean readProperty(final IProperty<?, ?> prop,
+            final Object[] keyMatcher, final BeanPathSink sink) {
+        if (prop == JavaMeta.MAP_CONTENT_PROP) {
+            if (keyMatcher == null) {
+                final ObjectObjectMapInterceptor<K, V> oomi = interceptor();
+                final K[] k = keys;
+                final V[] v = values;
+                for (int i = 0; i < k.length; i++) {
+                    if (oomi.getKeyAtIndex(this, i, k[i]) != null) {
+                        if (!sink.onMatch(oomi.getValueAtIndex(this, i, v[i]))) {
+                            return false;
+                        }
+                    }
+                }
+            } else {
+                for (final Object key : keyMatcher) {
+                    if (!sink.onMatch(get(key))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return super.readProperty(prop, keyMatcher, sink);
+    }
+
     /** Allows collections to perform special copy implementations. */
     @Override
     @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -954,4 +991,79 @@ public class MapBeanImpl<K, V> extends _BeanImpl implements _MapBean<K, V> {
         }
         return super.getBeanIterator();
     }
+
+    /**
+     * Adds a secondary index over the values, keyed by the given Property
+     * of the values, or returns the existing one.
+     */
+    @Override
+    public final ContentIndex<V> addIndex(final Property<?, ?> keyProperty) {
+        ContentIndex<V> result = getIndex(keyProperty);
+        if (result == null) {
+            final PropertyIndex<V> index = new PropertyIndex<V>(keyProperty);
+            index.reindex(values());
+            final PropertyIndex<?>[] array = indexes;
+            if (array == null) {
+                indexes = new PropertyIndex<?>[] { index };
+            } else {
+                final PropertyIndex<?>[] newArray = Arrays.copyOf(array,
+                        array.length + 1);
+                newArray[array.length] = index;
+                indexes = newArray;
+            }
+            result = index;
+        }
+        return result;
+    }
+
+    /** Returns the secondary index keyed by the given Property, if any. */
+    @Override
+    @SuppressWarnings("unchecked")
+    public final ContentIndex<V> getIndex(final Property<?, ?> keyProperty) {
+        final PropertyIndex<?>[] array = indexes;
+        if (array != null) {
+            for (final PropertyIndex<?> index : array) {
+                if (index.keyProperty == keyProperty) {
+                    return (ContentIndex<V>) index;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Rebuilds all the secondary indexes, for example after a key Property change. */
+    @Override
+    @SuppressWarnings("unchecked")
+    public final void reindex() {
+        final PropertyIndex<?>[] array = indexes;
+        if (array != null) {
+            for (final PropertyIndex<?> index : array) {
+                ((PropertyIndex<V>) index).reindex(values());
+            }
+        }
+    }
+
+    /** Updates the secondary indexes, if any. Called by the interceptor. */
+    @Override
+    @SuppressWarnings("unchecked")
+    public final void updateIndexes(final V oldValue, final V newValue) {
+        final PropertyIndex<?>[] array = indexes;
+        if (array != null) {
+            for (final PropertyIndex<?> index : array) {
+                ((PropertyIndex<V>) index).remove(oldValue);
+                ((PropertyIndex<V>) index).add(newValue);
+            }
+        }
+    }
+
+    /** Clears the secondary indexes, if any. Called by the interceptor. */
+    @Override
+    public final void clearIndexes() {
+        final PropertyIndex<?>[] array = indexes;
+        if (array != null) {
+            for (final PropertyIndex<?> index : array) {
+                index.clear();
+            }
+        }
+    }
 }
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl
+
+import com.blockwithme.meta.BooleanProperty
+import com.blockwithme.meta.ByteProperty
+import com.blockwithme.meta.CharacterProperty
+import com.blockwithme.meta.DoubleProperty
+import com.blockwithme.meta.FloatProperty
+import com.blockwithme.meta.IntegerProperty
+import com.blockwithme.meta.LongProperty
+import com.blockwithme.meta.ObjectProperty
+import com.blockwithme.meta.ShortProperty
+import com.blockwithme.meta.beans.Interceptor
+import com.blockwithme.meta.beans._Bean
+import com.blockwithme.meta.beans.annotations.ValidationException
+import java.util.Objects
+
+/**
+ * Instrumented Interceptor, decorating another Interceptor, and recording
+ * reads, writes and validation failures in a BeanMetrics, per Type and per
+ * Property.
+ *
+ * The time taken by the writes that change the value is recorded as
+ * "listener" time; it includes the validators and the listeners. The
+ * clock is not read for the writes that do not change the value.
+ *
+ * Only for "normal" beans; collection and map beans need their own
+ * interceptor types.
+ *
+ * @author monster
+ */
+class MetricsInterceptor implements Interceptor {
+	/** The decorated Interceptor */
+	public val Interceptor delegate
+
+	/** The metrics */
+	public val BeanMetrics metrics
+
+	/** Creates a MetricsInterceptor, decorating the given Interceptor */
+	new(Interceptor delegate, BeanMetrics metrics) {
+		this.delegate = Objects.requireNonNull(delegate, "delegate")
+		this.metrics = Objects.requireNonNull(metrics, "metrics")
+	}
+
+	/** Creates a MetricsInterceptor, decorating the DefaultInterceptor */
+	new(BeanMetrics metrics) {
+		this(DefaultInterceptor.INSTANCE, metrics)
+	}
+
+	override boolean getBooleanProperty(_Bean instance, BooleanProperty<?, ?, ?> prop, boolean value) {
+		metrics.read(instance.metaType, prop)
+		delegate.getBooleanProperty(instance, prop, value)
+	}
+
+	override boolean setBooleanProperty(_Bean instance, BooleanProperty<?, ?, ?> prop, boolean oldValue, boolean newValue) {
+		val changed = (oldValue !== newValue)
+		// The clock is only read when the time is recorded
+		val start = if (changed) System.nanoTime else 0L
+		try {
+			val result = delegate.setBooleanProperty(instance, prop, oldValue, newValue)
+			metrics.written(instance.metaType, prop, changed, start)
+			result
+		} catch (ValidationException e) {
+			metrics.validationFailed(instance.metaType, prop)
+			throw e
+		}
+	}
+
+	override byte getByteProperty(_Bean instance, ByteProperty<?, ?, ?> prop, byte value) {
+		metrics.read(instance.metaType, prop)
+		delegate.getByteProperty(instance, prop, value)
+	}
+
+	override byte setByteProperty(_Bean instance, ByteProperty<?, ?, ?> prop, byte oldValue, byte newValue) {
+		val changed = (oldValue !== newValue)
+		// The clock is only read when the time is recorded
+		val start = if (changed) System.nanoTime else 0L
+		try {
+			val result = delegate.setByteProperty(instance, prop, oldValue, newValue)
+			metrics.written(instance.metaType, prop, changed, start)
+			result
+		} catch (ValidationException e) {
+			metrics.validationFailed(instance.metaType, prop)
+			throw e
+		}
+	}
+
+	override char getCharacterProperty(_Bean instance, CharacterProperty<?, ?, ?> prop, char value) {
+		metrics.read(instance.metaType, prop)
+		delegate.getCharacterProperty(instance, prop, value)
+	}
+
+	override char setCharacterProperty(_Bean instance, CharacterProperty<?, ?, ?> prop, char oldValue, char newValue) {
+		val changed = (oldValue !== newValue)
+		// The clock is only read when the time is recorded
+		val start = if (changed) System.nanoTime else 0L
+		try {
+			val result = delegate.setCharacterProperty(instance, prop, oldValue, newValue)
+			metrics.written(instance.metaType, prop, changed, start)
+			result
+		} catch (ValidationException e) {
+			metrics.validationFailed(instance.metaType, prop)
+			throw e
+		}
+	}
+
+	override short getShortProperty(_Bean instance, ShortProperty<?, ?, ?> prop, short value) {
+		metrics.read(instance.metaType, prop)
+		delegate.getShortProperty(instance, prop, value)
+	}
+
+	override short setShortProperty(_Bean instance, ShortProperty<?, ?, ?> prop, short oldValue, short newValue) {
+		val changed = (oldValue !== newValue)
+		// The clock is only read when the time is recorded
+		val start = if (changed) System.nanoTime else 0L
+		try {
+			val result = delegate.setShortProperty(instance, prop, oldValue, newValue)
+			metrics.written(instance.metaType, prop, changed, start)
+			result
+		} catch (ValidationException e) {
+			metrics.validationFailed(instance.metaType, prop)
+			throw e
+		}
+	}
+
+	override int getIntegerProperty(_Bean instance, IntegerProperty<?, ?, ?> prop, int value) {
+		metrics.read(instance.metaType, prop)
+		delegate.getIntegerProperty(instance, prop, value)
+	}
+
+	override int setIntegerProperty(_Bean instance, IntegerProperty<?, ?, ?> prop, int oldValue, int newValue) {
+		val changed = (oldValue !== newValue)
+		// The clock is only read when the time is recorded
+		val start = if (changed) System.nanoTime else 0L
+		try {
+			val result = delegate.setIntegerProperty(instance, prop, oldValue, newValue)
+			metrics.written(instance.metaType, prop, changed, start)
+			result
+		} catch (ValidationException e) {
+			metrics.validationFailed(instance.metaType, prop)
+			throw e
+		}
+	}
+
+	override float getFloatProperty(_Bean instance, FloatProperty<?, ?, ?> prop, float value) {
+		metrics.read(instance.metaType, prop)
+		delegate.getFloatProperty(instance, prop, value)
+	}
+
+	override float setFloatProperty(_Bean instance, FloatProperty<?, ?, ?> prop, float oldValue, float newValue) {
+		val changed = (oldValue !== newValue)
+		// The clock is only read when the time is recorded
+		val start = if (changed) System.nanoTime else 0L
+		try {
+			val result = delegate.setFloatProperty(instance, prop, oldValue, newValue)
+			metrics.written(instance.metaType, prop, changed, start)
+			result
+		} catch (ValidationException e) {
+			metrics.validationFailed(instance.metaType, prop)
+			throw e
+		}
+	}
+
+	override double getDoubleProperty(_Bean instance, DoubleProperty<?, ?, ?> prop, double value) {
+		metrics.read(instance.metaType, prop)
+		delegate.getDoubleProperty(instance, prop, value)
+	}
+
+	override double setDoubleProperty(_Bean instance, DoubleProperty<?, ?, ?> prop, double oldValue, double newValue) {
+		val changed = (oldValue !== newValue)
+		// The clock is only read when the time is recorded
+		val start = if (changed) System.nanoTime else 0L
+		try {
+			val result = delegate.setDoubleProperty(instance, prop, oldValue, newValue)
+			metrics.written(instance.metaType, prop, changed, start)
+			result
+		} catch (ValidationException e) {
+			metrics.validationFailed(instance.metaType, prop)
+			throw e
+		}
+	}
+
+	override long getLongProperty(_Bean instance, LongProperty<?, ?, ?> prop, long value) {
+		metrics.read(instance.metaType, prop)
+		delegate.getLongProperty(instance, prop, value)
+	}
+
+	override long setLongProperty(_Bean instance, LongProperty<?, ?, ?> prop, long oldValue, long newValue) {
+		val changed = (oldValue !== newValue)
+		// The clock is only read when the time is recorded
+		val start = if (changed) System.nanoTime else 0L
+		try {
+			val result = delegate.setLongProperty(instance, prop, oldValue, newValue)
+			metrics.written(instance.metaType, prop, changed, start)
+			result
+		} catch (ValidationException e) {
+			metrics.validationFailed(instance.metaType, prop)
+			throw e
+		}
+	}
+
+	override <E> getObjectProperty(_Bean instance, ObjectProperty<?, E, ?, ?> prop, E value) {
+		metrics.read(instance.metaType, prop)
+		delegate.getObjectProperty(instance, prop, value)
+	}
+
+	override <E> setObjectProperty(_Bean instance, ObjectProperty<?, E, ?, ?> prop, E oldValue, E newValue) {
+		val changed = (oldValue !== newValue)
+		// The clock is only read when the time is recorded
+		val start = if (changed) System.nanoTime else 0L
+		try {
+			val result = delegate.setObjectProperty(instance, prop, oldValue, newValue)
+			metrics.written(instance.metaType, prop, changed, start)
+			result
+		} catch (ValidationException e) {
+			metrics.validationFailed(instance.metaType, prop)
+			throw e
+		}
+	}
+}
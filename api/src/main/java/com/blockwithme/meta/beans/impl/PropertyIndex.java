@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.blockwithme.meta.Property;
+import com.blockwithme.meta.beans.ContentIndex;
+
+/**
+ * A secondary index, over the content of a collection or map bean, keyed by
+ * the value of a Property of the content beans (for example, the "category"
+ * of effects).
+ *
+ * The index is maintained incrementally by the collection/map interceptors,
+ * on every add/set/remove/clear of the content. The key of an element is
+ * read once, when the element is added. Changing the key Property of an
+ * element that is already in the collection is therefore not detected;
+ * lookups filter such stale entries out, but call reindex() if the key
+ * Property is not effectively immutable. The key read when adding is kept
+ * with the element, so that removing is O(1), even if the key changed.
+ *
+ * Null elements are not indexed. Null keys are supported.
+ *
+ * @author monster
+ */
+public final class PropertyIndex<E> implements ContentIndex<E> {
+
+    /** Represents the null key. */
+    private static final Object NULL_KEY = new Object();
+
+    /** The Property whose value is used as key. */
+    public final Property<?, ?> keyProperty;
+
+    /**
+     * Key to element(s). A single element is stored directly; multiple
+     * elements with the same key are stored in an Object[] bucket.
+     */
+    private final Map<Object, Object> map = new HashMap<>();
+
+    /** Element to the key it was indexed with. */
+    private final IdentityHashMap<Object, Object> keys = new IdentityHashMap<>();
+
+    /** Creates a PropertyIndex */
+    public PropertyIndex(final Property<?, ?> keyProperty) {
+        this.keyProperty = Objects.requireNonNull(keyProperty, "keyProperty");
+        if (keyProperty.getVirtual()) {
+            throw new IllegalArgumentException("keyProperty " + keyProperty
+                    + " cannot be virtual");
+        }
+    }
+
+    /** Returns the key of an element. */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private Object keyOf(final Object element) {
+        final Object key = ((Property) keyProperty).getObject(element);
+        return (key == null) ? NULL_KEY : key;
+    }
+
+    /** Returns the internal key for a lookup key. */
+    private static Object lookupKey(final Object key) {
+        return (key == null) ? NULL_KEY : key;
+    }
+
+    /** Returns true, if the element still has the given key. */
+    private boolean hasKey(final Object element, final Object key) {
+        return key.equals(keyOf(element));
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.ContentIndex#getKeyProperty()
+     */
+    @Override
+    public Property<?, ?> getKeyProperty() {
+        return keyProperty;
+    }
+
+    /**
+     * Adds an element to the index. An element that is already indexed
+     * (a duplicate in a list) is added again with the same key.
+     */
+    final void add(final E element) {
+        if (element != null) {
+            Object key = keys.get(element);
+            if (key == null) {
+                key = keyOf(element);
+                keys.put(element, key);
+            }
+            final Object current = map.get(key);
+            if (current == null) {
+                map.put(key, element);
+            } else if (current instanceof Object[]) {
+                final Object[] bucket = (Object[]) current;
+                final Object[] newBucket = Arrays.copyOf(bucket,
+                        bucket.length + 1);
+                newBucket[bucket.length] = element;
+                map.put(key, newBucket);
+            } else {
+                map.put(key, new Object[] { current, element });
+            }
+        }
+    }
+
+    /** Removes (one occurrence of) an element from the index. */
+    final void remove(final E element) {
+        if (element != null) {
+            final Object key = keys.get(element);
+            if ((key != null) && remove(key, element)
+                    && !contains(map.get(key), element)) {
+                keys.remove(element);
+            }
+        }
+    }
+
+    /** Returns true if the bucket contains the element. */
+    private static boolean contains(final Object current, final Object element) {
+        if (current instanceof Object[]) {
+            for (final Object o : (Object[]) current) {
+                if (o == element) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return (current == element);
+    }
+
+    /** Removes an element with a specific key from the index. */
+    private boolean remove(final Object key, final Object element) {
+        final Object current = map.get(key);
+        if (current == element) {
+            map.remove(key);
+            return true;
+        }
+        if (current instanceof Object[]) {
+            final Object[] bucket = (Object[]) current;
+            for (int i = 0; i < bucket.length; i++) {
+                if (bucket[i] == element) {
+                    if (bucket.length == 2) {
+                        map.put(key, bucket[1 - i]);
+                    } else {
+                        final Object[] newBucket = new Object[bucket.length - 1];
+                        System.arraycopy(bucket, 0, newBucket, 0, i);
+                        System.arraycopy(bucket, i + 1, newBucket, i,
+                                bucket.length - i - 1);
+                        map.put(key, newBucket);
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Clears the index. */
+    final void clear() {
+        map.clear();
+        keys.clear();
+    }
+
+    /** Re-indexes all the given elements. */
+    final void reindex(final Iterable<E> elements) {
+        clear();
+        for (final E e : elements) {
+            add(e);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.ContentIndex#containsKey(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.ContentIndex#get(java.lang.Object)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(final Object key) {
+        final Object k = lookupKey(key);
+        final Object current = map.get(k);
+        if (current instanceof Object[]) {
+            for (final Object o : (Object[]) current) {
+                if (hasKey(o, k)) {
+                    return (E) o;
+                }
+            }
+            return null;
+        }
+        return ((current != null) && hasKey(current, k)) ? (E) current : null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans.ContentIndex#getAll(java.lang.Object)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<E> getAll(final Object key) {
+        final Object k = lookupKey(key);
+        final Object current = map.get(k);
+        if (current instanceof Object[]) {
+            final Object[] bucket = (Object[]) current;
+            final List<E> result = new ArrayList<>(bucket.length);
+            for (final Object o : bucket) {
+                if (hasKey(o, k)) {
+                    result.add((E) o);
+                }
+            }
+            return result;
+        }
+        if ((current != null) && hasKey(current, k)) {
+            return Collections.singletonList((E) current);
+        }
+        return Collections.emptyList();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "PropertyIndex(" + keyProperty.fullName + ")";
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import com.blockwithme.meta.Type;
+import com.blockwithme.meta.beans._Bean;
+import com.blockwithme.meta.beans.annotations.ValidationException;
+import com.blockwithme.util.shared.MurmurHash;
+
+/**
+ * Base class for the concurrent collection beans.
+ *
+ * The content is split over a fixed number of "stripes", which are normal
+ * (single-threaded) collection beans, each protected by it's own
+ * read-write lock. The stripes are the children of the concurrent bean, so
+ * that the values get the normal parent/root tracking. Every stripe keeps
+ * it's own selection and change counter; those act as per-stripe change
+ * buffers, so that concurrent writers never share a selection bitmap.
+ *
+ * isSelectedRecursive() sees the changes of all stripes, but the inherited
+ * recursive operations (clearSelection(), setSelectionRecursive()) do not
+ * lock the stripes; use clearStripeSelections() while writers are active.
+ * Changing the parent of the concurrent bean itself is not thread-safe.
+ *
+ * @author monster
+ */
+public abstract class StripedBeanImpl<S extends _BeanImpl> extends _BeanImpl {
+
+    /** The stripes */
+    protected final S[] stripes;
+
+    /** The stripe locks */
+    private final ReentrantReadWriteLock[] locks;
+
+    /** The total size */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** The "soft" maximum size */
+    protected final int softMax;
+
+    /** The "hard" maximum size */
+    protected final int max;
+
+    /**
+     * Creates a StripedBeanImpl.
+     *
+     * @param metaType The type of the Bean; required
+     * @param stripes The (new, empty or not) stripes; required
+     * @param softMax The "soft" maximum size
+     * @param max The "hard" maximum size
+     */
+    protected StripedBeanImpl(final Type<?> metaType, final S[] stripes,
+            final int softMax, final int max) {
+        super(metaType);
+        if (Objects.requireNonNull(stripes, "stripes").length == 0) {
+            throw new IllegalArgumentException("stripes is empty");
+        }
+        if (softMax < 0) {
+            throw new IllegalArgumentException("softMax(" + softMax
+                    + ") cannot be less then 0");
+        }
+        if (max < softMax) {
+            throw new IllegalArgumentException("max(" + max
+                    + ") cannot be less then softMax(" + softMax + ")");
+        }
+        this.stripes = stripes;
+        this.softMax = softMax;
+        this.max = max;
+        locks = new ReentrantReadWriteLock[stripes.length];
+        int total = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+            stripes[i].setParentBeanAndKey(this, i);
+            total += stripeSize(stripes[i]);
+        }
+        size.set(total);
+    }
+
+    /** Returns the number of values in a stripe. */
+    protected abstract int stripeSize(S stripe);
+
+    /** Returns the index of the stripe of a (non-null) key or element. */
+    protected final int stripeOf(final Object key) {
+        // The stripes themselves use the low bits of the same hash
+        final long hash = MurmurHash.hash32(key.hashCode()) & 0xFFFFFFFFL;
+        return (int) ((hash * stripes.length) >>> 32);
+    }
+
+    /** Acquires the read lock of a stripe. */
+    protected final void readLock(final int stripe) {
+        locks[stripe].readLock().lock();
+    }
+
+    /** Releases the read lock of a stripe. */
+    protected final void readUnlock(final int stripe) {
+        locks[stripe].readLock().unlock();
+    }
+
+    /** Acquires the write lock of a stripe; fails if immutable. */
+    protected final void writeLock(final int stripe) {
+        if (isImmutable()) {
+            throw new UnsupportedOperationException(this + " is immutable!");
+        }
+        locks[stripe].writeLock().lock();
+    }
+
+    /** Releases the write lock of a stripe. */
+    protected final void writeUnlock(final int stripe) {
+        locks[stripe].writeLock().unlock();
+    }
+
+    /**
+     * Reserves room for one more value, before adding it. Must be undone
+     * with sizeChanged(-1), if the value is not added after all.
+     */
+    protected final void reserve() {
+        final int newSize = size.incrementAndGet();
+        if (newSize > max) {
+            size.decrementAndGet();
+            throw new ValidationException("newSize(" + newSize + ") > max("
+                    + max + ")");
+        }
+        if (newSize > softMax) {
+            final _Bean parent = getParentBean();
+            final Object key = getParentKey();
+            final String logger = ((parent == null) ? "null" : parent
+                    .getMetaType().toString())
+                    + "."
+                    + ((key == null) ? "null" : key.toString());
+            Logger.getLogger(logger).warning(
+                    "newSize(" + newSize + ") < softMax(" + softMax + ")");
+        }
+    }
+
+    /** Records a change of the total size. */
+    protected final void sizeChanged(final int delta) {
+        size.addAndGet(delta);
+    }
+
+    /** Returns the total size. */
+    public int size() {
+        return size.get();
+    }
+
+    /** Returns true, if empty. */
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /** Returns the number of stripes. */
+    public final int getStripeCount() {
+        return stripes.length;
+    }
+
+    /** Returns the sum of the change counters of the stripes. */
+    public final int getTotalChangeCounter() {
+        int result = getChangeCounter();
+        for (int i = 0; i < stripes.length; i++) {
+            readLock(i);
+            try {
+                result += stripes[i].getChangeCounter();
+            } finally {
+                readUnlock(i);
+            }
+        }
+        return result;
+    }
+
+    /** Clears the selection of all the stripes, under their write lock. */
+    public final void clearStripeSelections(final boolean alsoChangeCounter) {
+        for (int i = 0; i < stripes.length; i++) {
+            writeLock(i);
+            try {
+                stripes[i].clearSelection(alsoChangeCounter, true);
+            } finally {
+                writeUnlock(i);
+            }
+        }
+    }
+
+    /** Removes all the values. */
+    public void clear() {
+        for (int i = 0; i < stripes.length; i++) {
+            writeLock(i);
+            try {
+                final S stripe = stripes[i];
+                final int before = stripeSize(stripe);
+                clearStripe(stripe);
+                sizeChanged(stripeSize(stripe) - before);
+            } finally {
+                writeUnlock(i);
+            }
+        }
+    }
+
+    /** Clears one stripe. */
+    protected abstract void clearStripe(S stripe);
+
+    /** The content changes concurrently; it must not be cached. */
+    @Override
+    protected final boolean isToStringCacheable() {
+        return false;
+    }
+
+    /** Returns an Iterable<_Bean>, over the stripes */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Override
+    protected final Iterable<_Bean> getBeanIterator() {
+        return (Iterable) Arrays.asList(stripes);
+    }
+}
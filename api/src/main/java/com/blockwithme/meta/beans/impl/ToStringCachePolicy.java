@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.util.IdentityHashMap;
+import java.util.Objects;
+
+import com.blockwithme.meta.Type;
+
+/**
+ * Defines how the toString() (JSON) result of the beans of a Type is cached,
+ * until the next change.
+ *
+ * CACHED is the default. NONE saves the memory of the cached String, at the
+ * cost of rendering it every time. SOFT lets the GC drop the cached String
+ * when memory is low.
+ *
+ * INCREMENTAL also caches the String, but renders it by reusing the cached
+ * toString() of the child beans (see ToStringSerializer), so that
+ * re-rendering a large tree after a small change is cheap. The child beans
+ * are then self-contained JSON documents, so the result is not the same as
+ * toJSON(). Since equals() and hashCode() of beans are based on toString(),
+ * they change too; beans of a Type with different policies, for example
+ * before and after changing the policy, are not equal, and must not be
+ * mixed as Interner keys. Configure the policies before creating beans.
+ *
+ * The policy is configured per Type, and is not inherited by sub-types.
+ *
+ * @author monster
+ */
+public enum ToStringCachePolicy {
+    /** The toString() result is never cached. */
+    NONE,
+    /** The toString() result is cached. */
+    CACHED,
+    /** The toString() result is cached, through a SoftReference. */
+    SOFT,
+    /**
+     * The toString() result is cached, and reuses the cached toString() of
+     * the child beans. It is not the same as toJSON().
+     */
+    INCREMENTAL;
+
+    /** The configured policies. Copy-on-write. */
+    private static volatile IdentityHashMap<Type<?>, ToStringCachePolicy> policies = new IdentityHashMap<>();
+
+    /** Returns the policy of a Type. Defaults to CACHED. */
+    public static ToStringCachePolicy get(final Type<?> type) {
+        final IdentityHashMap<Type<?>, ToStringCachePolicy> map = policies;
+        if (map.isEmpty()) {
+            return CACHED;
+        }
+        final ToStringCachePolicy result = map.get(type);
+        return (result == null) ? CACHED : result;
+    }
+
+    /**
+     * Sets the policy of a Type. Beans that already cached their toString()
+     * result keep it until their next change.
+     */
+    public static synchronized void set(final Type<?> type,
+            final ToStringCachePolicy policy) {
+        Objects.requireNonNull(type, "type");
+        Objects.requireNonNull(policy, "policy");
+        final IdentityHashMap<Type<?>, ToStringCachePolicy> map = new IdentityHashMap<>(
+                policies);
+        if (policy == CACHED) {
+            map.remove(type);
+        } else {
+            map.put(type, policy);
+        }
+        policies = map;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl
+
+import com.blockwithme.meta.Type
+import com.fasterxml.jackson.core.JsonGenerator
+import com.google.common.io.CharStreams
+import java.util.ArrayList
+import java.util.List
+import java.util.Objects
+
+/**
+ * The JacksonSerializer used to render the toString() of beans.
+ *
+ * Normally, the output is the same as for toJSON(), except that the values of
+ * lazy properties are always written decoded (but not materialized), so that
+ * equals() and hashCode() do not depend on materialization. In "incremental" mode
+ * (see ToStringCachePolicy.INCREMENTAL), child beans are not visited; their
+ * own (normally cached) toString() is written "raw" instead, so that
+ * re-rendering a bean after a change only renders the changed part of the
+ * tree. Every child bean is then a self-contained JSON document: it's "#"
+ * positions start at 0, and it's "class" is always written.
+ *
+ * It also tells if the result can be cached. It cannot if it contains a bean
+ * that cannot cache it's own toString() (a concurrent bean), or, in
+ * incremental mode, if it contains a reference to a bean that is being
+ * rendered in an enclosing toString() (a cycle). Such a reference is visited
+ * normally, and becomes a "#" reference, so the result depends on where the
+ * rendering started.
+ *
+ * Finally, it collects the mutable beans whose state is part of the result,
+ * including those rendered by nested toString() calls, so that a cached
+ * result can be reset when one of them changes.
+ *
+ * @author monster
+ */
+class ToStringSerializer extends JacksonSerializer {
+
+	/** The serializers currently rendering, per thread; innermost last */
+	static val RENDERING = new ThreadLocal<ArrayList<ToStringSerializer>>
+
+	/** The rendered bean */
+	val _BeanImpl root
+
+	/** Are child beans written "raw"? */
+	val boolean incremental
+
+	/** The serializers currently rendering, in this thread */
+	val ArrayList<ToStringSerializer> rendering
+
+	/** The child bean that was just written "raw", if any */
+	var Object raw
+
+	/** Can the result be cached? */
+	var boolean cacheable = true
+
+	/** The mutable beans whose state is part of the result */
+	val rendered = new ArrayList<_BeanImpl>
+
+	/** Creates the ToStringSerializer */
+	new (JsonGenerator generator, Object output, _BeanImpl root, boolean incremental) {
+		super(generator, output)
+		this.root = Objects.requireNonNull(root, "root")
+		this.incremental = incremental
+		var list = RENDERING.get
+		if (list === null) {
+			list = new ArrayList
+			RENDERING.set(list)
+		}
+		rendering = list
+	}
+
+	/** Returns true, if the result can be cached. */
+	def boolean isCacheable() {
+		cacheable
+	}
+
+	/** Returns the mutable beans whose state is part of the result. */
+	def List<_BeanImpl> getRendered() {
+		rendered
+	}
+
+	/** Returns the index of the serializer rendering the instance, or -1. */
+	private def int renderingIndex(Object instance) {
+		var i = rendering.size - 1
+		while (i >= 0) {
+			if (rendering.get(i).root === instance) {
+				return i
+			}
+			i = i - 1
+		}
+		-1
+	}
+
+	/** Marks the results of the serializers after the given index as not cacheable. */
+	private def void notCacheableAfter(int index) {
+		for (i : index + 1 ..< rendering.size) {
+			rendering.get(i).cacheable = false
+		}
+	}
+
+	/** Lazy values are written decoded */
+	protected override boolean isLazyAsBinary() {
+		false
+	}
+
+	/** Writes child beans "raw", in incremental mode */
+	protected override beforeVisitInstance(Type<?> type, Object instance) {
+		if (instance instanceof _BeanImpl) {
+			if (!instance.isImmutable) {
+				rendered.add(instance)
+			}
+			if (!instance.isToStringCacheable) {
+				// Changes concurrently; all enclosing results too
+				notCacheableAfter(-1)
+			}
+			if (incremental) {
+				val index = renderingIndex(instance)
+				if (index < 0) {
+					generator.writeRawValue(instance.toString)
+					raw = instance
+					return false
+				}
+				// A cycle; the result depends on where the rendering started
+				notCacheableAfter(index)
+			}
+		}
+		super.beforeVisitInstance(type, instance)
+	}
+
+	/** Skips the end of child beans written "raw" */
+	protected override void afterVisitInstance(Type<?> type, Object instance, boolean visited) {
+		if ((raw !== null) && (instance === raw)) {
+			raw = null
+		} else {
+			super.afterVisitInstance(type, instance, visited)
+		}
+	}
+
+	/** Renders the root bean */
+	def void render() {
+		rendering.add(this)
+		try {
+			visit(root.metaType, root)
+			generator.flush()
+			generator.close()
+		} finally {
+			rendering.remove(rendering.size - 1)
+		}
+		if (!rendering.empty) {
+			// Nested in the toString() of a parent, which contains our result
+			rendering.get(rendering.size - 1).rendered.addAll(rendered)
+		}
+	}
+
+	/** Creates a new ToStringSerializer from an Appendable */
+	def static ToStringSerializer newToStringSerializer(Appendable out, _BeanImpl root, boolean incremental) {
+		new ToStringSerializer(FACTORY.createGenerator(CharStreams.asWriter(out)), out, root, incremental)
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.blockwithme.meta.Property;
+import com.blockwithme.meta.beans._Bean;
+
+/**
+ * Optimistic multi-version concurrency control (MVCC) over a Bean tree,
+ * typically rooted at an Entity.
+ *
+ * Every version of the tree is an immutable snapshot. Readers simply get the
+ * current version, without any lock, and can keep using it as long as they
+ * want. Writers begin() a Transaction, which gives them a private
+ * copy-on-write wrapper() of the current version; unchanged properties are
+ * read from the snapshot (see WrapperInterceptor), and changes only affect
+ * the wrapper.
+ *
+ * commit() validates the Transaction, and atomically publishes a new
+ * version. Every property of the root has a version stamp: the version that
+ * last changed it. A Transaction conflicts, if one of the properties it
+ * changed (the selected properties of the wrapper) was changed by another
+ * commit, after the version the Transaction started from. Changes to other
+ * properties are merged. The conflict detection is therefore per property
+ * of the root; child Beans of a snapshot are immutable, and must be replaced
+ * (copy, modify, set) within a Transaction.
+ *
+ * @author monster
+ */
+public class VersionedTree<B extends _Bean> {
+
+    /** A version of the tree. */
+    public static final class Version<B extends _Bean> {
+        /** The version number */
+        public final long version;
+
+        /** The immutable snapshot */
+        public final B snapshot;
+
+        /** The version that last changed each root property */
+        private final long[] stamps;
+
+        /** Creates a Version */
+        Version(final long version, final B snapshot, final long[] stamps) {
+            this.version = version;
+            this.snapshot = snapshot;
+            this.stamps = stamps;
+        }
+
+        /** Returns the version that last changed the property. */
+        public long getStamp(final Property<?, ?> prop) {
+            return stamps[snapshot.indexOfProperty(prop)];
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "Version(" + version + ")";
+        }
+    }
+
+    /** A write Transaction. Not thread-safe. */
+    public static final class Transaction<B extends _Bean> {
+        /** The VersionedTree */
+        private final VersionedTree<B> tree;
+
+        /** The version we started from */
+        public final Version<B> base;
+
+        /** The private, copy-on-write, wrapper */
+        private final B wrapper;
+
+        /** Are we done? */
+        private boolean done;
+
+        /** Creates a Transaction */
+        Transaction(final VersionedTree<B> tree, final Version<B> base,
+                final B wrapper) {
+            this.tree = tree;
+            this.base = base;
+            this.wrapper = wrapper;
+        }
+
+        /** Returns the private wrapper, to read and modify. */
+        public B get() {
+            if (done) {
+                throw new IllegalStateException("Transaction is over");
+            }
+            return wrapper;
+        }
+
+        /**
+         * Commits the changes, and returns the new Version (or the current
+         * one, if nothing changed).
+         *
+         * @throws ConcurrentModificationException on conflict
+         */
+        public Version<B> commit() {
+            if (done) {
+                throw new IllegalStateException("Transaction is over");
+            }
+            done = true;
+            return tree.commit(this);
+        }
+
+        /** Abandons the changes. */
+        public void rollback() {
+            done = true;
+        }
+    }
+
+    /** The current version */
+    private final AtomicReference<Version<B>> current;
+
+    /** The number of conflicts so far */
+    private final AtomicLong conflicts = new AtomicLong();
+
+    /** Creates a VersionedTree, with version 0 being a snapshot of root. */
+    @SuppressWarnings("unchecked")
+    public VersionedTree(final B root) {
+        final B snapshot = (B) Objects.requireNonNull(root, "root").snapshot();
+        current = new AtomicReference<>(new Version<B>(0, snapshot,
+                new long[snapshot.getMetaType().inheritedPropertyCount]));
+    }
+
+    /** Returns the current Version. Lock-free. */
+    public Version<B> current() {
+        return current.get();
+    }
+
+    /** Returns the current immutable snapshot. Lock-free. */
+    public B read() {
+        return current.get().snapshot;
+    }
+
+    /** Returns the number of conflicts so far. */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    /** Begins a write Transaction, on the current version. */
+    @SuppressWarnings("unchecked")
+    public Transaction<B> begin() {
+        final Version<B> base = current.get();
+        return new Transaction<B>(this, base, (B) base.snapshot.wrapper());
+    }
+
+    /** Validates and publishes a Transaction. */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Version<B> commit(final Transaction<B> tx) {
+        final B wrapper = tx.wrapper;
+        if ((wrapper.getChangeCounter() == 0) || !wrapper.isSelected()) {
+            return current.get();
+        }
+        final List<Property<?, ?>> changed = new ArrayList<>();
+        wrapper.getSelectedProperty(changed);
+        // Freezes the changed values; unchanged ones come from the base
+        final B changes = (B) wrapper.snapshot();
+        while (true) {
+            final Version<B> now = current.get();
+            final long[] stamps = now.stamps.clone();
+            for (final Property<?, ?> p : changed) {
+                final int index = now.snapshot.indexOfProperty(p);
+                if (stamps[index] > tx.base.version) {
+                    conflicts.incrementAndGet();
+                    throw new ConcurrentModificationException(p.fullName
+                            + " was changed by version " + stamps[index]
+                            + " after version " + tx.base.version);
+                }
+                stamps[index] = now.version + 1;
+            }
+            final B next;
+            if (now == tx.base) {
+                next = changes;
+            } else {
+                // Merge our changes into the newer version
+                final B merged = (B) now.snapshot.copy();
+                for (final Property p : changed) {
+                    p.copyValue(changes, merged);
+                }
+                next = (B) merged.snapshot();
+            }
+            final Version<B> result = new Version<B>(now.version + 1, next,
+                    stamps);
+            if (current.compareAndSet(now, result)) {
+                return result;
+            }
+            // Another commit won the race; validate again against it
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "VersionedTree(" + current.get() + ")";
+    }
+}
@@ -29,6 +29,9 @@ import com.blockwithme.meta.beans._Bean
 /**
  * Interceptor for "wrapper" beans.
  *
+ * Reads are only recorded in the AccessHeatmap when the value does not
+ * come from the delegate, since the interceptor of the delegate records them.
+ *
  * @author monster
  */
 @SuppressWarnings("unchecked")
@@ -39,6 +42,7 @@ class WrapperInterceptor extends DefaultInterceptor {
 	override boolean getBooleanProperty(_Bean instance, BooleanProperty prop, boolean value) {
         val delegate = instance.getDelegate()
         if ((delegate === null) || instance.isSelected(prop)) {
+            AccessHeatmap.read(instance, prop)
             return value
         }
         return prop.getBoolean(delegate)
@@ -47,6 +51,7 @@ class WrapperInterceptor extends DefaultInterceptor {
 	override byte getByteProperty(_Bean instance, ByteProperty prop, byte value) {
         val delegate = instance.getDelegate()
         if ((delegate === null) || instance.isSelected(prop)) {
+            AccessHeatmap.read(instance, prop)
             return value
         }
         return prop.getByte(delegate)
@@ -55,6 +60,7 @@ class WrapperInterceptor extends DefaultInterceptor {
 	override char getCharacterProperty(_Bean instance, CharacterProperty prop, char value) {
         val delegate = instance.getDelegate()
         if ((delegate === null) || instance.isSelected(prop)) {
+            AccessHeatmap.read(instance, prop)
             return value
         }
         return prop.getChar(delegate)
@@ -63,6 +69,7 @@ class WrapperInterceptor extends DefaultInterceptor {
 	override short getShortProperty(_Bean instance, ShortProperty prop, short value) {
         val delegate = instance.getDelegate()
         if ((delegate === null) || instance.isSelected(prop)) {
+            AccessHeatmap.read(instance, prop)
             return value
         }
         return prop.getShort(delegate)
@@ -71,6 +78,7 @@ class WrapperInterceptor extends DefaultInterceptor {
 	override int getIntegerProperty(_Bean instance, IntegerProperty prop, int value) {
         val delegate = instance.getDelegate()
         if ((delegate === null) || instance.isSelected(prop)) {
+            AccessHeatmap.read(instance, prop)
             return value
         }
         return prop.getInt(delegate)
@@ -79,6 +87,7 @@ class WrapperInterceptor extends DefaultInterceptor {
 	override float getFloatProperty(_Bean instance, FloatProperty prop, float value) {
         val delegate = instance.getDelegate()
         if ((delegate === null) || instance.isSelected(prop)) {
+            AccessHeatmap.read(instance, prop)
             return value
         }
         return prop.getFloat(delegate)
@@ -87,6 +96,7 @@ class WrapperInterceptor extends DefaultInterceptor {
 	override double getDoubleProperty(_Bean instance, DoubleProperty prop, double value) {
         val delegate = instance.getDelegate()
         if ((delegate === null) || instance.isSelected(prop)) {
+            AccessHeatmap.read(instance, prop)
             return value
         }
         return prop.getDouble(delegate)
@@ -95,6 +105,7 @@ class WrapperInterceptor extends DefaultInterceptor {
 	override long getLongProperty(_Bean instance, LongProperty prop, long value) {
         val delegate = instance.getDelegate()
         if ((delegate === null) || instance.isSelected(prop)) {
+            AccessHeatmap.read(instance, prop)
             return value
         }
         return prop.getLong(delegate)
@@ -103,6 +114,7 @@ class WrapperInterceptor extends DefaultInterceptor {
 	override <E> getObjectProperty(_Bean instance, ObjectProperty<?, E,?,?> prop, E value) {
         val delegate = instance.getDelegate()
         if ((delegate === null) || instance.isSelected(prop)) {
+            AccessHeatmap.read(instance, prop)
             return value
         }
         val p = prop as ObjectProperty
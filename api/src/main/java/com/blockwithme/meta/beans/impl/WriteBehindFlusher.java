@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.beans.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.blockwithme.meta.beans._Entity;
+
+/**
+ * Write-behind persistence of dirty Entities.
+ *
+ * Registered Entities are scanned by flush(). The dirty ones (those with
+ * isSelectedRecursive()) have their delta (see DeltaSerializer) appended to
+ * a log file, as one JSON line per Entity. The subtree dirty flags of the
+ * Entities are used, so that clean Entities, and the clean subtrees of the
+ * dirty ones, are neither visited by flush(), nor by the clearing of the
+ * selection:
+ *
+ * {"entity":"namespace:id","time":lastModificationTime,"delta":{...}}
+ *
+ * The lines are written in batches of at most maxBatch Entities, and every
+ * batch is made durable with a single FileChannel.force() ("fsync"). Only
+ * then is the selection of the Entities of the batch cleared, so that a
+ * failed write leaves them dirty, to be written again on the next flush.
+ * The file is truncated back to the start of a failed batch, so that the
+ * lines written before the failure are not duplicated by the next flush.
+ *
+ * flush() can be called explicitly, on a schedule (see start()), or under
+ * memory pressure (see flushIfMemoryLow()). Since Entities are not
+ * thread-safe, flush() must run in the thread owning the Entities; the
+ * ScheduledExecutorService passed to start() must therefore be that thread.
+ *
+ * @author monster
+ */
+public class WriteBehindFlusher implements Closeable {
+
+    /** The Logger */
+    private static final Logger LOG = Logger.getLogger(WriteBehindFlusher.class
+            .getName());
+
+    /** UTF-8 */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The log file */
+    public final File file;
+
+    /** The maximum number of Entities per batch */
+    private final int maxBatch;
+
+    /** The output stream */
+    private final FileOutputStream out;
+
+    /** The file channel */
+    private final FileChannel channel;
+
+    /** The registered Entities */
+    private final Set<_Entity> entities = Collections
+            .newSetFromMap(new IdentityHashMap<_Entity, Boolean>());
+
+    /** The scheduled flushes, if any */
+    private ScheduledFuture<?> scheduled;
+
+    /** The number of Entities written so far */
+    private long written;
+
+    /** The number of batches written so far */
+    private long batches;
+
+    /**
+     * Creates a WriteBehindFlusher, appending to the given log file.
+     *
+     * @param file The log file. Created if needed. Cannot be null.
+     * @param maxBatch The maximum number of Entities per fsync (>= 1)
+     */
+    public WriteBehindFlusher(final File file, final int maxBatch)
+            throws IOException {
+        this.file = Objects.requireNonNull(file, "file");
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch: " + maxBatch);
+        }
+        this.maxBatch = maxBatch;
+        out = new FileOutputStream(file, true);
+        channel = out.getChannel();
+    }
+
+    /** Registers an Entity. */
+    public synchronized void register(final _Entity entity) {
+        entities.add(Objects.requireNonNull(entity, "entity"));
+    }
+
+    /** Unregisters an Entity. */
+    public synchronized void unregister(final _Entity entity) {
+        entities.remove(entity);
+    }
+
+    /** Returns the number of registered Entities. */
+    public synchronized int getRegisteredCount() {
+        return entities.size();
+    }
+
+    /** Returns the number of Entities written so far. */
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    /** Returns the number of batches written so far. */
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    /** Appends the delta of an Entity, as one JSON line. */
+    private static void writeDelta(final _Entity entity, final StringWriter buf)
+            throws IOException {
+        final DeltaSerializer j = DeltaSerializer.newDeltaSerializer(buf);
+        j.generator.writeStartObject();
+        j.generator.writeStringField("entity", entity.getHandle().toString());
+        j.generator.writeNumberField("time",
+                entity.getLastModificationTime());
+        j.generator.writeFieldName("delta");
+        j.visit(entity.getMetaType(), entity);
+        j.generator.writeEndObject();
+        j.generator.flush();
+        j.generator.close();
+        buf.write('\n');
+    }
+
+    /** Appends the bytes to the log file. */
+    protected void write(final FileChannel channel, final ByteBuffer bytes)
+            throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /** Writes, and forces, one batch; then clears the selection. */
+    private void writeBatch(final List<_Entity> batch, final StringWriter buf)
+            throws IOException {
+        final ByteBuffer bytes = ByteBuffer.wrap(buf.toString().getBytes(UTF8));
+        final long start = channel.size();
+        try {
+            write(channel, bytes);
+            channel.force(false);
+        } catch (final IOException e) {
+            // The whole batch will be written again
+            try {
+                channel.truncate(start);
+            } catch (final IOException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        }
+        for (final _Entity entity : batch) {
+            // Only visits the dirty subtrees
+            entity.clearSelection(false, true);
+        }
+        written += batch.size();
+        batches++;
+        batch.clear();
+        buf.getBuffer().setLength(0);
+    }
+
+    /** Returns true, if the Entity is dirty; O(1) for clean Entities. */
+    private static boolean isDirty(final _Entity entity) {
+        if ((entity instanceof _BeanImpl)
+                && !((_BeanImpl) entity).isSubtreeDirty()) {
+            return false;
+        }
+        return entity.isSelectedRecursive();
+    }
+
+    /**
+     * Writes the deltas of all dirty registered Entities, and clears their
+     * selection. Returns the number of Entities written.
+     */
+    public synchronized int flush() throws IOException {
+        final List<_Entity> batch = new ArrayList<>(Math.min(maxBatch,
+                entities.size()));
+        final StringWriter buf = new StringWriter(1024);
+        int result = 0;
+        for (final _Entity entity : entities) {
+            if (isDirty(entity)) {
+                writeDelta(entity, buf);
+                batch.add(entity);
+                result++;
+                if (batch.size() == maxBatch) {
+                    writeBatch(batch, buf);
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            writeBatch(batch, buf);
+        }
+        return result;
+    }
+
+    /**
+     * Flushes, if the used heap is above the given fraction of the maximum
+     * heap. Returns the number of Entities written.
+     */
+    public int flushIfMemoryLow(final double maxUsedFraction)
+            throws IOException {
+        final Runtime rt = Runtime.getRuntime();
+        final long used = rt.totalMemory() - rt.freeMemory();
+        if (used > maxUsedFraction * rt.maxMemory()) {
+            return flush();
+        }
+        return 0;
+    }
+
+    /**
+     * Schedules periodic flushes. The executor must run in the thread owning
+     * the Entities.
+     */
+    public synchronized void start(final ScheduledExecutorService executor,
+            final long period, final TimeUnit unit) {
+        if (scheduled != null) {
+            throw new IllegalStateException("Already started");
+        }
+        scheduled = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (final IOException e) {
+                    LOG.log(Level.SEVERE, "Failed to flush to " + file, e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /** Stops the periodic flushes, if any. */
+    public synchronized void stop() {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+    }
+
+    /** Stops, does a last flush, and closes the log file. */
+    @Override
+    public synchronized void close() throws IOException {
+        stop();
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "WriteBehindFlusher(file=" + file + ")";
+    }
+}
@@ -16,15 +16,19 @@
 package com.blockwithme.meta.beans.impl;
 
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.logging.Logger;
 
 import com.blockwithme.meta.IProperty;
@@ -34,6 +38,7 @@ import com.blockwithme.meta.Property;
 import com.blockwithme.meta.Type;
 import com.blockwithme.meta.beans.Bean;
 import com.blockwithme.meta.beans.BeanPath;
+import com.blockwithme.meta.beans.BeanPathSink;
 import com.blockwithme.meta.beans.Entity;
 import com.blockwithme.meta.beans.Interceptor;
 import com.blockwithme.meta.beans.Meta;
@@ -46,6 +51,51 @@ import com.blockwithme.util.base.SystemUtils;
  * This class is written in Java, due to the inability of Xtend to
  * use bitwise operators!
  *
+ * To keep small Beans small, the per-instance "header" only contains the
+ * commonly used fields. The delegate, the cached toString, and the
+ * additional selection flags are in an Extension, allocated on first use.
+ * The @FixedFootprint of _Bean must match the header fields.
+ *
+ * Immutable Beans can be shared by many reader threads. makeImmutable() is
+ * a volatile write, done after all the values of the Bean (and of it's
+ * immutable children) were set, and isImmutable() is a volatile read. A
+ * reader that checks isImmutable() once, after obtaining the reference, sees
+ * the complete frozen tree, even if the reference was published through a
+ * data race. Reading an immutable Bean requires no lock, and the lazily
+ * cached state (toString, hashCode) is race-benign: concurrent readers at
+ * worst compute the same value more than once.
+ *
+ * Every Bean also has two "subtree" flags, meaning that some descendant
+ * might be selected, or might have a non-zero change counter. They are set
+ * on all ancestors (through parentBean) when a descendant changes, stopping
+ * at the first ancestor that already has them, and cleared by
+ * clearSelection(..., true). isSelectedRecursive() and
+ * clearSelection(..., true) use them to skip the clean subtrees of the
+ * children; values that are not children (Entities, immutable values, the
+ * values of a delegate) are always visited, as before. The flags are never
+ * set on a concurrent (striped) Bean, or above it, by the stripe writers,
+ * since they would race on the flags. Instead, the ancestors of a striped
+ * Bean get a third, "sticky" flag when it is attached, which is never
+ * cleared, so that the path to it is always visited.
+ *
+ * A cached toString contains the state of the whole rendered subtree, so a
+ * change must also reset the cached toString of the ancestors. To keep
+ * writes O(1) when nothing is cached, every Bean rendered into a cached
+ * toString gets the "in cached string" flag. A change only walks up while
+ * the Bean, and then it's ancestors, have the flag, clearing it together
+ * with their cached toString. A Bean without the flag is not part of any
+ * cached toString, so neither are the ancestors above it.
+ *
+ * The root Bean is resolved lazily, and cached with the "tree epoch" of the
+ * root. A cached root is valid as long as it is still a root, and it's tree
+ * epoch did not change. Detaching a subtree increments the tree epoch of the
+ * old root (and of the detached Bean, which becomes a root), so only the
+ * cached roots of that tree are invalidated, and attaching a subtree
+ * invalidates the cached roots pointing at it, because it is not a root
+ * anymore. getRootBean() recomputes an invalid root, walking up to the first
+ * ancestor with a valid cached root. Moving a large subtree is therefore
+ * O(1), and does not affect other trees.
+ *
  * @author monster
  */
 public abstract class _BeanImpl implements _Bean {
@@ -108,9 +158,10 @@ public abstract class _BeanImpl implements _Bean {
     /** An Iterable<_Bean>, over the property values */
     protected class SubBeanIterator implements Iterable<_Bean>, Iterator<_Bean> {
 
-        /** The properties */
+        /** The Bean properties */
         @SuppressWarnings("rawtypes")
-        private final ObjectProperty[] properties = metaType.inheritedObjectProperties;
+        private final ObjectProperty[] properties = metaType
+                .propertiesWithContent(Meta.BEAN);
 
         /** The next _Bean, if any. */
         private _Bean next;
@@ -125,7 +176,8 @@ public abstract class _BeanImpl implements _Bean {
         private void findNext() {
             while (nextIndex < properties.length) {
                 final ObjectProperty p = properties[nextIndex];
-                if (isBean(p)) {
+                // A lazy value is not materialized (and so unchanged) yet
+                if (!hasLazyValue(p)) {
                     next = (_Bean) p.getObject(_BeanImpl.this);
                     if (next != null) {
                         return;
@@ -189,9 +241,60 @@ public abstract class _BeanImpl implements _Bean {
     /** Empty int[], used in selectedArray */
     private static final int[] NO_INT = new int[0];
 
+    /** The "immutable" flag */
+    private static final byte IMMUTABLE = 1;
+
+    /** The "under construction" flag */
+    private static final byte UNDER_CONSTRUCTION = 2;
+
+    /** The "some descendant might be selected" flag */
+    private static final byte SELECTED_CHILD = 4;
+
+    /** The "some descendant might have a non-zero change counter" flag */
+    private static final byte CHANGED_CHILD = 8;
+
+    /** The "some descendant is a striped Bean" flag; never cleared. */
+    private static final byte STRIPED_CHILD = 16;
+
+    /**
+     * The "state might be part of a cached toString" flag, of this Bean or
+     * of an ancestor.
+     */
+    private static final byte IN_CACHED_STRING = 32;
+
+    /**
+     * The rarely used state of a Bean. It is only allocated on first use,
+     * so that most Beans only pay for a single (null) reference.
+     */
+    private static final class Extension {
+        /**
+         * Optional "delegate"; must have the same type as "this".
+         * Allows re-using the same generated code for "wrappers" ...
+         */
+        _Bean delegate;
+
+        /** More "selected" flags, if 32 is not enough, or if the number varies */
+        int[] selectedArray = NO_INT;
+
+        /**
+         * Lazily cached toString result (null == not computed yet)
+         * Either a String, or a SoftReference to a String (see
+         * ToStringCachePolicy). Cleared automatically when the "state" of the
+         * Bean, or of one of it's children, changes.
+         */
+        Object toString;
+
+        /** The encoded, not yet materialized, Property values (see LazyInterceptor) */
+        Map<Property<?, ?>, Object> lazyValues;
+    }
+
     /** Reasonable maximum size. */
     private static final int MAX_SIZE = 65536;
 
+    /** Updates treeEpoch atomically; stripe writers can detach concurrently. */
+    private static final AtomicIntegerFieldUpdater<_BeanImpl> TREE_EPOCH = AtomicIntegerFieldUpdater
+            .newUpdater(_BeanImpl.class, "treeEpoch");
+
     /** Our meta type */
     protected final Type<?> metaType;
 
@@ -201,15 +304,6 @@ public abstract class _BeanImpl implements _Bean {
      */
     protected Interceptor interceptor = DefaultInterceptor.INSTANCE;
 
-    /**
-     * Optional "delegate"; must have the same type as "this".
-     * Allows re-using the same generated code for "wrappers" ...
-     */
-    protected _Bean delegate;
-
-    /** Are we immutable? */
-    private boolean immutable;
-
     /**
      * The "parent" Bean, if any.
      *
@@ -221,10 +315,20 @@ public abstract class _BeanImpl implements _Bean {
     private _Bean parentBean;
 
     /**
-     * The "root" Bean, if any. This root field is *managed automatically*.
+     * The cached "root" Bean, if any. Only valid if it is still a root, and
+     * rootEpoch is it's tree epoch. This root field is *managed automatically*.
      */
     private _Bean rootBean;
 
+    /** The tree epoch of rootBean, when it was cached. */
+    private int rootEpoch;
+
+    /**
+     * The tree epoch, only used while this Bean is a root. Incremented when
+     * a subtree is detached from this tree, or when this Bean becomes a root.
+     */
+    private volatile int treeEpoch;
+
     /**
      * The key/index in the "parent", if any.
      * It is by convention the property full name, unless the parent is a _CollectionBean or a _MapBean.
@@ -234,30 +338,132 @@ public abstract class _BeanImpl implements _Bean {
     /** 32 "selected" flags */
     private int selected;
 
-    /** More "selected" flags, if 32 is not enough, or if the number varies */
-    private int[] selectedArray;
-
     /** The change counter */
     private int changeCounter;
 
     /**
-     * Lazily cached toString result (null == not computed yet)
-     * Cleared automatically when the "state" of the Bean changes.
+     * The immutable, under construction, and subtree flags.
+     * Volatile, so that freezing is a "release", and isImmutable() an "acquire".
      */
-    protected transient String toString;
+    private volatile byte flags;
+
+    /** The rarely used state, if any. */
+    private transient Extension extension;
 
-    /** Speeds up, looking up Property indexes. */
-    private transient Property<?, ?> lastIndexedProp;
+    /** Returns the Extension, creating it if needed. */
+    private Extension extension() {
+        Extension result = extension;
+        if (result == null) {
+            result = new Extension();
+            extension = result;
+        }
+        return result;
+    }
 
-    /** Speeds up, looking up Property indexes. */
-    private transient int lastIndexedPropIndex = -1;
+    /** Returns the additional "selected" flags. */
+    private int[] selectedArray() {
+        final Extension ext = extension;
+        // An Extension created concurrently, by a reader of an immutable
+        // Bean, could be seen without it's initial (non-null) value
+        final int[] result = (ext == null) ? null : ext.selectedArray;
+        return (result == null) ? NO_INT : result;
+    }
 
-    /** The "under construction" flag */
-    private transient boolean underConstruction;
+    /** Returns the delegate, if any. */
+    private _Bean delegate() {
+        final Extension ext = extension;
+        return (ext == null) ? null : ext.delegate;
+    }
 
-    /** Resets the cached state (when something changes) */
+    /**
+     * Resets the cached state (when something changes). Our JSON might be
+     * part of the cached JSON of our ancestors; we only walk up while the
+     * Beans are marked as part of a cached toString. Immutable and
+     * concurrent Beans are never marked (see ToStringSerializer).
+     */
     private void resetCachedState() {
-        toString = null;
+        final Extension ext = extension;
+        if (ext != null) {
+            ext.toString = null;
+        }
+        _BeanImpl b = this;
+        while ((b.flags & IN_CACHED_STRING) != 0) {
+            b.flags &= ~IN_CACHED_STRING;
+            final Extension e = b.extension;
+            if (e != null) {
+                e.toString = null;
+            }
+            final _Bean parent = b.parentBean;
+            if (!(parent instanceof _BeanImpl)) {
+                break;
+            }
+            b = (_BeanImpl) parent;
+        }
+    }
+
+    /**
+     * Marks the Beans rendered into a toString that was just cached. They
+     * are all mutable, and parts of the tree of this Bean.
+     */
+    private static void markInCachedString(final List<_BeanImpl> rendered) {
+        for (final _BeanImpl b : rendered) {
+            final byte f = b.flags;
+            if ((f & IN_CACHED_STRING) == 0) {
+                b.flags = (byte) (f | IN_CACHED_STRING);
+            }
+        }
+    }
+
+    /**
+     * Sets the given subtree flags on all (mutable) ancestors, stopping at
+     * the first that already has them; it's own ancestors have them too.
+     * Also stops at a striped Bean, which is written to by concurrent stripe
+     * writers; it's ancestors always visit it (see STRIPED_CHILD).
+     */
+    private void markAncestors(final byte childFlags) {
+        _Bean p = parentBean;
+        while ((p instanceof _BeanImpl) && !(p instanceof StripedBeanImpl)) {
+            final _BeanImpl b = (_BeanImpl) p;
+            final byte f = b.flags;
+            if (((f & childFlags) == childFlags) || ((f & IMMUTABLE) != 0)) {
+                break;
+            }
+            b.flags = (byte) (f | childFlags);
+            p = b.parentBean;
+        }
+    }
+
+    /** Returns the subtree flags, that the parent of this Bean needs. */
+    private byte subtreeFlags() {
+        final byte f = flags;
+        byte result = 0;
+        if (((f & SELECTED_CHILD) != 0) || isSelected()) {
+            result |= SELECTED_CHILD;
+        }
+        if (((f & CHANGED_CHILD) != 0) || (changeCounter != 0)) {
+            result |= CHANGED_CHILD;
+        }
+        if (((f & STRIPED_CHILD) != 0) || (this instanceof StripedBeanImpl)) {
+            result |= STRIPED_CHILD;
+        }
+        return result;
+    }
+
+    /**
+     * Returns true, if this Bean, or some descendant, might be selected.
+     * Cheap and conservative; false means the subtree is clean.
+     */
+    public final boolean isSubtreeDirty() {
+        return (subtreeFlags() & (SELECTED_CHILD | STRIPED_CHILD)) != 0;
+    }
+
+    /** Sets or clears the under construction flag. */
+    private void setUnderConstruction(final boolean value) {
+        if (value) {
+            flags |= UNDER_CONSTRUCTION;
+        } else {
+            flags &= ~UNDER_CONSTRUCTION;
+        }
     }
 
     /** Compares two boolean */
@@ -322,7 +528,7 @@ public abstract class _BeanImpl implements _Bean {
             throw new IllegalArgumentException("bitsMinCapacity ("
                     + bitsMinCapacity + ") > MAX_SIZE=" + MAX_SIZE);
         }
-        final int[] array = selectedArray;
+        final int[] array = selectedArray();
         final int oldArrayCapacity = array.length;
         int minCapacity = bitsMinCapacity / 32;
         if (bitsMinCapacity % 32 != 0) {
@@ -330,14 +536,18 @@ public abstract class _BeanImpl implements _Bean {
         }
         // +1 because of the "selected" int field
         if (minCapacity > oldArrayCapacity + 1) {
-            selectedArray = new int[minCapacity - 1];
-            System.arraycopy(array, 0, selectedArray, 0, oldArrayCapacity);
+            final int[] newArray = new int[minCapacity - 1];
+            System.arraycopy(array, 0, newArray, 0, oldArrayCapacity);
+            extension().selectedArray = newArray;
         }
     }
 
     /** For special beans with variable size, we can clear the selection array. */
     protected final void clearSelectionArray() {
-        selectedArray = NO_INT;
+        final Extension ext = extension;
+        if (ext != null) {
+            ext.selectedArray = NO_INT;
+        }
     }
 
     /** The constructor; metaType is required. */
@@ -372,8 +582,9 @@ public abstract class _BeanImpl implements _Bean {
         if (propertyCount % 32 != 0) {
             arraySizePlusOne++;
         }
-        selectedArray = (arraySizePlusOne <= 1) ? NO_INT
-                : new int[arraySizePlusOne - 1];
+        if (arraySizePlusOne > 1) {
+            extension().selectedArray = new int[arraySizePlusOne - 1];
+        }
     }
 
     /** Returns our metaType. Cannot be null. */
@@ -382,16 +593,22 @@ public abstract class _BeanImpl implements _Bean {
         return metaType;
     }
 
-    /** Returns true if we are immutable */
+    /**
+     * Returns true if we are immutable. This is a volatile read; after it
+     * returned true, all the values of the frozen Bean tree are visible.
+     */
     @Override
     public final boolean isImmutable() {
-        return immutable;
+        return (flags & IMMUTABLE) != 0;
     }
 
-    /** Sets the immutable flag to true. */
+    /**
+     * Sets the immutable flag to true. This is a volatile write, which
+     * safely publishes all the values set before.
+     */
     @Override
     public final void makeImmutable() {
-        immutable = true;
+        flags |= IMMUTABLE;
     }
 
     /** Returns true if some property is "selected" */
@@ -400,7 +617,7 @@ public abstract class _BeanImpl implements _Bean {
         if (selected != 0) {
             return true;
         }
-        final int[] array = selectedArray;
+        final int[] array = selectedArray();
         for (final int l : array) {
             if (l != 0) {
                 return true;
@@ -416,13 +633,26 @@ public abstract class _BeanImpl implements _Bean {
             return true;
         }
         for (final _Bean value : getBeanIterator()) {
-            if (value.isSelectedRecursive()) {
+            if (!isCleanChild(value, SELECTED_CHILD)
+                    && value.isSelectedRecursive()) {
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Returns true, if the value is a child of this Bean (not an Entity, an
+     * immutable value, or a value of the delegate), and has none of the
+     * given subtree flags. A striped Bean, or an ancestor of one, is never
+     * clean.
+     */
+    private boolean isCleanChild(final _Bean value, final byte mask) {
+        return (value instanceof _BeanImpl)
+                && (value.getParentBean() == this)
+                && ((((_BeanImpl) value).subtreeFlags() & (mask | STRIPED_CHILD)) == 0);
+    }
+
     /** Returns true if the specified property was selected */
     @Override
     public final boolean isSelected(final Property<?, ?> prop) {
@@ -435,21 +665,15 @@ public abstract class _BeanImpl implements _Bean {
         if (index < 32) {
             return (selected & (1 << index)) != 0;
         }
-        final int sel = selectedArray[index / 32 - 1];
+        final int sel = selectedArray()[index / 32 - 1];
         return (sel & (1 << (index % 32))) != 0;
     }
 
     /** Returns the index to use for this property. */
     @Override
     public final int indexOfProperty(final Property<?, ?> prop) {
-        final int result;
-        if (prop == lastIndexedProp) {
-            result = lastIndexedPropIndex;
-        } else {
-            result = prop.inheritedPropertyId(metaType);
-            lastIndexedProp = prop;
-            lastIndexedPropIndex = result;
-        }
+        // inheritedPropertyId() is already cached per Property and Type
+        final int result = prop.inheritedPropertyId(metaType);
         if (result < 0) {
             throw new IllegalArgumentException("Property " + prop.fullName
                     + " unknown in " + metaType.fullName);
@@ -466,15 +690,16 @@ public abstract class _BeanImpl implements _Bean {
     /** Marks the specified property as selected */
     @Override
     public final void setSelected(final int index) {
-        if (immutable) {
+        if (isImmutable()) {
             throw new UnsupportedOperationException(this + " is immutable!");
         }
         changeCounter++;
         if (index < 32) {
             selected |= (1 << index);
         } else {
-            selectedArray[index / 32 - 1] |= (1 << (index % 32));
+            selectedArray()[index / 32 - 1] |= (1 << (index % 32));
         }
+        markAncestors((byte) (SELECTED_CHILD | CHANGED_CHILD));
         // Setting the selected flag also means the content will probably change
         // so we reset the cached state.
         resetCachedState();
@@ -486,7 +711,7 @@ public abstract class _BeanImpl implements _Bean {
      */
     @Override
     public final void setSelectedFrom(final int index) {
-        if (immutable) {
+        if (isImmutable()) {
             throw new UnsupportedOperationException(this + " is immutable!");
         }
         changeCounter++;
@@ -495,9 +720,10 @@ public abstract class _BeanImpl implements _Bean {
             if (i < 32) {
                 selected |= (1 << i);
             } else {
-                selectedArray[i / 32 - 1] |= (1 << (i % 32));
+                selectedArray()[i / 32 - 1] |= (1 << (i % 32));
             }
         }
+        markAncestors((byte) (SELECTED_CHILD | CHANGED_CHILD));
         // Setting the selected flag also means the content will probably change
         // so we reset the cached state.
         resetCachedState();
@@ -507,20 +733,20 @@ public abstract class _BeanImpl implements _Bean {
     @Override
     public final void clearSelection(final boolean alsoChangeCounter,
             final boolean recursively) {
-        if (immutable) {
+        if (isImmutable()) {
             throw new UnsupportedOperationException(this + " is immutable!");
         }
         if (isSelected()) {
             selected = 0;
             // It's always safe to set all bits to 0, even the ones we don't use.
-            final int[] array = selectedArray;
+            final int[] array = selectedArray();
             final int length = array.length;
             for (int i = 0; i < length; i++) {
                 array[i] = 0;
             }
             // selected has a special meaning, when used with a delegate.
             // This could cause the apparent "content" of the bean to change.
-            if (delegate != null) {
+            if (delegate() != null) {
                 resetCachedState();
             }
         }
@@ -528,9 +754,15 @@ public abstract class _BeanImpl implements _Bean {
             changeCounter = 0;
         }
         if (recursively) {
+            final byte mask = alsoChangeCounter ? (byte) (SELECTED_CHILD | CHANGED_CHILD)
+                    : SELECTED_CHILD;
             for (final _Bean value : getBeanIterator()) {
-                value.clearSelection(alsoChangeCounter, true);
+                // Clean subtrees are skipped
+                if (!isCleanChild(value, mask)) {
+                    value.clearSelection(alsoChangeCounter, true);
+                }
             }
+            flags &= ~mask;
         }
     }
 
@@ -553,11 +785,11 @@ public abstract class _BeanImpl implements _Bean {
     /** Sets all selected flags to true, including the children */
     @Override
     public final void setSelectionRecursive() {
-        if (immutable) {
+        if (isImmutable()) {
             throw new UnsupportedOperationException(this + " is immutable!");
         }
         selected = -1;
-        final int[] array = selectedArray;
+        final int[] array = selectedArray();
         final int length = array.length;
         for (int i = 0; i < length; i++) {
             array[i] = -1;
@@ -571,6 +803,7 @@ public abstract class _BeanImpl implements _Bean {
                 array[length - 1] = (1 << rest) - 1;
             }
         }
+        markAncestors(SELECTED_CHILD);
         for (final _Bean value : getBeanIterator()) {
             if (!value.isImmutable())
                 value.setSelectionRecursive();
@@ -597,16 +830,70 @@ public abstract class _BeanImpl implements _Bean {
         }
     }
 
-    /** Returns the String representation */
+    /** Returns the cached toString result, if any. */
+    @SuppressWarnings("unchecked")
+    private String cachedToString() {
+        final Extension ext = extension;
+        final Object cached = (ext == null) ? null : ext.toString;
+        if (cached instanceof SoftReference) {
+            return ((SoftReference<String>) cached).get();
+        }
+        return (String) cached;
+    }
+
+    /**
+     * Returns the String representation. It is the same as toJSON(), unless
+     * the ToStringCachePolicy of the Type is INCREMENTAL, or the bean has lazy
+     * values, which toJSON() writes encoded (see ToStringSerializer).
+     */
     @Override
     public final String toString() {
-        if (toString == null) {
-            // Use JSON format
+        String result = cachedToString();
+        if (result == null) {
+            final ToStringCachePolicy policy = toStringCachePolicy();
             final StringBuilder buf = new StringBuilder(1024);
-            toJSON(buf);
-            toString = buf.toString();
+            final ToStringSerializer j = ToStringSerializer
+                    .newToStringSerializer(buf, this,
+                            policy == ToStringCachePolicy.INCREMENTAL);
+            try {
+                j.render();
+            } catch (final IOException e) {
+                throw new UndeclaredThrowableException(e);
+            }
+            result = buf.toString();
+            if (j.isCacheable()) {
+                // Race-benign for immutable Beans: Strings are safely published,
+                // and a lost cache update only means computing it again.
+                switch (policy) {
+                case CACHED:
+                case INCREMENTAL:
+                    markInCachedString(j.getRendered());
+                    extension().toString = result;
+                    break;
+                case SOFT:
+                    markInCachedString(j.getRendered());
+                    extension().toString = new SoftReference<>(result);
+                    break;
+                default:
+                    break;
+                }
+            }
         }
-        return toString;
+        return result;
+    }
+
+    /**
+     * Returns true, if the toString result can be cached, until the next
+     * change of the selection.
+     */
+    protected boolean isToStringCacheable() {
+        return true;
+    }
+
+    /** Returns the toString cache policy of this bean. */
+    private ToStringCachePolicy toStringCachePolicy() {
+        return isToStringCacheable() ? ToStringCachePolicy.get(metaType)
+                : ToStringCachePolicy.NONE;
     }
 
     /** Compares for equality with another object */
@@ -621,7 +908,7 @@ public abstract class _BeanImpl implements _Bean {
     /** Returns the delegate */
     @Override
     public _Bean getDelegate() {
-        return delegate;
+        return delegate();
     }
 
     /** Sets the delegate (can be null); does not clear selection */
@@ -635,7 +922,7 @@ public abstract class _BeanImpl implements _Bean {
     public final void setDelegate(final _Bean delegate,
             final boolean clearSelection, final boolean alsoClearChangeCounter,
             final boolean clearRecursively) {
-        if (this.delegate != delegate) {
+        if (delegate() != delegate) {
             if ((delegate != null) && (delegate.getClass() != getClass())) {
                 throw new IllegalArgumentException("Expected type: "
                         + getClass() + " Actual type: " + delegate.getClass());
@@ -649,7 +936,9 @@ public abstract class _BeanImpl implements _Bean {
                 d = d.getDelegate();
             }
             // Does NOT affect "selected state"
-            this.delegate = delegate;
+            if ((delegate != null) || (extension != null)) {
+                extension().delegate = delegate;
+            }
             // This could cause the apparent "content" of the bean to change.
             resetCachedState();
             if (delegate == null) {
@@ -683,6 +972,54 @@ public abstract class _BeanImpl implements _Bean {
         }
     }
 
+    /**
+     * Returns the encoded, not yet materialized, value of a Property, or
+     * null. See LazyInterceptor.
+     */
+    public final Object getLazyValue(final Property<?, ?> prop) {
+        final Extension ext = extension;
+        final Map<Property<?, ?>, Object> lazyValues = (ext == null) ? null
+                : ext.lazyValues;
+        return (lazyValues == null) ? null : lazyValues.get(prop);
+    }
+
+    /**
+     * Sets the encoded, not yet materialized, value of a Property.
+     * A null encoded value removes it. See LazyInterceptor.
+     */
+    public final void setLazyValue(final Property<?, ?> prop,
+            final Object encoded) {
+        Objects.requireNonNull(prop, "prop");
+        if (encoded != null) {
+            final Extension ext = extension();
+            if (ext.lazyValues == null) {
+                ext.lazyValues = new IdentityHashMap<>(4);
+            }
+            ext.lazyValues.put(prop, encoded);
+        } else {
+            final Extension ext = extension;
+            if ((ext != null) && (ext.lazyValues != null)) {
+                ext.lazyValues.remove(prop);
+                if (ext.lazyValues.isEmpty()) {
+                    ext.lazyValues = null;
+                }
+            }
+        }
+    }
+
+    /** Returns true, if some Property value is not materialized yet. */
+    public final boolean hasLazyValues() {
+        final Extension ext = extension;
+        return (ext != null) && (ext.lazyValues != null);
+    }
+
+    /** Returns true, if the value of the Property is not materialized yet. */
+    public final boolean hasLazyValue(final Property<?, ?> prop) {
+        final Extension ext = extension;
+        return (ext != null) && (ext.lazyValues != null)
+                && (ext.lazyValues.get(prop) instanceof EncodedSlice);
+    }
+
     /** Returns the "parent" Bean, if any. */
     @Override
     public final _Bean getParentBean() {
@@ -716,8 +1053,26 @@ public abstract class _BeanImpl implements _Bean {
                     "parentKey can only be set if parent is not null");
         }
         final _Bean oldValue = parent;
+        final _Bean oldParent = parentBean;
+        // Must be computed before we are detached
+        final _Bean oldRoot = ((parent == null) && (oldParent != null)) ? getRootBean()
+                : null;
         this.parentBean = parent;
         this.parentKey = parentKey;
+        if (parent != null) {
+            final byte childFlags = subtreeFlags();
+            if (childFlags != 0) {
+                markAncestors(childFlags);
+            }
+        }
+        if (oldParent != null) {
+            // Invalidates the cached roots of the old tree, and the (old)
+            // cached roots pointing at us, since we are a root again
+            if (oldRoot instanceof _BeanImpl) {
+                TREE_EPOCH.incrementAndGet((_BeanImpl) oldRoot);
+            }
+            TREE_EPOCH.incrementAndGet(this);
+        }
         updateRootBean();
         for (final ObjectPropertyListener listener : Meta._BEAN__PARENT_BEAN
                 .getListeners((Type<_Bean>) getMetaType())) {
@@ -727,24 +1082,57 @@ public abstract class _BeanImpl implements _Bean {
         onParentBeanAndKeyChange();
     }
 
-    /** Updates the "root" Bean */
+    /**
+     * Updates the "root" Bean. The roots of the descendants are not updated
+     * eagerly; they are recomputed on demand (see getRootBean()).
+     */
     @Override
     public final void updateRootBean() {
-        final _Bean before = rootBean;
-        if (parentBean == null) {
-            rootBean = null;
-        } else {
-            final _Bean parentRoot = parentBean.getRootBean();
-            if (parentRoot == null) {
-                rootBean = parentBean;
-            } else {
-                rootBean = parentRoot;
-            }
+        rootBean = null;
+        if (parentBean != null) {
+            cacheRootBean(computeRootBean());
         }
-        if (before != rootBean) {
-            for (final _Bean b : getBeanIterator()) {
-                b.updateRootBean();
+    }
+
+    /** Returns the cached "root" Bean, if it is still valid, otherwise null. */
+    private _Bean cachedRootBean() {
+        final _Bean root = rootBean;
+        if ((root instanceof _BeanImpl) && (root.getParentBean() == null)
+                && (((_BeanImpl) root).treeEpoch == rootEpoch)) {
+            return root;
+        }
+        return null;
+    }
+
+    /**
+     * Caches the "root" Bean. Immutable Beans cache too; racing threads
+     * always write the same values, and a torn pair is just invalid.
+     */
+    private void cacheRootBean(final _Bean root) {
+        if (root instanceof _BeanImpl) {
+            rootEpoch = ((_BeanImpl) root).treeEpoch;
+            rootBean = root;
+        }
+    }
+
+    /**
+     * Computes the "root" Bean, walking up the parents, until one is the
+     * root, or has a valid cached root.
+     */
+    private _Bean computeRootBean() {
+        _Bean p = parentBean;
+        while (true) {
+            final _Bean parent = p.getParentBean();
+            if (parent == null) {
+                return p;
+            }
+            if (p instanceof _BeanImpl) {
+                final _Bean root = ((_BeanImpl) p).cachedRootBean();
+                if (root != null) {
+                    return root;
+                }
             }
+            p = parent;
         }
     }
 
@@ -757,7 +1145,15 @@ public abstract class _BeanImpl implements _Bean {
     /** Returns the "root" Bean, if any. */
     @Override
     public final _Bean getRootBean() {
-        return rootBean;
+        if (parentBean == null) {
+            return null;
+        }
+        _Bean result = cachedRootBean();
+        if (result == null) {
+            result = computeRootBean();
+            cacheRootBean(result);
+        }
+        return result;
     }
 
     /** Returns true, if this Bean has the same (non-null) root as the Bean passed as parameter */
@@ -788,11 +1184,15 @@ public abstract class _BeanImpl implements _Bean {
     @Override
     public final void setChangeCounter(final int newValue) {
         changeCounter = newValue;
+        if (newValue != 0) {
+            markAncestors(CHANGED_CHILD);
+        }
     }
 
     /** Increments the change counter. */
     protected final void incrementChangeCounter() {
         changeCounter++;
+        markAncestors(CHANGED_CHILD);
     }
 
     /** Copies the content of another instance of the same type. */
@@ -811,7 +1211,10 @@ public abstract class _BeanImpl implements _Bean {
         for (final Property p : metaType.inheritedProperties) {
             if (!p.isImmutable()) {
                 if (p instanceof ObjectProperty) {
-                    if (isBean((ObjectProperty) p)) {
+                    if (other.hasLazyValue(p)
+                            && (other.interceptor instanceof LazyInterceptor)) {
+                        copyLazyValue((ObjectProperty) p, other, immutably);
+                    } else if (isBean((ObjectProperty) p)) {
                         final _BeanImpl value = (_BeanImpl) p.getObject(other);
                         if (value != null) {
                             if (immutably) {
@@ -839,6 +1242,30 @@ public abstract class _BeanImpl implements _Bean {
         }
     }
 
+    /** Copies a lazy value, without materializing it in other. */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void copyLazyValue(final ObjectProperty p, final _BeanImpl other,
+            final boolean immutably) {
+        final LazyInterceptor lazy = (LazyInterceptor) other.interceptor;
+        if (immutably) {
+            // An immutable bean cannot materialize it's values later
+            final Object value = lazy.decodeWithoutMaterializing(other, p);
+            if ((value instanceof _BeanImpl) && !(value instanceof Entity)
+                    && !((_BeanImpl) value).isImmutable()) {
+                final _BeanImpl newVal = ((_BeanImpl) value).doSnapshot();
+                p.setObject(this, newVal);
+                newVal.setParentBeanAndKey(this, p.fullName);
+            } else {
+                // Entities and shared immutable values are not linked
+                p.setObject(this, value);
+            }
+        } else {
+            // The copy will decode the value itself, when needed
+            interceptor = lazy;
+            setLazyValue(p, other.getLazyValue(p));
+        }
+    }
+
     /** Allows collections to perform special copy implementations. */
     @SuppressWarnings({ "unchecked", "rawtypes" })
     protected void copyValue(final Property p, final _BeanImpl other,
@@ -849,28 +1276,35 @@ public abstract class _BeanImpl implements _Bean {
     /** Make a new instance of the same type as self. */
     protected _BeanImpl newInstance() {
         final _BeanImpl result = (_BeanImpl) metaType.create();
-        result.toString = toString;
+        final Extension ext = extension;
+        if ((ext != null) && (ext.toString != null)) {
+            result.extension().toString = ext.toString;
+        }
+        // The copy is part of the copied cached toString of the parent copy
+        if ((flags & IN_CACHED_STRING) != 0) {
+            result.flags |= IN_CACHED_STRING;
+        }
         return result;
     }
 
     /** Returns a full mutable copy */
     protected final _BeanImpl doCopy() {
         final _BeanImpl result = newInstance();
-        result.underConstruction = true;
+        result.setUnderConstruction(true);
         result.copyFrom(this, false);
-        result.underConstruction = false;
+        result.setUnderConstruction(false);
         return result;
     }
 
     /** Returns an immutable copy */
     protected final _BeanImpl doSnapshot() {
-        if (immutable) {
+        if (isImmutable()) {
             return this;
         }
         final _BeanImpl result = newInstance();
-        result.underConstruction = true;
+        result.setUnderConstruction(true);
         result.copyFrom(this, true);
-        result.underConstruction = false;
+        result.setUnderConstruction(false);
         result.makeImmutable();
         return result;
     }
@@ -894,7 +1328,7 @@ public abstract class _BeanImpl implements _Bean {
 
     /** Checks that the new value is either null or immutable. */
     protected final void checkNullOrImmutable(final Object newValue) {
-        if ((newValue != null) && !underConstruction) {
+        if ((newValue != null) && ((flags & UNDER_CONSTRUCTION) == 0)) {
             // TODO This is a work-around for creating immutable snapshots of beans that
             // contain collections. We should not simply assume that immutable values
             // are only set for collection properties during snapshots
@@ -917,35 +1351,26 @@ public abstract class _BeanImpl implements _Bean {
             final boolean failOnIncompatbileProperty) {
         Objects.requireNonNull(path, "path");
         final List<Object> values = new ArrayList<>();
-        values.add(this);
-        BeanPath curPath = path;
-        while (true) {
-            final Object[] keyMatcher = curPath.keyMatcher;
-            final BeanPath next = curPath.next;
-            final Object[] objects = values.toArray();
-            values.clear();
-            for (final Object obj : objects) {
-                if (obj instanceof _Bean) {
-                    final _Bean bean = (_Bean) obj;
-                    for (final IProperty<?, ?> p : curPath.propertyMatcher
-                            .listProperty(bean)) {
-                        if (failOnIncompatbileProperty) {
-                            bean.readProperty(p, keyMatcher, values);
-                        } else {
-                            try {
-                                bean.readProperty(p, keyMatcher, values);
-                            } catch (final RuntimeException e) {
-                                // NOP
-                            }
-                        }
+        BeanPathPlan.of(path, metaType).resolve(this,
+                failOnIncompatbileProperty,
+                new BeanPathSink() {
+                    @Override
+                    public boolean onMatch(final Object value) {
+                        values.add(value);
+                        return true;
                     }
-                }
-            }
-            if (values.isEmpty() || (next == null)) {
-                return values;
-            }
-            curPath = next;
-        }
+                });
+        return values;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.meta.beans._Bean#resolvePath(com.blockwithme.meta.beans.impl.BeanPathPlan, boolean, com.blockwithme.meta.beans.BeanPathSink)
+     */
+    @Override
+    public final boolean resolvePath(final BeanPathPlan plan,
+            final boolean failOnIncompatbileProperty, final BeanPathSink sink) {
+        return Objects.requireNonNull(plan, "plan").resolve(this,
+                failOnIncompatbileProperty, sink);
     }
 
     /** Reads the value(s) of this Property, and add them to values, if they match. */
@@ -961,6 +1386,18 @@ public abstract class _BeanImpl implements _Bean {
         }
     }
 
+    /** Reads the value(s) of this Property, and passes them to the sink, if they match. */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Override
+    public boolean readProperty(final IProperty<?, ?> p,
+            final Object[] keyMatcher, final BeanPathSink sink) {
+        // Normal properties don't have a key/index, so any matcher would cause a "fail"
+        if (keyMatcher == null) {
+            return sink.onMatch(((Property) p).getObject(this));
+        }
+        return true;
+    }
+
     /** Resolves a "simple" path to a value (including null, if the value, or any link, is null) */
     @SuppressWarnings({ "unchecked", "rawtypes" })
     @Override
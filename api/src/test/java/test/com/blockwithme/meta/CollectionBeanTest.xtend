@@ -28,7 +28,11 @@ import com.blockwithme.meta.beans.BeanPath
 import java.util.ArrayList
 import com.blockwithme.meta.beans.Meta
 import com.blockwithme.meta.beans.impl.CollectionBeanImpl
+import com.blockwithme.meta.beans.impl.ConcurrentSetBean
+import com.blockwithme.meta.beans.impl.ConcurrentMapBean
 import test.com.blockwithme.meta.impl.MyBeanImpl
+import com.blockwithme.meta.beans.CollectionBeanConfig
+import com.blockwithme.meta.beans._Bean
 
 /**
  * Tests the CollectionBean.
@@ -953,4 +957,221 @@ class CollectionBeanTest extends BaseTst {
     	}
 		assertTrue("expected.empty", expected.empty)
 	}
-}
\ No newline at end of file
+
+	@Test
+	public def void testConcurrentSetBean() {
+		val set = new ConcurrentSetBean<String>(JavaMeta.STRING)
+		val writers = <Thread>newArrayList
+		for (w : 0 ..< 4) {
+			val writer = new Thread [|
+				for (i : 0 ..< 1000) {
+					set.add("w"+w+"-"+i)
+					set.add("shared"+i)
+				}
+			]
+			writers.add(writer)
+			writer.start
+		}
+		for (writer : writers) {
+			writer.join
+		}
+		assertEquals("size", 5000, set.size)
+		assertEquals("toArray.length", 5000, set.toArray.length)
+		assertTrue("contains", set.contains("w3-999"))
+		assertTrue("selectedRecursive", set.selectedRecursive)
+		set.clearStripeSelections(false)
+		assertFalse("selectedRecursive after clear", set.selectedRecursive)
+		assertTrue("remove", set.remove("shared0"))
+		assertEquals("size after remove", 4999, set.size)
+		val snapshot = set.snapshot
+		assertTrue("snapshot.immutable", snapshot.immutable)
+		assertEquals("snapshot", set.toString, snapshot.toString)
+	}
+
+	@Test
+	public def void testConcurrentSetBeanOwnerToString() {
+		val set = new ConcurrentSetBean<String>(JavaMeta.STRING)
+		val owner = new CollectionBeanImpl(Meta.COLLECTION_BEAN, Meta.COLLECTION_BEAN,
+			CollectionBeanConfig.LIST, Integer.MAX_VALUE, Integer.MAX_VALUE)
+		owner.add(set)
+		set.add("first")
+		assertTrue("first", owner.toString.contains("\"first\""))
+		val writer = new Thread [|
+			set.add("second")
+		]
+		writer.start
+		writer.join
+		// The owner cannot cache a JSON that changes concurrently
+		assertTrue("second", owner.toString.contains("\"second\""))
+	}
+
+	@Test
+	public def void testRootBeanTreeEpoch() {
+		val root1 = new CollectionBeanImpl(Meta.COLLECTION_BEAN, Meta.COLLECTION_BEAN,
+			CollectionBeanConfig.LIST, Integer.MAX_VALUE, Integer.MAX_VALUE)
+		val root2 = new CollectionBeanImpl(Meta.COLLECTION_BEAN, Meta.COLLECTION_BEAN,
+			CollectionBeanConfig.LIST, Integer.MAX_VALUE, Integer.MAX_VALUE)
+		val middle = new CollectionBeanImpl<MyBean>(Meta.COLLECTION_BEAN, TestMyBeanMeta.MY_BEAN_TYPE,
+			CollectionBeanConfig.LIST, Integer.MAX_VALUE, Integer.MAX_VALUE)
+		val other = new CollectionBeanImpl<MyBean>(Meta.COLLECTION_BEAN, TestMyBeanMeta.MY_BEAN_TYPE,
+			CollectionBeanConfig.LIST, Integer.MAX_VALUE, Integer.MAX_VALUE)
+		val leaf = new MyBeanImpl
+		val otherLeaf = new MyBeanImpl
+		root1.add(middle)
+		middle.add(leaf)
+		root2.add(other)
+		other.add(otherLeaf)
+		assertSame("leaf.root", root1, leaf.rootBean)
+		assertSame("otherLeaf.root", root2, otherLeaf.rootBean)
+
+		// Moving a subtree
+		root1.remove(middle)
+		assertNull("middle.root detached", middle.rootBean)
+		assertSame("leaf.root detached", middle, leaf.rootBean)
+		root2.add(middle)
+		assertSame("leaf.root moved", root2, leaf.rootBean)
+		assertSame("otherLeaf.root unchanged", root2, otherLeaf.rootBean)
+		assertTrue("hasSameRoot", leaf.hasSameRoot(otherLeaf))
+
+		// Attaching, and detaching again, a whole tree
+		root1.add(root2)
+		assertSame("leaf.root attached", root1, leaf.rootBean)
+		assertSame("otherLeaf.root attached", root1, otherLeaf.rootBean)
+		root1.remove(root2)
+		assertSame("leaf.root re-detached", root2, leaf.rootBean)
+		assertSame("otherLeaf.root re-detached", root2, otherLeaf.rootBean)
+		assertFalse("hasSameRoot root1", leaf.hasSameRoot(root1))
+
+		// Immutable beans resolve their root too
+		val snapshot = root2.snapshot as CollectionBean<?>
+		val snapshotMiddle = snapshot.get(1) as CollectionBean<MyBean>
+		val snapshotLeaf = snapshotMiddle.get(0) as _Bean
+		assertSame("snapshotLeaf.root", snapshot, snapshotLeaf.rootBean)
+		assertSame("snapshotLeaf.root cached", snapshot, snapshotLeaf.rootBean)
+	}
+
+
+	@Test
+	public def void testConcurrentSetBeanNestedSelection() {
+		val set = new ConcurrentSetBean<String>(JavaMeta.STRING)
+		val owner = new CollectionBeanImpl(Meta.COLLECTION_BEAN, Meta.COLLECTION_BEAN,
+			CollectionBeanConfig.LIST, Integer.MAX_VALUE, Integer.MAX_VALUE)
+		val root = new CollectionBeanImpl(Meta.COLLECTION_BEAN, Meta.COLLECTION_BEAN,
+			CollectionBeanConfig.LIST, Integer.MAX_VALUE, Integer.MAX_VALUE)
+		owner.add(set)
+		root.add(owner)
+		root.clearSelection(true, true)
+		assertFalse("root.selectedRecursive cleared", root.selectedRecursive)
+		val writers = <Thread>newArrayList
+		for (w : 0 ..< 4) {
+			writers.add(new Thread [|
+				for (i : 0 ..< 1000) {
+					set.add(w + "-" + i)
+				}
+			])
+		}
+		for (t : writers) {
+			t.start
+		}
+		for (t : writers) {
+			t.join
+		}
+		assertEquals("size", 4000, set.size)
+		assertFalse("owner.immutable", owner.immutable)
+		assertFalse("root.immutable", root.immutable)
+		assertTrue("root.selectedRecursive", root.selectedRecursive)
+		set.clearStripeSelections(true)
+		root.clearSelection(true, true)
+		assertFalse("root.selectedRecursive after clear", root.selectedRecursive)
+		// The path to the striped bean is still visited, after the clear
+		val writer = new Thread [|
+			set.add("late")
+		]
+		writer.start
+		writer.join
+		assertTrue("root.selectedRecursive after late write", root.selectedRecursive)
+	}
+
+	@Test
+	public def void testConcurrentMapBean() {
+		val map = new ConcurrentMapBean<String,Integer>(JavaMeta.STRING, JavaMeta.INTEGER)
+		assertNull("putIfAbsent(a)", map.putIfAbsent("a", 1))
+		assertEquals("putIfAbsent(a) again", 1, map.putIfAbsent("a", 2).intValue)
+		assertEquals("get(a)", 1, map.get("a").intValue)
+		assertEquals("size", 1, map.size)
+
+		assertNull("replace(b)", map.replace("b", 1))
+		assertFalse("containsKey(b)", map.containsKey("b"))
+		assertEquals("replace(a)", 1, map.replace("a", 3).intValue)
+		assertFalse("replace(a,1,4)", map.replace("a", 1, 4))
+		assertTrue("replace(a,3,4)", map.replace("a", 3, 4))
+		assertEquals("get(a) after replace", 4, map.get("a").intValue)
+		assertEquals("size after replace", 1, map.size)
+
+		map.put("b", 5)
+		assertFalse("remove(b,4)", map.remove("b", 4))
+		assertTrue("remove(b,5)", map.remove("b", 5))
+		assertFalse("remove(b,5) again", map.remove("b", 5))
+		assertFalse("containsKey(b) after remove", map.containsKey("b"))
+		assertEquals("size after remove", 1, map.size)
+	}
+
+	@Test
+	public def void testConcurrentMapBeanMaxSize() {
+		val map = new ConcurrentMapBean<String,Integer>(Meta.MAP_BEAN, JavaMeta.STRING, false,
+			JavaMeta.INTEGER, false, false, 2, 2, 2)
+		map.put("a", 1)
+		assertNull("putIfAbsent(b)", map.putIfAbsent("b", 2))
+		var failed = false
+		try {
+			map.put("c", 3)
+		} catch(Throwable t) {
+			failed = true
+		}
+		assertTrue("failed: put(c)", failed)
+		failed = false
+		try {
+			map.putIfAbsent("c", 3)
+		} catch(Throwable t) {
+			failed = true
+		}
+		assertTrue("failed: putIfAbsent(c)", failed)
+		// The failed reservations are undone
+		assertEquals("size", 2, map.size)
+		assertFalse("containsKey(c)", map.containsKey("c"))
+		// Existing keys do not need a reservation
+		map.put("a", 10)
+		assertEquals("putIfAbsent(b) again", 2, map.putIfAbsent("b", 20).intValue)
+		assertEquals("size after update", 2, map.size)
+		map.remove("a")
+		map.put("c", 3)
+		assertEquals("size after remove", 2, map.size)
+	}
+
+	@Test
+	public def void testConcurrentMapBeanCopy() {
+		val map = new ConcurrentMapBean<String,Integer>(JavaMeta.STRING, JavaMeta.INTEGER)
+		for (i : 0 ..< 100) {
+			map.put("k"+i, i)
+		}
+		val copy = map.copy
+		val snapshot = map.snapshot
+		assertFalse("copy.immutable", copy.immutable)
+		assertTrue("snapshot.immutable", snapshot.immutable)
+		assertSame("snapshot.snapshot", snapshot, snapshot.snapshot)
+		assertEquals("copy.size", 100, copy.size)
+		assertEquals("snapshot.size", 100, snapshot.size)
+		assertEquals("copy", map.toString, copy.toString)
+		assertEquals("snapshot", map.toString, snapshot.toString)
+
+		map.put("k0", -1)
+		map.remove("k1")
+		copy.put("extra", 1)
+		assertEquals("copy.get(k0)", 0, copy.get("k0").intValue)
+		assertTrue("copy.containsKey(k1)", copy.containsKey("k1"))
+		assertEquals("snapshot.get(k0)", 0, snapshot.get("k0").intValue)
+		assertEquals("snapshot.size after changes", 100, snapshot.size)
+		assertFalse("map.containsKey(extra)", map.containsKey("extra"))
+		assertEquals("copy.size after put", 101, copy.size)
+	}
+}
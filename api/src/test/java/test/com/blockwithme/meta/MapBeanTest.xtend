@@ -24,6 +24,7 @@ import java.util.Arrays
 import java.util.Map
 import java.util.HashMap
 import com.blockwithme.meta.beans.BeanPath
+import com.blockwithme.meta.beans.impl.BeanPathPlan
 import java.util.ArrayList
 
 /**
@@ -651,6 +652,40 @@ class MapBeanTest extends BaseTst {
 		assertFalse("iter.hasNext", iter.hasNext)
 	}
 
+	@Test
+	public def void testBeanPathPlan() {
+    	val mmt = new MyMapType
+    	mmt.map.put("one", 1L)
+    	mmt.map.put("two", 2L)
+    	mmt.map.put("three", 3L)
+
+    	val path = new BeanPath(JavaMeta.MAP_CONTENT_PROP)
+    	val plan = new BeanPathPlan(path, mmt.map.metaType)
+    	val found = new ArrayList<Object>
+    	assertTrue(mmt.map.resolvePath(plan, true, [found.add(it)]))
+    	assertEquals(3, found.size)
+    	assertTrue(found.containsAll(#[1L, 2L, 3L]))
+
+    	// Stops as soon as the sink returns false
+    	found.clear
+    	assertFalse(mmt.map.resolvePath(plan, true, [found.add(it);false]))
+    	assertEquals(1, found.size)
+
+    	// Exceptions of the sink are not swallowed, even when not failing
+    	var failed = false
+    	try {
+    		mmt.map.resolvePath(plan, false, [throw new IllegalStateException("sink")])
+    	} catch (IllegalStateException e) {
+    		failed = true
+    	}
+    	assertTrue("sink exception", failed)
+
+    	// Plans are cached per path and root Type
+    	assertSame("cached", BeanPathPlan.of(path, mmt.map.metaType), BeanPathPlan.of(path, mmt.map.metaType))
+    	assertNotSame("other path", BeanPathPlan.of(path, mmt.map.metaType),
+    		BeanPathPlan.of(new BeanPath(JavaMeta.MAP_CONTENT_PROP), mmt.map.metaType))
+	}
+
 	@Test
 	public def void testMapFixedKey() {
     	val mmt = new MyMapType
@@ -109,6 +109,67 @@ class TestMyBeanMeta {
   public static val TEST = BUILDER.newHierarchy(newArrayList(MY_PACKAGE))
 }
 
+/** A type with a primitive property that uses a custom number of bits */
+class MyPackedType {
+  /** 24-bit int property */
+  package var packedProp = 0
+
+  /** Int property */
+  package var intProp = 0
+
+  /** Boolean property */
+  package var boolProp = false
+}
+
+/** Converts the packed int to/from an Integer */
+class PackedIntConverter extends IntConverterBase<Object,Integer> {
+
+  new() {
+  	super(Integer)
+  }
+
+  override fromObject(Object context, Integer obj) {
+    if(obj == null) 0 else obj.intValue
+  }
+
+  override toObject(Object context, int value) {
+    value
+  }
+
+  public static val DEFAULT = new PackedIntConverter
+}
+
+class TestMyPackedMeta {
+  /** Test Hierarchy Builder */
+  public static val BUILDER = HierarchyBuilderFactory.getHierarchyBuilder(MyPackedType.name)
+
+  public static val PACKED_PROP = BUILDER.newIntegerProperty(
+    MyPackedType, "packedProp",
+    PackedIntConverter.DEFAULT as IntConverter as IntConverter<MyPackedType,Integer>, 24,
+    Integer,
+    [packedProp], [obj,value|obj.packedProp = value;obj], false
+  )
+
+  public static val INT_PROP = BUILDER.newIntegerProperty(
+    MyPackedType, "intProp",
+    [intProp], [obj,value|obj.intProp = value;obj], false
+  )
+
+  public static val BOOL_PROP = BUILDER.newBooleanProperty(
+    MyPackedType, "boolProp",
+    [boolProp], [obj,value|obj.boolProp = value;obj], false
+  )
+
+  public static val Type<MyPackedType> MY_PACKED_TYPE = BUILDER.newType(MyPackedType,
+    [|new MyPackedType], Kind.Implementation, null, null, PACKED_PROP, INT_PROP, BOOL_PROP)
+
+  /** The test.com.blockwithme.meta package */
+  public static val MY_PACKAGE = BUILDER.newTypePackage(MY_PACKED_TYPE)
+
+  /** Test Hierarchy */
+  public static val TEST = BUILDER.newHierarchy(newArrayList(MY_PACKAGE))
+}
+
 class MyCollectionType {
   /** unorderedSet CollectionBean Property*/
   package var unorderedSet = new CollectionBeanImpl<String>(
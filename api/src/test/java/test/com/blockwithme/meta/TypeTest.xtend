@@ -41,6 +41,20 @@ import com.blockwithme.meta.MetaHierarchyBuilder
 import com.blockwithme.meta.beans.Meta
 import java.util.HashSet
 import com.blockwithme.meta.beans.Ref
+import com.blockwithme.meta.AbstractBatchPropertyVisitor
+import com.blockwithme.meta.ColumnStore
+import com.blockwithme.meta.MappedStore
+import com.blockwithme.meta.Property
+import com.blockwithme.meta.beans.impl.ChangeLog
+import com.blockwithme.meta.beans.impl.ChangeLogListener
+import java.io.File
+import java.nio.ByteOrder
+import java.nio.ByteBuffer
+import java.io.RandomAccessFile
+import com.blockwithme.meta.IIntegralPrimitiveProperty
+import com.blockwithme.meta.ParallelPropertyVisit
+import com.blockwithme.meta.PropertyVisitorWorker
+import java.util.concurrent.ForkJoinPool
 
 class MyHierarchyListener implements HierarchyListener {
 	public val List<Hierarchy> hierarchies = newArrayList()
@@ -784,4 +798,254 @@ class TypeTest extends BaseTst {
     	assertEquals(Meta.REF, Meta.HIERARCHY.findType(Ref))
     	assertEquals(Meta.REF, Meta.HIERARCHY.findType(Ref.name))
     }
-}
\ No newline at end of file
+
+    @Test
+    public def void testPropertyQueryIndex() {
+    	val withString = MetaTestHelper.MY_SUB_TYPE.propertiesWithType(String)
+    	assertTrue(withString.contains(MetaTestHelper.OBJECT_PROP))
+    	assertSame(withString, MetaTestHelper.MY_SUB_TYPE.propertiesWithType(String))
+    	assertEquals(newArrayList(MetaTestHelper.OBJECT_PROP),
+    		MetaTestHelper.MY_SUB_TYPE.propertiesWithContent(JavaMeta.STRING).toList)
+    	assertEquals(0, MetaTestHelper.MY_TYPE.propertiesWithContent(Meta.BEAN).length)
+    	assertEquals(5, MetaTestHelper.MY_COLLECTION_TYPE.propertiesWithContent(Meta.COLLECTION_BEAN).length)
+    	assertTrue(MetaTestHelper.TEST.propertyQueryIndex.typesContaining(Meta.COLLECTION_BEAN)
+    		.contains(MetaTestHelper.MY_COLLECTION_TYPE))
+    }
+
+    @Test
+    public def void testBatchPropertyVisitor() {
+    	val instances = <Object>newArrayOfSize(1000)
+    	var expected = 0L
+    	for (i : 0 ..< instances.length) {
+    		val obj = new MyType
+    		MetaTestHelper.INT_PROP.setInt(obj, i)
+    		instances.set(i, obj)
+    		expected = expected + i
+    	}
+    	val visitor = new IntSumVisitor
+    	visitor.visitBatch(MetaTestHelper.MY_TYPE, instances, 0, instances.length)
+    	assertEquals(expected, visitor.sum)
+    	assertEquals(1, visitor.batches)
+
+    	val pool = new ForkJoinPool(4)
+    	try {
+    		assertEquals(expected, ParallelPropertyVisit.visit(pool, MetaTestHelper.MY_TYPE,
+    			instances, 64, new IntSumWorker))
+    	} finally {
+    		pool.shutdown()
+    	}
+    }
+
+    @Test
+    public def void testColumnStore() {
+    	val store = new ColumnStore<MyType>(MetaTestHelper.MY_TYPE, 0)
+    	val obj = new MyType
+    	MetaTestHelper.BOOL_PROP.setBoolean(obj, true)
+    	MetaTestHelper.INT_PROP.setInt(obj, 42)
+    	MetaTestHelper.DOUBLE_PROP.setDouble(obj, 3.5)
+    	MetaTestHelper.OBJECT_PROP.setObject(obj, "abc")
+    	val row = store.add(obj)
+    	assertEquals(1, store.size)
+    	assertEquals(42L, store.getLong(MetaTestHelper.INT_PROP, row))
+    	assertEquals(1L, store.getLong(MetaTestHelper.BOOL_PROP, row))
+    	assertEquals(3.5, store.getDouble(MetaTestHelper.DOUBLE_PROP, row), 0.0)
+    	assertEquals("abc", store.getObject(MetaTestHelper.OBJECT_PROP, row))
+
+    	store.setLong(MetaTestHelper.INT_PROP, row, 7)
+    	val copy = store.copyTo(row, new MyType)
+    	assertEquals(7, MetaTestHelper.INT_PROP.getInt(copy))
+    	assertTrue(MetaTestHelper.BOOL_PROP.getBoolean(copy))
+    	assertEquals(3.5, MetaTestHelper.DOUBLE_PROP.getDouble(copy), 0.0)
+    	assertEquals("abc", MetaTestHelper.OBJECT_PROP.getObject(copy))
+
+    	store.free(row)
+    	assertEquals(0, store.size)
+    	assertFalse(store.isLive(row))
+    	val row2 = store.allocate()
+    	assertEquals(row, row2)
+    	assertEquals(0L, store.getLong(MetaTestHelper.INT_PROP, row2))
+    	assertNull(store.getObject(MetaTestHelper.OBJECT_PROP, row2))
+    	for (i : 0 ..< 1000) {
+    		store.allocate()
+    	}
+    	assertEquals(1001, store.size)
+    }
+
+    @Test
+    public def void testMappedStore() {
+    	val file = File.createTempFile("MappedStore", ".bin")
+    	file.deleteOnExit
+    	file.delete
+    	val store = MappedStore.open(MetaTestHelper.MY_TYPE, file, 16)
+    	val obj = new MyType
+    	MetaTestHelper.BOOL_PROP.setBoolean(obj, true)
+    	MetaTestHelper.INT_PROP.setInt(obj, 42)
+    	MetaTestHelper.DOUBLE_PROP.setDouble(obj, 3.5)
+    	val row = store.add(obj)
+    	for (i : 0 ..< 100) {
+    		store.cursor(store.allocate()).setLong(MetaTestHelper.INT_PROP, i)
+    	}
+    	store.free(row + 1)
+    	assertEquals(100, store.size)
+    	store.close
+
+    	val reopened = MappedStore.open(MetaTestHelper.MY_TYPE, file)
+    	assertEquals(100, reopened.size)
+    	assertFalse(reopened.isLive(row + 1))
+    	val cursor = reopened.cursor(row)
+    	assertEquals(42L, cursor.getLong(MetaTestHelper.INT_PROP))
+    	assertEquals(1L, cursor.getLong(MetaTestHelper.BOOL_PROP))
+    	assertEquals(3.5, cursor.getDouble(MetaTestHelper.DOUBLE_PROP), 0.0)
+    	assertEquals(99L, cursor.moveTo(100).getLong(MetaTestHelper.INT_PROP))
+    	val copy = reopened.copyTo(row, new MyType)
+    	assertEquals(42, MetaTestHelper.INT_PROP.getInt(copy))
+    	assertEquals(row + 1, reopened.allocate())
+    	assertEquals(0L, reopened.getLong(MetaTestHelper.INT_PROP, row + 1))
+    	reopened.close
+    	file.delete
+    }
+
+    @Test
+    public def void testChangeLog() {
+    	val dir = File.createTempFile("ChangeLog", "")
+    	dir.delete
+    	val log = ChangeLog.open(dir, MetaTestHelper.TEST, 256)
+    	for (i : 0 ..< 20) {
+    		log.append("test:1", MetaTestHelper.INT_PROP, null, i)
+    	}
+    	log.append("test:2", MetaTestHelper.OBJECT_PROP, "key", "abc")
+    	log.close
+    	assertTrue(dir.listFiles.length > 1)
+
+    	val reopened = ChangeLog.open(dir, MetaTestHelper.TEST, 256)
+    	val values = <Object>newArrayList()
+    	val ChangeLogListener listener = [String entity, Property<?,?> prop, Object key, Object value |
+    		values.add(entity + "/" + prop.simpleName + "/" + key + "=" + value)
+    	]
+    	assertEquals(21L, reopened.replay(listener))
+    	assertEquals("test:1/intProp/null=0", values.get(0))
+    	assertEquals("test:2/objectProp/key=abc", values.get(20))
+    	reopened.compact
+    	values.clear
+    	assertEquals(2L, reopened.replay(listener))
+    	assertEquals(#["test:1/intProp/null=19", "test:2/objectProp/key=abc"], values)
+    	reopened.close
+    	for (f : dir.listFiles) {
+    		f.delete
+    	}
+    	dir.delete
+    }
+
+    @Test
+    public def void testChangeLogTornWrite() {
+    	val dir = File.createTempFile("ChangeLog", "")
+    	dir.delete
+    	val log = ChangeLog.open(dir, MetaTestHelper.TEST, 1024)
+    	for (i : 0 ..< 3) {
+    		log.append("test:1", MetaTestHelper.INT_PROP, null, i)
+    	}
+    	val longValue = new StringBuilder
+    	for (i : 0 ..< 100) {
+    		longValue.append("x")
+    	}
+    	log.append("test:2", MetaTestHelper.OBJECT_PROP, "key", longValue.toString)
+    	log.close
+    	assertEquals(1, dir.listFiles.length)
+
+    	// Simulates a crash before the length of the last record was written
+    	val file = dir.listFiles.get(0)
+    	val raf = new RandomAccessFile(file, "rw")
+    	val bytes = ByteBuffer.wrap(newByteArrayOfSize(raf.length as int)).order(ByteOrder.LITTLE_ENDIAN)
+    	raf.readFully(bytes.array)
+    	var pos = 24
+    	for (i : 0 ..< 3) {
+    		pos = pos + 4 + bytes.getInt(pos)
+    	}
+    	assertTrue(bytes.getInt(pos) > 0)
+    	raf.seek(pos)
+    	raf.write(newByteArrayOfSize(4))
+    	raf.close
+
+    	// The next, shorter, record must not be followed by the left-overs
+    	val reopened = ChangeLog.open(dir, MetaTestHelper.TEST, 1024)
+    	reopened.append("test:3", MetaTestHelper.INT_PROP, null, 42)
+    	reopened.close
+    	val again = ChangeLog.open(dir, MetaTestHelper.TEST, 1024)
+    	val values = <Object>newArrayList()
+    	val ChangeLogListener listener = [String entity, Property<?,?> prop, Object key, Object value |
+    		values.add(entity + "/" + prop.simpleName + "/" + key + "=" + value)
+    	]
+    	assertEquals(4L, again.replay(listener))
+    	assertEquals("test:3/intProp/null=42", values.get(3))
+    	again.close
+    	for (f : dir.listFiles) {
+    		f.delete
+    	}
+    	dir.delete
+    }
+
+    @Test
+    public def void testBeanHeaderFootprint() {
+    	val header = Footprint.round(17 + 6 * Footprint.REFERENCE)
+    	assertEquals(header, Meta._BEAN.footprint)
+    	assertEquals(header + Footprint.OBJECT_SIZE, TestMyBeanMeta.MY_BEAN_TYPE.inheritedFootprint)
+    }
+}
+
+/** Sums the intProp column of MyType instances. */
+class IntSumVisitor extends AbstractBatchPropertyVisitor {
+	public var long sum
+	public var int batches
+
+	override protected beforeVisitBatch(Type<?> type, Object[] instances, int from, int to) {
+		batches = batches + 1
+		true
+	}
+
+	override protected visitColumn(IIntegralPrimitiveProperty<?,?,?> prop, long[] values, int count) {
+		if (prop === MetaTestHelper.INT_PROP) {
+			for (i : 0 ..< count) {
+				sum = sum + values.get(i)
+			}
+		}
+	}
+}
+
+/** Creates IntSumVisitors, and adds their sums. */
+class IntSumWorker implements PropertyVisitorWorker<IntSumVisitor,Long> {
+	override newVisitor() {
+		new IntSumVisitor
+	}
+
+	override result(IntSumVisitor visitor) {
+		visitor.sum
+	}
+
+	override merge(Long left, Long right) {
+		left + right
+	}
+
+
+    @Test
+    public def void testMappedStoreCustomBits() {
+    	assertEquals(3, TestMyPackedMeta.PACKED_PROP.bytes)
+    	val file = File.createTempFile("MappedStore", ".bin")
+    	file.deleteOnExit
+    	file.delete
+    	val store = MappedStore.open(TestMyPackedMeta.MY_PACKED_TYPE, file, 16)
+    	// 4 (packed, as an int) + 4 + 1 + live marker, rounded up
+    	assertEquals(16, store.rowSize)
+    	val obj = new MyPackedType
+    	TestMyPackedMeta.PACKED_PROP.setInt(obj, 0x7FFFFF)
+    	TestMyPackedMeta.INT_PROP.setInt(obj, -1)
+    	TestMyPackedMeta.BOOL_PROP.setBoolean(obj, true)
+    	val row = store.add(obj)
+    	assertEquals(0x7FFFFFL, store.getLong(TestMyPackedMeta.PACKED_PROP, row))
+    	assertEquals(-1L, store.getLong(TestMyPackedMeta.INT_PROP, row))
+    	assertEquals(1L, store.getLong(TestMyPackedMeta.BOOL_PROP, row))
+    	val copy = store.copyTo(row, new MyPackedType)
+    	assertEquals(0x7FFFFF, TestMyPackedMeta.PACKED_PROP.getInt(copy))
+    	store.close
+    	file.delete
+    }
+}
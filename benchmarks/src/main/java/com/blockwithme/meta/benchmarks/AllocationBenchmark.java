@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.blockwithme.meta.IntegerProperty;
+import com.blockwithme.meta.JavaMeta;
+import com.blockwithme.meta.beans.BeanPath;
+import com.blockwithme.meta.beans.BeanPathSink;
+import com.blockwithme.meta.beans.CollectionBeanConfig;
+import com.blockwithme.meta.beans._Bean;
+import com.blockwithme.meta.beans.impl.BeanPathPlan;
+import com.blockwithme.meta.beans.impl.CollectionBeanImpl;
+import com.blockwithme.meta.beans.impl.MapBeanImpl;
+import com.blockwithme.meta.demo.DemoTypeChild;
+import com.blockwithme.meta.demo.Meta;
+import com.blockwithme.meta.demo.Person;
+import com.blockwithme.meta.demo.impl.DemoTypeChildProvider;
+import com.blockwithme.meta.demo.impl.PersonProvider;
+
+/**
+ * The Bean hot paths, with their allocation budget per operation.
+ *
+ * The budgets are all marked as NOT measured (measured = false): they are
+ * estimates, so AllocationBudgetCheck does not enforce them yet. It reports
+ * the measured value of each instead; they must be recorded here, without
+ * measured = false, on the first run on the reference machine. Afterwards,
+ * they should be lowered (ideally to 0) whenever a hot path is made
+ * allocation-free, so that it stays that way.
+ *
+ * @author monster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AllocationBenchmark {
+
+    /** The number of map entries */
+    private static final int SIZE = 16;
+
+    /** A Person */
+    private Person person;
+
+    /** The Bean tree */
+    private _Bean tree;
+
+    /** A map */
+    private MapBeanImpl<String, Integer> map;
+
+    /** A collection of Persons */
+    private CollectionBeanImpl<Person> people;
+
+    /** The "age" Property, raw, to get it's validators in the Person Type */
+    @SuppressWarnings("rawtypes")
+    private final IntegerProperty ageProperty = Meta.AGED__AGE;
+
+    /** The compiled BeanPath */
+    private BeanPathPlan plan;
+
+    /** Receives the matched values */
+    private final BeanPathSink sink = new BeanPathSink() {
+        @Override
+        public boolean onMatch(final Object value) {
+            last = value;
+            return true;
+        }
+    };
+
+    /** The last matched value */
+    private Object last;
+
+    /** The next age */
+    private int age;
+
+    /** Creates the Beans */
+    @Setup
+    public void setup() {
+        person = new PersonProvider().get();
+        person.setAge(33);
+        person.setName("John");
+        person.setProfession("Admin");
+        final DemoTypeChild dtc = new DemoTypeChildProvider().get();
+        dtc.setChildProp(person);
+        tree = (_Bean) dtc;
+        tree.clearSelection(true, true);
+        plan = new BeanPathPlan(BeanPath.from(
+                Meta.DEMO_TYPE_CHILD__CHILD_PROP, Meta.NAMED__NAME),
+                tree.getMetaType());
+        map = new MapBeanImpl<String, Integer>(
+                com.blockwithme.meta.beans.Meta.MAP_BEAN, JavaMeta.STRING,
+                false, JavaMeta.INTEGER, false, false, Integer.MAX_VALUE,
+                Integer.MAX_VALUE);
+        for (int i = 0; i < SIZE; i++) {
+            map.put("key" + i, i);
+        }
+        people = new CollectionBeanImpl<Person>(
+                com.blockwithme.meta.beans.Meta.COLLECTION_BEAN, Meta.PERSON,
+                CollectionBeanConfig.LIST, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        for (int i = 0; i < SIZE; i++) {
+            final Person p = new PersonProvider().get();
+            p.setAge(i);
+            people.add(p);
+        }
+        people.clearSelection(true, true);
+    }
+
+    /** Getter */
+    @Benchmark
+    @AllocationBudget(value = 0, measured = false)
+    public int get() {
+        return person.getAge();
+    }
+
+    /** Setter; the validators are iterated */
+    @Benchmark
+    @AllocationBudget(value = 64, measured = false)
+    public Person set() {
+        person.setAge((age++) & 63);
+        return person;
+    }
+
+    /** Iterates the validators of a Property, like the setters do */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Benchmark
+    @AllocationBudget(value = 0, measured = false)
+    public int validators() {
+        int result = 0;
+        for (final Object v : ageProperty.getValidators(Meta.PERSON)) {
+            if (v != null) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /** Traverses the Bean values of a collection (BeanCollectionIterator) */
+    @Benchmark
+    @AllocationBudget(value = 64, measured = false)
+    public boolean collectionChildren() {
+        return people.isSelectedRecursive();
+    }
+
+    /** Traverses the child Beans (SubBeanIterator) */
+    @Benchmark
+    @AllocationBudget(value = 128, measured = false)
+    public boolean isSelectedRecursive() {
+        return tree.isSelectedRecursive();
+    }
+
+    /** resolvePath(Property...) */
+    @Benchmark
+    @AllocationBudget(value = 256, measured = false)
+    public Object resolvePath() {
+        return tree.resolvePath(Meta.DEMO_TYPE_CHILD__CHILD_PROP,
+                Meta.NAMED__NAME);
+    }
+
+    /** resolvePath(BeanPathPlan, boolean, BeanPathSink) */
+    @Benchmark
+    @AllocationBudget(value = 0, measured = false)
+    public Object resolvePlan() {
+        tree.resolvePath(plan, true, sink);
+        return last;
+    }
+
+    /** toString(), after a change */
+    @Benchmark
+    @AllocationBudget(value = 8192, measured = false)
+    public String toStringChanged() {
+        person.setAge((age++) & 63);
+        return person.toString();
+    }
+
+    /** Iterates over the entries of a map (MapBeanEntry) */
+    @Benchmark
+    @AllocationBudget(value = 1024, measured = false)
+    public int mapEntries() {
+        int result = 0;
+        for (final Map.Entry<String, Integer> e : map.entrySet()) {
+            result += e.getValue();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.benchmarks;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the maximum number of bytes a benchmark method may allocate per
+ * operation, as measured by the JMH GC profiler (gc.alloc.rate.norm).
+ *
+ * Checked by AllocationBudgetCheck.
+ *
+ * @author monster
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface AllocationBudget {
+    /** The maximum number of bytes allocated per operation. */
+    long value();
+
+    /**
+     * False, if the value is an estimate, that was never measured. Such a
+     * budget is not enforced; AllocationBudgetCheck reports the measured
+     * value to record instead.
+     */
+    boolean measured() default true;
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the AllocationBenchmark under the JMH GC profiler, and compares the
+ * bytes allocated per operation with the AllocationBudget of every
+ * benchmark method. Exits with status 1 if any budget is exceeded, so that
+ * the build fails (see the "alloc-budget" profile of the pom).
+ *
+ * Budgets that were not measured yet (measured = false) are not enforced.
+ * For them, the measured allocations are reported as the annotation to
+ * record in AllocationBenchmark, rounded up to the next multiple of 8.
+ *
+ * Arguments: [result file (default: jmh-alloc-result.json)]
+ *
+ * @author monster
+ */
+public class AllocationBudgetCheck {
+
+    /** The default result file */
+    public static final String DEFAULT_RESULT = "jmh-alloc-result.json";
+
+    /** The GC profiler result, in bytes per operation. */
+    private static final String ALLOC_NORM = "\u00B7gc.alloc.rate.norm";
+
+    /**
+     * Tolerance, in bytes per operation. The GC profiler result is not
+     * exact, and is rarely exactly 0, even when nothing is allocated.
+     */
+    private static final double TOLERANCE = 1.0;
+
+    /** Returns the AllocationBudget of a benchmark method, or null. */
+    private static AllocationBudget budgetOf(final String benchmark) {
+        final String methodName = benchmark.substring(benchmark
+                .lastIndexOf('.') + 1);
+        for (final Method m : AllocationBenchmark.class.getMethods()) {
+            if (m.getName().equals(methodName)) {
+                return m.getAnnotation(AllocationBudget.class);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks the results against the budgets. Returns the list of violations.
+     */
+    public static List<String> check(final Collection<RunResult> results) {
+        final List<String> violations = new ArrayList<>();
+        for (final RunResult r : results) {
+            final String benchmark = r.getParams().getBenchmark();
+            final AllocationBudget budget = budgetOf(benchmark);
+            if (budget == null) {
+                violations.add(benchmark + ": no @AllocationBudget");
+                continue;
+            }
+            @SuppressWarnings("rawtypes")
+            final Result alloc = r.getSecondaryResults().get(ALLOC_NORM);
+            if (alloc == null) {
+                violations.add(benchmark + ": no " + ALLOC_NORM
+                        + " result; is the GC profiler supported?");
+                continue;
+            }
+            final double bytes = alloc.getScore();
+            if (!budget.measured()) {
+                System.out.println("UNMEASURED: " + benchmark + ": " + bytes
+                        + " bytes/op; record @AllocationBudget("
+                        + toBudget(bytes) + ") (estimate was "
+                        + budget.value() + ")");
+            } else if (bytes > budget.value() + TOLERANCE) {
+                violations.add(benchmark + ": allocates " + bytes
+                        + " bytes/op; budget is " + budget.value());
+            } else {
+                System.out.println(benchmark + ": " + bytes
+                        + " bytes/op (budget " + budget.value() + ")");
+            }
+        }
+        return violations;
+    }
+
+    /** Returns the budget to record for a measured allocation rate. */
+    static long toBudget(final double bytes) {
+        final long result = (long) Math.ceil(bytes - TOLERANCE);
+        return (result <= 0) ? 0 : ((result + 7) / 8) * 8;
+    }
+
+    /** Runs the check. */
+    public static void main(final String[] args) throws RunnerException {
+        final String result = (args.length > 0) ? args[0] : DEFAULT_RESULT;
+        final Options opt = new OptionsBuilder()
+                .include(AllocationBenchmark.class.getName() + ".*")
+                .addProfiler(GCProfiler.class).forks(1).warmupIterations(5)
+                .measurementIterations(5).resultFormat(ResultFormatType.JSON)
+                .result(result).build();
+        final List<String> violations = check(new Runner(opt).run());
+        if (!violations.isEmpty()) {
+            for (final String v : violations) {
+                System.err.println("ALLOCATION BUDGET EXCEEDED: " + v);
+            }
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.blockwithme.meta.demo.Person;
+import com.blockwithme.meta.demo.impl.PersonProvider;
+
+/**
+ * Throughput of the generated getters and setters, through the
+ * DefaultInterceptor, and through the WrapperInterceptor.
+ *
+ * @author monster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BeanAccessBenchmark {
+
+    /** A normal Bean (DefaultInterceptor) */
+    private Person person;
+
+    /** A wrapper Bean (WrapperInterceptor), with nothing changed */
+    private Person wrapper;
+
+    /** The next age */
+    private int age;
+
+    /** Creates the Beans */
+    @Setup
+    public void setup() {
+        person = new PersonProvider().get();
+        person.setAge(33);
+        person.setName("John");
+        person.setProfession("Admin");
+        wrapper = (Person) person.snapshot().wrapper();
+    }
+
+    /** Reads a primitive property */
+    @Benchmark
+    public int getPrimitive() {
+        return person.getAge();
+    }
+
+    /** Reads an Object property */
+    @Benchmark
+    public String getObject() {
+        return person.getName();
+    }
+
+    /** Writes a primitive property */
+    @Benchmark
+    public Person setPrimitive() {
+        person.setAge((age++) & 63);
+        return person;
+    }
+
+    /** Reads a primitive property, from the delegate of a wrapper */
+    @Benchmark
+    public int wrapperGetPrimitive() {
+        return wrapper.getAge();
+    }
+
+    /** Reads an Object property, from the delegate of a wrapper */
+    @Benchmark
+    public String wrapperGetObject() {
+        return wrapper.getName();
+    }
+
+    /** Writes a primitive property of a wrapper */
+    @Benchmark
+    public Person wrapperSetPrimitive() {
+        wrapper.setAge((age++) & 63);
+        return wrapper;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.blockwithme.meta.demo.Person;
+import com.blockwithme.meta.demo.impl.PersonProvider;
+
+/**
+ * Cost of hashCode(), equals() and toString(), which are all based on the
+ * JSON representation; both with a cached, and an invalidated, toString.
+ *
+ * @author monster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BeanIdentityBenchmark {
+
+    /** A Bean */
+    private Person person;
+
+    /** An equal Bean */
+    private Person other;
+
+    /** The next age */
+    private int age;
+
+    /** Creates a Person */
+    private static Person newPerson() {
+        final Person result = new PersonProvider().get();
+        result.setAge(33);
+        result.setName("John");
+        result.setProfession("Admin");
+        return result;
+    }
+
+    /** Creates the Beans */
+    @Setup
+    public void setup() {
+        person = newPerson();
+        other = newPerson();
+    }
+
+    /** toString(), cached */
+    @Benchmark
+    public String toStringCached() {
+        return person.toString();
+    }
+
+    /** toString(), after a change */
+    @Benchmark
+    public String toStringChanged() {
+        person.setAge((age++) & 63);
+        return person.toString();
+    }
+
+    /** hashCode(), cached */
+    @Benchmark
+    public int hashCodeCached() {
+        return person.hashCode();
+    }
+
+    /** hashCode(), after a change */
+    @Benchmark
+    public int hashCodeChanged() {
+        person.setAge((age++) & 63);
+        return person.hashCode();
+    }
+
+    /** equals(), with cached toString */
+    @Benchmark
+    public boolean equalsCached() {
+        return person.equals(other);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, and exports the results as JSON, so that they can be
+ * compared between releases.
+ *
+ * Arguments: [result file (default: jmh-result.json)] [include regexp]
+ *
+ * @author monster
+ */
+public class BenchmarkRunner {
+
+    /** The default result file */
+    public static final String DEFAULT_RESULT = "jmh-result.json";
+
+    /** Runs the benchmarks. */
+    public static void main(final String[] args) throws RunnerException {
+        final String result = (args.length > 0) ? args[0] : DEFAULT_RESULT;
+        final String include = (args.length > 1) ? args[1]
+                : BenchmarkRunner.class.getPackage().getName() + ".*";
+        final Options opt = new OptionsBuilder().include(include).forks(1)
+                .warmupIterations(5).measurementIterations(5)
+                .resultFormat(ResultFormatType.JSON).result(result).build();
+        new Runner(opt).run();
+    }
+}
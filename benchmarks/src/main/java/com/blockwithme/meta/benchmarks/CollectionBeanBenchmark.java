@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.blockwithme.meta.JavaMeta;
+import com.blockwithme.meta.beans.CollectionBeanConfig;
+import com.blockwithme.meta.beans.Meta;
+import com.blockwithme.meta.beans.impl.CollectionBeanImpl;
+
+/**
+ * CollectionBeanImpl add() and contains(), for every CollectionBeanConfig.
+ *
+ * @author monster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CollectionBeanBenchmark {
+
+    /** The number of elements */
+    private static final int SIZE = 64;
+
+    /** The name of the CollectionBeanConfig */
+    @Param({ "UNORDERED_SET", "ORDERED_SET", "HASH_SET", "SORTED_SET",
+            "LIST", "NULL_LIST", "EXACT_LIST", "EXACT_NULL_LIST",
+            "EXACT_SORTED_SET", "EXACT_ORDERED_SET", "EXACT_UNORDERED_SET",
+            "EXACT_HASH_SET" })
+    public String config;
+
+    /** The elements */
+    private final String[] elements = new String[SIZE];
+
+    /** The CollectionBeanConfig */
+    private CollectionBeanConfig cfg;
+
+    /** A filled collection */
+    private CollectionBeanImpl<String> filled;
+
+    /** The next element to look up */
+    private int next;
+
+    /** Returns the CollectionBeanConfig with the given name. */
+    private static CollectionBeanConfig configFor(final String name) {
+        try {
+            return (CollectionBeanConfig) CollectionBeanConfig.class.getField(
+                    name).get(null);
+        } catch (final Exception e) {
+            throw new IllegalArgumentException(name, e);
+        }
+    }
+
+    /** Creates an empty collection */
+    private CollectionBeanImpl<String> newCollection() {
+        return new CollectionBeanImpl<String>(Meta.COLLECTION_BEAN,
+                JavaMeta.STRING, cfg, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /** Creates the collections */
+    @Setup
+    public void setup() {
+        cfg = configFor(config);
+        for (int i = 0; i < SIZE; i++) {
+            elements[i] = "element" + i;
+        }
+        filled = newCollection();
+        for (final String e : elements) {
+            filled.add(e);
+        }
+    }
+
+    /** Fills a new collection */
+    @Benchmark
+    public CollectionBeanImpl<String> add() {
+        final CollectionBeanImpl<String> result = newCollection();
+        for (final String e : elements) {
+            result.add(e);
+        }
+        return result;
+    }
+
+    /** Looks up an element */
+    @Benchmark
+    public boolean contains() {
+        return filled.contains(elements[(next++) & (SIZE - 1)]);
+    }
+}
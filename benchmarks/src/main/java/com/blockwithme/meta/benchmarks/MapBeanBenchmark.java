@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.blockwithme.meta.JavaMeta;
+import com.blockwithme.meta.beans.Meta;
+import com.blockwithme.meta.beans.impl.MapBeanImpl;
+
+/**
+ * MapBeanImpl put() and get().
+ *
+ * @author monster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MapBeanBenchmark {
+
+    /** The number of entries */
+    private static final int SIZE = 64;
+
+    /** The keys */
+    private final String[] keys = new String[SIZE];
+
+    /** A filled map */
+    private MapBeanImpl<String, Integer> filled;
+
+    /** The next key to look up */
+    private int next;
+
+    /** Creates an empty map */
+    private static MapBeanImpl<String, Integer> newMap() {
+        return new MapBeanImpl<String, Integer>(Meta.MAP_BEAN,
+                JavaMeta.STRING, false, JavaMeta.INTEGER, false, false,
+                Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /** Creates the maps */
+    @Setup
+    public void setup() {
+        filled = newMap();
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = "key" + i;
+            filled.put(keys[i], i);
+        }
+    }
+
+    /** Fills a new map */
+    @Benchmark
+    public MapBeanImpl<String, Integer> put() {
+        final MapBeanImpl<String, Integer> result = newMap();
+        for (int i = 0; i < SIZE; i++) {
+            result.put(keys[i], i);
+        }
+        return result;
+    }
+
+    /** Looks up a key */
+    @Benchmark
+    public Integer get() {
+        return filled.get(keys[(next++) & (SIZE - 1)]);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.blockwithme.meta.beans.BeanPath;
+import com.blockwithme.meta.beans.BeanPathSink;
+import com.blockwithme.meta.beans._Bean;
+import com.blockwithme.meta.beans.impl.BeanPathPlan;
+import com.blockwithme.meta.demo.DemoTypeChild;
+import com.blockwithme.meta.demo.Meta;
+import com.blockwithme.meta.demo.Person;
+import com.blockwithme.meta.demo.impl.DemoTypeChildProvider;
+import com.blockwithme.meta.demo.impl.PersonProvider;
+
+/**
+ * resolvePath(), with a "simple" path, a BeanPath and a compiled
+ * BeanPathPlan. beanPathNewPlan() is resolvePath(BeanPath, boolean) as it
+ * was before the plans were cached (a new plan per call), the baseline
+ * that beanPath() must not be slower than.
+ *
+ * @author monster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResolvePathBenchmark {
+
+    /** The Bean tree */
+    private _Bean tree;
+
+    /** The BeanPath */
+    private BeanPath path;
+
+    /** The compiled BeanPath */
+    private BeanPathPlan plan;
+
+    /** Receives the matched values */
+    private final BeanPathSink sink = new BeanPathSink() {
+        @Override
+        public boolean onMatch(final Object value) {
+            last = value;
+            return true;
+        }
+    };
+
+    /** The last matched value */
+    private Object last;
+
+    /** Creates the Beans */
+    @Setup
+    public void setup() {
+        final Person person = new PersonProvider().get();
+        person.setAge(33);
+        person.setName("John");
+        person.setProfession("Admin");
+        final DemoTypeChild dtc = new DemoTypeChildProvider().get();
+        dtc.setChildProp(person);
+        tree = (_Bean) dtc;
+        path = BeanPath.from(Meta.DEMO_TYPE_CHILD__CHILD_PROP,
+                Meta.NAMED__NAME);
+        plan = new BeanPathPlan(path, tree.getMetaType());
+    }
+
+    /** resolvePath(Property...) */
+    @Benchmark
+    public Object simplePath() {
+        return tree.resolvePath(Meta.DEMO_TYPE_CHILD__CHILD_PROP,
+                Meta.NAMED__NAME);
+    }
+
+    /** resolvePath(BeanPath, boolean) */
+    @Benchmark
+    public Object beanPath() {
+        return tree.resolvePath(path, true).iterator().next();
+    }
+
+    /** resolvePath(BeanPath, boolean), with a new plan per call */
+    @Benchmark
+    public Object beanPathNewPlan() {
+        final List<Object> values = new ArrayList<>();
+        new BeanPathPlan(path, tree.getMetaType()).resolve(tree, true,
+                new BeanPathSink() {
+                    @Override
+                    public boolean onMatch(final Object value) {
+                        values.add(value);
+                        return true;
+                    }
+                });
+        return values.iterator().next();
+    }
+
+    /** resolvePath(BeanPathPlan, boolean, BeanPathSink) */
+    @Benchmark
+    public Object plan() {
+        tree.resolvePath(plan, true, sink);
+        return last;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.benchmarks;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.blockwithme.meta.beans.impl.JacksonSerializer;
+import com.blockwithme.meta.demo.DemoTypeChild;
+import com.blockwithme.meta.demo.Person;
+import com.blockwithme.meta.demo.impl.DemoTypeChildProvider;
+import com.blockwithme.meta.demo.impl.PersonProvider;
+
+/**
+ * JacksonSerializer output, for a Bean with a child Bean.
+ *
+ * @author monster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializerBenchmark {
+
+    /** The Bean tree */
+    private DemoTypeChild tree;
+
+    /** Creates the Beans */
+    @Setup
+    public void setup() {
+        final Person person = new PersonProvider().get();
+        person.setAge(33);
+        person.setName("John");
+        person.setProfession("Admin");
+        tree = new DemoTypeChildProvider().get();
+        tree.setIntProp(42);
+        tree.setObjectProp("Hello");
+        tree.setChildProp(person);
+    }
+
+    /** Serializes the tree to JSON */
+    @Benchmark
+    public String serialize() throws IOException {
+        final StringWriter out = new StringWriter(256);
+        final JacksonSerializer j = JacksonSerializer.newSerializer(out);
+        j.visit(tree.getMetaType(), tree);
+        j.generator.flush();
+        j.generator.close();
+        return out.toString();
+    }
+}
@@ -107,6 +107,26 @@ interface DemoTypeChild extends DemoType {
 
 }
 
+/** Example of a "packed" Bean; all it's primitive properties share one long field. */
+@Bean(instance=true, packed=true)
+interface PackedFlags extends Root {
+  /** First flag */
+  boolean flagA
+
+  /** Second flag */
+  boolean flagB
+
+  /** Small signed value; uses only 4 bits */
+  @Range(min="-8",max="7")
+  int small
+
+  /** Byte property */
+  byte byteValue
+
+  /** Char property */
+  char charValue
+}
+
 /** Aspect of an an Object that can be saluted with an "hello". */
 @Bean
 interface Salutable extends Root {
@@ -169,6 +189,13 @@ interface Person extends Named, Aged {
 	String profession
 }
 
+/** Example of a bean property that accepts any Person implementation */
+@Bean(instance=true)
+interface Household extends Root {
+  /** Member of the Household */
+  Person member
+}
+
 /** Example that has more then 64 properties */
 @Bean(instance=true)
 interface SixtyFiveProps extends Root {
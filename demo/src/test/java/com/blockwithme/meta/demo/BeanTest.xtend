@@ -15,19 +15,38 @@
  */
 package com.blockwithme.meta.demo
 
+import com.blockwithme.meta.ColumnStore
+import com.blockwithme.meta.MappedStore
 import com.blockwithme.meta.Property
 import com.blockwithme.meta.beans._Bean
+import com.blockwithme.meta.beans.impl.AccessHeatmap
+import com.blockwithme.meta.beans.impl.BeanMetrics
+import com.blockwithme.meta.beans.impl.Interner
+import com.blockwithme.meta.beans.impl.MetricsInterceptor
+import com.blockwithme.meta.beans.impl.ToStringCachePolicy
+import com.blockwithme.meta.beans.impl.VersionedTree
 import com.blockwithme.meta.beans.impl.WrapperInterceptor
 import com.blockwithme.meta.demo.impl.DemoTypeChildImpl
 import com.blockwithme.meta.demo.impl.DemoTypeChildProvider
 import com.blockwithme.meta.demo.impl.PersonImpl
 import com.blockwithme.meta.demo.impl.PersonProvider
+import com.blockwithme.meta.demo.impl.PackedFlagsProvider
 import com.blockwithme.meta.demo.impl.SixtyFivePropsImpl
 import com.blockwithme.meta.demo.impl.SixtyFivePropsProvider
+import java.io.File
 import java.util.Collection
+import java.util.ConcurrentModificationException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import org.junit.Assert
 import org.junit.Test
 import com.blockwithme.meta.beans.BeanPath
+import com.blockwithme.meta.beans.impl.EncodedSlice
+import com.blockwithme.meta.beans.impl.LazyInterceptor
+import com.blockwithme.meta.demo.impl.HouseholdImpl
+import com.blockwithme.meta.demo.impl.HouseholdProvider
+import java.util.concurrent.atomic.AtomicReference
+import com.blockwithme.util.shared.Footprint
 
 /**
  * @author monster
@@ -178,6 +197,104 @@ class BeanTest extends BaseTst {
 		Assert.assertSame(person2, person3)
 	}
 
+	@Test
+	def void testInternedSnapshot() {
+		val interner = new Interner
+		val provider = new PersonProvider()
+		val person1 = provider.get
+		person1.age = 33
+		person1.name = "John"
+		val person2 = provider.get
+		person2.age = 33
+		person2.name = "John"
+		val snap1 = interner.snapshot(person1)
+		val snap2 = interner.snapshot(person2)
+		Assert.assertTrue("snap1.immutable", snap1.immutable)
+		Assert.assertSame(snap1, snap2)
+		Assert.assertSame(snap1, interner.intern(person2.snapshot))
+		person2.age = 34
+		val snap3 = interner.snapshot(person2)
+		Assert.assertNotSame(snap1, snap3)
+		// Only the retained snapshots are guaranteed to still be interned
+		Assert.assertSame(snap3, interner.intern(person2.snapshot))
+		Assert.assertSame(snap1, interner.intern(person1.snapshot))
+		Assert.assertFalse("mutable", Interner.isInternable(person1))
+	}
+
+	@Test
+	def void testSafePublication() {
+		// Snapshots are published through a plain (racy) array slot
+		val Person[] published = newArrayOfSize(1)
+		val done = new AtomicBoolean
+		val errors = new AtomicInteger
+		val reads = new AtomicInteger
+		val readers = <Thread>newArrayList
+		for (i : 0 ..< 4) {
+			val reader = new Thread [|
+				while (!done.get) {
+					val snap = published.get(0)
+					if ((snap !== null) && (snap as _Bean).immutable) {
+						if ((snap.name != "P"+snap.age) || !snap.toString.contains(snap.name)
+							|| (snap.hashCode != snap.toString.hashCode)) {
+							errors.incrementAndGet
+						}
+						reads.incrementAndGet
+					}
+				}
+			]
+			readers.add(reader)
+			reader.start
+		}
+		val person = new PersonProvider().get
+		for (i : 0 ..< 20000) {
+			person.age = i
+			person.name = "P"+i
+			published.set(0, person.snapshot)
+		}
+		done.set(true)
+		for (reader : readers) {
+			reader.join
+		}
+		Assert.assertEquals("errors after "+reads.get+" reads", 0, errors.get)
+	}
+
+	@Test
+	def void testVersionedTree() {
+		val person = new PersonProvider().get
+		person.age = 33
+		person.name = "John"
+		val tree = new VersionedTree<Person>(person)
+		val v0 = tree.read
+		val tx1 = tree.begin
+		val tx2 = tree.begin
+		val tx3 = tree.begin
+		tx1.get.age = 34
+		tx2.get.name = "Jack"
+		tx3.get.age = 35
+		Assert.assertEquals("tx1.age", 34, tx1.get.age)
+		Assert.assertEquals("tx1.name", "John", tx1.get.name)
+		Assert.assertEquals("v1", 1, tx1.commit.version)
+		// Different property: merged
+		Assert.assertEquals("v2", 2, tx2.commit.version)
+		val v2 = tree.read
+		Assert.assertTrue("v2.immutable", (v2 as _Bean).immutable)
+		Assert.assertEquals("v2.age", 34, v2.age)
+		Assert.assertEquals("v2.name", "Jack", v2.name)
+		// Same property: conflict
+		var conflict = false
+		try {
+			tx3.commit
+		} catch (ConcurrentModificationException e) {
+			conflict = true
+		}
+		Assert.assertTrue("conflict", conflict)
+		Assert.assertEquals("conflicts", 1, tree.conflicts)
+		Assert.assertSame("v2 unchanged", v2, tree.read)
+		// Readers are not affected
+		Assert.assertEquals("v0.age", 33, v0.age)
+		Assert.assertEquals("v0.name", "John", v0.name)
+	}
+
 	@Test
 	def void testNoSelection() {
 		val obj = new SixtyFivePropsProvider().get as SixtyFivePropsImpl
@@ -358,4 +475,333 @@ class BeanTest extends BaseTst {
 		}
 		Assert.assertTrue("DemoTypeChild must NOT allow 100 for _childAge", exception)
 	}
-}
\ No newline at end of file
+
+	@Test
+	def void testPacked() {
+		val flags = new PackedFlagsProvider().get
+		flags.flagB = true
+		flags.small = -8
+		flags.byteValue = -128 as byte
+		flags.charValue = 'z'
+		Assert.assertFalse("flags.flagA", flags.flagA)
+		Assert.assertTrue("flags.flagB", flags.flagB)
+		Assert.assertEquals("flags.small", -8, flags.small)
+		Assert.assertEquals("flags.byteValue", -128 as byte, flags.byteValue)
+		Assert.assertEquals("flags.charValue", 'z', flags.charValue)
+		flags.small = 7
+		flags.flagB = false
+		Assert.assertEquals("flags.small", 7, flags.small)
+		Assert.assertFalse("flags.flagB", flags.flagB)
+		Assert.assertEquals("flags.charValue", 'z', flags.charValue)
+		var exception = false
+		try {
+			flags.small = 8
+		} catch(Throwable t) {
+			exception = true
+		}
+		Assert.assertTrue("small out of range", exception)
+		Assert.assertEquals("flags.small", 7, flags.small)
+	}
+
+	@Test
+	def void testPackedMeta() {
+		Assert.assertEquals("small.bits", 4, Meta.PACKED_FLAGS__SMALL.bits)
+		Assert.assertEquals("flagA.bits", 1, Meta.PACKED_FLAGS__FLAG_A.bits)
+		Assert.assertEquals("charValue.bits", 16, Meta.PACKED_FLAGS__CHAR_VALUE.bits)
+		Assert.assertEquals("primitivePropertyBitsTotal", 30, Meta.PACKED_FLAGS.primitivePropertyBitsTotal)
+		// All the primitive properties share one long field
+		Assert.assertEquals("footprint", Footprint.round(8), Meta.PACKED_FLAGS.footprint)
+	}
+
+	@Test
+	def void testMetricsInterceptor() {
+		val metrics = new BeanMetrics("testMetricsInterceptor")
+		val person = new PersonProvider().get as PersonImpl
+		person.interceptor = new MetricsInterceptor(metrics)
+		person.age = 33
+		person.age = 33
+		person.name = "John"
+		Assert.assertEquals("person.age", 33, person.age)
+		Assert.assertEquals("age writes", 2, metrics.getCounters(Meta.AGED__AGE).writes)
+		Assert.assertEquals("age reads", 1, metrics.getCounters(Meta.AGED__AGE).reads)
+		Assert.assertEquals("name writes", 1, metrics.getCounters(Meta.NAMED__NAME).writes)
+		Assert.assertEquals("Person writes", 3, metrics.getCounters(Meta.PERSON).writes)
+		Assert.assertEquals("Person reads (JMX)", 1L, metrics.typeReads.get(Meta.PERSON.fullName))
+		metrics.reset
+		Assert.assertNull("reset", metrics.getCounters(Meta.PERSON))
+	}
+
+	@Test
+	def void testAccessHeatmap() {
+		val heatmap = AccessHeatmap.enable(Meta.PERSON.hierarchy, 0)
+		try {
+			val person = new PersonProvider().get
+			person.age = 33
+			Assert.assertEquals("person.age", 33, person.age)
+			Assert.assertEquals("person.age", 33, person.age)
+			val report = heatmap.report
+			val age = report.entries.findFirst[type === Meta.PERSON && property === Meta.AGED__AGE]
+			Assert.assertEquals("age reads", 2, age.reads)
+			Assert.assertEquals("age writes", 1, age.writes)
+			Assert.assertEquals("age heat", AccessHeatmap.Heat.HOT, age.heat)
+			val profession = report.entries.findFirst[type === Meta.PERSON && property.simpleName == "profession"]
+			Assert.assertEquals("profession heat", AccessHeatmap.Heat.UNUSED, profession.heat)
+			Assert.assertTrue("profession never written", report.neverWritten.contains(profession))
+		} finally {
+			AccessHeatmap.disable(Meta.PERSON.hierarchy)
+		}
+	}
+
+	@Test
+	def void testSubtreeDirty() {
+		val dtc = new DemoTypeChildProvider().get as DemoTypeChildImpl
+		val person = new PersonProvider().get as PersonImpl
+		dtc.childProp = person
+		dtc.clearSelection(true, true)
+		Assert.assertFalse("dtc.subtreeDirty", dtc.subtreeDirty)
+		Assert.assertFalse("dtc.selectedRecursive", dtc.selectedRecursive)
+		person.age = 42
+		Assert.assertFalse("dtc.selected", dtc.selected)
+		Assert.assertTrue("dtc.subtreeDirty", dtc.subtreeDirty)
+		Assert.assertTrue("dtc.selectedRecursive", dtc.selectedRecursive)
+		person.clearSelection(false, false)
+		Assert.assertFalse("dtc.selectedRecursive after child clear", dtc.selectedRecursive)
+		person.age = 43
+		dtc.clearSelection(false, true)
+		Assert.assertFalse("person.selected", person.selected)
+		Assert.assertFalse("dtc.subtreeDirty after clear", dtc.subtreeDirty)
+		Assert.assertFalse("dtc.selectedRecursive after clear", dtc.selectedRecursive)
+	}
+
+	@Test
+	def void testRootBeanMove() {
+		val dtc1 = new DemoTypeChildProvider().get as DemoTypeChildImpl
+		val dtc2 = new DemoTypeChildProvider().get as DemoTypeChildImpl
+		val person = new PersonProvider().get as PersonImpl
+		dtc1.childProp = person
+		Assert.assertSame("person.root", dtc1, person.rootBean)
+		Assert.assertTrue("hasSameRoot", person.hasSameRoot(dtc1))
+		dtc1.childProp = null
+		Assert.assertNull("person.root detached", person.rootBean)
+		dtc2.childProp = person
+		Assert.assertSame("person.root moved", dtc2, person.rootBean)
+		Assert.assertFalse("hasSameRoot old", person.hasSameRoot(dtc1))
+		Assert.assertNull("dtc2.root", dtc2.rootBean)
+	}
+
+	@Test
+	def void testToStringCachePolicy() {
+		val dtc = new DemoTypeChildProvider().get as DemoTypeChildImpl
+		val person = new PersonProvider().get as PersonImpl
+		person.age = 10
+		dtc.childProp = person
+		val before = dtc.toString
+		val json = new StringBuilder
+		dtc.toJSON(json)
+		Assert.assertEquals("same as toJSON", json.toString, before)
+		Assert.assertSame("cached", before, dtc.toString)
+		person.age = 20
+		Assert.assertFalse("parent invalidated", before == dtc.toString)
+		val cached = dtc.toString
+		person.age = 21
+		Assert.assertFalse("parent invalidated again", cached == dtc.toString)
+		val copy = dtc.copy as DemoTypeChildImpl
+		val copied = copy.toString
+		copy.childProp.age = 22
+		Assert.assertFalse("copy invalidated", copied == copy.toString)
+		ToStringCachePolicy.set(Meta.PERSON, ToStringCachePolicy.NONE)
+		try {
+			person.age = 30
+			Assert.assertNotSame("not cached", person.toString, person.toString)
+			val parent = dtc.toString
+			person.age = 40
+			Assert.assertFalse("invalidated through NONE child", parent == dtc.toString)
+		} finally {
+			ToStringCachePolicy.set(Meta.PERSON, ToStringCachePolicy.CACHED)
+		}
+		ToStringCachePolicy.set(Meta.DEMO_TYPE_CHILD, ToStringCachePolicy.INCREMENTAL)
+		try {
+			val dtc2 = new DemoTypeChildProvider().get as DemoTypeChildImpl
+			val person2 = new PersonProvider().get as PersonImpl
+			dtc2.childProp = person2
+			val incremental = dtc2.toString
+			Assert.assertTrue("child JSON reused", incremental.contains(person2.toString))
+			Assert.assertSame("incremental cached", incremental, dtc2.toString)
+			person2.age = 50
+			Assert.assertTrue("child JSON updated", dtc2.toString.contains(person2.toString))
+		} finally {
+			ToStringCachePolicy.set(Meta.DEMO_TYPE_CHILD, ToStringCachePolicy.CACHED)
+		}
+	}
+
+	/** Returns a new Household, with an encoded "member", of the given age. */
+	private def HouseholdImpl lazyHousehold(LazyInterceptor lazy, int age) {
+		val household = new HouseholdProvider().get as HouseholdImpl
+		household.interceptor = lazy
+		val bytes = newByteArrayOfSize(1)
+		bytes.set(0, age as byte)
+		lazy.setEncoded(household, Meta.HOUSEHOLD__MEMBER, new EncodedSlice(bytes, 0, 1))
+		household
+	}
+
+	/** Returns a LazyInterceptor that decodes Persons, and counts the decodings. */
+	private def LazyInterceptor personDecoder(AtomicInteger decoded) {
+		new LazyInterceptor([parent, prop, encoded |
+			decoded.incrementAndGet
+			val person = new PersonProvider().get
+			person.age = encoded.bytes.get(encoded.offset)
+			(person as _Bean).clearSelection(true, true)
+			person
+		])
+	}
+
+	@Test
+	def void testLazyRead() {
+		val decoded = new AtomicInteger
+		val lazy = personDecoder(decoded)
+		val household = lazyHousehold(lazy, 7)
+		Assert.assertTrue("lazy", lazy.isLazy(household, Meta.HOUSEHOLD__MEMBER))
+		val member = household.member
+		Assert.assertEquals("member.age", 7, member.age)
+		Assert.assertEquals("decoded", 1, decoded.get)
+		Assert.assertFalse("lazy after read", lazy.isLazy(household, Meta.HOUSEHOLD__MEMBER))
+		Assert.assertSame("member.parentBean", household, (member as _Bean).parentBean)
+		Assert.assertFalse("materializing is not a change", household.selectedRecursive)
+		Assert.assertSame("decoded once", member, household.member)
+		Assert.assertEquals("decoded once", 1, decoded.get)
+	}
+
+	@Test
+	def void testLazyEntityAndImmutable() {
+		val next = new AtomicReference<Object>
+		val lazy = new LazyInterceptor([parent, prop, encoded | next.get])
+
+		// Entities are not linked
+		val entity = new PersonEntity
+		next.set(entity)
+		val household1 = lazyHousehold(lazy, 1)
+		Assert.assertSame("entity", entity, household1.member)
+		Assert.assertNull("entity.parentBean", entity.parentBean)
+
+		// Shared immutable values are not linked
+		val shared = (new PersonProvider().get => [age = 30]).snapshot as _Bean
+		next.set(shared)
+		val household2 = lazyHousehold(lazy, 2)
+		Assert.assertSame("shared", shared, household2.member)
+		Assert.assertNull("shared.parentBean", shared.parentBean)
+
+		// Beans that already have a parent are copied
+		val dtc = new DemoTypeChildProvider().get as DemoTypeChildImpl
+		val owned = new PersonProvider().get as PersonImpl
+		owned.age = 40
+		dtc.childProp = owned
+		next.set(owned)
+		val household3 = lazyHousehold(lazy, 3)
+		val member = household3.member
+		Assert.assertNotSame("copied", owned, member)
+		Assert.assertEquals("copied.age", 40, member.age)
+		Assert.assertSame("copied.parentBean", household3, (member as _Bean).parentBean)
+		Assert.assertSame("owned.parentBean", dtc, owned.parentBean)
+	}
+
+	@Test
+	def void testLazyTraversal() {
+		val decoded = new AtomicInteger
+		val lazy = personDecoder(decoded)
+		val household = lazyHousehold(lazy, 9)
+		Assert.assertFalse("selectedRecursive", household.selectedRecursive)
+		household.clearSelection(true, true)
+		val json = new StringBuilder
+		household.toJSON(json)
+		Assert.assertTrue("json", json.toString.contains("member"))
+		val copy = household.copy as HouseholdImpl
+		Assert.assertEquals("not decoded", 0, decoded.get)
+		Assert.assertTrue("still lazy", lazy.isLazy(household, Meta.HOUSEHOLD__MEMBER))
+		Assert.assertTrue("copy lazy", lazy.isLazy(copy, Meta.HOUSEHOLD__MEMBER))
+		Assert.assertEquals("copy decodes", 9, copy.member.age)
+		Assert.assertEquals("decoded by copy", 1, decoded.get)
+		val snapshot = household.snapshot as HouseholdImpl
+		Assert.assertEquals("snapshot.member.age", 9, snapshot.member.age)
+		Assert.assertTrue("still lazy after snapshot", lazy.isLazy(household, Meta.HOUSEHOLD__MEMBER))
+	}
+
+	@Test
+	def void testLazyEquality() {
+		val decoded = new AtomicInteger
+		val lazy = personDecoder(decoded)
+		val household1 = lazyHousehold(lazy, 5)
+		val household2 = lazyHousehold(lazy, 5)
+		val json = household1.toString
+		val hash = household1.hashCode
+		Assert.assertEquals("equals", household1, household2)
+		Assert.assertTrue("still lazy", lazy.isLazy(household1, Meta.HOUSEHOLD__MEMBER))
+
+		// Materializing does not change the equality
+		Assert.assertEquals("member.age", 5, household1.member.age)
+		Assert.assertFalse("materialized", lazy.isLazy(household1, Meta.HOUSEHOLD__MEMBER))
+		Assert.assertTrue("not materialized", lazy.isLazy(household2, Meta.HOUSEHOLD__MEMBER))
+		Assert.assertEquals("toString", json, household1.toString)
+		Assert.assertEquals("hashCode", hash, household1.hashCode)
+		Assert.assertEquals("equals after materialization", household1, household2)
+		Assert.assertEquals("hashCode after materialization", household1.hashCode, household2.hashCode)
+		// The same, even without a cached toString
+		Assert.assertEquals("fresh", json, lazyHousehold(lazy, 5).toString)
+	}
+
+	@Test
+	def void testColumnStoreHandle() {
+		val store = new ColumnStore<Person>(Meta.PERSON, 0)
+		val person = new PersonProvider().get
+		person.age = 33
+		person.name = "John"
+		val row = store.add(person)
+		val handle = store.handle(row)
+		Assert.assertEquals("age", 33, Meta.AGED__AGE.getInt(handle))
+		Assert.assertEquals("name", "John", Meta.NAMED__NAME.getObject(handle))
+		Meta.AGED__AGE.setInt(handle, 34)
+		Assert.assertEquals("age column", 34L, store.getLong(Meta.AGED__AGE, row))
+		handle.name = "Jane"
+		Assert.assertEquals("name column", "Jane", store.getObject(Meta.NAMED__NAME, row))
+		Assert.assertEquals("same row", handle, store.handle(row))
+		Assert.assertSame("metaType", Meta.PERSON, handle.metaType)
+		var failed = false
+		try {
+			handle.copy
+		} catch (UnsupportedOperationException e) {
+			failed = true
+		}
+		Assert.assertTrue("Bean state not supported", failed)
+	}
+
+	@Test
+	def void testMappedStoreHandle() {
+		val file = File.createTempFile("MappedStore", ".bin")
+		file.deleteOnExit
+		file.delete
+		val store = MappedStore.open(Meta.PERSON, file, 16)
+		try {
+			val person = new PersonProvider().get
+			person.age = 33
+			val row = store.add(person)
+			store.cursor(store.allocate).setLong(Meta.AGED__AGE, 44)
+			val handle = store.handle(row)
+			Assert.assertEquals("age", 33, Meta.AGED__AGE.getInt(handle))
+			Meta.AGED__AGE.setInt(handle, 34)
+			Assert.assertEquals("stored", 34L, store.getLong(Meta.AGED__AGE, row))
+			val cursor = store.cursor(row)
+			val moving = cursor.handle
+			Assert.assertEquals("cursor", 34, moving.age)
+			cursor.moveTo(row + 1)
+			Assert.assertEquals("moved", 44, moving.age)
+			var failed = false
+			try {
+				moving.name
+			} catch (UnsupportedOperationException e) {
+				failed = true
+			}
+			Assert.assertTrue("Object properties not stored", failed)
+		} finally {
+			store.close
+		}
+	}
+}
@@ -510,4 +510,58 @@ class CollectionTest extends BaseTst {
 		}
 		assertTrue("co.integerSet.add(99)", exception)
 	}
-}
\ No newline at end of file
+
+
+	/** Creates a Person, with the given name */
+	private static def Person newPerson(String name) {
+		val result = new PersonProvider().get
+		result.name = name
+		result
+	}
+
+	@Test
+	def void testContentIndex() {
+		val co = new CollectionOwnerProvider().get
+		val everyone = co.everyone as _ListBean<Person>
+		val john = newPerson("John")
+		val jane = newPerson("Jane")
+		val john2 = newPerson("John")
+		everyone.add(john)
+		everyone.add(jane)
+
+		// addIndex() indexes the existing elements
+		val index = everyone.addIndex(Meta.NAMED__NAME)
+		assertSame("getIndex", index, everyone.getIndex(Meta.NAMED__NAME))
+		assertSame("addIndex again", index, everyone.addIndex(Meta.NAMED__NAME))
+		assertNull("getIndex(age)", everyone.getIndex(Meta.AGED__AGE))
+		assertSame("keyProperty", Meta.NAMED__NAME, index.keyProperty)
+		assertSame("Jane", jane, index.get("Jane"))
+
+		// Updated on add and set
+		everyone.add(john2)
+		assertEquals("John", #[john, john2], index.getAll("John"))
+		val bob = newPerson("Bob")
+		everyone.set(1, bob)
+		assertFalse("Jane replaced", index.containsKey("Jane"))
+		assertSame("Bob", bob, index.get("Bob"))
+		val nobody = newPerson(null)
+		everyone.add(nobody)
+		assertSame("null key", nobody, index.get(null))
+
+		// A changed key is only seen after reindex()
+		john.name = "Jack"
+		assertEquals("stale John", #[john2], index.getAll("John"))
+		assertNull("Jack before reindex", index.get("Jack"))
+		everyone.reindex
+		assertSame("Jack", john, index.get("Jack"))
+
+		// Removed with the key it was indexed with
+		john2.name = "Joe"
+		everyone.remove(john2)
+		john2.name = "John"
+		assertFalse("John removed", index.containsKey("John"))
+
+		everyone.clear
+		assertFalse("cleared", index.containsKey("Jack"))
+	}
+}
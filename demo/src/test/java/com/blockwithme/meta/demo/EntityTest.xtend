@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.demo
+
+import com.blockwithme.fn1.ProcObject
+import com.blockwithme.meta.beans.Entity
+import com.blockwithme.meta.beans.EntityContext
+import com.blockwithme.meta.beans.Handle
+import com.blockwithme.meta.beans.impl.BatchingEntityLoader
+import com.blockwithme.meta.beans.impl.EntityBackend
+import com.blockwithme.meta.beans.impl.EntityCache
+import java.util.HashSet
+import java.util.List
+import java.util.Map
+import java.util.Set
+import java.util.concurrent.Executor
+import org.junit.Assert
+import org.junit.Test
+import com.blockwithme.meta.beans.impl.EntityExecutor
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import com.blockwithme.meta.beans.impl.DeltaSerializer
+import com.blockwithme.meta.beans.impl.WriteBehindFlusher
+import com.blockwithme.meta.demo.impl.HouseholdProvider
+import com.blockwithme.meta.demo.impl.PersonProvider
+import java.io.File
+import java.io.IOException
+import java.io.StringWriter
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+
+/** An EntityContext, loading through a BatchingEntityLoader. */
+class TestEntityContext implements EntityContext {
+	/** The loader */
+	val BatchingEntityLoader loader
+
+	new(BatchingEntityLoader loader) {
+		this.loader = loader
+	}
+
+	override getNamespace() {
+		"test"
+	}
+
+	override getIDAsString(Entity entity) {
+		entity?.handle?.id
+	}
+
+	override getEntityFromID(String idAsString) {
+		new Handle(idAsString, this)
+	}
+
+	override requestLoad(Handle requested, Handle requester, ProcObject<Object> onLoad) {
+		loader.requestLoad(requested, requester, onLoad)
+	}
+}
+
+/**
+ * An EntityBackend, creating a PersonEntity with the ID as age, and
+ * recording the batches. IDs starting with "missing" are not found.
+ */
+class TestEntityBackend implements EntityBackend {
+	/** The requested batches */
+	public val List<Set<String>> batches = newArrayList
+
+	/** Should the next loads fail? */
+	public var volatile boolean fail
+
+	override synchronized Map<String, Entity> loadAll(EntityContext context, Set<String> ids) {
+		batches.add(new HashSet(ids))
+		if (fail) {
+			throw new IllegalStateException("fail")
+		}
+		val result = <String, Entity>newHashMap
+		for (id : ids) {
+			if (!id.startsWith("missing")) {
+				val entity = new PersonEntity
+				entity.age = Integer.parseInt(id)
+				result.put(id, entity)
+			}
+		}
+		result
+	}
+}
+
+/** A BatchingEntityLoader, whose callbacks cannot be dispatched. */
+class ThrowingCallbackLoader extends BatchingEntityLoader {
+	new(EntityBackend backend, Executor fetchExecutor) {
+		super(backend, fetchExecutor)
+	}
+
+	override protected Executor callbackExecutor(Handle requester) {
+		[throw new IllegalStateException("callback")]
+	}
+}
+
+/** A WriteBehindFlusher, that fails after writing half of the first batch. */
+class FailingFlusher extends WriteBehindFlusher {
+	/** Did we fail already? */
+	var failed = false
+
+	new(File file, int maxBatch) {
+		super(file, maxBatch)
+	}
+
+	override protected write(FileChannel channel, ByteBuffer bytes) {
+		if (!failed) {
+			failed = true
+			bytes.limit(bytes.limit / 2)
+			super.write(channel, bytes)
+			throw new IOException("disk full")
+		}
+		super.write(channel, bytes)
+	}
+}
+
+/**
+ * Tests the Entity infrastructure (loading, caching, ...).
+ *
+ * @author monster
+ */
+class EntityTest extends BaseTst {
+	/** Runs the tasks directly */
+	static val Executor DIRECT = [it.run]
+
+	/** Creates a PersonEntity, with the given Handle and age */
+	private static def PersonEntity newEntity(Handle handle, int age) {
+		val result = new PersonEntity
+		result.handle = handle
+		result.age = age
+		result.clearSelection(true, true)
+		result
+	}
+
+	@Test
+	def void testEntityCachePinning() {
+		val loader = new BatchingEntityLoader(new TestEntityBackend, DIRECT)
+		val context = new TestEntityContext(loader)
+		val cache = new EntityCache(loader, 2)
+		val handles = (1 .. 4).map[context.getEntityFromID(String.valueOf(it))].toList
+		val first = newEntity(handles.get(0), 1)
+		cache.put(handles.get(0), first)
+		first.age = 10
+		cache.updatePinned(handles.get(0))
+		Assert.assertTrue("pinned", cache.isPinned(handles.get(0)))
+		for (i : 1 ..< 4) {
+			cache.put(handles.get(i), newEntity(handles.get(i), i + 1))
+		}
+		// One in the window, one in main; the dirty Entity stays
+		Assert.assertEquals("size", 2, cache.size)
+		Assert.assertEquals("evictions", 2, cache.evictions)
+		Assert.assertEquals("pinnedCount", 1, cache.pinnedCount)
+		Assert.assertSame("first", first, handles.get(0).entity)
+
+		first.clearSelection(true, true)
+		cache.updatePinned(handles.get(0))
+		Assert.assertFalse("unpinned", cache.isPinned(handles.get(0)))
+		Assert.assertEquals("pinnedCount after clean", 0, cache.pinnedCount)
+	}
+
+	@Test
+	def void testEntityCacheReload() {
+		val backend = new TestEntityBackend
+		val loader = new BatchingEntityLoader(backend, DIRECT)
+		val context = new TestEntityContext(loader)
+		val cache = new EntityCache(loader, 2)
+		val handles = (1 .. 4).map[context.getEntityFromID(String.valueOf(it))].toList
+		for (i : 0 ..< 4) {
+			cache.put(handles.get(i), newEntity(handles.get(i), i + 1))
+		}
+		Assert.assertEquals("evictions", 2, cache.evictions)
+		// Accessing an evicted Handle requests the reload
+		val evicted = handles.filter[entity === null].toList
+		Assert.assertEquals("evicted", 2, evicted.size)
+		Assert.assertEquals("pending", 2, loader.pendingCount)
+		loader.tick
+		Assert.assertEquals("one batch", 1, backend.batches.size)
+		Assert.assertEquals("batch size", 2, backend.batches.get(0).size)
+		for (handle : evicted) {
+			val entity = handle.entity as PersonEntity
+			Assert.assertNotNull("reloaded " + handle, entity)
+			Assert.assertEquals("age " + handle, Integer.parseInt(handle.id), entity.age)
+		}
+		Assert.assertEquals("loads", 2, cache.loads)
+
+		// get() of a cached Entity is a hit
+		val hits = cache.hits
+		val cached = handles.findFirst[cache.get(it) !== null]
+		Assert.assertNotNull("cached", cached)
+		Assert.assertEquals("hits", hits + 1, cache.hits)
+	}
+
+
+	@Test
+	def void testEntityExecutor() {
+		val executor = new EntityExecutor(2, "test")
+		val context = new TestEntityContext(new BatchingEntityLoader(new TestEntityBackend, DIRECT))
+		val a = context.getEntityFromID("a")
+		val b = context.getEntityFromID("b")
+		val order = new CopyOnWriteArrayList<String>
+		val owner = new AtomicBoolean
+		val done = new CountDownLatch(1)
+		executor.execute(a, [|
+			owner.set(executor.isOwner(a))
+			// Messages to the same Handle keep their order
+			for (i : 0 ..< 3) {
+				executor.execute(b, [|order.add("b" + i)])
+			}
+			executor.execute(b, [|done.countDown])
+		])
+		Assert.assertTrue("done", done.await(10, TimeUnit.SECONDS))
+		Assert.assertTrue("owner", owner.get)
+		Assert.assertFalse("not owner", executor.isOwner(a))
+		Assert.assertEquals("order", #["b0", "b1", "b2"], order)
+	}
+
+	@Test
+	def void testEntityExecutorShutdown() {
+		val executor = new EntityExecutor(1, "test")
+		val context = new TestEntityContext(new BatchingEntityLoader(new TestEntityBackend, DIRECT))
+		val a = context.getEntityFromID("a")
+		val release = new CountDownLatch(1)
+		val ran = new AtomicInteger
+		executor.execute(a, [|release.await])
+		executor.execute(a, [|ran.incrementAndGet])
+		val stopper = new Thread [|
+			executor.shutdown(10, TimeUnit.SECONDS)
+		]
+		stopper.start
+		// Waits until shutdown() waits for the loop
+		while (stopper.state != Thread.State.TIMED_WAITING) {
+			Thread.sleep(1)
+		}
+		release.countDown
+		stopper.join
+		// The task queued before shutdown() still ran
+		Assert.assertEquals("ran", 1, ran.get)
+		Assert.assertEquals("executed", 2L, executor.executed)
+		try {
+			executor.execute(a, [|ran.incrementAndGet])
+			Assert.fail("execute() after shutdown()")
+		} catch (RejectedExecutionException e) {
+			// OK
+		}
+	}
+
+
+	@Test
+	def void testBatchingEntityLoader() {
+		val backend = new TestEntityBackend
+		val fetches = <Runnable>newArrayList
+		val loader = new BatchingEntityLoader(backend, [fetches.add(it)])
+		val context = new TestEntityContext(loader)
+		val h1 = context.getEntityFromID("1")
+		val h2 = context.getEntityFromID("2")
+		val missing = context.getEntityFromID("missing1")
+		val outcomes = <String>newArrayList
+		val ProcObject<Object> record = [
+			outcomes.add(if (it instanceof PersonEntity) "age=" + (it as PersonEntity).age else it.class.simpleName)
+		]
+
+		// Requests of the same tick are coalesced, and deduplicated
+		loader.requestLoad(h1, null, record)
+		loader.requestLoad(h1, null, record)
+		loader.requestLoad(h2, null, null)
+		loader.requestLoad(missing, null, record)
+		Assert.assertEquals("pending", 3, loader.pendingCount)
+		Assert.assertEquals("tick", 3, loader.tick)
+		Assert.assertEquals("pending after tick", 0, loader.pendingCount)
+		Assert.assertEquals("inFlight", 3, loader.inFlightCount)
+		Assert.assertEquals("one fetch per context", 1, fetches.size)
+
+		// A request for an in-flight Handle joins it
+		loader.requestLoad(h1, null, record)
+		Assert.assertEquals("pending in-flight", 0, loader.pendingCount)
+		fetches.remove(0).run
+		Assert.assertEquals("batches", #[#{"1", "2", "missing1"}], backend.batches)
+		Assert.assertEquals("inFlight after fetch", 0, loader.inFlightCount)
+		Assert.assertEquals("h2", 2, (h2.entity as PersonEntity).age)
+
+		// The callbacks run in the thread calling tick()
+		Assert.assertTrue("before tick", outcomes.empty)
+		Assert.assertEquals("nothing to fetch", 0, loader.tick)
+		Assert.assertEquals("outcomes", #["age=1", "age=1", "age=1", "IllegalArgumentException"], outcomes)
+
+		// Already loaded: no fetch
+		outcomes.clear
+		loader.requestLoad(h1, null, record)
+		Assert.assertEquals("loaded", 0, loader.tick)
+		Assert.assertEquals("loaded outcome", #["age=1"], outcomes)
+		Assert.assertTrue("no fetch", fetches.empty)
+
+		// A failure fails the whole batch
+		outcomes.clear
+		backend.fail = true
+		loader.requestLoad(context.getEntityFromID("3"), null, record)
+		loader.requestLoad(context.getEntityFromID("4"), null, record)
+		loader.tick
+		fetches.remove(0).run
+		loader.tick
+		Assert.assertEquals("failure", #["IllegalStateException", "IllegalStateException"], outcomes)
+	}
+
+	@Test
+	def void testBatchingEntityLoaderFailures() {
+		val backend = new TestEntityBackend
+		val outcomes = <String>newArrayList
+		val ProcObject<Object> record = [outcomes.add(it.class.simpleName)]
+
+		// A rejected fetch fails it's requests, and does not strand them
+		val rejecting = new BatchingEntityLoader(backend, [throw new RejectedExecutionException("full")])
+		val context = new TestEntityContext(rejecting)
+		rejecting.requestLoad(context.getEntityFromID("1"), null, record)
+		rejecting.tick
+		Assert.assertEquals("rejected inFlight", 0, rejecting.inFlightCount)
+		Assert.assertEquals("rejected", #["RejectedExecutionException"], outcomes)
+
+		// A failing callback does not strand the other Handles
+		val fetches = <Runnable>newArrayList
+		val throwing = new ThrowingCallbackLoader(backend, [fetches.add(it)])
+		val context2 = new TestEntityContext(throwing)
+		val h3 = context2.getEntityFromID("3")
+		throwing.requestLoad(context2.getEntityFromID("2"), null, record)
+		throwing.requestLoad(h3, null, record)
+		throwing.tick
+		var failed = false
+		try {
+			fetches.remove(0).run
+		} catch (IllegalStateException e) {
+			failed = true
+			Assert.assertEquals("suppressed", 1, e.suppressed.length)
+		}
+		Assert.assertTrue("failed", failed)
+		Assert.assertEquals("throwing inFlight", 0, throwing.inFlightCount)
+		Assert.assertEquals("h3", 3, (h3.entity as PersonEntity).age)
+	}
+
+	@Test
+	def void testBatchingEntityLoaderAffinity() {
+		val executor = new EntityExecutor(2, "test")
+		val loader = executor.newLoader(new TestEntityBackend, DIRECT)
+		val context = new TestEntityContext(loader)
+		val requester = context.getEntityFromID("requester")
+		val owner = new AtomicBoolean
+		val done = new CountDownLatch(1)
+		loader.requestLoad(context.getEntityFromID("7"), requester, [
+			owner.set(executor.isOwner(requester))
+			done.countDown
+		])
+		loader.tick
+		Assert.assertTrue("done", done.await(10, TimeUnit.SECONDS))
+		Assert.assertTrue("owner", owner.get)
+		executor.shutdown(10, TimeUnit.SECONDS)
+	}
+
+	/** Creates a temporary log file */
+	private static def File newLogFile() {
+		val result = File.createTempFile("WriteBehindFlusher", ".log")
+		result.deleteOnExit
+		result
+	}
+
+	/** Returns the lines of a log file */
+	private static def List<String> readLines(File file) {
+		Files.readAllLines(file.toPath, StandardCharsets.UTF_8)
+	}
+
+	@Test
+	def void testWriteBehindFlusher() {
+		val context = new TestEntityContext(new BatchingEntityLoader(new TestEntityBackend, DIRECT))
+		val file = newLogFile
+		val flusher = new WriteBehindFlusher(file, 2)
+		val entities = (1 .. 3).map[newEntity(context.getEntityFromID(String.valueOf(it)), it)].toList
+		entities.forEach[flusher.register(it)]
+		Assert.assertEquals("clean", 0, flusher.flush)
+
+		entities.get(0).name = "One"
+		entities.get(2).age = 33
+		Assert.assertEquals("flush", 2, flusher.flush)
+		Assert.assertEquals("written", 2L, flusher.written)
+		Assert.assertEquals("batches", 1L, flusher.batches)
+		Assert.assertFalse("cleared", entities.get(0).selectedRecursive)
+		Assert.assertFalse("cleared", entities.get(2).selectedRecursive)
+		val lines = readLines(file)
+		Assert.assertEquals("lines", 2, lines.size)
+		val one = lines.findFirst[contains(entities.get(0).handle.toString)]
+		Assert.assertTrue("delta one", one.contains('"delta"') && one.contains('"One"'))
+		Assert.assertFalse("age one", one.contains('"age"'))
+		val three = lines.findFirst[contains(entities.get(2).handle.toString)]
+		Assert.assertTrue("delta three", three.contains('"age"') && three.contains("33"))
+		Assert.assertFalse("name three", three.contains('"name"'))
+
+		Assert.assertEquals("flush again", 0, flusher.flush)
+		Assert.assertEquals("lines again", 2, readLines(file).size)
+		flusher.close
+	}
+
+	@Test
+	def void testWriteBehindFlusherRetry() {
+		val context = new TestEntityContext(new BatchingEntityLoader(new TestEntityBackend, DIRECT))
+		val file = newLogFile
+		val flusher = new FailingFlusher(file, 10)
+		val entities = (1 .. 2).map[newEntity(context.getEntityFromID(String.valueOf(it)), it)].toList
+		entities.forEach[flusher.register(it)]
+		entities.forEach[age = age + 10]
+		try {
+			flusher.flush
+			Assert.fail("flush should fail")
+		} catch (IOException e) {
+			// expected
+		}
+		Assert.assertEquals("truncated", 0L, file.length)
+		Assert.assertTrue("still dirty", entities.get(0).selectedRecursive)
+		Assert.assertTrue("still dirty", entities.get(1).selectedRecursive)
+
+		Assert.assertEquals("retry", 2, flusher.flush)
+		val lines = readLines(file)
+		Assert.assertEquals("lines", 2, lines.size)
+		for (e : entities) {
+			val id = e.handle.toString
+			Assert.assertEquals(id, 1, lines.filter[contains(id)].size)
+		}
+		flusher.close
+	}
+
+	@Test
+	def void testDeltaSerializer() {
+		val household = new HouseholdProvider().get
+		val member = new PersonProvider().get
+		member.name = "Ann"
+		member.profession = "Cook"
+		household.member = member
+		household.clearSelection(true, true)
+		member.age = 5
+
+		val buf = new StringWriter
+		val j = DeltaSerializer.newDeltaSerializer(buf)
+		j.visit(household.metaType, household)
+		j.generator.flush
+		val json = buf.toString
+		Assert.assertTrue(json, json.contains('"member"') && json.contains('"age"'))
+		Assert.assertFalse(json, json.contains("Ann") || json.contains("Cook"))
+
+		household.clearSelection(true, true)
+		val buf2 = new StringWriter
+		val j2 = DeltaSerializer.newDeltaSerializer(buf2)
+		j2.visit(household.metaType, household)
+		j2.generator.flush
+		Assert.assertFalse(buf2.toString, buf2.toString.contains('"member"'))
+	}
+}
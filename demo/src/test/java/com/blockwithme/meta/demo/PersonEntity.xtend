@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.meta.demo
+
+import com.blockwithme.meta.beans.Handle
+import com.blockwithme.meta.beans._Entity
+import com.blockwithme.meta.demo.impl.PersonImpl
+
+/**
+ * A Person that is also an Entity, for the tests.
+ *
+ * @author monster
+ */
+class PersonEntity extends PersonImpl implements _Entity {
+	/** The Handle */
+	var volatile Handle handle
+
+	/** The creation time */
+	var long creationTime
+
+	/** The last modification time */
+	var long lastModificationTime
+
+	override getHandle() {
+		handle
+	}
+
+	override setHandle(Handle handle) {
+		if (this.handle !== null) {
+			throw new IllegalStateException("Handle already set")
+		}
+		this.handle = handle
+	}
+
+	override getCreationTime() {
+		creationTime
+	}
+
+	override setCreationTime(long creationTime) {
+		this.creationTime = creationTime
+	}
+
+	override getLastModificationTime() {
+		lastModificationTime
+	}
+
+	override setLastModificationTime(long lastModificationTime) {
+		this.lastModificationTime = lastModificationTime
+	}
+}